@@ -0,0 +1,129 @@
+package com.andrewlalis.record_net.benchmarks;
+
+import com.andrewlalis.record_net.RecordChannel;
+import com.andrewlalis.record_net.RecordMappedSerializer;
+import com.andrewlalis.record_net.RecordServer;
+import com.andrewlalis.record_net.WireFormat;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the throughput and latency of request/response messaging over
+ * loopback connections, with a {@link RecordServer} and many concurrent
+ * {@link RecordChannel}s, each of which sends its next request as soon as
+ * the last one is answered. This isn't a JMH benchmark, since it measures a
+ * whole server rather than a single operation. Run it with:
+ * <pre>
+ * java -cp target/benchmarks.jar com.andrewlalis.record_net.benchmarks.LoopbackBenchmark \
+ *     [connections] [seconds] [pipelined requests per connection]
+ * </pre>
+ * The defaults are 10,000 connections, for 10 seconds, with one request in
+ * flight per connection. Each connection uses two sockets, so the open file
+ * limit (<code>ulimit -n</code>) must be large enough.
+ */
+public final class LoopbackBenchmark {
+    private static final int WARMUP_SECONDS = 3;
+
+    record Request(long id, long sent, String payload) {}
+    record Response(long id, long sent) {}
+
+    /**
+     * A histogram of latencies with microsecond resolution, up to one second.
+     */
+    private static final class Histogram {
+        private static final int MAX_MICROS = 1_000_000;
+        private final AtomicLongArray counts = new AtomicLongArray(MAX_MICROS + 1);
+
+        void record(long nanos) {
+            counts.incrementAndGet((int) Math.min(MAX_MICROS, nanos / 1000));
+        }
+
+        void reset() {
+            for (int i = 0; i <= MAX_MICROS; i++) counts.set(i, 0);
+        }
+
+        long percentileMicros(double percentile) {
+            long total = 0;
+            for (int i = 0; i <= MAX_MICROS; i++) total += counts.get(i);
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i <= MAX_MICROS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return i;
+            }
+            return MAX_MICROS;
+        }
+    }
+
+    private LoopbackBenchmark() {}
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int pipeline = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        RecordMappedSerializer serializer = RecordMappedSerializer.builder()
+                .format(WireFormat.COMPACT)
+                .registerType(1, Request.class)
+                .registerType(2, Response.class)
+                .build();
+        Histogram latencies = new Histogram();
+        LongAdder completed = new LongAdder();
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (RecordServer server = RecordServer.start(new InetSocketAddress(loopback, 0), serializer,
+                (msg, channel) -> msg instanceof Request r ? new Response(r.id(), r.sent()) : null)) {
+            InetSocketAddress address = new InetSocketAddress(loopback, server.getLocalPort());
+            List<RecordChannel> channels = new ArrayList<>(connections);
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                System.out.printf("Opening %d connections...%n", connections);
+                List<Future<RecordChannel>> connecting = new ArrayList<>(connections);
+                for (int i = 0; i < connections; i++) {
+                    connecting.add(executor.submit(() -> RecordChannel.connect(address, serializer, (msg, channel) -> null)));
+                }
+                for (Future<RecordChannel> future : connecting) channels.add(future.get());
+
+                long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS + seconds);
+                for (RecordChannel channel : channels) {
+                    for (int p = 0; p < pipeline; p++) {
+                        executor.submit(() -> {
+                            long id = 0;
+                            while (System.nanoTime() < end && channel.isOpen()) {
+                                long sent = System.nanoTime();
+                                channel.request(new Request(id++, sent, "loopback"), Response.class).join();
+                                latencies.record(System.nanoTime() - sent);
+                                completed.increment();
+                            }
+                            return null;
+                        });
+                    }
+                }
+                System.out.printf("Warming up for %d seconds...%n", WARMUP_SECONDS);
+                Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+                latencies.reset();
+                completed.reset();
+                long start = System.nanoTime();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+                long count = completed.sum();
+                double elapsed = (System.nanoTime() - start) / 1e9;
+
+                System.out.printf("Connections:     %d (%d in flight each)%n", connections, pipeline);
+                System.out.printf("Throughput:      %.0f msgs/sec%n", count / elapsed);
+                System.out.printf("Latency p50:     %d us%n", latencies.percentileMicros(50));
+                System.out.printf("Latency p90:     %d us%n", latencies.percentileMicros(90));
+                System.out.printf("Latency p99:     %d us%n", latencies.percentileMicros(99));
+                System.out.printf("Latency p99.9:   %d us%n", latencies.percentileMicros(99.9));
+                System.out.printf("Latency max:     %d us%n", latencies.percentileMicros(100));
+                // Wait for the remaining requests to finish, before closing.
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.andrewlalis.record_net.benchmarks;
+
+/**
+ * The shapes of message that are benchmarked. Each benchmark operation
+ * writes or reads every message of the shape once.
+ */
+public enum MessageShape {
+    /** A single small record of primitives. */
+    FLAT,
+    /** A single record with four levels of nested records. */
+    NESTED,
+    /** A single record with large primitive arrays. */
+    ARRAYS,
+    /** A single record that's mostly strings. */
+    STRINGS,
+    /** A single record that's mostly enums and UUIDs. */
+    ENUMS_UUIDS,
+    /** A stream of the flat, string, enum and nested messages, one after another. */
+    MIXED
+}
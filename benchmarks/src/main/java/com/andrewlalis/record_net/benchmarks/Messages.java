@@ -0,0 +1,107 @@
+package com.andrewlalis.record_net.benchmarks;
+
+import com.andrewlalis.record_net.RecordMappedSerializer;
+import com.andrewlalis.record_net.StringEncoding;
+import com.andrewlalis.record_net.WireFormat;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The message types that are benchmarked, and sample messages of each shape.
+ */
+final class Messages {
+    private Messages() {}
+
+    record Flat(int id, long timestamp, double value, float ratio, short flags, boolean active) {}
+
+    record Leaf(int x, int y) {}
+    record Branch(Leaf a, Leaf b, long id) {}
+    record Limb(Branch a, Branch b, int depth) {}
+    record Trunk(Limb a, Limb b, int depth) {}
+    record Nested(Trunk a, Trunk b, boolean root) {}
+
+    record Arrays(long id, double[] samples, int[] counts, byte[] payload) {}
+
+    record Strings(String user, String channel, String text, String[] tags) {}
+
+    enum Status {PENDING, SENT, DELIVERED, READ, FAILED}
+    enum Priority {LOW, NORMAL, HIGH}
+    record EnumsUuids(UUID id, UUID sender, UUID recipient, Status status, Priority priority, Status[] history) {}
+
+    /**
+     * Creates a serializer with all the benchmarked types registered.
+     * @param format The wire format to use.
+     * @param strings The string encoding to use.
+     * @return The serializer.
+     */
+    static RecordMappedSerializer serializer(WireFormat format, StringEncoding strings) {
+        return RecordMappedSerializer.builder()
+                .format(format)
+                .stringEncoding(strings)
+                .registerType(1, Flat.class)
+                .registerType(2, Leaf.class)
+                .registerType(3, Branch.class)
+                .registerType(4, Limb.class)
+                .registerType(5, Trunk.class)
+                .registerType(6, Nested.class)
+                .registerType(7, Arrays.class)
+                .registerType(8, Strings.class)
+                .registerType(9, EnumsUuids.class)
+                .build();
+    }
+
+    /**
+     * Gets the sample messages of a shape.
+     * @param shape The shape.
+     * @return The messages.
+     */
+    static List<Object> of(MessageShape shape) {
+        return switch (shape) {
+            case FLAT -> List.of(new Flat(42, 1_700_000_000_000L, 3.25, 0.5f, (short) 3, true));
+            case NESTED -> List.of(nested());
+            case ARRAYS -> List.of(arrays());
+            case STRINGS -> List.of(new Strings(
+                    "andrew",
+                    "#general",
+                    "The quick brown fox jumps over the lazy dog. ".repeat(20) + "Fin éè ☃",
+                    new String[]{"news", "animals", "pangram", "long-form"}
+            ));
+            case ENUMS_UUIDS -> List.of(new EnumsUuids(
+                    new UUID(1, 2),
+                    new UUID(3, 4),
+                    new UUID(5, 6),
+                    Status.DELIVERED,
+                    Priority.HIGH,
+                    new Status[]{Status.PENDING, Status.SENT, Status.DELIVERED}
+            ));
+            case MIXED -> List.of(
+                    of(MessageShape.FLAT).getFirst(),
+                    of(MessageShape.STRINGS).getFirst(),
+                    of(MessageShape.FLAT).getFirst(),
+                    of(MessageShape.ENUMS_UUIDS).getFirst(),
+                    of(MessageShape.NESTED).getFirst(),
+                    of(MessageShape.FLAT).getFirst()
+            );
+        };
+    }
+
+    private static Nested nested() {
+        Branch branch = new Branch(new Leaf(1, 2), new Leaf(3, 4), 5);
+        Limb limb = new Limb(branch, branch, 3);
+        Trunk trunk = new Trunk(limb, limb, 2);
+        return new Nested(trunk, trunk, true);
+    }
+
+    private static Arrays arrays() {
+        double[] samples = new double[10_000];
+        int[] counts = new int[10_000];
+        byte[] payload = new byte[16_384];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = Math.sin(i);
+            counts[i] = i * 31;
+        }
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) i;
+        return new Arrays(7, samples, counts, payload);
+    }
+}
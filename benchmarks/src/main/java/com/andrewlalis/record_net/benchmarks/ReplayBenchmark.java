@@ -0,0 +1,111 @@
+package com.andrewlalis.record_net.benchmarks;
+
+import com.andrewlalis.record_net.FrameIndex;
+import com.andrewlalis.record_net.RecordLog;
+import com.andrewlalis.record_net.RecordMappedSerializer;
+import com.andrewlalis.record_net.StringEncoding;
+import com.andrewlalis.record_net.WireFormat;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decoding a large buffer of framed messages, as when replaying a
+ * capture, one at a time and in parallel with a {@link FrameIndex}. Each
+ * operation decodes the whole buffer, so the score times
+ * {@link #MESSAGE_COUNT} is the number of messages decoded per second.
+ * Comparing the parallel scores with <code>-t</code> left at one thread, on
+ * machines with different numbers of cores, shows how decoding scales.
+ * <p>
+ *     The same messages are also replayed from a file with a buffered
+ *     stream, and from a {@link RecordLog}, whose cursors decode messages
+ *     straight from its memory-mapped segments.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplayBenchmark {
+    static final int MESSAGE_COUNT = 200_000;
+
+    @Param({"FLAT", "MIXED"})
+    public MessageShape shape;
+
+    private RecordMappedSerializer serializer;
+    private ByteBuffer capture;
+    private Path directory;
+    private Path captureFile;
+    private RecordLog log;
+
+    @Setup
+    public void setup() throws IOException {
+        serializer = Messages.serializer(WireFormat.STANDARD, StringEncoding.MODIFIED_UTF8);
+        List<Object> messages = Messages.of(shape);
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024 * 1024);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            serializer.writeFramedMessage(messages.get(i % messages.size()), buffer);
+        }
+        capture = buffer.flip();
+
+        directory = Files.createTempDirectory("record-net-replay");
+        captureFile = directory.resolve("capture.bin");
+        try (var channel = Files.newByteChannel(captureFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.write(capture.duplicate());
+        }
+        log = RecordLog.open(serializer, directory.resolve("log"));
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            log.append(messages.get(i % messages.size()), i);
+        }
+        log.sync();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted((a, b) -> b.compareTo(a)).toList()) Files.delete(file);
+        }
+    }
+
+    @Benchmark
+    public void sequential(Blackhole blackhole) throws IOException {
+        ByteBuffer buffer = capture.duplicate();
+        while (buffer.hasRemaining()) blackhole.consume(serializer.readFramedMessage(buffer));
+    }
+
+    @Benchmark
+    public void fileStream(Blackhole blackhole) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(captureFile), 64 * 1024)) {
+            for (int i = 0; i < MESSAGE_COUNT; i++) blackhole.consume(serializer.readFramedMessage(in));
+        }
+    }
+
+    @Benchmark
+    public void logCursor(Blackhole blackhole) throws IOException {
+        RecordLog.Cursor cursor = log.cursor(0);
+        while (cursor.hasNext()) blackhole.consume(cursor.next());
+    }
+
+    @Benchmark
+    public List<Object> parallelOrdered() throws IOException {
+        return FrameIndex.scan(serializer, capture).toList();
+    }
+
+    @Benchmark
+    public void parallelUnordered(Blackhole blackhole) throws IOException {
+        FrameIndex.scan(serializer, capture).forEachUnordered(blackhole::consume);
+    }
+}
@@ -0,0 +1,120 @@
+package com.andrewlalis.record_net.benchmarks;
+
+import com.andrewlalis.record_net.MessageDecoder;
+import com.andrewlalis.record_net.MessageEncoder;
+import com.andrewlalis.record_net.RecordMappedSerializer;
+import com.andrewlalis.record_net.StringEncoding;
+import com.andrewlalis.record_net.WireFormat;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing and reading each shape of message, through buffers,
+ * streams, and reusable encoders and decoders.
+ * <p>
+ *     Besides the operation rate, each benchmark reports a
+ *     <code>wireBytes</code> counter, at the same rate. Dividing it by the
+ *     score gives the number of encoded bytes per operation.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializerBenchmark {
+    @Param
+    public MessageShape shape;
+
+    @Param
+    public WireFormat format;
+
+    @Param
+    public StringEncoding strings;
+
+    private RecordMappedSerializer serializer;
+    private MessageEncoder encoder;
+    private MessageDecoder decoder;
+    private Object[] messages;
+    private byte[] encoded;
+    private ByteBuffer writeBuffer;
+    private ByteBuffer readBuffer;
+    private ByteArrayOutputStream outputStream;
+    private ByteArrayInputStream inputStream;
+
+    /**
+     * Counts the encoded bytes that each benchmark writes or reads.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long wireBytes;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        serializer = Messages.serializer(format, strings);
+        encoder = serializer.newEncoder();
+        decoder = serializer.newDecoder();
+        messages = Messages.of(shape).toArray();
+        var baos = new ByteArrayOutputStream();
+        for (Object msg : messages) serializer.writeMessage(msg, baos);
+        encoded = baos.toByteArray();
+        writeBuffer = ByteBuffer.allocate(encoded.length);
+        readBuffer = ByteBuffer.wrap(encoded);
+        outputStream = new ByteArrayOutputStream(encoded.length);
+        inputStream = new ByteArrayInputStream(encoded);
+    }
+
+    @Benchmark
+    public ByteBuffer writeMessageToBuffer(Counters counters) throws IOException {
+        writeBuffer.clear();
+        for (Object msg : messages) serializer.writeMessage(msg, writeBuffer);
+        counters.wireBytes += writeBuffer.position();
+        return writeBuffer;
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream writeMessageToStream(Counters counters) throws IOException {
+        outputStream.reset();
+        for (Object msg : messages) serializer.writeMessage(msg, outputStream);
+        counters.wireBytes += outputStream.size();
+        return outputStream;
+    }
+
+    @Benchmark
+    public ByteBuffer encoderWriteMessage(Counters counters) throws IOException {
+        writeBuffer.clear();
+        for (Object msg : messages) encoder.writeMessage(msg, writeBuffer);
+        counters.wireBytes += writeBuffer.position();
+        return writeBuffer;
+    }
+
+    @Benchmark
+    public void readMessageFromBuffer(Counters counters, Blackhole bh) throws IOException {
+        readBuffer.clear();
+        for (int i = 0; i < messages.length; i++) bh.consume(serializer.readMessage(readBuffer));
+        counters.wireBytes += readBuffer.position();
+    }
+
+    @Benchmark
+    public void readMessageFromStream(Counters counters, Blackhole bh) throws IOException {
+        inputStream.reset();
+        for (int i = 0; i < messages.length; i++) bh.consume(serializer.readMessage(inputStream));
+        counters.wireBytes += encoded.length;
+    }
+
+    @Benchmark
+    public void decoderReadMessage(Counters counters, Blackhole bh) throws IOException {
+        readBuffer.clear();
+        for (int i = 0; i < messages.length; i++) bh.consume(decoder.readMessage(readBuffer));
+        counters.wireBytes += readBuffer.position();
+    }
+}
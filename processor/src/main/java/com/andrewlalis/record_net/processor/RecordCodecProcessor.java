@@ -0,0 +1,306 @@
+package com.andrewlalis.record_net.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.RecordComponentElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An annotation processor that generates a record-net codec for every record
+ * that's annotated with <code>@SerializableRecord</code>. For a record named
+ * <code>Foo</code>, it generates a <code>Foo_RecordNetCodec</code> class in
+ * the same package, which reads and writes the record by calling its
+ * accessors and canonical constructor directly, in the same order and with
+ * the same encoding that the library's reflective codecs use. Nested records
+ * are named after each of their enclosing types, like
+ * <code>Outer_Inner_RecordNetCodec</code>.
+ * <p>
+ *     It also generates a <code>RecordNetCodecs</code> class in each package
+ *     with annotated records, whose <code>registerAll</code> methods register
+ *     every codec in the package with the id from its annotation.
+ * </p>
+ */
+@SupportedAnnotationTypes(RecordCodecProcessor.ANNOTATION)
+public final class RecordCodecProcessor extends AbstractProcessor {
+    static final String ANNOTATION = "com.andrewlalis.record_net.SerializableRecord";
+    static final String CODEC_SUFFIX = "_RecordNetCodec";
+    static final String REGISTRY_NAME = "RecordNetCodecs";
+
+    private static final String LIB = "com.andrewlalis.record_net.";
+
+    /**
+     * A record that a codec is generated for.
+     * @param type The record's type element.
+     * @param id The id from its annotation.
+     * @param codecName The simple name of its generated codec.
+     */
+    private record Target(TypeElement type, int id, String codecName) {}
+
+    private Filer filer;
+    private Messager messager;
+    /**
+     * The packages that a registry has already been generated for, in
+     * earlier rounds.
+     */
+    private final Set<String> registeredPackages = new HashSet<>();
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        this.filer = processingEnv.getFiler();
+        this.messager = processingEnv.getMessager();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (annotations.isEmpty()) return false;
+        TypeElement annotation = annotations.iterator().next();
+        Map<String, List<Target>> targetsByPackage = new LinkedHashMap<>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            Target target = checkTarget(element);
+            if (target == null) continue;
+            String pkg = packageName(target.type());
+            targetsByPackage.computeIfAbsent(pkg, p -> new ArrayList<>()).add(target);
+        }
+        targetsByPackage.forEach((pkg, targets) -> {
+            if (!checkIds(targets)) return;
+            if (!registeredPackages.add(pkg)) {
+                error(targets.get(0).type(), "Annotated records in package " + pkg + " must all be compiled in the same round.");
+                return;
+            }
+            try {
+                for (Target target : targets) writeCodec(pkg, target);
+                writeRegistry(pkg, targets);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Checks that an annotated element is a record that a codec can be
+     * generated for, and reports an error if it isn't.
+     * @param element The annotated element.
+     * @return The record to generate a codec for, or null if it can't be.
+     */
+    private Target checkTarget(Element element) {
+        if (element.getKind() != ElementKind.RECORD) {
+            error(element, "Only records can be annotated with @SerializableRecord.");
+            return null;
+        }
+        TypeElement type = (TypeElement) element;
+        if (!type.getTypeParameters().isEmpty()) {
+            error(type, "Generic records can't be serialized.");
+            return null;
+        }
+        StringBuilder codecName = new StringBuilder(type.getSimpleName());
+        for (Element e = type; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            TypeElement t = (TypeElement) e;
+            if (t.getNestingKind() == NestingKind.LOCAL || t.getNestingKind() == NestingKind.ANONYMOUS) {
+                error(type, "Local records can't have a generated codec, since it couldn't access them.");
+                return null;
+            }
+            if (t.getModifiers().contains(Modifier.PRIVATE)) {
+                error(type, "Private records can't have a generated codec, since it couldn't access them.");
+                return null;
+            }
+            if (t != type) codecName.insert(0, t.getSimpleName() + "_");
+        }
+        for (RecordComponentElement component : type.getRecordComponents()) {
+            if (typeName(component.asType()) == null) {
+                error(component, "Component type " + component.asType() + " can't be serialized.");
+                return null;
+            }
+        }
+        return new Target(type, annotationId(type), codecName.append(CODEC_SUFFIX).toString());
+    }
+
+    /**
+     * Checks that no two records in a package use the same id.
+     * @param targets The records in the package.
+     * @return True if all ids are unique, or false if an error was reported.
+     */
+    private boolean checkIds(List<Target> targets) {
+        Map<Integer, Target> byId = new HashMap<>();
+        boolean valid = true;
+        for (Target target : targets) {
+            Target other = byId.putIfAbsent(target.id(), target);
+            if (other != null) {
+                error(target.type(), "Id " + target.id() + " is already used by " + other.type().getQualifiedName());
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    private int annotationId(TypeElement type) {
+        for (AnnotationMirror mirror : type.getAnnotationMirrors()) {
+            if (!((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(ANNOTATION)) continue;
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : mirror.getElementValues().entrySet()) {
+                if (e.getKey().getSimpleName().contentEquals("id")) return (Integer) e.getValue().getValue();
+            }
+        }
+        throw new IllegalStateException(type + " has no @SerializableRecord id.");
+    }
+
+    private void writeCodec(String pkg, Target target) throws IOException {
+        TypeElement type = target.type();
+        String typeName = type.getQualifiedName().toString();
+        List<? extends RecordComponentElement> components = type.getRecordComponents();
+        int n = components.size();
+        String visibility = isPublic(type) ? "public " : "";
+
+        StringBuilder names = new StringBuilder();
+        StringBuilder types = new StringBuilder();
+        StringBuilder accessorCases = new StringBuilder();
+        StringBuilder constructArgs = new StringBuilder();
+        StringBuilder writes = new StringBuilder();
+        StringBuilder reads = new StringBuilder();
+        StringBuilder readArgs = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            RecordComponentElement c = components.get(i);
+            TypeMirror t = c.asType();
+            String componentType = typeName(t);
+            String accessor = "record." + c.getAccessor().getSimpleName() + "()";
+            String sep = i == 0 ? "" : ", ";
+            names.append(sep).append('"').append(c.getSimpleName()).append('"');
+            types.append(sep).append(componentType).append(".class");
+            accessorCases.append("            case ").append(i).append(" -> ").append(accessor).append(";\n");
+            constructArgs.append(sep).append('(').append(componentType).append(") values[").append(i).append(']');
+            readArgs.append(sep).append('c').append(i);
+            if (t.getKind().isPrimitive()) {
+                String suffix = Character.toUpperCase(componentType.charAt(0)) + componentType.substring(1);
+                writes.append("        out.write").append(suffix).append('(').append(accessor).append(");\n");
+                reads.append("        ").append(componentType).append(" c").append(i)
+                        .append(" = in.read").append(suffix).append("();\n");
+            } else {
+                writes.append("        out.writeObject(").append(i).append(", ").append(accessor).append(");\n");
+                reads.append("        ").append(componentType).append(" c").append(i)
+                        .append(" = (").append(componentType).append(") in.readObject(").append(i).append(");\n");
+            }
+        }
+
+        String qualifiedName = pkg.isEmpty() ? target.codecName() : pkg + "." + target.codecName();
+        try (Writer w = filer.createSourceFile(qualifiedName, type).openWriter()) {
+            if (!pkg.isEmpty()) w.write("package " + pkg + ";\n\n");
+            w.write("/**\n * The codec for {@link " + typeName + "}, generated by the record-net annotation processor.\n */\n");
+            w.write("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+            w.write(visibility + "final class " + target.codecName() + " implements " + LIB + "GeneratedCodec<" + typeName + "> {\n");
+            w.write("    @Override\n    public Class<" + typeName + "> type() {\n        return " + typeName + ".class;\n    }\n\n");
+            w.write("    @Override\n    public String[] componentNames() {\n        return new String[] {" + names + "};\n    }\n\n");
+            w.write("    @Override\n    public Class<?>[] componentTypes() {\n        return new Class<?>[] {" + types + "};\n    }\n\n");
+            w.write("    @Override\n    public Object component(" + typeName + " record, int index) {\n");
+            if (n == 0) {
+                w.write("        throw new IndexOutOfBoundsException(index);\n    }\n\n");
+            } else {
+                w.write("        return switch (index) {\n" + accessorCases);
+                w.write("            default -> throw new IndexOutOfBoundsException(index);\n        };\n    }\n\n");
+            }
+            w.write("    @Override\n    public " + typeName + " construct(Object[] values) {\n");
+            w.write("        return new " + typeName + "(" + constructArgs + ");\n    }\n\n");
+            w.write("    @Override\n    public void write(" + typeName + " record, " + LIB + "RecordWriter out) throws java.io.IOException {\n");
+            w.write(writes.toString());
+            w.write("    }\n\n");
+            w.write("    @Override\n    public " + typeName + " read(" + LIB + "RecordReader in) throws java.io.IOException {\n");
+            w.write(reads.toString());
+            w.write("        return new " + typeName + "(" + readArgs + ");\n    }\n}\n");
+        }
+    }
+
+    private void writeRegistry(String pkg, List<Target> targets) throws IOException {
+        String qualifiedName = pkg.isEmpty() ? REGISTRY_NAME : pkg + "." + REGISTRY_NAME;
+        Element[] origins = targets.stream().map(Target::type).toArray(Element[]::new);
+        StringBuilder registerCalls = new StringBuilder();
+        StringBuilder builderCalls = new StringBuilder();
+        for (Target target : targets) {
+            String codec = "new " + target.codecName() + "()";
+            registerCalls.append("        serializer.registerCodec(").append(target.id()).append(", ").append(codec).append(");\n");
+            builderCalls.append("        builder.registerCodec(").append(target.id()).append(", ").append(codec).append(");\n");
+        }
+        try (Writer w = filer.createSourceFile(qualifiedName, origins).openWriter()) {
+            if (!pkg.isEmpty()) w.write("package " + pkg + ";\n\n");
+            w.write("/**\n * Registers the generated codecs for every record in this package that's\n");
+            w.write(" * annotated with {@link " + ANNOTATION + "}.\n */\n");
+            w.write("public final class " + REGISTRY_NAME + " {\n");
+            w.write("    private " + REGISTRY_NAME + "() {}\n\n");
+            w.write("    /**\n     * Registers all codecs to a serializer.\n     * @param serializer The serializer.\n     */\n");
+            w.write("    public static void registerAll(" + LIB + "RecordMappedSerializer serializer) {\n");
+            w.write(registerCalls.toString());
+            w.write("    }\n\n");
+            w.write("    /**\n     * Registers all codecs to a serializer builder.\n     * @param builder The builder.\n     * @return The builder.\n     */\n");
+            w.write("    public static " + LIB + "RecordMappedSerializer.Builder registerAll(" + LIB + "RecordMappedSerializer.Builder builder) {\n");
+            w.write(builderCalls.toString());
+            w.write("        return builder;\n    }\n}\n");
+        }
+    }
+
+    /**
+     * Gets the name of a component type as it's written in source code, with
+     * any type arguments erased.
+     * @param type The component type.
+     * @return The type's name, or null if it can't be written.
+     */
+    private static String typeName(TypeMirror type) {
+        TypeKind kind = type.getKind();
+        if (kind.isPrimitive()) return kind.name().toLowerCase();
+        if (kind == TypeKind.ARRAY) {
+            String component = typeName(((ArrayType) type).getComponentType());
+            return component == null ? null : component + "[]";
+        }
+        if (kind == TypeKind.DECLARED) {
+            return ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+        }
+        return null;
+    }
+
+    private static boolean isPublic(TypeElement type) {
+        for (Element e = type; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            if (!e.getModifiers().contains(Modifier.PUBLIC)) return false;
+        }
+        return true;
+    }
+
+    private static String packageName(TypeElement type) {
+        Element e = type;
+        while (!(e instanceof PackageElement)) e = e.getEnclosingElement();
+        return ((PackageElement) e).getQualifiedName().toString();
+    }
+
+    private void error(Element element, String message) {
+        messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,126 @@
+package com.andrewlalis.record_net.processor;
+
+import com.andrewlalis.record_net.NullEncoding;
+import com.andrewlalis.record_net.RecordMappedSerializer;
+import com.andrewlalis.record_net.SerializableRecord;
+import com.andrewlalis.record_net.StringEncoding;
+import com.andrewlalis.record_net.WireFormat;
+import org.junit.jupiter.api.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordCodecProcessorTest {
+    @Test
+    public void testGeneratedCodecsMatchReflection() throws Exception {
+        Samples.Player player = new Samples.Player(
+                42, "Ünïcode 😀", new Samples.Position(1, -2, 3),
+                new Samples.Position[] {new Samples.Position(0, 0, 0), new Samples.Position(-1, 1 << 20, 7)},
+                Samples.Team.BLUE, true, -0.25, 3.5f, (short) 12, (byte) -1, 'Q',
+                new long[] {Long.MIN_VALUE, 0, Long.MAX_VALUE}, 7, UUID.randomUUID()
+        );
+        // The last message has null components, which need a presence bitmap.
+        List<Object> messages = List.of(
+                player,
+                new Samples.Position(Integer.MIN_VALUE, 0, Integer.MAX_VALUE),
+                new Samples.Chat("a", "hello", new Samples.Position[0]),
+                new Samples.Empty(),
+                new Samples.Chat("b", null, null)
+        );
+        for (WireFormat format : WireFormat.values()) {
+            for (StringEncoding strings : StringEncoding.values()) {
+                for (NullEncoding nulls : NullEncoding.values()) {
+                    RecordMappedSerializer reflective = new RecordMappedSerializer(format, strings, nulls);
+                    reflective.registerType(1, Samples.Position.class);
+                    reflective.registerType(2, Samples.Player.class);
+                    reflective.registerType(3, Samples.Chat.class);
+                    reflective.registerType(4, Samples.Empty.class);
+                    RecordMappedSerializer generated = new RecordMappedSerializer(format, strings, nulls);
+                    RecordNetCodecs.registerAll(generated);
+                    RecordMappedSerializer built = RecordNetCodecs.registerAll(
+                            RecordMappedSerializer.builder().format(format).stringEncoding(strings).nullEncoding(nulls)
+                    ).build();
+
+                    for (Object msg : nulls == NullEncoding.NONE ? messages.subList(0, messages.size() - 1) : messages) {
+                        byte[] expected = reflective.toByteArray(msg);
+                        assertArrayEquals(expected, generated.toByteArray(msg), msg.getClass() + " in " + format + ", " + strings + ", " + nulls);
+                        assertArrayEquals(expected, built.toByteArray(msg));
+                        assertEquals(expected.length, generated.sizeOf(msg));
+                        Object read = generated.readMessage(new ByteArrayInputStream(expected));
+                        assertEquals(msg.getClass(), read.getClass());
+                        assertArrayEquals(expected, reflective.toByteArray(read));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidRecordsAreReported() throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile("""
+                package test;
+                import com.andrewlalis.record_net.SerializableRecord;
+                public class Invalid {
+                    @SerializableRecord(id = 1) private record Hidden(int a) {}
+                    @SerializableRecord(id = 2) public record Box<T>(T value) {}
+                    @SerializableRecord(id = 3) public record A(int a) {}
+                    @SerializableRecord(id = 3) public record B(int b) {}
+                    @SerializableRecord(id = 4) public static class NotARecord {}
+                }
+                """);
+        List<String> messages = errors.stream().map(d -> d.getMessage(null)).toList();
+        assertEquals(4, messages.size(), messages::toString);
+        assertTrue(messages.stream().anyMatch(m -> m.startsWith("Private records")));
+        assertTrue(messages.stream().anyMatch(m -> m.startsWith("Generic records")));
+        assertTrue(messages.stream().anyMatch(m -> m.startsWith("Id 3 is already used")));
+        assertTrue(messages.stream().anyMatch(m -> m.startsWith("Only records")));
+
+        assertTrue(compile("""
+                package test;
+                import com.andrewlalis.record_net.SerializableRecord;
+                public class Valid {
+                    @SerializableRecord(id = 1) record Inner(int a, String b) {}
+                }
+                """).isEmpty());
+    }
+
+    /**
+     * Compiles a single source file with the processor, and gets any errors.
+     * @param source The source code of a class named by its last declared
+     *               top-level type.
+     * @return The errors that were reported.
+     * @throws Exception If the compiler can't be run.
+     */
+    private static List<Diagnostic<? extends JavaFileObject>> compile(String source) throws Exception {
+        String className = source.substring(source.indexOf("public class ") + 13, source.indexOf(" {"));
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///test/" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        Path library = Path.of(SerializableRecord.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Path output = Files.createTempDirectory("record-net-processor");
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        var task = compiler.getTask(null, null, diagnostics,
+                List.of("-classpath", library.toString(), "-d", output.toString()), null, List.of(file));
+        task.setProcessors(List.of(new RecordCodecProcessor()));
+        task.call();
+        return diagnostics.getDiagnostics().stream()
+                .filter(d -> d.getKind() == Diagnostic.Kind.ERROR)
+                .toList();
+    }
+}
@@ -0,0 +1,42 @@
+package com.andrewlalis.record_net.processor;
+
+import com.andrewlalis.record_net.SerializableRecord;
+
+import java.util.UUID;
+
+/**
+ * Records that the processor generates codecs for, when the tests are
+ * compiled.
+ */
+public final class Samples {
+    private Samples() {}
+
+    public enum Team {RED, BLUE}
+
+    @SerializableRecord(id = 1)
+    public record Position(int x, int y, int z) {}
+
+    @SerializableRecord(id = 2)
+    public record Player(
+            long id,
+            String name,
+            Position position,
+            Position[] trail,
+            Team team,
+            boolean online,
+            double score,
+            float speed,
+            short level,
+            byte flags,
+            char grade,
+            long[] history,
+            Integer bonus,
+            UUID account
+    ) {}
+
+    @SerializableRecord(id = 3)
+    record Chat(String from, String text, Position[] mentions) {}
+
+    @SerializableRecord(id = 4)
+    public record Empty() {}
+}
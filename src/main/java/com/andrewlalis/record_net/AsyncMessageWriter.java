@@ -0,0 +1,437 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Writes messages from any number of threads to a single stream, on a
+ * writer thread of its own, so that senders never contend on the stream.
+ * <p>
+ *     Senders put messages on a bounded, lock-free queue. The writer thread
+ *     takes them off, and encodes them one after another into a single large
+ *     buffer, which is only written to the stream and flushed once it's
+ *     reached the flush threshold, or once the oldest message in it has
+ *     waited for the maximum latency, whichever comes first. A maximum
+ *     latency of zero flushes as soon as the queue is empty, which still
+ *     batches messages that are sent faster than they can be written.
+ * </p>
+ * <p>
+ *     A message that can't be encoded, for example because of a null
+ *     component, is dropped on its own, and whatever of it was already in
+ *     the buffer is discarded, so the messages around it are still written.
+ *     Such messages are counted by {@link #failedCount()}, and their
+ *     exceptions are passed to the {@link Builder#onError(Consumer) error
+ *     handler}, if there is one.
+ * </p>
+ * <p>
+ *     When the queue is full, {@link #send(Object)} waits for room, and
+ *     {@link #trySend(Object)} gives up, so that slow streams push back on
+ *     their senders. The queue depth and the number of times that senders
+ *     found it full can be read at any time, to tune the queue capacity,
+ *     flush threshold and maximum latency.
+ * </p>
+ * @see #builder(RecordMappedSerializer, OutputStream)
+ */
+public final class AsyncMessageWriter implements AutoCloseable {
+    /**
+     * The longest that an idle writer thread sleeps before checking the
+     * queue again, in case it missed a wakeup.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    /**
+     * The longest that a sender waits before checking whether a full queue
+     * has room again.
+     */
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final RecordMappedSerializer serializer;
+    private final OutputStream stream;
+    private final boolean framed;
+    private final int flushThreshold;
+    private final long maxLatencyNanos;
+    private final Consumer<Throwable> errorHandler;
+    private final MpscQueue<Object> queue;
+    /**
+     * The buffer that the output starts with after every flush. Messages
+     * that don't fit make the output grow a larger one, instead of passing
+     * part of a message on to the stream.
+     */
+    private final ByteBuffer initialBuffer;
+    private final RecordOutput output;
+    private final Thread writerThread;
+
+    private volatile boolean closed;
+    /**
+     * The number of senders that are between checking that this writer is
+     * open and queueing their message, which the writer thread waits for
+     * before it stops.
+     */
+    private final AtomicInteger activeSenders = new AtomicInteger();
+    private volatile boolean writerSleeping;
+    private volatile Throwable failure;
+
+    private final LongAdder backpressureCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    // Only updated by the writer thread.
+    private volatile long messagesWritten;
+    private volatile long failedCount;
+    private volatile long bytesWritten;
+    private volatile long flushCount;
+
+    private AsyncMessageWriter(Builder builder) {
+        this.serializer = builder.serializer;
+        this.stream = builder.stream;
+        this.framed = builder.framed;
+        this.flushThreshold = builder.flushThreshold;
+        this.maxLatencyNanos = builder.maxLatency.toNanos();
+        this.errorHandler = builder.errorHandler;
+        this.queue = new MpscQueue<>(builder.queueCapacity);
+        // Leave room for the message that crosses the flush threshold.
+        this.initialBuffer = ByteBuffer.allocate(flushThreshold + RecordOutput.STREAM_BUFFER_SIZE);
+        this.output = new RecordOutput(initialBuffer, RecordOutput.GROWING_SINK);
+        this.writerThread = Thread.ofPlatform()
+                .name("record-net-writer")
+                .daemon(true)
+                .unstarted(this::writeLoop);
+    }
+
+    /**
+     * Gets a builder for a writer.
+     * @param serializer The serializer to write messages with.
+     * @param out The stream to write to. Use
+     *            {@link java.nio.channels.Channels#newOutputStream(java.nio.channels.WritableByteChannel)}
+     *            to write to a channel.
+     * @return The builder.
+     */
+    public static Builder builder(RecordMappedSerializer serializer, OutputStream out) {
+        return new Builder(serializer, out);
+    }
+
+    /**
+     * Sends a message, waiting for room in the queue if it's full.
+     * @param msg The message to send.
+     * @throws IOException If this writer is closed, or if writing an
+     * earlier message failed.
+     * @throws InterruptedIOException If the thread is interrupted while
+     * waiting.
+     * @throws UnsupportedMessageTypeException If the message's type isn't
+     * registered.
+     */
+    public void send(Object msg) throws IOException {
+        activeSenders.incrementAndGet();
+        try {
+            checkSendable(msg);
+            if (!queue.offer(msg)) {
+                backpressureCount.increment();
+                do {
+                    LockSupport.parkNanos(this, FULL_PARK_NANOS);
+                    if (Thread.interrupted()) throw new InterruptedIOException("Interrupted while waiting to send a message.");
+                    checkOpen();
+                } while (!queue.offer(msg));
+            }
+        } finally {
+            activeSenders.decrementAndGet();
+        }
+        wakeWriter();
+    }
+
+    /**
+     * Sends a message, if there's room in the queue.
+     * @param msg The message to send.
+     * @return True if the message was queued, or false if the queue is full.
+     * @throws IOException If this writer is closed, or if writing an
+     * earlier message failed.
+     * @throws UnsupportedMessageTypeException If the message's type isn't
+     * registered.
+     */
+    public boolean trySend(Object msg) throws IOException {
+        activeSenders.incrementAndGet();
+        try {
+            checkSendable(msg);
+            if (!queue.offer(msg)) {
+                backpressureCount.increment();
+                rejectedCount.increment();
+                return false;
+            }
+        } finally {
+            activeSenders.decrementAndGet();
+        }
+        wakeWriter();
+        return true;
+    }
+
+    /**
+     * Gets the number of messages that are waiting to be written.
+     * @return The queue depth.
+     */
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Gets the maximum number of messages that can wait to be written.
+     * @return The queue capacity.
+     */
+    public int queueCapacity() {
+        return queue.capacity();
+    }
+
+    /**
+     * Gets the number of times that a sender found the queue full.
+     * @return The count.
+     */
+    public long backpressureCount() {
+        return backpressureCount.sum();
+    }
+
+    /**
+     * Gets the number of messages that {@link #trySend(Object)} didn't send
+     * because the queue was full.
+     * @return The count.
+     */
+    public long rejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * Gets the number of messages that have been written to the stream's
+     * buffer, though not necessarily flushed.
+     * @return The count.
+     */
+    public long messagesWritten() {
+        return messagesWritten;
+    }
+
+    /**
+     * Gets the number of messages that were dropped because they couldn't
+     * be encoded.
+     * @return The count.
+     */
+    public long failedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Gets the number of bytes that have been written and flushed to the
+     * stream.
+     * @return The number of bytes.
+     */
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Gets the number of times that the stream has been flushed.
+     * @return The count.
+     */
+    public long flushCount() {
+        return flushCount;
+    }
+
+    /**
+     * Stops accepting messages, and waits until every message that was
+     * already sent has been written and flushed. The stream isn't closed.
+     * @throws IOException If writing a message failed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        Throwable failure = this.failure;
+        if (failure != null) throw new IOException("Writing a message failed.", failure);
+    }
+
+    private void checkSendable(Object msg) throws IOException {
+        checkOpen();
+        serializer.registrationFor(msg);
+    }
+
+    private void checkOpen() throws IOException {
+        Throwable failure = this.failure;
+        if (failure != null) throw new IOException("Writing a message failed.", failure);
+        if (closed) throw new IOException("This writer is closed.");
+    }
+
+    private void wakeWriter() {
+        if (writerSleeping) LockSupport.unpark(writerThread);
+    }
+
+    private void writeLoop() {
+        long oldestNanos = 0;
+        boolean pending = false;
+        try {
+            while (true) {
+                Object msg = queue.poll();
+                if (msg != null) {
+                    if (!pending) {
+                        oldestNanos = System.nanoTime();
+                        pending = true;
+                    }
+                    append(msg);
+                    if (output.buffer().position() >= flushThreshold) {
+                        flush();
+                        pending = false;
+                    }
+                    continue;
+                }
+                if (pending) {
+                    long waited = System.nanoTime() - oldestNanos;
+                    if (waited >= maxLatencyNanos || closed) {
+                        flush();
+                        pending = false;
+                    } else {
+                        park(maxLatencyNanos - waited);
+                    }
+                } else if (closed) {
+                    // Wait for senders that checked before this writer closed.
+                    if (activeSenders.get() == 0 && queue.size() == 0) return;
+                    Thread.onSpinWait();
+                } else {
+                    park(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (Throwable t) {
+            failure = t;
+        }
+    }
+
+    private void park(long nanos) {
+        writerSleeping = true;
+        if (queue.size() == 0 && !closed) LockSupport.parkNanos(this, nanos);
+        writerSleeping = false;
+    }
+
+    /**
+     * Encodes a message into the output's buffer, or if it can't be encoded,
+     * discards whatever of it was written, and reports it.
+     * @param msg The message to encode.
+     */
+    private void append(Object msg) {
+        int start = output.buffer().position();
+        try {
+            serializer.append(msg, output, framed);
+            messagesWritten++;
+        } catch (IOException | RuntimeException e) {
+            output.buffer().position(start);
+            failedCount++;
+            if (errorHandler != null) errorHandler.accept(e);
+        }
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer buffer = output.buffer();
+        stream.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        stream.flush();
+        bytesWritten += buffer.position();
+        flushCount++;
+        output.reset(initialBuffer.clear(), RecordOutput.GROWING_SINK);
+    }
+
+    /**
+     * A builder for an {@link AsyncMessageWriter}.
+     */
+    public static final class Builder {
+        private final RecordMappedSerializer serializer;
+        private final OutputStream stream;
+        private boolean framed = true;
+        private int queueCapacity = 4096;
+        private int flushThreshold = 64 * 1024;
+        private Duration maxLatency = Duration.ofMillis(1);
+        private Consumer<Throwable> errorHandler;
+
+        private Builder(RecordMappedSerializer serializer, OutputStream stream) {
+            this.serializer = Objects.requireNonNull(serializer);
+            this.stream = Objects.requireNonNull(stream);
+        }
+
+        /**
+         * Sets whether messages are written with a frame length, like
+         * {@link RecordMappedSerializer#writeFramedMessage(Object, OutputStream)},
+         * which is the default, or without, like
+         * {@link RecordMappedSerializer#writeMessage(Object, OutputStream)}.
+         * @param framed Whether to write framed messages.
+         * @return This builder.
+         */
+        public Builder framed(boolean framed) {
+            this.framed = framed;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of messages that can wait to be written,
+         * which is rounded up to a power of two. The default is 4096.
+         * @param queueCapacity The queue capacity.
+         * @return This builder.
+         */
+        public Builder queueCapacity(int queueCapacity) {
+            if (queueCapacity < 1) throw new IllegalArgumentException("Invalid queue capacity " + queueCapacity);
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Sets the number of buffered bytes at which the stream is flushed,
+         * even if more messages are waiting. The default is 64 KiB.
+         * @param flushThreshold The flush threshold, in bytes.
+         * @return This builder.
+         */
+        public Builder flushThreshold(int flushThreshold) {
+            if (flushThreshold < 1) throw new IllegalArgumentException("Invalid flush threshold " + flushThreshold);
+            this.flushThreshold = flushThreshold;
+            return this;
+        }
+
+        /**
+         * Sets the longest time that a message may wait in the buffer for
+         * more messages, before the stream is flushed. The default is 1
+         * millisecond.
+         * @param maxLatency The maximum latency.
+         * @return This builder.
+         */
+        public Builder maxLatency(Duration maxLatency) {
+            if (maxLatency.isNegative()) throw new IllegalArgumentException("Invalid maximum latency " + maxLatency);
+            this.maxLatency = maxLatency;
+            return this;
+        }
+
+        /**
+         * Sets what's done with the exception of each message that can't be
+         * encoded, on the writer thread. By default, such messages are only
+         * counted by {@link AsyncMessageWriter#failedCount()}.
+         * @param errorHandler The error handler, or null.
+         * @return This builder.
+         */
+        public Builder onError(Consumer<Throwable> errorHandler) {
+            this.errorHandler = errorHandler;
+            return this;
+        }
+
+        /**
+         * Builds the writer, and starts its writer thread.
+         * @return The writer.
+         */
+        public AsyncMessageWriter start() {
+            AsyncMessageWriter writer = new AsyncMessageWriter(this);
+            writer.writerThread.start();
+            return writer;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Writes and reads messages as deltas from the previous message of the same
+ * type, for streams of state updates in which most components don't change
+ * from one message to the next.
+ * <p>
+ *     For each message type, a session remembers the last message that it
+ *     wrote, and the last one that it read. A delta holds a bitmask of the
+ *     components that changed, then the record's presence bitmap if the
+ *     serializer uses one, followed by only the changed values. Nested
+ *     records that changed are themselves written as deltas. The first
+ *     message of each type, and every <code>keyframeInterval</code>th message
+ *     after that, is written in full as a keyframe, so that a reader can
+ *     resynchronize.
+ * </p>
+ * <p>
+ *     Messages written by a session can only be read by a session that has
+ *     read every message before them in the same order, so sessions should
+ *     only be used over reliable, ordered streams. Since messages share
+ *     unchanged component values with the message before them, arrays in a
+ *     message must not be modified after it's written or read.
+ * </p>
+ * <p>
+ *     A session keeps the state of a single pair of streams, so each
+ *     connection needs its own, and it's not thread-safe.
+ * </p>
+ * @see RecordMappedSerializer#newDeltaSession()
+ */
+public final class DeltaSession {
+    /**
+     * The default number of messages of a type between each keyframe.
+     */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+    private static final int KEYFRAME = 0;
+    private static final int DELTA = 1;
+
+    /**
+     * The state of a message type that's been written.
+     */
+    private static final class Sent {
+        Object last;
+        long count;
+    }
+
+    private final RecordMappedSerializer serializer;
+    private final int keyframeInterval;
+    private final Map<Class<?>, Sent> sent = new HashMap<>();
+    private final Map<Class<?>, Object> received = new HashMap<>();
+
+    DeltaSession(RecordMappedSerializer serializer, int keyframeInterval) {
+        if (keyframeInterval < 1) throw new IllegalArgumentException("Invalid keyframe interval " + keyframeInterval);
+        this.serializer = serializer;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Writes a message to a stream, as a delta from the last message of the
+     * same type that this session wrote.
+     * @param msg The message to write.
+     * @param out The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    public void writeMessage(Object msg, OutputStream out) throws IOException {
+        write(msg, RecordOutput.of(out));
+    }
+
+    /**
+     * Writes a message into a buffer, starting at its position, as a delta
+     * from the last message of the same type that this session wrote. The
+     * buffer's position is advanced past the message only if the whole
+     * message could be written.
+     * @param msg The message to write.
+     * @param buffer The buffer to write to.
+     * @throws IOException If an error occurs.
+     * @throws java.nio.BufferOverflowException If the buffer doesn't have
+     * enough space for the message.
+     */
+    public void writeMessage(Object msg, ByteBuffer buffer) throws IOException {
+        final ByteOrder order = buffer.order();
+        final int start = buffer.position();
+        boolean success = false;
+        try {
+            write(msg, RecordOutput.of(buffer));
+            success = true;
+        } finally {
+            buffer.order(order);
+            if (!success) buffer.position(start);
+        }
+    }
+
+    /**
+     * Reads a message that was written by another session's
+     * <code>writeMessage</code> methods.
+     * @param in The stream to read from.
+     * @return The message that was read.
+     * @throws IOException If an error occurs.
+     * @throws StreamCorruptedException If a delta is read for a type whose
+     * keyframe hasn't been read.
+     */
+    public Object readMessage(InputStream in) throws IOException {
+        return read(RecordInput.of(in));
+    }
+
+    /**
+     * Reads a message that was written by another session's
+     * <code>writeMessage</code> methods from a buffer, advancing its position
+     * past the message.
+     * @param buffer The buffer to read from.
+     * @return The message that was read.
+     * @throws IOException If an error occurs.
+     * @throws StreamCorruptedException If a delta is read for a type whose
+     * keyframe hasn't been read.
+     */
+    public Object readMessage(ByteBuffer buffer) throws IOException {
+        ByteBuffer data = buffer.duplicate().order(serializer.getByteOrder());
+        Object msg = read(RecordInput.of(data));
+        buffer.position(data.position());
+        return msg;
+    }
+
+    /**
+     * Makes the next message of every type that this session writes a
+     * keyframe, for example after a reader has lost its state.
+     */
+    public void requestKeyframes() {
+        sent.clear();
+    }
+
+    /**
+     * Forgets the last message of every type that this session has written
+     * and read, as if it were new.
+     */
+    public void reset() {
+        sent.clear();
+        received.clear();
+    }
+
+    private void write(Object msg, RecordOutput out) throws IOException {
+        TypeRegistry.Registration registration = serializer.registrationFor(msg);
+        RecordCodec<?> codec = registration.codec();
+        Sent state = sent.get(msg.getClass());
+        boolean keyframe = state == null || state.count % keyframeInterval == 0;
+        serializer.startMessage(out);
+        serializer.writeId(registration.id(), out);
+        if (keyframe) {
+            out.writeByte(KEYFRAME);
+            codec.write(msg, out);
+        } else {
+            out.writeByte(DELTA);
+            writeDelta(codec, state.last, msg, out);
+        }
+        out.finish();
+        if (state == null) {
+            state = new Sent();
+            sent.put(msg.getClass(), state);
+        }
+        state.last = msg;
+        state.count = keyframe ? 1 : state.count + 1;
+    }
+
+    private Object read(RecordInput in) throws IOException {
+        RecordCodec<?> codec = serializer.readCodec(in);
+        Class<?> type = codec.info().type();
+        int kind = in.readUnsignedByte();
+        Object msg;
+        if (kind == KEYFRAME) {
+            msg = codec.read(in);
+        } else if (kind == DELTA) {
+            Object previous = received.get(type);
+            if (previous == null) {
+                throw new StreamCorruptedException("Received a delta of " + type.getSimpleName() + " before its keyframe.");
+            }
+            msg = readDelta(codec, previous, in);
+        } else {
+            throw new StreamCorruptedException("Invalid delta message kind " + kind);
+        }
+        received.put(type, msg);
+        return msg;
+    }
+
+    /**
+     * Writes the components of a record that differ from a previous record of
+     * the same type.
+     * @param codec The record's codec.
+     * @param previous The previous record.
+     * @param current The record to write.
+     * @param out The output to write to.
+     * @throws IOException If an error occurs.
+     */
+    private static void writeDelta(RecordCodec<?> codec, Object previous, Object current, RecordOutput out) throws IOException {
+        ValueCodec[] codecs = codec.componentCodecs();
+        Object[] previousValues = new Object[codecs.length];
+        Object[] currentValues = new Object[codecs.length];
+        for (int i = 0; i < codecs.length; i++) {
+            previousValues[i] = codec.component(previous, i);
+            currentValues[i] = codec.component(current, i);
+        }
+        for (int i = 0; i < codecs.length; i += Byte.SIZE) {
+            int mask = 0;
+            for (int j = 0; j < Byte.SIZE && i + j < codecs.length; j++) {
+                if (!Objects.deepEquals(previousValues[i + j], currentValues[i + j])) mask |= 1 << j;
+            }
+            out.writeByte(mask);
+        }
+        codec.writePresence(current, out);
+        for (int i = 0; i < codecs.length; i++) {
+            if (Objects.deepEquals(previousValues[i], currentValues[i])) continue;
+            if (codec.info().componentCodecs()[i] instanceof ValueCodecs.RecordRefCodec ref) {
+                boolean nested = previousValues[i] != null && currentValues[i] != null;
+                out.writeBoolean(nested);
+                if (nested) {
+                    writeDelta(ref.codec(), previousValues[i], currentValues[i], out);
+                    continue;
+                }
+            }
+            codecs[i].write(currentValues[i], out);
+        }
+    }
+
+    /**
+     * Reads the changed components of a record, and takes the rest from a
+     * previous record of the same type.
+     * @param codec The record's codec.
+     * @param previous The previous record.
+     * @param in The input to read from.
+     * @return The record that was read.
+     * @throws IOException If an error occurs.
+     */
+    private static Object readDelta(RecordCodec<?> codec, Object previous, RecordInput in) throws IOException {
+        ValueCodec[] codecs = codec.componentCodecs();
+        byte[] masks = new byte[(codecs.length + Byte.SIZE - 1) / Byte.SIZE];
+        in.readFully(masks);
+        Object[] values = new Object[codecs.length];
+        long outer = in.presence;
+        try {
+            codec.readPresence(in);
+            for (int i = 0; i < codecs.length; i++) {
+                if ((masks[i / Byte.SIZE] & (1 << (i % Byte.SIZE))) == 0) {
+                    values[i] = codec.component(previous, i);
+                } else if (codec.info().componentCodecs()[i] instanceof ValueCodecs.RecordRefCodec ref && in.readBoolean()) {
+                    Object nestedPrevious = codec.component(previous, i);
+                    if (nestedPrevious == null) throw new StreamCorruptedException("Received a delta of a null record.");
+                    values[i] = readDelta(ref.codec(), nestedPrevious, in);
+                } else {
+                    values[i] = codecs[i].read(in);
+                }
+            }
+        } finally {
+            in.presence = outer;
+        }
+        return codec.construct(values);
+    }
+}
@@ -0,0 +1,183 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Deflater;
+
+/**
+ * Settings for compressing framed messages with {@link Deflater}, which a
+ * serializer is given with
+ * {@link RecordMappedSerializer.Builder#compression(FrameCompression)}.
+ * <p>
+ *     Each frame whose message is at least the threshold size is compressed,
+ *     and sent as-is if that doesn't make it any smaller. Compressed frames
+ *     are marked by the highest bit of their frame length, so a stream may
+ *     mix compressed and uncompressed frames, and a serializer that uses
+ *     compression can read frames from one that doesn't. Unframed messages
+ *     are never compressed.
+ * </p>
+ * <p>
+ *     Small messages compress much better with a preset dictionary of bytes
+ *     that are likely to appear in them, which can be made from sample
+ *     messages with {@link #trainDictionary(RecordMappedSerializer, Iterable, int)}.
+ *     The writer and the reader must use the same dictionary.
+ * </p>
+ * <p>
+ *     Compressors are pooled and reused, so that compressing a frame doesn't
+ *     allocate a new {@link Deflater} or {@link java.util.zip.Inflater}.
+ * </p>
+ */
+public final class FrameCompression {
+    /**
+     * The default threshold, in bytes, of messages to compress.
+     */
+    public static final int DEFAULT_THRESHOLD = 256;
+    /**
+     * The largest dictionary that's useful to {@link Deflater}, which only
+     * looks back 32 KiB.
+     */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    private static final int POOL_SIZE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private final int threshold;
+    private final int level;
+    private final byte[] dictionary;
+    private final int maxFrameLength;
+    private final AtomicReferenceArray<FrameCompressor> pool = new AtomicReferenceArray<>(POOL_SIZE);
+
+    /**
+     * Creates settings that compress messages of at least
+     * {@link #DEFAULT_THRESHOLD} bytes, without a dictionary.
+     */
+    public FrameCompression() {
+        this(DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    /**
+     * Creates settings that compress messages of at least the given size,
+     * using a preset dictionary.
+     * @param threshold The size, in bytes, of the smallest message to
+     *                  compress, including its message id.
+     * @param level The {@link Deflater} compression level, from 0 to 9, or
+     *              {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param dictionary The preset dictionary, or null to not use one. Only
+     *                   the last {@link #MAX_DICTIONARY_SIZE} bytes are used.
+     */
+    public FrameCompression(int threshold, int level, byte[] dictionary) {
+        this(threshold, level, dictionary, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Creates settings that compress messages of at least the given size,
+     * using a preset dictionary.
+     * @param threshold The size, in bytes, of the smallest message to
+     *                  compress, including its message id.
+     * @param level The {@link Deflater} compression level, from 0 to 9, or
+     *              {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param dictionary The preset dictionary, or null to not use one. Only
+     *                   the last {@link #MAX_DICTIONARY_SIZE} bytes are used.
+     * @param maxFrameLength The largest size that a compressed frame may
+     *                       claim to decompress to. Frames that claim more
+     *                       cause a {@link java.io.StreamCorruptedException},
+     *                       instead of allocating their whole size.
+     */
+    public FrameCompression(int threshold, int level, byte[] dictionary, int maxFrameLength) {
+        if (threshold < 0) throw new IllegalArgumentException("Invalid threshold " + threshold);
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        if (maxFrameLength < 0) throw new IllegalArgumentException("Invalid maximum frame length " + maxFrameLength);
+        this.threshold = threshold;
+        this.level = level;
+        this.dictionary = dictionary == null || dictionary.length == 0 ? null :
+                Arrays.copyOfRange(dictionary, Math.max(0, dictionary.length - MAX_DICTIONARY_SIZE), dictionary.length);
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Builds a preset dictionary out of sample messages, by concatenating
+     * their encoded bytes. Since {@link Deflater} finds matches more cheaply
+     * the closer they are to the end of the dictionary, the most common
+     * messages should come last.
+     * @param serializer The serializer to encode the samples with, which must
+     *                   use the same format as the serializer that will use
+     *                   the dictionary.
+     * @param samples The sample messages.
+     * @param maxSize The maximum size of the dictionary. If the samples are
+     *                larger, only the last ones are kept.
+     * @return The dictionary.
+     * @throws IOException If a sample can't be encoded.
+     */
+    public static byte[] trainDictionary(RecordMappedSerializer serializer, Iterable<?> samples, int maxSize) throws IOException {
+        if (maxSize < 0 || maxSize > MAX_DICTIONARY_SIZE) throw new IllegalArgumentException("Invalid dictionary size " + maxSize);
+        byte[] dictionary = new byte[maxSize];
+        int size = 0;
+        for (Object sample : samples) {
+            byte[] bytes = serializer.toByteArray(sample);
+            int n = Math.min(bytes.length, maxSize);
+            int overflow = size + n - maxSize;
+            if (overflow > 0) {
+                System.arraycopy(dictionary, overflow, dictionary, 0, size - overflow);
+                size -= overflow;
+            }
+            System.arraycopy(bytes, bytes.length - n, dictionary, size, n);
+            size += n;
+        }
+        return Arrays.copyOf(dictionary, size);
+    }
+
+    /**
+     * Gets the size of the smallest message that's compressed.
+     * @return The threshold, in bytes.
+     */
+    public int threshold() {
+        return threshold;
+    }
+
+    /**
+     * Gets the compression level.
+     * @return The {@link Deflater} compression level.
+     */
+    public int level() {
+        return level;
+    }
+
+    /**
+     * Gets the preset dictionary.
+     * @return A copy of the dictionary, or null if there isn't one.
+     */
+    public byte[] dictionary() {
+        return dictionary == null ? null : dictionary.clone();
+    }
+
+    int maxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * Takes a compressor out of the pool, or creates a new one if the pool
+     * is empty. It should be given back with {@link #release(FrameCompressor)}.
+     * @return The compressor.
+     */
+    FrameCompressor acquire() {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            FrameCompressor compressor = pool.getAndSet(i, null);
+            if (compressor != null) return compressor;
+        }
+        return new FrameCompressor(level, dictionary);
+    }
+
+    /**
+     * Gives a compressor back to the pool, or ends it if the pool is full.
+     * @param compressor The compressor.
+     */
+    void release(FrameCompressor compressor) {
+        Objects.requireNonNull(compressor);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (pool.compareAndSet(i, null, compressor)) return;
+        }
+        compressor.end();
+    }
+}
@@ -0,0 +1,133 @@
+package com.andrewlalis.record_net;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link Deflater} and {@link Inflater} for frames, along with the buffers
+ * that they compress from and into, which are kept and reused for as long as
+ * the compressor is. A compressor must only be used by one thread at a time.
+ * @see FrameCompression
+ */
+final class FrameCompressor {
+    /**
+     * The largest buffer that's kept after a frame has been compressed or
+     * decompressed.
+     */
+    private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] dictionary;
+    private final RecordOutput output = new RecordOutput(null, RecordOutput.BUFFER_SINK);
+    private ByteBuffer raw = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private byte[] compressed = new byte[INITIAL_BUFFER_SIZE];
+
+    FrameCompressor(int level, byte[] dictionary) {
+        this.deflater = new Deflater(level, true);
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Gets an output that writes into this compressor's raw buffer, which is
+     * cleared and made large enough for the given number of bytes.
+     * @param length The number of bytes that will be written.
+     * @return The output.
+     */
+    RecordOutput rawOutput(int length) {
+        return output.reset(rawBuffer(length), RecordOutput.BUFFER_SINK);
+    }
+
+    /**
+     * Gets the raw bytes that were written to the {@link #rawOutput(int)}.
+     * @return The raw bytes, from index 0 to the raw buffer's position.
+     */
+    byte[] rawBytes() {
+        return raw.array();
+    }
+
+    /**
+     * Compresses bytes into this compressor's compressed buffer.
+     * @param input The array holding the bytes to compress.
+     * @param length The number of bytes to compress, from index 0.
+     * @return The number of compressed bytes.
+     * @see #compressedBytes()
+     */
+    int deflate(byte[] input, int length) {
+        deflater.reset();
+        if (dictionary != null) deflater.setDictionary(dictionary);
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == compressed.length) compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+            n += deflater.deflate(compressed, n, compressed.length - n);
+        }
+        return n;
+    }
+
+    /**
+     * Gets the bytes that were last compressed by {@link #deflate(byte[], int)}.
+     * @return The compressed bytes, from index 0.
+     */
+    byte[] compressedBytes() {
+        return compressed;
+    }
+
+    /**
+     * Decompresses a frame's bytes into this compressor's raw buffer.
+     * @param input The compressed bytes, from the buffer's position to its
+     *              limit, which are all consumed.
+     * @param length The exact number of bytes that they decompress to.
+     * @return A big-endian buffer holding the decompressed bytes, which is
+     * only valid until this compressor is used again.
+     * @throws StreamCorruptedException If the bytes can't be decompressed, or
+     * don't decompress to exactly the given length.
+     */
+    ByteBuffer inflate(ByteBuffer input, int length) throws StreamCorruptedException {
+        ByteBuffer out = rawBuffer(length);
+        inflater.reset();
+        if (dictionary != null) inflater.setDictionary(dictionary);
+        inflater.setInput(input);
+        try {
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int count = inflater.inflate(out.array(), n, length - n);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += count;
+            }
+            if (n != length || !inflater.finished() || input.hasRemaining()) {
+                throw new StreamCorruptedException("Compressed frame doesn't decompress to " + length + " bytes.");
+            }
+        } catch (DataFormatException e) {
+            StreamCorruptedException ex = new StreamCorruptedException("Invalid compressed frame: " + e.getMessage());
+            ex.initCause(e);
+            throw ex;
+        }
+        return out.limit(length);
+    }
+
+    /**
+     * Frees the native memory of this compressor, which must not be used
+     * afterwards.
+     */
+    void end() {
+        deflater.end();
+        inflater.end();
+    }
+
+    private ByteBuffer rawBuffer(int length) {
+        if (raw.capacity() < length || (raw.capacity() > RETAINED_BUFFER_SIZE && length <= RETAINED_BUFFER_SIZE)) {
+            raw = ByteBuffer.allocate(Math.max(length, INITIAL_BUFFER_SIZE));
+        }
+        if (compressed.length > RETAINED_BUFFER_SIZE && length <= RETAINED_BUFFER_SIZE) {
+            compressed = new byte[INITIAL_BUFFER_SIZE];
+        }
+        return raw.clear();
+    }
+}
@@ -0,0 +1,143 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * An incremental decoder for length-prefixed messages, as written by
+ * {@link RecordMappedSerializer#writeFramedMessage(Object, ByteBuffer)} and
+ * its stream and channel variants. It can be fed chunks of bytes of any size,
+ * as they arrive from a non-blocking channel, and passes on each message as
+ * soon as its whole frame has arrived.
+ * <p>
+ *     Frames that are contained entirely in a chunk are decoded in place.
+ *     Only frames that are split across chunks are copied into the decoder's
+ *     own buffer, which grows as needed, up to the maximum frame length.
+ * </p>
+ * <p>
+ *     A decoder keeps the state of a single byte stream, so each connection
+ *     needs its own, and it's not thread-safe.
+ * </p>
+ */
+public class FrameDecoder {
+    /**
+     * The default maximum frame length, of 16 MiB.
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    private static final int HEADER_SIZE = Integer.BYTES;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    /**
+     * The largest buffer that's kept after a split frame has been decoded.
+     */
+    private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final RecordMappedSerializer serializer;
+    private final int maxFrameLength;
+    /**
+     * Holds the bytes of a frame that's been partially received, in write
+     * mode. Its position is zero when no frame is partially received.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /**
+     * Constructs a decoder that accepts frames up to the serializer's
+     * {@link RecordMappedSerializer#getMaxFrameLength() maximum frame length},
+     * which is {@link #DEFAULT_MAX_FRAME_LENGTH} unless it was changed.
+     * @param serializer The serializer to decode messages with.
+     */
+    public FrameDecoder(RecordMappedSerializer serializer) {
+        this(serializer, serializer.getMaxFrameLength());
+    }
+
+    /**
+     * Constructs a decoder.
+     * @param serializer The serializer to decode messages with.
+     * @param maxFrameLength The maximum length of a frame. Frames that are
+     *                       longer cause a {@link StreamCorruptedException},
+     *                       since the stream can't be trusted anymore.
+     */
+    public FrameDecoder(RecordMappedSerializer serializer, int maxFrameLength) {
+        this.serializer = serializer;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Feeds a chunk of bytes to this decoder, and decodes every message whose
+     * frame is now complete. All remaining bytes in the chunk are consumed.
+     * <p>
+     *     If a message can't be decoded, for example because of an
+     *     {@link UnknownMessageIdException}, then the exception is thrown right
+     *     after that message's frame has been consumed. The chunk's position
+     *     is left at the start of the next frame, so the caller may handle the
+     *     exception and then call this method again with the same chunk to
+     *     continue decoding.
+     * </p>
+     * @param chunk The bytes that have arrived, from the chunk's position to
+     *              its limit.
+     * @param consumer A consumer that's given each decoded message, in order.
+     * @throws IOException If an error occurs while decoding.
+     */
+    public void feed(ByteBuffer chunk, Consumer<Object> consumer) throws IOException {
+        while (chunk.hasRemaining()) {
+            if (pending.position() == 0) {
+                // Decode complete frames straight out of the chunk.
+                if (chunk.remaining() >= HEADER_SIZE) {
+                    int length = checkLength(serializer.frameLength(chunk, chunk.position()));
+                    if (chunk.remaining() - HEADER_SIZE >= length) {
+                        consumer.accept(serializer.readFramedMessage(chunk));
+                        continue;
+                    }
+                }
+            }
+            // Otherwise, collect the partial frame.
+            if (pending.position() < HEADER_SIZE) {
+                transfer(chunk, HEADER_SIZE - pending.position());
+                if (pending.position() < HEADER_SIZE) return;
+                int length = checkLength(serializer.frameLength(pending, 0));
+                if (pending.capacity() < HEADER_SIZE + length) {
+                    ByteBuffer larger = ByteBuffer.allocate(HEADER_SIZE + length);
+                    pending.flip();
+                    larger.put(pending);
+                    pending = larger;
+                }
+            }
+            int header = serializer.frameHeader(pending, 0);
+            int length = serializer.frameLength(header);
+            transfer(chunk, HEADER_SIZE + length - pending.position());
+            if (pending.position() == HEADER_SIZE + length) {
+                ByteBuffer frame = pending.slice(HEADER_SIZE, length);
+                if (pending.capacity() > RETAINED_BUFFER_SIZE) {
+                    pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+                } else {
+                    pending.clear();
+                }
+                consumer.accept(serializer.readFrame(frame, header));
+            }
+        }
+    }
+
+    /**
+     * Gets the number of bytes of an incomplete frame that this decoder is
+     * holding on to.
+     * @return The number of buffered bytes.
+     */
+    public int bufferedBytes() {
+        return pending.position();
+    }
+
+    private void transfer(ByteBuffer chunk, int n) {
+        int count = Math.min(n, chunk.remaining());
+        pending.put(pending.position(), chunk, chunk.position(), count);
+        pending.position(pending.position() + count);
+        chunk.position(chunk.position() + count);
+    }
+
+    private int checkLength(int length) throws StreamCorruptedException {
+        if (length > maxFrameLength) {
+            throw new StreamCorruptedException("Frame length " + length + " exceeds the maximum of " + maxFrameLength);
+        }
+        return length;
+    }
+}
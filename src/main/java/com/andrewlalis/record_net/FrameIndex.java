@@ -0,0 +1,232 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The boundaries of every frame in a buffer or file of framed messages, as
+ * written by {@link RecordMappedSerializer#writeFramedMessage(Object, ByteBuffer)}
+ * and its stream and channel variants, so that the frames can be decoded in
+ * parallel.
+ * <p>
+ *     Scanning only reads each frame's header, so it's much faster than
+ *     decoding. Once scanned, the frames are independent of each other, and
+ *     are decoded on the common {@link java.util.concurrent.ForkJoinPool}, or
+ *     on the pool that the calling task is running in. Files are memory-mapped
+ *     rather than read, so only the pages that are decoded are loaded.
+ * </p>
+ * <p>
+ *     Bytes after the last complete frame are ignored, and counted by
+ *     {@link #trailingBytes()}, since a capture may have been cut off in the
+ *     middle of a frame. A frame in a file that's too large to be mapped in
+ *     one region isn't taken to be cut off, though, since the file goes on
+ *     after the region.
+ * </p>
+ */
+public final class FrameIndex {
+    /**
+     * The largest region of a file that's mapped at once.
+     */
+    private static final int MAX_REGION_SIZE = 1 << 30;
+    private static final int HEADER_SIZE = Integer.BYTES;
+
+    private final RecordMappedSerializer serializer;
+    private final ByteBuffer[] regions;
+    // For each frame, the region it's in, and its header's offset there.
+    private final int[] frameRegions;
+    private final int[] frameOffsets;
+    private final int frameCount;
+    private final long trailingBytes;
+
+    private FrameIndex(RecordMappedSerializer serializer, List<ByteBuffer> regions, Scanner scanner, long trailingBytes) {
+        this.serializer = serializer;
+        this.regions = regions.toArray(new ByteBuffer[0]);
+        this.frameRegions = scanner.frameRegions;
+        this.frameOffsets = scanner.frameOffsets;
+        this.frameCount = scanner.count;
+        this.trailingBytes = trailingBytes;
+    }
+
+    /**
+     * Scans the frames in a buffer, from its position to its limit. The
+     * buffer's position isn't changed, and it must not be modified while the
+     * index is in use.
+     * @param serializer The serializer to decode messages with.
+     * @param buffer The buffer holding the frames.
+     * @return The index.
+     * @throws IOException If a frame has an invalid length.
+     */
+    public static FrameIndex scan(RecordMappedSerializer serializer, ByteBuffer buffer) throws IOException {
+        Scanner scanner = new Scanner();
+        int end = scanner.scan(serializer, buffer, 0, buffer.position());
+        return new FrameIndex(serializer, List.of(buffer), scanner, buffer.limit() - end);
+    }
+
+    /**
+     * Scans the frames in a file, which is memory-mapped in regions of up to
+     * 1 GiB. The file must not be modified while the index is in use.
+     * @param serializer The serializer to decode messages with.
+     * @param file The file holding the frames.
+     * @return The index.
+     * @throws IOException If the file can't be mapped, or if a frame has an
+     * invalid length.
+     * @throws StreamCorruptedException If a frame is too large to fit in a
+     * single region, which for a frame that's been written correctly is only
+     * possible if it's larger than 1 GiB.
+     */
+    public static FrameIndex scan(RecordMappedSerializer serializer, Path file) throws IOException {
+        Scanner scanner = new Scanner();
+        List<ByteBuffer> regions = new ArrayList<>();
+        long trailingBytes;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (true) {
+                long remaining = size - position;
+                int regionSize = (int) Math.min(remaining, MAX_REGION_SIZE);
+                ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+                int end = scanner.scan(serializer, region, regions.size(), 0);
+                if (end > 0) regions.add(region);
+                position += end;
+                if (regionSize == remaining) {
+                    trailingBytes = size - position;
+                    break;
+                }
+                if (end == 0) {
+                    throw new StreamCorruptedException("The frame at " + position + " is longer than " + MAX_REGION_SIZE + " bytes.");
+                }
+            }
+        }
+        return new FrameIndex(serializer, regions, scanner, trailingBytes);
+    }
+
+    /**
+     * Gets the number of complete frames.
+     * @return The number of frames.
+     */
+    public int size() {
+        return frameCount;
+    }
+
+    /**
+     * Gets the number of bytes after the last complete frame, which belong
+     * to a frame that was cut off.
+     * @return The number of trailing bytes.
+     */
+    public long trailingBytes() {
+        return trailingBytes;
+    }
+
+    /**
+     * Decodes a single frame's message.
+     * @param index The index of the frame.
+     * @return The message.
+     * @throws IOException If the message can't be read.
+     */
+    public Object get(int index) throws IOException {
+        if (index < 0 || index >= frameCount) throw new IndexOutOfBoundsException(index);
+        ByteBuffer region = regions[frameRegions[index]];
+        int offset = frameOffsets[index];
+        int header = serializer.frameHeader(region, offset);
+        return serializer.readFrame(region.slice(offset + HEADER_SIZE, serializer.frameLength(header)), header);
+    }
+
+    /**
+     * Decodes every frame's message in parallel, and collects them in order.
+     * @return An unmodifiable list of the messages, in the order of their
+     * frames.
+     * @throws IOException If any message can't be read.
+     */
+    public List<Object> toList() throws IOException {
+        Object[] messages = new Object[frameCount];
+        try {
+            IntStream.range(0, frameCount).parallel().forEach(i -> messages[i] = decode(i));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return Collections.unmodifiableList(Arrays.asList(messages));
+    }
+
+    /**
+     * Gets a parallel, ordered stream that decodes each frame's message as
+     * it's needed.
+     * @return The stream of messages, in the order of their frames. If a
+     * message can't be read, the stream throws an
+     * {@link UncheckedIOException}.
+     */
+    public Stream<Object> stream() {
+        return IntStream.range(0, frameCount).parallel().mapToObj(this::decode);
+    }
+
+    /**
+     * Decodes every frame's message in parallel, and gives each to a
+     * consumer as soon as it's decoded, in no particular order. This is the
+     * fastest way to decode many messages.
+     * @param consumer The consumer, which is called from many threads at
+     *                 once, so it must be thread-safe.
+     * @throws IOException If any message can't be read.
+     */
+    public void forEachUnordered(Consumer<Object> consumer) throws IOException {
+        try {
+            IntStream.range(0, frameCount).parallel().unordered().forEach(i -> consumer.accept(decode(i)));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Object decode(int index) {
+        try {
+            return get(index);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Collects the offsets of frames in one or more buffers.
+     */
+    private static final class Scanner {
+        int[] frameRegions = new int[256];
+        int[] frameOffsets = new int[256];
+        int count;
+
+        /**
+         * Scans the complete frames in a buffer.
+         * @param serializer The serializer that reads frame headers.
+         * @param buffer The buffer to scan.
+         * @param region The index of the buffer's region.
+         * @param start The index of the first frame's header.
+         * @return The index after the last complete frame.
+         * @throws IOException If a frame has an invalid length.
+         */
+        int scan(RecordMappedSerializer serializer, ByteBuffer buffer, int region, int start) throws IOException {
+            int limit = buffer.limit();
+            int offset = start;
+            while (limit - offset >= HEADER_SIZE) {
+                int length = serializer.frameLength(serializer.frameHeader(buffer, offset));
+                if (limit - offset - HEADER_SIZE < length) break;
+                if (count == frameOffsets.length) {
+                    frameRegions = Arrays.copyOf(frameRegions, count * 2);
+                    frameOffsets = Arrays.copyOf(frameOffsets, count * 2);
+                }
+                frameRegions[count] = region;
+                frameOffsets[count] = offset;
+                count++;
+                offset += HEADER_SIZE + length;
+            }
+            return offset;
+        }
+    }
+}
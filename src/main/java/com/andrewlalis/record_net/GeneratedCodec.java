@@ -0,0 +1,71 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+
+/**
+ * A codec for a record type that was generated at build time by the
+ * record-net annotation processor, for records that are annotated with
+ * {@link SerializableRecord}. It reads and writes the record by calling its
+ * accessors and canonical constructor directly, so a serializer can use it
+ * without any reflection, and without the record's package being opened to
+ * this module.
+ * <p>
+ *     A generated codec only decides the order in which components are read
+ *     and written. How each component is encoded is still decided by the
+ *     serializer, so messages are encoded exactly the same as when the type
+ *     is registered with {@link RecordMappedSerializer#registerType(int, Class)}.
+ * </p>
+ * @param <T> The type of the record.
+ * @see RecordMappedSerializer#registerCodec(int, GeneratedCodec)
+ */
+public interface GeneratedCodec<T> {
+    /**
+     * Gets the record type that this codec is for.
+     * @return The record class.
+     */
+    Class<T> type();
+
+    /**
+     * Gets the names of the record's components.
+     * @return The component names, in declaration order.
+     */
+    String[] componentNames();
+
+    /**
+     * Gets the types of the record's components.
+     * @return The component types, in declaration order.
+     */
+    Class<?>[] componentTypes();
+
+    /**
+     * Gets the value of one of a record's components.
+     * @param record The record.
+     * @param index The component's index.
+     * @return The component's value, boxed if it's a primitive.
+     */
+    Object component(T record, int index);
+
+    /**
+     * Constructs a record from its component values.
+     * @param values The values of each component, in order, with primitives
+     *               boxed.
+     * @return The record.
+     */
+    T construct(Object[] values);
+
+    /**
+     * Writes each of a record's components, in order.
+     * @param record The record to write.
+     * @param out The writer to write to.
+     * @throws IOException If an error occurs.
+     */
+    void write(T record, RecordWriter out) throws IOException;
+
+    /**
+     * Reads each of a record's components, in order, and constructs it.
+     * @param in The reader to read from.
+     * @return The record that was read.
+     * @throws IOException If an error occurs.
+     */
+    T read(RecordReader in) throws IOException;
+}
@@ -1,16 +1,45 @@
 package com.andrewlalis.record_net;
 
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.Set;
 import java.util.UUID;
 
 /**
  * A utility class that contains functions for IO operations on certain data
  * types. It cannot be instantiated; use its static methods only.
+ * <p>
+ *     Methods that took a {@link DataInputStream} or {@link DataOutputStream}
+ *     before they accepted any {@link DataInput} or {@link DataOutput} still
+ *     have overloads for them, so that code compiled against earlier versions
+ *     keeps working.
+ * </p>
  */
 public final class IOUtil {
+    /**
+     * The maximum number of bytes that's buffered at once when reading or
+     * writing primitive arrays element by element.
+     */
+    private static final int CHUNK_SIZE = 8192;
+    private static final VarHandle SHORTS = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle CHARS = MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final Set<Class<?>> WRAPPER_TYPES = Set.of(
+            Byte.class, Short.class, Integer.class, Character.class,
+            Float.class, Double.class, Long.class, Boolean.class
+    );
+
     private IOUtil() {}
 
     /**
@@ -19,9 +48,7 @@ public final class IOUtil {
      * @return True if the type is primitive or a wrapper.
      */
     public static boolean isPrimitiveOrWrapper(Class<?> type) {
-        final Set<Class<?>> types = Set.of(Byte.class, Short.class, Integer.class, Character.class, Float.class, Double.class, Long.class, Boolean.class);
-        return type.isPrimitive() || types.contains(type);
-
+        return type.isPrimitive() || WRAPPER_TYPES.contains(type);
     }
 
     /**
@@ -31,7 +58,7 @@ public final class IOUtil {
      * @return The object representation of the primitive that was read.
      * @throws IOException If an error occurs.
      */
-    public static Object readPrimitive(Class<?> type, DataInputStream dIn) throws IOException {
+    public static Object readPrimitive(Class<?> type, DataInput dIn) throws IOException {
         if (type.equals(Integer.class) || type.equals(int.class)) return dIn.readInt();
         if (type.equals(Short.class) || type.equals(short.class)) return dIn.readShort();
         if (type.equals(Byte.class) || type.equals(byte.class)) return dIn.readByte();
@@ -43,13 +70,25 @@ public final class IOUtil {
         throw new IllegalArgumentException("Type " + type.getSimpleName() + " is not primitive.");
     }
 
+    /**
+     * Reads a primitive type from an input stream.
+     * @see #readPrimitive(Class, DataInput)
+     * @param type The type to read.
+     * @param dIn The stream to read from.
+     * @return The object representation of the primitive that was read.
+     * @throws IOException If an error occurs.
+     */
+    public static Object readPrimitive(Class<?> type, DataInputStream dIn) throws IOException {
+        return readPrimitive(type, (DataInput) dIn);
+    }
+
     /**
      * Writes a primitive object to an output stream.
      * @param obj The primitive (wrapped in an object) to write.
      * @param dOut The stream to write to.
      * @throws IOException If an error occurs.
      */
-    public static void writePrimitive(Object obj, DataOutputStream dOut) throws IOException {
+    public static void writePrimitive(Object obj, DataOutput dOut) throws IOException {
         switch (obj) {
             case Integer n -> dOut.writeInt(n);
             case Short n -> dOut.writeShort(n);
@@ -63,6 +102,151 @@ public final class IOUtil {
         }
     }
 
+    /**
+     * Writes a primitive object to an output stream.
+     * @see #writePrimitive(Object, DataOutput)
+     * @param obj The primitive (wrapped in an object) to write.
+     * @param dOut The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    public static void writePrimitive(Object obj, DataOutputStream dOut) throws IOException {
+        writePrimitive(obj, (DataOutput) dOut);
+    }
+
+    /**
+     * Writes an int as an unsigned LEB128 varint, which takes from one to
+     * five bytes. Values from 0 to 127 take just one byte, but negative values
+     * always take five, so use {@link #zigZagEncode(int)} first for values
+     * that may be negative.
+     * @param value The value to write.
+     * @param dOut The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    public static void writeVarInt(int value, DataOutput dOut) throws IOException {
+        if (dOut instanceof RecordOutput out) {
+            out.writeVarInt(value);
+            return;
+        }
+        while ((value & ~0x7F) != 0) {
+            dOut.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dOut.writeByte(value);
+    }
+
+    /**
+     * Reads an int that was written as an unsigned LEB128 varint.
+     * @see #writeVarInt(int, DataOutput)
+     * @param dIn The stream to read from.
+     * @return The value that was read.
+     * @throws IOException If an error occurs, or if the varint is malformed.
+     */
+    public static int readVarInt(DataInput dIn) throws IOException {
+        if (dIn instanceof RecordInput in) return in.readVarInt();
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            byte b = dIn.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new StreamCorruptedException("Malformed varint.");
+    }
+
+    /**
+     * Writes a long as an unsigned LEB128 varint, which takes from one to ten
+     * bytes.
+     * @see #writeVarInt(int, DataOutput)
+     * @param value The value to write.
+     * @param dOut The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    public static void writeVarLong(long value, DataOutput dOut) throws IOException {
+        if (dOut instanceof RecordOutput out) {
+            out.writeVarLong(value);
+            return;
+        }
+        while ((value & ~0x7FL) != 0) {
+            dOut.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dOut.writeByte((int) value);
+    }
+
+    /**
+     * Reads a long that was written as an unsigned LEB128 varint.
+     * @see #writeVarLong(long, DataOutput)
+     * @param dIn The stream to read from.
+     * @return The value that was read.
+     * @throws IOException If an error occurs, or if the varint is malformed.
+     */
+    public static long readVarLong(DataInput dIn) throws IOException {
+        if (dIn instanceof RecordInput in) return in.readVarLong();
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = dIn.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new StreamCorruptedException("Malformed varint.");
+    }
+
+    /**
+     * Computes the number of bytes that an int takes as an unsigned varint.
+     * @param value The value.
+     * @return The number of bytes, from 1 to 5.
+     */
+    public static int sizeOfVarInt(int value) {
+        return 1 + (31 - Integer.numberOfLeadingZeros(value | 1)) / 7;
+    }
+
+    /**
+     * Computes the number of bytes that a long takes as an unsigned varint.
+     * @param value The value.
+     * @return The number of bytes, from 1 to 10.
+     */
+    public static int sizeOfVarLong(long value) {
+        return 1 + (63 - Long.numberOfLeadingZeros(value | 1)) / 7;
+    }
+
+    /**
+     * Maps a signed int to an unsigned one, so that values close to zero stay
+     * small: 0, -1, 1, -2, 2, ... become 0, 1, 2, 3, 4, ...
+     * @param value The signed value.
+     * @return The zigzag-encoded value.
+     */
+    public static int zigZagEncode(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Reverses {@link #zigZagEncode(int)}.
+     * @param value The zigzag-encoded value.
+     * @return The signed value.
+     */
+    public static int zigZagDecode(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Maps a signed long to an unsigned one, so that values close to zero
+     * stay small.
+     * @see #zigZagEncode(int)
+     * @param value The signed value.
+     * @return The zigzag-encoded value.
+     */
+    public static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Reverses {@link #zigZagEncode(long)}.
+     * @param value The zigzag-encoded value.
+     * @return The signed value.
+     */
+    public static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
     /**
      * Reads a string from an input stream.
      * @see java.io.DataInput#readUTF()
@@ -70,10 +254,21 @@ public final class IOUtil {
      * @return The string that was read.
      * @throws IOException If an error occurs.
      */
-    public static String readString(DataInputStream dIn) throws IOException {
+    public static String readString(DataInput dIn) throws IOException {
         return dIn.readUTF();
     }
 
+    /**
+     * Reads a string from an input stream.
+     * @see #readString(DataInput)
+     * @param dIn The stream to read from.
+     * @return The string that was read.
+     * @throws IOException If an error occurs.
+     */
+    public static String readString(DataInputStream dIn) throws IOException {
+        return readString((DataInput) dIn);
+    }
+
     /**
      * Writes a string to an output stream.
      * @see java.io.DataOutput#writeUTF(String)
@@ -81,10 +276,118 @@ public final class IOUtil {
      * @param dOut The stream to write to.
      * @throws IOException If an error occurs.
      */
-    public static void writeString(String s, DataOutputStream dOut) throws IOException {
+    public static void writeString(String s, DataOutput dOut) throws IOException {
         dOut.writeUTF(s);
     }
 
+    /**
+     * Writes a string to an output stream.
+     * @see #writeString(String, DataOutput)
+     * @param s The string to write.
+     * @param dOut The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    public static void writeString(String s, DataOutputStream dOut) throws IOException {
+        writeString(s, (DataOutput) dOut);
+    }
+
+    /**
+     * Computes the number of bytes that {@link #writeString(String, DataOutput)}
+     * writes for a string, which is its length in modified UTF-8 plus two
+     * bytes for the length itself.
+     * @param s The string to measure.
+     * @return The string's encoded size, in bytes.
+     */
+    public static int sizeOfString(String s) {
+        return 2 + utfLength(s);
+    }
+
+    /**
+     * Computes the length of a string in modified UTF-8.
+     * @see java.io.DataInput
+     * @param s The string to measure.
+     * @return The number of bytes.
+     */
+    static int utfLength(String s) {
+        final int strlen = s.length();
+        int utflen = strlen;
+        for (int i = 0; i < strlen; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80 || c == 0) utflen += (c >= 0x800) ? 2 : 1;
+        }
+        return utflen;
+    }
+
+    /**
+     * Writes a string in standard UTF-8, prefixed with its encoded length as
+     * an int. Unlike {@link #writeString(String, DataOutput)}, this works for
+     * strings of any length.
+     * @param s The string to write.
+     * @param dOut The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    public static void writeUtf8String(String s, DataOutput dOut) throws IOException {
+        if (dOut instanceof RecordOutput out) {
+            int length = utf8Length(s);
+            out.writeInt(length);
+            out.writeUtf8(s, length);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        dOut.writeInt(bytes.length);
+        dOut.write(bytes);
+    }
+
+    /**
+     * Reads a string that was written by {@link #writeUtf8String(String, DataOutput)}.
+     * @param dIn The stream to read from.
+     * @return The string that was read.
+     * @throws IOException If an error occurs.
+     */
+    public static String readUtf8String(DataInput dIn) throws IOException {
+        int length = dIn.readInt();
+        if (dIn instanceof RecordInput in) return in.readUtf8(length);
+        if (length < 0) throw new StreamCorruptedException("Invalid string length " + length);
+        byte[] bytes = new byte[length];
+        dIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Computes the number of bytes that {@link #writeUtf8String(String, DataOutput)}
+     * writes for a string.
+     * @param s The string to measure.
+     * @return The string's encoded size, in bytes.
+     */
+    public static int sizeOfUtf8String(String s) {
+        return Math.addExact(Integer.BYTES, utf8Length(s));
+    }
+
+    /**
+     * Computes the length of a string in standard UTF-8, counting each
+     * unpaired surrogate as the single <code>'?'</code> it's encoded as.
+     * @param s The string to measure.
+     * @return The number of bytes.
+     * @throws ArithmeticException If the length doesn't fit in an int.
+     */
+    static int utf8Length(String s) {
+        final int strlen = s.length();
+        long utflen = strlen;
+        for (int i = 0; i < strlen; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                utflen += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < strlen && Character.isLowSurrogate(s.charAt(i + 1))) {
+                utflen += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                utflen += 2;
+            }
+        }
+        return Math.toIntExact(utflen);
+    }
+
     /**
      * Reads a UUID as two longs being the most significant, and least
      * significant bits, respectively.
@@ -92,12 +395,23 @@ public final class IOUtil {
      * @return The UUID that was read.
      * @throws IOException If an error occurs.
      */
-    public static UUID readUUID(DataInputStream dIn) throws IOException {
+    public static UUID readUUID(DataInput dIn) throws IOException {
         long n1 = dIn.readLong();
         long n2 = dIn.readLong();
         return new UUID(n1, n2);
     }
 
+    /**
+     * Reads a UUID from an input stream.
+     * @see #readUUID(DataInput)
+     * @param dIn The input stream to read from.
+     * @return The UUID that was read.
+     * @throws IOException If an error occurs.
+     */
+    public static UUID readUUID(DataInputStream dIn) throws IOException {
+        return readUUID((DataInput) dIn);
+    }
+
     /**
      * Writes a UUID as two longs with the most significant bits first, and
      * then the least significant bits.
@@ -105,11 +419,22 @@ public final class IOUtil {
      * @param dOut The output stream to write to.
      * @throws IOException If an error occurs.
      */
-    public static void writeUUID(UUID uuid, DataOutputStream dOut) throws IOException {
+    public static void writeUUID(UUID uuid, DataOutput dOut) throws IOException {
         dOut.writeLong(uuid.getMostSignificantBits());
         dOut.writeLong(uuid.getLeastSignificantBits());
     }
 
+    /**
+     * Writes a UUID to an output stream.
+     * @see #writeUUID(UUID, DataOutput)
+     * @param uuid The UUID to write.
+     * @param dOut The output stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    public static void writeUUID(UUID uuid, DataOutputStream dOut) throws IOException {
+        writeUUID(uuid, (DataOutput) dOut);
+    }
+
     /**
      * Reads an enum value from an input stream. Uses the enum value's ordinal
      * integer value to convert, or -1 in the case of null.
@@ -120,11 +445,38 @@ public final class IOUtil {
      * @throws IOException If an error occurs.
      */
     @SuppressWarnings("unchecked")
-    public static <T extends Enum<?>> T readEnum(Class<?> type, DataInputStream dIn) throws IOException {
+    public static <T extends Enum<?>> T readEnum(Class<?> type, DataInput dIn) throws IOException {
         if (!type.isEnum()) throw new IllegalArgumentException("Type must be an enum.");
+        return readEnum((T[]) type.getEnumConstants(), dIn);
+    }
+
+    /**
+     * Reads an enum value from an input stream.
+     * @see #readEnum(Class, DataInput)
+     * @param type The enum type to read.
+     * @param dIn The stream to read from.
+     * @return The enum type that was read.
+     * @param <T> The type of the enum.
+     * @throws IOException If an error occurs.
+     */
+    public static <T extends Enum<?>> T readEnum(Class<?> type, DataInputStream dIn) throws IOException {
+        return readEnum(type, (DataInput) dIn);
+    }
+
+    /**
+     * Reads an enum value from an input stream, using a table of the enum's
+     * constants that the caller has already obtained. This avoids the copy of
+     * the constants that {@link Class#getEnumConstants()} makes on each call.
+     * @param constants The enum's constants, in ordinal order.
+     * @param dIn The stream to read from.
+     * @return The enum value that was read, or null.
+     * @param <T> The type of the enum.
+     * @throws IOException If an error occurs.
+     */
+    public static <T extends Enum<?>> T readEnum(T[] constants, DataInput dIn) throws IOException {
         int ordinal = dIn.readInt();
         if (ordinal == -1) return null;
-        return (T) type.getEnumConstants()[ordinal];
+        return constants[ordinal];
     }
 
     /**
@@ -134,7 +486,7 @@ public final class IOUtil {
      * @param dOut The stream to write to.
      * @throws IOException If an error occurs.
      */
-    public static void writeEnum(Enum<?> value, DataOutputStream dOut) throws IOException {
+    public static void writeEnum(Enum<?> value, DataOutput dOut) throws IOException {
         if (value == null) {
             dOut.writeInt(-1);
         } else {
@@ -142,6 +494,17 @@ public final class IOUtil {
         }
     }
 
+    /**
+     * Writes an enum value to an output stream.
+     * @see #writeEnum(Enum, DataOutput)
+     * @param value The enum value to write.
+     * @param dOut The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    public static void writeEnum(Enum<?> value, DataOutputStream dOut) throws IOException {
+        writeEnum(value, (DataOutput) dOut);
+    }
+
     /**
      * Reads an array of primitive values of a given type from a stream.
      * <p>
@@ -155,7 +518,7 @@ public final class IOUtil {
      * @throws IOException If an error occurs.
      * @throws IllegalArgumentException If the given type is not a primitive array.
      */
-    public static Object readPrimitiveArray(Class<?> type, DataInputStream dIn) throws IOException {
+    public static Object readPrimitiveArray(Class<?> type, DataInput dIn) throws IOException {
         final var cType = type.getComponentType();
         if (cType.equals(byte.class)) return readByteArray(dIn);
         if (cType.equals(short.class)) return readShortArray(dIn);
@@ -168,6 +531,19 @@ public final class IOUtil {
         throw new IllegalArgumentException("Type " + type + " is not a primitive array.");
     }
 
+    /**
+     * Reads an array of primitive values of a given type from a stream.
+     * @see #readPrimitiveArray(Class, DataInput)
+     * @param type The primitive array type.
+     * @param dIn The stream to read from.
+     * @return The array that was read.
+     * @throws IOException If an error occurs.
+     * @throws IllegalArgumentException If the given type is not a primitive array.
+     */
+    public static Object readPrimitiveArray(Class<?> type, DataInputStream dIn) throws IOException {
+        return readPrimitiveArray(type, (DataInput) dIn);
+    }
+
     /**
      * Writes an array of primitive values to a stream.
      * @param array The array to write.
@@ -175,7 +551,7 @@ public final class IOUtil {
      * @throws IOException If an error occurs.
      * @throws IllegalArgumentException If the given type is not a primitive array.
      */
-    public static void writePrimitiveArray(Object array, DataOutputStream dOut) throws IOException {
+    public static void writePrimitiveArray(Object array, DataOutput dOut) throws IOException {
         switch (array) {
             case byte[] a -> writeByteArray(a, dOut);
             case short[] a -> writeShortArray(a, dOut);
@@ -189,113 +565,402 @@ public final class IOUtil {
         }
     }
 
-    private static byte[] readByteArray(DataInputStream dIn) throws IOException {
+    /**
+     * Writes an array of primitive values to a stream.
+     * @see #writePrimitiveArray(Object, DataOutput)
+     * @param array The array to write.
+     * @param dOut The stream to write to.
+     * @throws IOException If an error occurs.
+     * @throws IllegalArgumentException If the given type is not a primitive array.
+     */
+    public static void writePrimitiveArray(Object array, DataOutputStream dOut) throws IOException {
+        writePrimitiveArray(array, (DataOutput) dOut);
+    }
+
+    /**
+     * Checks an array length that was just read against the number of bytes
+     * that the input has left, if it knows, so that a corrupt or malicious
+     * length can't make the array be allocated before the input runs out.
+     * @param length The number of elements.
+     * @param elementSize The size of each element, in bytes.
+     * @param dIn The stream that the elements will be read from.
+     * @throws EOFException If the input can't hold that many elements.
+     */
+    private static void checkArrayLength(int length, int elementSize, DataInput dIn) throws EOFException {
+        if (dIn instanceof RecordInput in) in.checkRemaining(length, elementSize);
+    }
+
+    /**
+     * Reads just the elements of a primitive array, whose length is already
+     * known.
+     * @param componentType The array's primitive component type.
+     * @param length The number of elements.
+     * @param dIn The stream to read from.
+     * @return The array that was read.
+     * @throws IOException If an error occurs, or {@link EOFException} if the
+     * input is a buffer that can't hold that many elements.
+     */
+    static Object readPrimitiveArrayElements(Class<?> componentType, int length, DataInput dIn) throws IOException {
+        if (componentType == byte.class) {
+            checkArrayLength(length, Byte.BYTES, dIn);
+            byte[] array = new byte[length];
+            dIn.readFully(array);
+            return array;
+        }
+        if (componentType == short.class) {
+            checkArrayLength(length, Short.BYTES, dIn);
+            short[] array = new short[length];
+            readShorts(array, dIn);
+            return array;
+        }
+        if (componentType == int.class) {
+            checkArrayLength(length, Integer.BYTES, dIn);
+            int[] array = new int[length];
+            readInts(array, dIn);
+            return array;
+        }
+        if (componentType == long.class) {
+            checkArrayLength(length, Long.BYTES, dIn);
+            long[] array = new long[length];
+            readLongs(array, dIn);
+            return array;
+        }
+        if (componentType == float.class) {
+            checkArrayLength(length, Float.BYTES, dIn);
+            float[] array = new float[length];
+            readFloats(array, dIn);
+            return array;
+        }
+        if (componentType == double.class) {
+            checkArrayLength(length, Double.BYTES, dIn);
+            double[] array = new double[length];
+            readDoubles(array, dIn);
+            return array;
+        }
+        if (componentType == boolean.class) {
+            checkArrayLength(length, Byte.BYTES, dIn);
+            boolean[] array = new boolean[length];
+            readBooleans(array, dIn);
+            return array;
+        }
+        if (componentType == char.class) {
+            checkArrayLength(length, Character.BYTES, dIn);
+            char[] array = new char[length];
+            readChars(array, dIn);
+            return array;
+        }
+        throw new IllegalArgumentException("Type " + componentType + " is not primitive.");
+    }
+
+    /**
+     * Writes just the elements of a primitive array, without its length.
+     * @param array The array to write.
+     * @param dOut The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    static void writePrimitiveArrayElements(Object array, DataOutput dOut) throws IOException {
+        switch (array) {
+            case byte[] a -> dOut.write(a);
+            case short[] a -> writeShorts(a, dOut);
+            case int[] a -> writeInts(a, dOut);
+            case long[] a -> writeLongs(a, dOut);
+            case float[] a -> writeFloats(a, dOut);
+            case double[] a -> writeDoubles(a, dOut);
+            case boolean[] a -> writeBooleans(a, dOut);
+            case char[] a -> writeChars(a, dOut);
+            default -> throw new IllegalArgumentException(array.getClass() + " is not a primitive array.");
+        }
+    }
+
+    static byte[] readByteArray(DataInput dIn) throws IOException {
         int length = dIn.readInt();
+        checkArrayLength(length, Byte.BYTES, dIn);
         byte[] array = new byte[length];
         dIn.readFully(array);
         return array;
     }
 
-    private static void writeByteArray(byte[] array, DataOutputStream dOut) throws IOException {
+    static void writeByteArray(byte[] array, DataOutput dOut) throws IOException {
         dOut.writeInt(array.length);
-        for (var element : array) dOut.writeByte(element);
+        dOut.write(array);
     }
 
-    private static short[] readShortArray(DataInputStream dIn) throws IOException {
+    static short[] readShortArray(DataInput dIn) throws IOException {
         int length = dIn.readInt();
+        checkArrayLength(length, Short.BYTES, dIn);
         short[] array = new short[length];
-        for (int i = 0; i < length; i++) {
-            array[i] = dIn.readShort();
-        }
+        readShorts(array, dIn);
         return array;
     }
 
-    private static void writeShortArray(short[] array, DataOutputStream dOut) throws IOException {
+    static void writeShortArray(short[] array, DataOutput dOut) throws IOException {
         dOut.writeInt(array.length);
-        for (var element : array) dOut.writeShort(element);
+        writeShorts(array, dOut);
     }
 
-    private static int[] readIntArray(DataInputStream dIn) throws IOException {
+    static int[] readIntArray(DataInput dIn) throws IOException {
         int length = dIn.readInt();
+        checkArrayLength(length, Integer.BYTES, dIn);
         int[] array = new int[length];
-        for (int i = 0; i < length; i++) {
-            array[i] = dIn.readInt();
-        }
+        readInts(array, dIn);
         return array;
     }
 
-    private static void writeIntArray(int[] array, DataOutputStream dOut) throws IOException {
+    static void writeIntArray(int[] array, DataOutput dOut) throws IOException {
         dOut.writeInt(array.length);
-        for (var element : array) dOut.writeInt(element);
+        writeInts(array, dOut);
     }
 
-    private static long[] readLongArray(DataInputStream dIn) throws IOException {
+    static long[] readLongArray(DataInput dIn) throws IOException {
         int length = dIn.readInt();
+        checkArrayLength(length, Long.BYTES, dIn);
         long[] array = new long[length];
-        for (int i = 0; i < length; i++) {
-            array[i] = dIn.readLong();
-        }
+        readLongs(array, dIn);
         return array;
     }
 
-    private static void writeLongArray(long[] array, DataOutputStream dOut) throws IOException {
+    static void writeLongArray(long[] array, DataOutput dOut) throws IOException {
         dOut.writeInt(array.length);
-        for (var element : array) dOut.writeLong(element);
+        writeLongs(array, dOut);
     }
 
-    private static float[] readFloatArray(DataInputStream dIn) throws IOException {
+    static float[] readFloatArray(DataInput dIn) throws IOException {
         int length = dIn.readInt();
+        checkArrayLength(length, Float.BYTES, dIn);
         float[] array = new float[length];
-        for (int i = 0; i < length; i++) {
-            array[i] = dIn.readFloat();
-        }
+        readFloats(array, dIn);
         return array;
     }
 
-    private static void writeFloatArray(float[] array, DataOutputStream dOut) throws IOException {
+    static void writeFloatArray(float[] array, DataOutput dOut) throws IOException {
         dOut.writeInt(array.length);
-        for (var element : array) dOut.writeFloat(element);
+        writeFloats(array, dOut);
     }
 
-    private static double[] readDoubleArray(DataInputStream dIn) throws IOException {
+    static double[] readDoubleArray(DataInput dIn) throws IOException {
         int length = dIn.readInt();
+        checkArrayLength(length, Double.BYTES, dIn);
         double[] array = new double[length];
-        for (int i = 0; i < length; i++) {
-            array[i] = dIn.readDouble();
-        }
+        readDoubles(array, dIn);
         return array;
     }
 
-    private static void writeDoubleArray(double[] array, DataOutputStream dOut) throws IOException {
+    static void writeDoubleArray(double[] array, DataOutput dOut) throws IOException {
         dOut.writeInt(array.length);
-        for (var element : array) dOut.writeDouble(element);
+        writeDoubles(array, dOut);
     }
 
-    private static boolean[] readBooleanArray(DataInputStream dIn) throws IOException {
+    static boolean[] readBooleanArray(DataInput dIn) throws IOException {
         int length = dIn.readInt();
+        checkArrayLength(length, Byte.BYTES, dIn);
         boolean[] array = new boolean[length];
-        for (int i = 0; i < length; i++) {
-            array[i] = dIn.readBoolean();
-        }
+        readBooleans(array, dIn);
         return array;
     }
 
-    private static void writeBooleanArray(boolean[] array, DataOutputStream dOut) throws IOException {
+    static void writeBooleanArray(boolean[] array, DataOutput dOut) throws IOException {
         dOut.writeInt(array.length);
-        for (var element : array) dOut.writeBoolean(element);
+        writeBooleans(array, dOut);
     }
 
-    private static char[] readCharArray(DataInputStream dIn) throws IOException {
+    static char[] readCharArray(DataInput dIn) throws IOException {
         int length = dIn.readInt();
+        checkArrayLength(length, Character.BYTES, dIn);
         char[] array = new char[length];
-        for (int i = 0; i < length; i++) {
-            array[i] = dIn.readChar();
-        }
+        readChars(array, dIn);
         return array;
     }
 
-    private static void writeCharArray(char[] array, DataOutputStream dOut) throws IOException {
+    static void writeCharArray(char[] array, DataOutput dOut) throws IOException {
         dOut.writeInt(array.length);
-        for (var element : array) dOut.writeChar(element);
+        writeChars(array, dOut);
+    }
+
+    /*
+    Bulk element encoding and decoding for primitive arrays. Our own
+    RecordInput and RecordOutput copy whole runs of elements to and from their
+    buffer at once. Any other DataInput or DataOutput gets the elements in
+    fixed-size chunks of bytes, so that memory use stays bounded no matter how
+    large the array is. Either way, the bytes are identical to what writing
+    each element with DataOutput would produce, except that a RecordInput
+    or RecordOutput may use little-endian order, in which case any elements
+    that are read in chunks have their bytes swapped.
+     */
+
+    private static boolean isLittleEndian(DataInput dIn) {
+        return dIn instanceof RecordInput in && in.order() == ByteOrder.LITTLE_ENDIAN;
+    }
+
+    static void readShorts(short[] array, DataInput dIn) throws IOException {
+        boolean swap = isLittleEndian(dIn);
+        int start = dIn instanceof RecordInput in ? in.readShorts(array) : 0;
+        readChunked(array.length - start, Short.BYTES, dIn, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) {
+                short v = (short) SHORTS.get(chunk, j * Short.BYTES);
+                array[offset + start + j] = swap ? Short.reverseBytes(v) : v;
+            }
+        });
+    }
+
+    static void writeShorts(short[] array, DataOutput dOut) throws IOException {
+        if (dOut instanceof RecordOutput out) {
+            out.writeShorts(array);
+            return;
+        }
+        writeChunked(array.length, Short.BYTES, dOut, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) SHORTS.set(chunk, j * Short.BYTES, array[offset + j]);
+        });
+    }
+
+    static void readInts(int[] array, DataInput dIn) throws IOException {
+        boolean swap = isLittleEndian(dIn);
+        int start = dIn instanceof RecordInput in ? in.readInts(array) : 0;
+        readChunked(array.length - start, Integer.BYTES, dIn, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) {
+                int v = (int) INTS.get(chunk, j * Integer.BYTES);
+                array[offset + start + j] = swap ? Integer.reverseBytes(v) : v;
+            }
+        });
+    }
+
+    static void writeInts(int[] array, DataOutput dOut) throws IOException {
+        if (dOut instanceof RecordOutput out) {
+            out.writeInts(array);
+            return;
+        }
+        writeChunked(array.length, Integer.BYTES, dOut, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) INTS.set(chunk, j * Integer.BYTES, array[offset + j]);
+        });
+    }
+
+    static void readLongs(long[] array, DataInput dIn) throws IOException {
+        boolean swap = isLittleEndian(dIn);
+        int start = dIn instanceof RecordInput in ? in.readLongs(array) : 0;
+        readChunked(array.length - start, Long.BYTES, dIn, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) {
+                long v = (long) LONGS.get(chunk, j * Long.BYTES);
+                array[offset + start + j] = swap ? Long.reverseBytes(v) : v;
+            }
+        });
+    }
+
+    static void writeLongs(long[] array, DataOutput dOut) throws IOException {
+        if (dOut instanceof RecordOutput out) {
+            out.writeLongs(array);
+            return;
+        }
+        writeChunked(array.length, Long.BYTES, dOut, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) LONGS.set(chunk, j * Long.BYTES, array[offset + j]);
+        });
+    }
+
+    static void readFloats(float[] array, DataInput dIn) throws IOException {
+        boolean swap = isLittleEndian(dIn);
+        int start = dIn instanceof RecordInput in ? in.readFloats(array) : 0;
+        readChunked(array.length - start, Float.BYTES, dIn, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) {
+                int v = (int) INTS.get(chunk, j * Float.BYTES);
+                array[offset + start + j] = Float.intBitsToFloat(swap ? Integer.reverseBytes(v) : v);
+            }
+        });
+    }
+
+    static void writeFloats(float[] array, DataOutput dOut) throws IOException {
+        if (dOut instanceof RecordOutput out) {
+            out.writeFloats(array);
+            return;
+        }
+        writeChunked(array.length, Float.BYTES, dOut, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) INTS.set(chunk, j * Float.BYTES, Float.floatToIntBits(array[offset + j]));
+        });
+    }
+
+    static void readDoubles(double[] array, DataInput dIn) throws IOException {
+        boolean swap = isLittleEndian(dIn);
+        int start = dIn instanceof RecordInput in ? in.readDoubles(array) : 0;
+        readChunked(array.length - start, Double.BYTES, dIn, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) {
+                long v = (long) LONGS.get(chunk, j * Double.BYTES);
+                array[offset + start + j] = Double.longBitsToDouble(swap ? Long.reverseBytes(v) : v);
+            }
+        });
+    }
+
+    static void writeDoubles(double[] array, DataOutput dOut) throws IOException {
+        if (dOut instanceof RecordOutput out) {
+            out.writeDoubles(array);
+            return;
+        }
+        writeChunked(array.length, Double.BYTES, dOut, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) LONGS.set(chunk, j * Double.BYTES, Double.doubleToLongBits(array[offset + j]));
+        });
+    }
+
+    static void readBooleans(boolean[] array, DataInput dIn) throws IOException {
+        readChunked(array.length, 1, dIn, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) array[offset + j] = chunk[j] != 0;
+        });
+    }
+
+    static void writeBooleans(boolean[] array, DataOutput dOut) throws IOException {
+        writeChunked(array.length, 1, dOut, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) chunk[j] = array[offset + j] ? (byte) 1 : (byte) 0;
+        });
+    }
+
+    static void readChars(char[] array, DataInput dIn) throws IOException {
+        boolean swap = isLittleEndian(dIn);
+        int start = dIn instanceof RecordInput in ? in.readChars(array) : 0;
+        readChunked(array.length - start, Character.BYTES, dIn, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) {
+                char v = (char) CHARS.get(chunk, j * Character.BYTES);
+                array[offset + start + j] = swap ? Character.reverseBytes(v) : v;
+            }
+        });
+    }
+
+    static void writeChars(char[] array, DataOutput dOut) throws IOException {
+        if (dOut instanceof RecordOutput out) {
+            out.writeChars(array);
+            return;
+        }
+        writeChunked(array.length, Character.BYTES, dOut, (chunk, offset, count) -> {
+            for (int j = 0; j < count; j++) CHARS.set(chunk, j * Character.BYTES, array[offset + j]);
+        });
+    }
+
+    /**
+     * Converts between a chunk of bytes and a run of array elements.
+     */
+    @FunctionalInterface
+    private interface ChunkConverter {
+        /**
+         * @param chunk The chunk of bytes.
+         * @param offset The index of the first array element in the chunk.
+         * @param count The number of elements in the chunk.
+         */
+        void convert(byte[] chunk, int offset, int count);
+    }
+
+    private static void readChunked(int length, int elementSize, DataInput dIn, ChunkConverter decoder) throws IOException {
+        if (length == 0) return;
+        final int perChunk = Math.min(length, CHUNK_SIZE / elementSize);
+        final byte[] chunk = new byte[perChunk * elementSize];
+        for (int offset = 0; offset < length; offset += perChunk) {
+            int count = Math.min(perChunk, length - offset);
+            dIn.readFully(chunk, 0, count * elementSize);
+            decoder.convert(chunk, offset, count);
+        }
+    }
+
+    private static void writeChunked(int length, int elementSize, DataOutput dOut, ChunkConverter encoder) throws IOException {
+        if (length == 0) return;
+        final int perChunk = Math.min(length, CHUNK_SIZE / elementSize);
+        final byte[] chunk = new byte[perChunk * elementSize];
+        for (int offset = 0; offset < length; offset += perChunk) {
+            int count = Math.min(perChunk, length - offset);
+            encoder.convert(chunk, offset, count);
+            dOut.write(chunk, 0, count * elementSize);
+        }
     }
 }
@@ -0,0 +1,85 @@
+package com.andrewlalis.record_net;
+
+import java.util.Map;
+
+/**
+ * An immutable map from message ids to record codecs, which looks up ids
+ * without boxing them. When all ids are small and non-negative, they index
+ * directly into an array. Otherwise, such as when ids are the hash codes of
+ * their classes, they're kept in an open-addressing hash table with linear
+ * probing, which is at most half full.
+ */
+final class IdTable {
+    /**
+     * The largest id range that's always kept in a dense array, even if only
+     * a few ids are used.
+     */
+    private static final int MIN_DENSE_LENGTH = 256;
+
+    /**
+     * The codec for each id, when ids are dense, or null otherwise.
+     */
+    private final RecordCodec<?>[] dense;
+    /**
+     * The hash table's keys and values, when ids are sparse.
+     */
+    private final int[] keys;
+    private final RecordCodec<?>[] values;
+    private final int mask;
+
+    /**
+     * Builds a table containing the given entries.
+     * @param entries The codec for each id.
+     */
+    IdTable(Map<Integer, RecordCodec<?>> entries) {
+        int maxDenseLength = Math.max(MIN_DENSE_LENGTH, entries.size() * 4);
+        boolean isDense = true;
+        int length = 0;
+        for (int id : entries.keySet()) {
+            if (id < 0 || id >= maxDenseLength) {
+                isDense = false;
+                break;
+            }
+            length = Math.max(length, id + 1);
+        }
+        if (isDense) {
+            this.dense = new RecordCodec<?>[length];
+            entries.forEach((id, codec) -> dense[id] = codec);
+            this.keys = null;
+            this.values = null;
+            this.mask = 0;
+        } else {
+            int capacity = Integer.highestOneBit(Math.max(entries.size(), 1) * 2 - 1) << 1;
+            this.dense = null;
+            this.keys = new int[capacity];
+            this.values = new RecordCodec<?>[capacity];
+            this.mask = capacity - 1;
+            entries.forEach((id, codec) -> {
+                int i = slot(id);
+                while (values[i] != null) i = (i + 1) & mask;
+                keys[i] = id;
+                values[i] = codec;
+            });
+        }
+    }
+
+    /**
+     * Gets the codec for an id.
+     * @param id The message id.
+     * @return The codec, or null if the id isn't in this table.
+     */
+    RecordCodec<?> get(int id) {
+        if (dense != null) {
+            return id >= 0 && id < dense.length ? dense[id] : null;
+        }
+        for (int i = slot(id);; i = (i + 1) & mask) {
+            RecordCodec<?> codec = values[i];
+            if (codec == null || keys[i] == id) return codec;
+        }
+    }
+
+    private int slot(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
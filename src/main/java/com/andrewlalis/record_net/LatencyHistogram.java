@@ -0,0 +1,96 @@
+package com.andrewlalis.record_net;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies, in nanoseconds, with a bucket for each
+ * power of two. Bucket <code>i</code> counts latencies of at least
+ * <code>2^(i-1)</code> and less than <code>2^i</code> nanoseconds, and bucket
+ * 0 counts latencies of zero. Recording a latency only increments a
+ * {@link LongAdder}, so it scales well when many threads record at once.
+ */
+public final class LatencyHistogram {
+    /**
+     * The number of buckets.
+     */
+    public static final int BUCKETS = Long.SIZE;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Records a latency.
+     * @param nanos The latency, in nanoseconds.
+     */
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+        totalNanos.add(nanos);
+    }
+
+    /**
+     * Gets the number of latencies that have been recorded.
+     * @return The count.
+     */
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) count += bucket.sum();
+        return count;
+    }
+
+    /**
+     * Gets the sum of all latencies that have been recorded.
+     * @return The total, in nanoseconds.
+     */
+    public long totalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * Gets the number of latencies that were recorded in a bucket.
+     * @param bucket The index of the bucket.
+     * @return The count.
+     */
+    public long bucketCount(int bucket) {
+        return buckets[bucket].sum();
+    }
+
+    /**
+     * Gets the exclusive upper bound of a bucket.
+     * @param bucket The index of the bucket.
+     * @return The upper bound, in nanoseconds.
+     */
+    public static long bucketUpperBoundNanos(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * Estimates a percentile of the recorded latencies, as the upper bound of
+     * the bucket that it falls in, so the estimate is at most twice the real
+     * value.
+     * @param percentile The percentile, from 0 to 100.
+     * @return The estimated latency, in nanoseconds, or 0 if nothing has been
+     * recorded.
+     */
+    public long percentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Invalid percentile " + percentile);
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return bucketUpperBoundNanos(i);
+        }
+        return bucketUpperBoundNanos(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,88 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads messages with a {@link RecordMappedSerializer}, reusing the same
+ * input and scratch buffer for every message, instead of allocating new ones
+ * for each like the serializer's own read methods do. Only the messages
+ * themselves are allocated, and with a value cache, not even the strings and
+ * UUIDs in them that have been read recently.
+ * <p>
+ *     A decoder must only be used by one thread at a time.
+ * </p>
+ * @see RecordMappedSerializer#newDecoder()
+ * @see RecordMappedSerializer#newDecoder(int)
+ */
+public final class MessageDecoder {
+    private final RecordMappedSerializer serializer;
+    private final RecordInput input = new RecordInput(null, RecordInput.BUFFER_SOURCE);
+    private final ByteBuffer scratchBuffer = ByteBuffer.allocate(RecordInput.SCRATCH_BUFFER_SIZE);
+    private final RecordInput.StreamSource streamSource = new RecordInput.StreamSource(null);
+    private final RecordInput.ChannelSource channelSource = new RecordInput.ChannelSource(null);
+
+    MessageDecoder(RecordMappedSerializer serializer, ValueCache cache) {
+        this.serializer = serializer;
+        input.cache = cache;
+    }
+
+    /**
+     * Reads a message from a buffer, starting at its position. The buffer's
+     * position is advanced past the message only if the whole message could
+     * be read.
+     * @see RecordMappedSerializer#readMessage(ByteBuffer)
+     * @param buffer The buffer to read from.
+     * @return The message that was read.
+     * @throws IOException If an error occurs, or {@link java.io.EOFException}
+     * if the buffer doesn't contain a whole message.
+     */
+    public Object readMessage(ByteBuffer buffer) throws IOException {
+        final ByteOrder order = buffer.order();
+        final int start = buffer.position();
+        boolean success = false;
+        try {
+            input.reset(buffer, RecordInput.BUFFER_SOURCE).order(serializer.getByteOrder());
+            Object msg = serializer.read(input);
+            success = true;
+            return msg;
+        } finally {
+            buffer.order(order);
+            if (!success) buffer.position(start);
+        }
+    }
+
+    /**
+     * Reads a message from a stream.
+     * @param in The stream to read from.
+     * @return The message that was read.
+     * @throws IOException If an error occurs.
+     */
+    public Object readMessage(InputStream in) throws IOException {
+        streamSource.in = in;
+        try {
+            return serializer.read(input.reset(scratchBuffer.clear().limit(0), streamSource));
+        } finally {
+            streamSource.in = null;
+        }
+    }
+
+    /**
+     * Reads a message from a channel, which must be in blocking mode.
+     * @param channel The channel to read from.
+     * @return The message that was read.
+     * @throws IOException If an error occurs.
+     */
+    public Object readMessage(ReadableByteChannel channel) throws IOException {
+        RecordInput.checkBlocking(channel);
+        channelSource.channel = channel;
+        try {
+            return serializer.read(input.reset(scratchBuffer.clear().limit(0), channelSource));
+        } finally {
+            channelSource.channel = null;
+        }
+    }
+}
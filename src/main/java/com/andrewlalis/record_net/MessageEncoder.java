@@ -0,0 +1,124 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes messages with a {@link RecordMappedSerializer}, reusing the same
+ * output and scratch buffers for every message, instead of allocating new ones
+ * for each like the serializer's own write methods do.
+ * <p>
+ *     Once warmed up, writing a message whose components are all primitives,
+ *     strings, enums, UUIDs, or records of those, doesn't allocate any memory.
+ *     Primitive arrays and boxed values don't have this guarantee.
+ * </p>
+ * <p>
+ *     An encoder must only be used by one thread at a time. To share one
+ *     between threads, keep one per thread, for example with
+ *     <code>ThreadLocal.withInitial(serializer::newEncoder)</code>.
+ * </p>
+ * @see RecordMappedSerializer#newEncoder()
+ */
+public final class MessageEncoder {
+    private final RecordMappedSerializer serializer;
+    private final RecordOutput output = new RecordOutput(null, RecordOutput.BUFFER_SINK);
+    private final ByteBuffer streamBuffer = ByteBuffer.allocate(RecordOutput.STREAM_BUFFER_SIZE);
+    private final RecordOutput.StreamSink streamSink = new RecordOutput.StreamSink(null);
+    private ByteBuffer channelBuffer;
+    private final RecordOutput.ChannelSink channelSink = new RecordOutput.ChannelSink(null);
+
+    MessageEncoder(RecordMappedSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    /**
+     * Writes a message into a buffer, starting at its position. The buffer's
+     * position is advanced past the message only if the whole message could
+     * be written.
+     * @see RecordMappedSerializer#writeMessage(Object, ByteBuffer)
+     * @param msg The message to write.
+     * @param buffer The buffer to write to.
+     * @throws IOException If an error occurs.
+     * @throws java.nio.BufferOverflowException If the buffer doesn't have
+     * enough space for the message.
+     */
+    public void writeMessage(Object msg, ByteBuffer buffer) throws IOException {
+        serializer.write(msg, buffer, output.reset(buffer, RecordOutput.BUFFER_SINK), false);
+    }
+
+    /**
+     * Writes a message to a stream.
+     * @param msg The message to write.
+     * @param out The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    public void writeMessage(Object msg, OutputStream out) throws IOException {
+        write(msg, out, false);
+    }
+
+    /**
+     * Writes a message to a channel.
+     * @param msg The message to write.
+     * @param channel The channel to write to.
+     * @throws IOException If an error occurs.
+     */
+    public void writeMessage(Object msg, WritableByteChannel channel) throws IOException {
+        write(msg, channel, false);
+    }
+
+    /**
+     * Writes a length-prefixed message into a buffer.
+     * @see RecordMappedSerializer#writeFramedMessage(Object, ByteBuffer)
+     * @param msg The message to write.
+     * @param buffer The buffer to write to.
+     * @throws IOException If an error occurs.
+     * @throws java.nio.BufferOverflowException If the buffer doesn't have
+     * enough space for the frame.
+     */
+    public void writeFramedMessage(Object msg, ByteBuffer buffer) throws IOException {
+        serializer.write(msg, buffer, output.reset(buffer, RecordOutput.BUFFER_SINK), true);
+    }
+
+    /**
+     * Writes a length-prefixed message to a stream.
+     * @see RecordMappedSerializer#writeFramedMessage(Object, OutputStream)
+     * @param msg The message to write.
+     * @param out The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    public void writeFramedMessage(Object msg, OutputStream out) throws IOException {
+        write(msg, out, true);
+    }
+
+    /**
+     * Writes a length-prefixed message to a channel.
+     * @see RecordMappedSerializer#writeFramedMessage(Object, WritableByteChannel)
+     * @param msg The message to write.
+     * @param channel The channel to write to.
+     * @throws IOException If an error occurs.
+     */
+    public void writeFramedMessage(Object msg, WritableByteChannel channel) throws IOException {
+        write(msg, channel, true);
+    }
+
+    private void write(Object msg, OutputStream out, boolean framed) throws IOException {
+        streamSink.out = out;
+        try {
+            serializer.write(msg, output.reset(streamBuffer.clear(), streamSink), framed);
+        } finally {
+            streamSink.out = null;
+        }
+    }
+
+    private void write(Object msg, WritableByteChannel channel, boolean framed) throws IOException {
+        if (channelBuffer == null) channelBuffer = ByteBuffer.allocateDirect(RecordOutput.CHANNEL_BUFFER_SIZE);
+        channelSink.channel = channel;
+        try {
+            serializer.write(msg, output.reset(channelBuffer.clear(), channelSink), framed);
+        } finally {
+            channelSink.channel = null;
+        }
+    }
+}
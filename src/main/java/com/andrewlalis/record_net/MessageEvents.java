@@ -0,0 +1,124 @@
+package com.andrewlalis.record_net;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The JDK Flight Recorder events that record-net emits. Each event is a small,
+ * short-lived object whose fields are only set and committed if it's enabled,
+ * so an event that isn't being recorded costs little more than an allocation.
+ * <p>
+ *     Events for errors are emitted where the serializer detects the error,
+ *     rather than by the exceptions themselves, so that an exception which an
+ *     application creates for its own purposes isn't recorded as one.
+ * </p>
+ */
+final class MessageEvents {
+    private MessageEvents() {}
+
+    private static final String CATEGORY = "record-net";
+
+    @Name("com.andrewlalis.record_net.SlowMessage")
+    @Label("Slow Message")
+    @Description("A message that took longer than the slow message threshold to write or read.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class SlowMessage extends Event {
+        @Label("Message Type")
+        Class<?> messageType;
+        @Label("Operation")
+        String operation;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        @Label("Time")
+        @Timespan
+        long nanos;
+    }
+
+    @Name("com.andrewlalis.record_net.OversizedMessage")
+    @Label("Oversized Message")
+    @Description("A message that was larger than the oversized message threshold.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class OversizedMessage extends Event {
+        @Label("Message Type")
+        Class<?> messageType;
+        @Label("Operation")
+        String operation;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.andrewlalis.record_net.UnknownMessageId")
+    @Label("Unknown Message Id")
+    @Description("A message was read whose id isn't registered.")
+    @Category(CATEGORY)
+    static final class UnknownMessageId extends Event {
+        @Label("Message Id")
+        int messageId;
+    }
+
+    @Name("com.andrewlalis.record_net.UnsupportedMessageType")
+    @Label("Unsupported Message Type")
+    @Description("A type was written or read that isn't supported.")
+    @Category(CATEGORY)
+    static final class UnsupportedMessageType extends Event {
+        @Label("Message Type")
+        Class<?> messageType;
+    }
+
+    static void slowMessage(Class<?> type, String operation, long bytes, long nanos) {
+        SlowMessage event = new SlowMessage();
+        if (!event.isEnabled()) return;
+        event.messageType = type;
+        event.operation = operation;
+        event.bytes = bytes;
+        event.nanos = nanos;
+        event.commit();
+    }
+
+    static void oversizedMessage(Class<?> type, String operation, long bytes) {
+        OversizedMessage event = new OversizedMessage();
+        if (!event.isEnabled()) return;
+        event.messageType = type;
+        event.operation = operation;
+        event.bytes = bytes;
+        event.commit();
+    }
+
+    /**
+     * Records that a message with an unknown id was read.
+     * @param messageId The message's id.
+     * @return The exception to throw.
+     */
+    static UnknownMessageIdException unknownMessageId(int messageId) {
+        UnknownMessageId event = new UnknownMessageId();
+        if (event.isEnabled()) {
+            event.messageId = messageId;
+            event.commit();
+        }
+        return new UnknownMessageIdException(messageId);
+    }
+
+    /**
+     * Records that an unsupported type was written or read.
+     * @param type The type.
+     * @return The exception to throw.
+     */
+    static UnsupportedMessageTypeException unsupportedMessageType(Class<?> type) {
+        UnsupportedMessageType event = new UnsupportedMessageType();
+        if (event.isEnabled()) {
+            event.messageType = type;
+            event.commit();
+        }
+        return new UnsupportedMessageTypeException(type);
+    }
+}
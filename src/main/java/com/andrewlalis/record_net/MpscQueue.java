@@ -0,0 +1,92 @@
+package com.andrewlalis.record_net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single consumer
+ * thread, backed by a ring buffer. Producers claim a slot by advancing the
+ * producer index, and then publish their element into it. The consumer takes
+ * elements in the order their slots were claimed, and frees each slot for
+ * reuse once it's taken.
+ * @param <E> The type of element.
+ */
+final class MpscQueue<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final AtomicLong producerIndex = new AtomicLong();
+    /**
+     * The index of the next slot to take, which only the consumer writes.
+     */
+    private volatile long consumerIndex;
+
+    /**
+     * Creates a queue.
+     * @param capacity The minimum capacity, which is rounded up to a power
+     *                 of two.
+     */
+    MpscQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("Invalid capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an element to the queue, if it's not full. This may be called by
+     * any thread.
+     * @param element The element to add.
+     * @return True if the element was added, or false if the queue is full.
+     */
+    boolean offer(E element) {
+        long capacity = mask + 1;
+        while (true) {
+            long index = producerIndex.get();
+            if (index - consumerIndex >= capacity) return false;
+            if (producerIndex.compareAndSet(index, index + 1)) {
+                slots.setRelease((int) index & mask, element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the next element from the queue. This must only be called by the
+     * consumer thread.
+     * @return The element, or null if the queue is empty.
+     */
+    E poll() {
+        long index = consumerIndex;
+        int slot = (int) index & mask;
+        E element = slots.getAcquire(slot);
+        if (element == null) {
+            if (index == producerIndex.get()) return null;
+            // A producer has claimed the slot, but not yet published to it.
+            do {
+                Thread.onSpinWait();
+                element = slots.getAcquire(slot);
+            } while (element == null);
+        }
+        slots.setRelease(slot, null);
+        consumerIndex = index + 1;
+        return element;
+    }
+
+    /**
+     * Gets the number of elements in the queue, which may already be out of
+     * date when it's returned.
+     * @return The number of elements.
+     */
+    int size() {
+        return (int) Math.max(0, producerIndex.get() - consumerIndex);
+    }
+
+    /**
+     * Gets the maximum number of elements in the queue.
+     * @return The capacity.
+     */
+    int capacity() {
+        return mask + 1;
+    }
+}
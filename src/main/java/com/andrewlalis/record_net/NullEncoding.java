@@ -0,0 +1,27 @@
+package com.andrewlalis.record_net;
+
+/**
+ * The ways that a {@link RecordMappedSerializer} can write null components.
+ * Both sides of a connection must use the same encoding.
+ */
+public enum NullEncoding {
+    /**
+     * The default encoding, in which only enum components may be null. A
+     * null enum is written as an ordinal of -1, or as zero in the
+     * {@link WireFormat#COMPACT} format, where every other ordinal is shifted
+     * up by one to make room for it.
+     */
+    NONE,
+
+    /**
+     * Every record with non-primitive components starts with a bitmap that
+     * has one bit for each of them, in declaration order, which is set if the
+     * component is present. Null components are then left out entirely, so
+     * they cost one bit each, and present ones need no marker of their own.
+     * Enums don't need a null ordinal, so in the compact format they're
+     * written as their plain ordinal. Records with only primitive components
+     * have no bitmap, and elements of arrays still may not be null, except
+     * for enums.
+     */
+    PRESENCE_BITMAP
+}
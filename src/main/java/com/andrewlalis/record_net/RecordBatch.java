@@ -0,0 +1,427 @@
+package com.andrewlalis.record_net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of records of a single type that were written in columnar form,
+ * with all values of each component stored together, instead of one record
+ * after another. A single column can be decoded into an array without
+ * decoding any of the others, or building any records, and since similar
+ * values are next to each other, batches compress much better than the same
+ * records written one by one.
+ * <p>
+ *     A batch starts with the message id of its record type and the number
+ *     of records in it. Then comes each component's column, in declaration
+ *     order, prefixed with its length in bytes so that it can be skipped over.
+ *     Columns are written in one of three ways, depending on the component's
+ *     type:
+ * </p>
+ * <ul>
+ *     <li>Primitives are written as one contiguous array, with the same
+ *     fixed-size elements as a primitive array component. In the
+ *     {@link WireFormat#COMPACT} format, ints and longs are instead written
+ *     as the zigzag varint of the difference from the previous value.</li>
+ *     <li>Strings and enums are written as a dictionary of the distinct
+ *     values in the column, followed by an array of codes that index into
+ *     it, with zero meaning null. Codes are bytes, shorts or ints, whichever
+ *     is the smallest that can hold the dictionary.</li>
+ *     <li>All other values are written one after the other, with their usual
+ *     codec. With {@link NullEncoding#PRESENCE_BITMAP}, they're preceded by
+ *     a bitmap with a bit for each record, and nulls aren't written. With
+ *     {@link ReferenceEncoding#REFERENCE_TABLE}, each of these columns has a
+ *     reference table of its own, while dictionaries already write each
+ *     string only once, and so don't use one.</li>
+ * </ul>
+ * <p>
+ *     A batch that's read from a buffer refers to the buffer's contents
+ *     instead of copying them, so they must not be modified while the batch
+ *     is in use.
+ * </p>
+ * @see RecordMappedSerializer#writeBatch(Class, List, java.io.OutputStream)
+ * @see RecordMappedSerializer#readBatch(ByteBuffer)
+ */
+public final class RecordBatch {
+    private final RecordCodec<?> codec;
+    private final int size;
+    /**
+     * The encoded contents of each column, without their length.
+     */
+    private final ByteBuffer[] columns;
+
+    private RecordBatch(RecordCodec<?> codec, int size, ByteBuffer[] columns) {
+        this.codec = codec;
+        this.size = size;
+        this.columns = columns;
+    }
+
+    /**
+     * Gets the type of the records in this batch.
+     * @return The record type.
+     */
+    public Class<?> type() {
+        return codec.info().type();
+    }
+
+    /**
+     * Gets the number of records in this batch.
+     * @return The number of records.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Decodes a single column of this batch. Primitive components are
+     * returned as a primitive array, like <code>int[]</code>, and all others
+     * as an array of the component's type, like <code>String[]</code>.
+     * Strings that are equal share the same instance.
+     * @param index The index of the component, in declaration order.
+     * @return A new array with the component's value for each record.
+     * @throws IOException If an error occurs, or if the column is corrupted.
+     * @throws IndexOutOfBoundsException If there's no component at the index.
+     */
+    public Object column(int index) throws IOException {
+        RecordInfo<?> info = codec.info();
+        Class<?> type = info.componentTypes()[index];
+        ValueCodec valueCodec = info.componentCodecs()[index];
+        ByteBuffer data = columns[index].duplicate().order(columns[index].order());
+        RecordInput in = RecordInput.of(data);
+        Object column;
+        if (info.format() == WireFormat.COMPACT && (type == int.class || type == long.class)) {
+            column = readDeltaColumn(type, in);
+        } else if (type.isPrimitive()) {
+            column = IOUtil.readPrimitiveArrayElements(type, size, in);
+        } else if (isDictionaryType(type)) {
+            column = readDictionaryColumn(type, unwrapReference(valueCodec), in);
+        } else {
+            column = readValueColumn(type, valueCodec, in);
+        }
+        if (data.hasRemaining()) {
+            throw new StreamCorruptedException("Column " + info.componentNames()[index] + " has " + data.remaining() + " unread bytes.");
+        }
+        return column;
+    }
+
+    /**
+     * Decodes a single column of this batch.
+     * @see #column(int)
+     * @param name The name of the component.
+     * @return A new array with the component's value for each record.
+     * @throws IOException If an error occurs, or if the column is corrupted.
+     * @throws IllegalArgumentException If the record has no such component.
+     */
+    public Object column(String name) throws IOException {
+        return column(codec.componentIndex(name));
+    }
+
+    /**
+     * Decodes a single column of this batch, as the given array type.
+     * @see #column(int)
+     * @param name The name of the component.
+     * @param arrayType The type of array that the column is decoded as, like
+     *                  <code>int[].class</code>.
+     * @return A new array with the component's value for each record.
+     * @param <A> The array type.
+     * @throws IOException If an error occurs, or if the column is corrupted.
+     * @throws IllegalArgumentException If the record has no such component.
+     * @throws ClassCastException If the column isn't of the given type.
+     */
+    public <A> A column(String name, Class<A> arrayType) throws IOException {
+        return arrayType.cast(column(name));
+    }
+
+    /**
+     * Decodes every column of this batch, and builds its records.
+     * @return A new list of the records, in the order they were written.
+     * @throws IOException If an error occurs, or if the batch is corrupted.
+     */
+    public List<Object> toList() throws IOException {
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = column(i);
+        }
+        List<Object> records = new ArrayList<>(size);
+        for (int row = 0; row < size; row++) {
+            Object[] components = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                components[i] = Array.get(values[i], row);
+            }
+            records.add(codec.construct(components));
+        }
+        return records;
+    }
+
+    /**
+     * Reads the rest of a batch, after its message id.
+     * @param codec The codec for the batch's record type.
+     * @param in The input to read from.
+     * @param buffer The buffer that the input reads directly from, whose
+     *               columns are referred to instead of copied, or null if
+     *               the input reads from a stream.
+     * @return The batch.
+     * @throws IOException If an error occurs, or {@link EOFException} if the
+     * buffer doesn't contain the whole batch.
+     */
+    static RecordBatch read(RecordCodec<?> codec, RecordInput in, ByteBuffer buffer) throws IOException {
+        boolean compact = codec.info().format() == WireFormat.COMPACT;
+        int size = readLength(in, compact);
+        ByteBuffer[] columns = new ByteBuffer[codec.info().componentTypes().length];
+        for (int i = 0; i < columns.length; i++) {
+            int length = readLength(in, compact);
+            if (buffer != null) {
+                if (buffer.remaining() < length) throw new EOFException();
+                columns[i] = buffer.slice(buffer.position(), length).order(buffer.order());
+                buffer.position(buffer.position() + length);
+            } else {
+                byte[] column = new byte[length];
+                in.readFully(column);
+                columns[i] = ByteBuffer.wrap(column).order(in.order());
+            }
+        }
+        return new RecordBatch(codec, size, columns);
+    }
+
+    /**
+     * Writes a batch of records, after its message id.
+     * @param codec The codec for the records' type.
+     * @param records The records to write.
+     * @param out The output to write to.
+     * @throws IOException If an error occurs.
+     * @throws IllegalArgumentException If any record is null, or not of the
+     * codec's type.
+     */
+    static void write(RecordCodec<?> codec, List<?> records, RecordOutput out) throws IOException {
+        RecordInfo<?> info = codec.info();
+        for (Object record : records) {
+            if (record == null || record.getClass() != info.type()) {
+                throw new IllegalArgumentException("Cannot write " + record + " in a batch of " + info.type().getSimpleName());
+            }
+        }
+        boolean compact = info.format() == WireFormat.COMPACT;
+        writeLength(records.size(), out, compact);
+        Class<?>[] types = info.componentTypes();
+        for (int i = 0; i < types.length; i++) {
+            Object[] values = new Object[records.size()];
+            for (int row = 0; row < values.length; row++) {
+                values[row] = codec.component(records.get(row), i);
+            }
+            ValueCodec valueCodec = info.componentCodecs()[i];
+            if (types[i].isPrimitive()) {
+                writePrimitiveColumn(types[i], values, out, compact);
+            } else if (isDictionaryType(types[i])) {
+                writeDictionaryColumn(unwrapReference(valueCodec), values, out, compact);
+            } else {
+                writeValueColumn(valueCodec, values, info.nulls() == NullEncoding.PRESENCE_BITMAP, out, compact);
+            }
+        }
+    }
+
+    private static ValueCodec unwrapReference(ValueCodec valueCodec) {
+        return valueCodec instanceof ValueCodecs.ReferenceCodec ref ? ref.codec() : valueCodec;
+    }
+
+    private static boolean isDictionaryType(Class<?> type) {
+        return type == String.class || type.isEnum();
+    }
+
+    private static void writePrimitiveColumn(Class<?> type, Object[] values, RecordOutput out, boolean compact) throws IOException {
+        if (compact && (type == int.class || type == long.class)) {
+            writeDeltaColumn(values, out);
+            return;
+        }
+        Object array = Array.newInstance(type, values.length);
+        for (int row = 0; row < values.length; row++) {
+            Array.set(array, row, values[row]);
+        }
+        writeLength(Math.multiplyExact(sizeOfPrimitive(type), values.length), out, compact);
+        IOUtil.writePrimitiveArrayElements(array, out);
+    }
+
+    /**
+     * Writes an int or long column in the compact format, as the zigzag
+     * varint of the difference between each value and the one before it, so
+     * that sequences of ids or timestamps take a byte or two per value.
+     * @param values The column's values.
+     * @param out The output to write to.
+     * @throws IOException If an error occurs.
+     */
+    private static void writeDeltaColumn(Object[] values, RecordOutput out) throws IOException {
+        long[] deltas = new long[values.length];
+        long previous = 0;
+        int length = 0;
+        for (int row = 0; row < values.length; row++) {
+            long value = ((Number) values[row]).longValue();
+            deltas[row] = IOUtil.zigZagEncode(value - previous);
+            previous = value;
+            length = Math.addExact(length, IOUtil.sizeOfVarLong(deltas[row]));
+        }
+        out.writeVarInt(length);
+        for (long delta : deltas) out.writeVarLong(delta);
+    }
+
+    private Object readDeltaColumn(Class<?> type, RecordInput in) throws IOException {
+        in.checkRemaining(size, 1);
+        long previous = 0;
+        if (type == int.class) {
+            int[] column = new int[size];
+            for (int row = 0; row < size; row++) {
+                previous += IOUtil.zigZagDecode(in.readVarLong());
+                column[row] = (int) previous;
+            }
+            return column;
+        }
+        long[] column = new long[size];
+        for (int row = 0; row < size; row++) {
+            previous += IOUtil.zigZagDecode(in.readVarLong());
+            column[row] = previous;
+        }
+        return column;
+    }
+
+    private static int sizeOfPrimitive(Class<?> type) {
+        if (type == byte.class || type == boolean.class) return Byte.BYTES;
+        if (type == short.class || type == char.class) return Short.BYTES;
+        if (type == int.class || type == float.class) return Integer.BYTES;
+        return Long.BYTES;
+    }
+
+    private static void writeDictionaryColumn(ValueCodec valueCodec, Object[] values, RecordOutput out, boolean compact) throws IOException {
+        Map<Object, Integer> codes = new HashMap<>();
+        List<Object> dictionary = new ArrayList<>();
+        int[] rowCodes = new int[values.length];
+        for (int row = 0; row < values.length; row++) {
+            Object value = values[row];
+            if (value == null) continue;
+            Integer code = codes.get(value);
+            if (code == null) {
+                dictionary.add(value);
+                code = dictionary.size();
+                codes.put(value, code);
+            }
+            rowCodes[row] = code;
+        }
+        int codeSize = codeSize(dictionary.size());
+        int length = Math.multiplyExact(codeSize, values.length);
+        length = Math.addExact(length, compact ? IOUtil.sizeOfVarInt(dictionary.size()) : Integer.BYTES);
+        for (Object value : dictionary) length = Math.addExact(length, valueCodec.sizeOf(value));
+        writeLength(length, out, compact);
+        writeLength(dictionary.size(), out, compact);
+        for (Object value : dictionary) valueCodec.write(value, out);
+        if (codeSize == Byte.BYTES) {
+            byte[] array = new byte[values.length];
+            for (int row = 0; row < values.length; row++) array[row] = (byte) rowCodes[row];
+            out.write(array);
+        } else if (codeSize == Short.BYTES) {
+            short[] array = new short[values.length];
+            for (int row = 0; row < values.length; row++) array[row] = (short) rowCodes[row];
+            IOUtil.writePrimitiveArrayElements(array, out);
+        } else {
+            IOUtil.writePrimitiveArrayElements(rowCodes, out);
+        }
+    }
+
+    private Object readDictionaryColumn(Class<?> type, ValueCodec valueCodec, RecordInput in) throws IOException {
+        boolean compact = codec.info().format() == WireFormat.COMPACT;
+        int dictionarySize = readLength(in, compact);
+        in.checkRemaining(dictionarySize, valueCodec.minSize());
+        Object[] dictionary = new Object[dictionarySize + 1];
+        for (int i = 1; i < dictionary.length; i++) {
+            dictionary[i] = valueCodec.read(in);
+        }
+        int codeSize = codeSize(dictionarySize);
+        in.checkRemaining(size, codeSize);
+        Object[] column = (Object[]) Array.newInstance(type, size);
+        for (int row = 0; row < size; row++) {
+            int code;
+            if (codeSize == Byte.BYTES) {
+                code = in.readUnsignedByte();
+            } else if (codeSize == Short.BYTES) {
+                code = in.readUnsignedShort();
+            } else {
+                code = in.readInt();
+            }
+            if (code < 0 || code > dictionarySize) throw new StreamCorruptedException("Invalid dictionary code " + code);
+            column[row] = dictionary[code];
+        }
+        return column;
+    }
+
+    /**
+     * Gets the size of each code in a dictionary column.
+     * @param dictionarySize The number of values in the dictionary, which
+     *                       doesn't include null.
+     * @return The code size, in bytes.
+     */
+    private static int codeSize(int dictionarySize) {
+        if (dictionarySize < 1 << Byte.SIZE) return Byte.BYTES;
+        if (dictionarySize < 1 << Short.SIZE) return Short.BYTES;
+        return Integer.BYTES;
+    }
+
+    private static void writeValueColumn(ValueCodec valueCodec, Object[] values, boolean presenceBitmap, RecordOutput out, boolean compact) throws IOException {
+        int length = presenceBitmap ? (values.length + Byte.SIZE - 1) / Byte.SIZE : 0;
+        Map<Object, Integer> references = new HashMap<>();
+        for (Object value : values) {
+            if (value != null || !presenceBitmap) length = Math.addExact(length, valueCodec.sizeOf(value, references));
+        }
+        writeLength(length, out, compact);
+        out.clearReferences();
+        if (!presenceBitmap) {
+            for (Object value : values) valueCodec.write(value, out);
+            return;
+        }
+        for (int i = 0; i < values.length; i += Byte.SIZE) {
+            int bits = 0;
+            for (int j = 0; j < Byte.SIZE && i + j < values.length; j++) {
+                if (values[i + j] != null) bits |= 1 << j;
+            }
+            out.writeByte(bits);
+        }
+        for (Object value : values) {
+            if (value != null) valueCodec.write(value, out);
+        }
+    }
+
+    private Object readValueColumn(Class<?> type, ValueCodec valueCodec, RecordInput in) throws IOException {
+        boolean presenceBitmap = codec.info().nulls() == NullEncoding.PRESENCE_BITMAP;
+        // Each record takes at least a bit of the bitmap, or a whole value.
+        if (presenceBitmap) {
+            in.checkRemaining((size + Byte.SIZE - 1) / Byte.SIZE, 1);
+        } else {
+            in.checkRemaining(size, valueCodec.minSize());
+        }
+        Object[] column = (Object[]) Array.newInstance(type, size);
+        if (!presenceBitmap) {
+            for (int row = 0; row < size; row++) column[row] = valueCodec.read(in);
+            return column;
+        }
+        byte[] bitmap = new byte[(size + Byte.SIZE - 1) / Byte.SIZE];
+        in.readFully(bitmap);
+        for (int row = 0; row < size; row++) {
+            if ((bitmap[row / Byte.SIZE] & (1 << (row % Byte.SIZE))) != 0) column[row] = valueCodec.read(in);
+        }
+        return column;
+    }
+
+    private static void writeLength(int length, RecordOutput out, boolean compact) throws IOException {
+        if (compact) {
+            out.writeVarInt(length);
+        } else {
+            out.writeInt(length);
+        }
+    }
+
+    private static int readLength(RecordInput in, boolean compact) throws IOException {
+        int length = compact ? in.readVarInt() : in.readInt();
+        if (length < 0) throw new StreamCorruptedException("Invalid length " + length);
+        return length;
+    }
+}
@@ -0,0 +1,430 @@
+package com.andrewlalis.record_net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection over a socket that sends and receives framed messages, and
+ * matches requests with their responses, so that any number of requests can
+ * be in flight at once.
+ * <p>
+ *     Each channel reads on its own virtual thread, and passes what it
+ *     receives to a {@link RecordHandler}. Messages that were sent with
+ *     {@link #send(Object)} are handled one at a time, in the order they
+ *     were received, on the reading thread. Requests that were sent with
+ *     {@link #request(Object)} are each handled on a new virtual thread, so
+ *     slow requests don't hold up others, and their responses may be sent
+ *     in any order.
+ * </p>
+ * <p>
+ *     When a handler fails to handle a request, even with an {@link Error},
+ *     the requester receives a {@link RemoteHandlerException} with the
+ *     <code>toString()</code> of what the handler threw, which includes its
+ *     class name and message. When it fails to handle a plain message, what it threw is
+ *     passed to its {@link RecordHandler#handleError(Object, Throwable, RecordChannel)}.
+ * </p>
+ * <p>
+ *     Frames that are longer than the channel's maximum frame length, or that
+ *     can't be decoded, close the channel, since the stream can't be trusted
+ *     anymore.
+ * </p>
+ * <p>
+ *     Each message is encoded in full before any of it is sent, so a message
+ *     that can't be encoded, for example because of a null component, fails
+ *     on its own, without affecting the messages sent after it.
+ * </p>
+ * <p>
+ *     All methods may be called from any thread.
+ * </p>
+ * @see RecordServer
+ */
+public final class RecordChannel implements AutoCloseable {
+    private static final ThreadFactory THREADS = Thread.ofVirtual().name("record-net-", 0).factory();
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * The largest frame buffer that's kept for the next message, after a
+     * large message made it grow.
+     */
+    private static final int MAX_RETAINED_FRAME_BUFFER = 64 * 1024;
+    /**
+     * The most characters of a handler's exception that are sent back to the
+     * requester. Even if every character takes three bytes of modified UTF-8,
+     * this stays well under the 65535 bytes that can be written.
+     */
+    public static final int MAX_ERROR_MESSAGE_LENGTH = 1024;
+
+    // The kinds of message that a channel sends, which are each prefixed by
+    // a single byte. All but a plain message are followed by a correlation id.
+    private static final int MESSAGE = 0;
+    private static final int REQUEST = 1;
+    private static final int RESPONSE = 2;
+    private static final int EMPTY_RESPONSE = 3;
+    private static final int ERROR = 4;
+
+    private final Socket socket;
+    private final RecordMappedSerializer serializer;
+    private final RecordHandler handler;
+    private final int maxFrameLength;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    // Only used while holding the write lock.
+    private final RecordOutput frameOutput = new RecordOutput(null, RecordOutput.GROWING_SINK);
+    private ByteBuffer frameBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ConcurrentMap<Integer, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCorrelationId = new AtomicInteger();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+    RecordChannel(Socket socket, RecordMappedSerializer serializer, RecordHandler handler, int maxFrameLength) throws IOException {
+        this.socket = socket;
+        this.serializer = serializer;
+        this.handler = handler;
+        this.maxFrameLength = maxFrameLength;
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+    }
+
+    /**
+     * Connects to a {@link RecordServer}, or any other socket that speaks
+     * the same protocol. Frames up to the serializer's
+     * {@link RecordMappedSerializer#getMaxFrameLength() maximum frame length}
+     * are accepted.
+     * @param address The address to connect to.
+     * @param serializer The serializer to use, which must have the same
+     *                   types and settings as the other end's.
+     * @param handler The handler for messages that the other end sends.
+     * @return The channel, which has started reading.
+     * @throws IOException If the connection can't be made.
+     */
+    public static RecordChannel connect(SocketAddress address, RecordMappedSerializer serializer, RecordHandler handler) throws IOException {
+        return connect(address, serializer, handler, serializer.getMaxFrameLength());
+    }
+
+    /**
+     * Connects to a {@link RecordServer}, or any other socket that speaks
+     * the same protocol.
+     * @param address The address to connect to.
+     * @param serializer The serializer to use, which must have the same
+     *                   types and settings as the other end's.
+     * @param handler The handler for messages that the other end sends.
+     * @param maxFrameLength The longest frame that the other end may send.
+     *                       Longer ones close the channel before anything
+     *                       is allocated for them.
+     * @return The channel, which has started reading.
+     * @throws IOException If the connection can't be made.
+     */
+    public static RecordChannel connect(SocketAddress address, RecordMappedSerializer serializer, RecordHandler handler, int maxFrameLength) throws IOException {
+        if (maxFrameLength < 0) throw new IllegalArgumentException("Invalid maximum frame length " + maxFrameLength);
+        Socket socket = new Socket();
+        try {
+            socket.connect(address);
+            return new RecordChannel(socket, serializer, handler, maxFrameLength).start();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts reading from this channel on a new virtual thread.
+     * @return This channel.
+     */
+    RecordChannel start() {
+        THREADS.newThread(this::readLoop).start();
+        return this;
+    }
+
+    /**
+     * Sends a message, without expecting a response.
+     * @param msg The message to send.
+     * @throws IOException If the message can't be encoded, in which case
+     * nothing is sent, or if the message can't be sent, in which case this
+     * channel is closed.
+     * @throws UnsupportedMessageTypeException If the message's type isn't
+     * registered.
+     */
+    public void send(Object msg) throws IOException {
+        serializer.registrationFor(msg);
+        write(MESSAGE, 0, msg);
+    }
+
+    /**
+     * Sends a request, which the other end's handler responds to.
+     * @param msg The request to send.
+     * @return A future that completes with the response, or null if the
+     * handler gave no response. It completes exceptionally with a
+     * {@link RemoteHandlerException} if the handler failed, or with an
+     * {@link IOException} if this channel was closed first.
+     * @throws UnsupportedMessageTypeException If the request's type isn't
+     * registered.
+     * @throws RuntimeException If the request can't be encoded, for example
+     * because of a null component, in which case nothing is sent.
+     */
+    public CompletableFuture<Object> request(Object msg) {
+        serializer.registrationFor(msg);
+        int correlationId = nextCorrelationId.incrementAndGet();
+        CompletableFuture<Object> response = new CompletableFuture<>();
+        pending.put(correlationId, response);
+        if (closed.isDone()) {
+            pending.remove(correlationId);
+            response.completeExceptionally(new ClosedChannelException());
+            return response;
+        }
+        try {
+            write(REQUEST, correlationId, msg);
+        } catch (IOException e) {
+            pending.remove(correlationId);
+            response.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            pending.remove(correlationId);
+            throw e;
+        }
+        return response;
+    }
+
+    /**
+     * Sends a request, and casts its response to the expected type.
+     * @see #request(Object)
+     * @param msg The request to send.
+     * @param responseType The type of response that's expected.
+     * @return A future that completes with the response. It completes
+     * exceptionally with a {@link ClassCastException} if the response has
+     * the wrong type.
+     * @param <R> The response type.
+     */
+    public <R> CompletableFuture<R> request(Object msg, Class<R> responseType) {
+        return request(msg).thenApply(responseType::cast);
+    }
+
+    /**
+     * Gets the address of the other end of this channel.
+     * @return The remote address.
+     */
+    public SocketAddress getRemoteAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    /**
+     * Gets the number of requests that have been sent, and not yet
+     * responded to.
+     * @return The number of pending requests.
+     */
+    public int pendingRequests() {
+        return pending.size();
+    }
+
+    /**
+     * Checks whether this channel is still open.
+     * @return True if the channel is open.
+     */
+    public boolean isOpen() {
+        return !closed.isDone();
+    }
+
+    /**
+     * Gets a future that completes once this channel is closed, either by
+     * {@link #close()}, or because the connection was lost.
+     * @return The future.
+     */
+    public CompletableFuture<Void> onClose() {
+        return closed.copy();
+    }
+
+    /**
+     * Closes this channel and its socket. Any pending requests complete
+     * exceptionally.
+     */
+    @Override
+    public void close() {
+        close(null);
+    }
+
+    private void close(Throwable cause) {
+        if (!closed.complete(null)) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // The channel is closed either way.
+        }
+        for (Integer correlationId : pending.keySet()) {
+            CompletableFuture<Object> response = pending.remove(correlationId);
+            if (response != null) {
+                IOException e = new ClosedChannelException();
+                if (cause != null) e.initCause(cause);
+                response.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Writes a message of the given kind. The message's frame is encoded
+     * before anything is written, so if encoding fails, the stream is left
+     * as it was and this channel stays open.
+     * @param kind The kind of message.
+     * @param correlationId The correlation id, which isn't written for plain
+     *                      messages.
+     * @param msg The message, the error message for {@link #ERROR}, or null
+     *            for {@link #EMPTY_RESPONSE}.
+     * @throws IOException If the message can't be encoded, or if writing
+     * fails, in which case this channel is closed.
+     */
+    private void write(int kind, int correlationId, Object msg) throws IOException {
+        writeLock.lock();
+        try {
+            ByteBuffer frame = kind == ERROR || msg == null ? null : encodeFrame(msg);
+            try {
+                out.writeByte(kind);
+                if (kind != MESSAGE) out.writeInt(correlationId);
+                if (kind == ERROR) {
+                    out.writeUTF(truncate((String) msg));
+                } else if (frame != null) {
+                    out.write(frame.array(), frame.arrayOffset(), frame.position());
+                }
+                out.flush();
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Encodes a framed message into the frame buffer, growing it if needed.
+     * Must be called while holding the write lock.
+     * @param msg The message to encode.
+     * @return The buffer that holds the frame, from zero to its position.
+     * @throws IOException If the message can't be encoded.
+     */
+    private ByteBuffer encodeFrame(Object msg) throws IOException {
+        frameOutput.reset(frameBuffer.clear(), RecordOutput.GROWING_SINK);
+        serializer.append(msg, frameOutput, true);
+        ByteBuffer frame = frameOutput.buffer();
+        if (frame.capacity() <= MAX_RETAINED_FRAME_BUFFER) frameBuffer = frame;
+        return frame;
+    }
+
+    /**
+     * Cuts an error message short if it's longer than
+     * {@link #MAX_ERROR_MESSAGE_LENGTH}, without splitting a surrogate pair.
+     * @param message The message.
+     * @return The message, or its start.
+     */
+    private static String truncate(String message) {
+        if (message.length() <= MAX_ERROR_MESSAGE_LENGTH) return message;
+        int end = MAX_ERROR_MESSAGE_LENGTH;
+        if (Character.isHighSurrogate(message.charAt(end - 1))) end--;
+        return message.substring(0, end);
+    }
+
+    private void readLoop() {
+        Throwable cause = null;
+        try {
+            int kind;
+            while ((kind = in.read()) != -1) {
+                switch (kind) {
+                    case MESSAGE -> {
+                        Object msg = readMessage();
+                        if (msg != null) handleMessage(msg);
+                    }
+                    case REQUEST -> {
+                        int correlationId = in.readInt();
+                        Object msg;
+                        try {
+                            msg = serializer.readFramedMessage(in, maxFrameLength);
+                        } catch (UnknownMessageIdException e) {
+                            write(ERROR, correlationId, e.getMessage());
+                            continue;
+                        }
+                        THREADS.newThread(() -> handleRequest(correlationId, msg)).start();
+                    }
+                    case RESPONSE -> {
+                        CompletableFuture<Object> response = pending.remove(in.readInt());
+                        try {
+                            Object msg = serializer.readFramedMessage(in, maxFrameLength);
+                            if (response != null) response.complete(msg);
+                        } catch (UnknownMessageIdException e) {
+                            if (response != null) response.completeExceptionally(e);
+                        }
+                    }
+                    case EMPTY_RESPONSE -> {
+                        CompletableFuture<Object> response = pending.remove(in.readInt());
+                        if (response != null) response.complete(null);
+                    }
+                    case ERROR -> {
+                        CompletableFuture<Object> response = pending.remove(in.readInt());
+                        String message = in.readUTF();
+                        if (response != null) response.completeExceptionally(new RemoteHandlerException(message));
+                    }
+                    default -> throw new StreamCorruptedException("Invalid channel message kind " + kind);
+                }
+            }
+            cause = new EOFException();
+        } catch (IOException | RuntimeException e) {
+            // Messages that can't be decoded, such as ones with an invalid
+            // array length, leave the stream in an unknown state.
+            cause = e;
+        } finally {
+            close(cause);
+        }
+    }
+
+    /**
+     * Reads a plain message, skipping it if its id is unknown.
+     * @return The message, or null if it was skipped.
+     * @throws IOException If an error occurs.
+     */
+    private Object readMessage() throws IOException {
+        try {
+            return serializer.readFramedMessage(in, maxFrameLength);
+        } catch (UnknownMessageIdException e) {
+            return null;
+        }
+    }
+
+    private void handleMessage(Object msg) {
+        try {
+            handler.handle(msg, this);
+        } catch (Throwable t) {
+            handler.handleError(msg, t, this);
+        }
+    }
+
+    private void handleRequest(int correlationId, Object msg) {
+        try {
+            Object response;
+            try {
+                response = handler.handle(msg, this);
+            } catch (Throwable t) {
+                write(ERROR, correlationId, String.valueOf(t));
+                return;
+            }
+            try {
+                write(response == null ? EMPTY_RESPONSE : RESPONSE, correlationId, response);
+            } catch (IOException | RuntimeException e) {
+                // A response that can't be encoded isn't sent at all, and
+                // leaves the channel open, so the error is sent instead.
+                if (isOpen()) write(ERROR, correlationId, String.valueOf(e));
+            }
+        } catch (IOException e) {
+            // The channel has been closed, so there's no one to respond to.
+        }
+    }
+}
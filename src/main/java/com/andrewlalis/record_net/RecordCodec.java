@@ -0,0 +1,495 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A specialized reader and writer for a single record type, which is built
+ * once when the type is registered. It calls the record's accessors and
+ * canonical constructor through method handles that are bound at build time,
+ * so that primitive components are read and written without any boxing, and
+ * without allocating an intermediate array of component values. All other
+ * components use the {@link ValueCodec} that was resolved for them in the
+ * record's {@link RecordInfo}.
+ * <p>
+ *     If the record has a {@link GeneratedCodec}, that's used instead of any
+ *     method handles, so no reflection is needed at all.
+ * </p>
+ * <p>
+ *     With {@link NullEncoding#PRESENCE_BITMAP}, the record's components are
+ *     preceded by a bitmap with a bit for each non-primitive component, and
+ *     those components use a {@link ValueCodecs.NullableCodec}, which checks
+ *     the bitmap that this codec put in {@link RecordInput#presence}.
+ * </p>
+ * @param <T> The type of the record.
+ */
+final class RecordCodec<T> implements ValueCodec {
+    private final RecordInfo<T> info;
+    /**
+     * The codec that was generated for the record at build time, or null if
+     * it's read and written through method handles.
+     */
+    private final GeneratedCodec<T> generated;
+    /**
+     * The codec for each component, which are the codecs from the record's
+     * info, wrapped to allow nulls if the record has a presence bitmap.
+     */
+    private final ValueCodec[] componentCodecs;
+    /**
+     * The index of each component that has a bit in the presence bitmap, and
+     * the number of bytes that the bitmap takes, which is zero if the record
+     * has none.
+     */
+    private final int[] nullableComponents;
+    private final int presenceBytes;
+    /**
+     * A handle of type <code>(RecordInput)Object</code> that reads all
+     * components in order and passes them to the canonical constructor.
+     */
+    private final MethodHandle reader;
+    /**
+     * A handle of type <code>(Object, RecordOutput)void</code> that writes
+     * all components in order.
+     */
+    private final MethodHandle writer;
+    /**
+     * The total size of all components that always have the same size.
+     */
+    private final int fixedComponentsSize;
+    /**
+     * The indexes of each component whose size depends on its value, and the
+     * codecs for those components.
+     */
+    private final int[] variableComponents;
+    private final ValueCodec[] variableCodecs;
+    /**
+     * Accessors of type <code>(Object)Object</code> for every component, and
+     * a handle of type <code>(Object[])Object</code> that invokes the
+     * canonical constructor, for callers that work with boxed values.
+     */
+    private final MethodHandle[] accessors;
+    private final MethodHandle spreadConstructor;
+
+    /**
+     * Builds a codec for a record type.
+     * @param info The record's info.
+     */
+    RecordCodec(RecordInfo<T> info) {
+        this(info, null);
+    }
+
+    /**
+     * Builds a codec for a record type.
+     * @param info The record's info.
+     * @param generated The record's generated codec, or null if method
+     *                  handles should be used instead.
+     */
+    RecordCodec(RecordInfo<T> info, GeneratedCodec<T> generated) {
+        this.info = info;
+        this.generated = generated;
+        Class<?>[] types = info.componentTypes();
+        ValueCodec[] codecs = info.componentCodecs().clone();
+        List<Integer> nullable = new ArrayList<>();
+        if (info.nulls() == NullEncoding.PRESENCE_BITMAP) {
+            for (int i = 0; i < codecs.length; i++) {
+                if (types[i].isPrimitive()) continue;
+                if (nullable.size() == Long.SIZE) {
+                    throw new IllegalArgumentException(info.type() + " has more than " + Long.SIZE + " non-primitive components, which is the most that a presence bitmap can have.");
+                }
+                codecs[i] = new ValueCodecs.NullableCodec(codecs[i], 1L << nullable.size());
+                nullable.add(i);
+            }
+        }
+        this.componentCodecs = codecs;
+        this.nullableComponents = nullable.stream().mapToInt(Integer::intValue).toArray();
+        this.presenceBytes = (nullableComponents.length + Byte.SIZE - 1) / Byte.SIZE;
+        int fixedSize = presenceBytes;
+        List<Integer> varComponents = new ArrayList<>();
+        for (int i = 0; i < codecs.length; i++) {
+            int componentSize = codecs[i].fixedSize();
+            if (componentSize != -1) {
+                fixedSize += componentSize;
+            } else {
+                varComponents.add(i);
+            }
+        }
+        this.fixedComponentsSize = fixedSize;
+        this.variableComponents = varComponents.stream().mapToInt(Integer::intValue).toArray();
+        this.variableCodecs = varComponents.stream().map(i -> codecs[i]).toArray(ValueCodec[]::new);
+        if (generated != null) {
+            this.reader = null;
+            this.writer = null;
+            this.accessors = null;
+            this.spreadConstructor = null;
+            return;
+        }
+        MethodHandles.Lookup lookup = lookupFor(info.type());
+        try {
+            RecordComponent[] components = info.type().getRecordComponents();
+            MethodHandle[] componentReaders = new MethodHandle[components.length];
+            MethodHandle[] componentWriters = new MethodHandle[components.length];
+            MethodHandle[] boxedAccessors = new MethodHandle[components.length];
+            for (int i = 0; i < components.length; i++) {
+                MethodHandle accessor = lookup.unreflect(components[i].getAccessor());
+                accessor = accessor.asType(accessor.type().changeParameterType(0, Object.class));
+                boxedAccessors[i] = accessor.asType(MethodType.methodType(Object.class, Object.class));
+                componentReaders[i] = componentReader(types[i], codecs[i], info.format());
+                componentWriters[i] = MethodHandles.filterArguments(
+                        componentWriter(types[i], codecs[i], info.format()),
+                        0,
+                        accessor
+                );
+            }
+            MethodHandle constructor = lookup.unreflectConstructor(info.type().getDeclaredConstructor(types));
+            this.reader = buildReader(constructor, componentReaders);
+            this.writer = buildWriter(componentWriters);
+            this.accessors = boxedAccessors;
+            this.spreadConstructor = constructor.asSpreader(Object[].class, components.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Could not build a codec for " + info.type(), e);
+        }
+    }
+
+    /**
+     * Gets the info for the record type that this codec handles.
+     * @return The record info.
+     */
+    RecordInfo<T> info() {
+        return info;
+    }
+
+    /**
+     * Gets the codec for each of the record's components, which allow nulls
+     * if the record has a presence bitmap. Callers that read components with
+     * these codecs must first call {@link #readPresence(RecordInput)}.
+     * @return The component codecs, in declaration order.
+     */
+    ValueCodec[] componentCodecs() {
+        return componentCodecs;
+    }
+
+    /**
+     * Writes the presence bitmap of a record, if it has one. Each byte holds
+     * the bits of the next eight non-primitive components, starting from its
+     * least significant bit.
+     * @param value The record.
+     * @param out The output to write to.
+     * @throws IOException If an error occurs.
+     */
+    void writePresence(Object value, RecordOutput out) throws IOException {
+        if (presenceBytes == 0) return;
+        long bits = 0;
+        for (int i = 0; i < nullableComponents.length; i++) {
+            if (component(value, nullableComponents[i]) != null) bits |= 1L << i;
+        }
+        for (int i = 0; i < presenceBytes; i++) {
+            out.writeByte((int) (bits >>> (i * Byte.SIZE)));
+        }
+    }
+
+    /**
+     * Reads the presence bitmap of a record, if it has one, and puts it in
+     * {@link RecordInput#presence}. Callers should restore the previous
+     * bitmap once they're done reading the record's components.
+     * @param in The input to read from.
+     * @throws IOException If an error occurs, or if the bitmap has bits set
+     * for components that don't exist.
+     */
+    void readPresence(RecordInput in) throws IOException {
+        if (presenceBytes == 0) return;
+        long bits = 0;
+        for (int i = 0; i < presenceBytes; i++) {
+            bits |= (long) in.readUnsignedByte() << (i * Byte.SIZE);
+        }
+        if (nullableComponents.length < Long.SIZE && bits >>> nullableComponents.length != 0) {
+            throw new StreamCorruptedException("Invalid presence bitmap for " + info.type().getSimpleName());
+        }
+        in.presence = bits;
+    }
+
+    @Override
+    public Object read(RecordInput in) throws IOException {
+        if (presenceBytes == 0) return readComponents(in);
+        long outer = in.presence;
+        try {
+            readPresence(in);
+            return readComponents(in);
+        } finally {
+            in.presence = outer;
+        }
+    }
+
+    private Object readComponents(RecordInput in) throws IOException {
+        if (generated != null) {
+            RecordReader r = in.recordReader();
+            RecordCodec<?> outer = r.codec;
+            r.codec = this;
+            try {
+                return generated.read(r);
+            } finally {
+                r.codec = outer;
+            }
+        }
+        try {
+            return (Object) reader.invokeExact(in);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    @Override
+    public void write(Object value, RecordOutput out) throws IOException {
+        writePresence(value, out);
+        if (generated != null) {
+            RecordWriter w = out.recordWriter();
+            RecordCodec<?> outer = w.codec;
+            w.codec = this;
+            try {
+                generated.write(info.type().cast(value), w);
+            } finally {
+                w.codec = outer;
+            }
+            return;
+        }
+        try {
+            writer.invokeExact(value, out);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Computes the exact encoded size of a record by adding up the sizes of
+     * its components. Components with a fixed size are only counted once,
+     * when the codec is built, so records with only fixed-size components
+     * are measured without even looking at them. With a reference table,
+     * the record is measured as if it started a message, with an empty table.
+     * @param value The record to measure.
+     * @return The record's encoded size, in bytes.
+     */
+    @Override
+    public int sizeOf(Object value) {
+        if (info.references() == ReferenceEncoding.REFERENCE_TABLE) return sizeOf(value, new HashMap<>());
+        int size = fixedComponentsSize;
+        for (int i = 0; i < variableComponents.length; i++) {
+            size = Math.addExact(size, variableCodecs[i].sizeOf(component(value, variableComponents[i])));
+        }
+        return size;
+    }
+
+    @Override
+    public int sizeOf(Object value, Map<Object, Integer> references) {
+        int size = fixedComponentsSize;
+        for (int i = 0; i < variableComponents.length; i++) {
+            size = Math.addExact(size, variableCodecs[i].sizeOf(component(value, variableComponents[i]), references));
+        }
+        return size;
+    }
+
+    @Override
+    public int fixedSize() {
+        return variableComponents.length == 0 ? fixedComponentsSize : -1;
+    }
+
+    /**
+     * Skips over a record by skipping each of its components, so nothing is
+     * decoded or allocated.
+     * @param in The input to skip the record in.
+     * @throws IOException If an error occurs.
+     */
+    @Override
+    public void skip(RecordInput in) throws IOException {
+        if (variableComponents.length == 0) {
+            in.skipBytes(fixedComponentsSize);
+            return;
+        }
+        long outer = in.presence;
+        try {
+            readPresence(in);
+            for (ValueCodec codec : componentCodecs) codec.skip(in);
+        } finally {
+            in.presence = outer;
+        }
+    }
+
+    /**
+     * Gets the value of one of a record's components, boxing it if it's a
+     * primitive.
+     * @param record The record.
+     * @param index The component's index.
+     * @return The component's value.
+     */
+    Object component(Object record, int index) {
+        if (generated != null) return generated.component(info.type().cast(record), index);
+        try {
+            return (Object) accessors[index].invokeExact(record);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Constructs a record from its component values.
+     * @param values The values of each component, in order, with primitives
+     *               boxed.
+     * @return The record.
+     */
+    Object construct(Object[] values) {
+        if (generated != null) return generated.construct(values);
+        try {
+            return (Object) spreadConstructor.invokeExact(values);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Finds the index of a component by its name.
+     * @param name The component's name.
+     * @return The component's index.
+     * @throws IllegalArgumentException If the record has no such component.
+     */
+    int componentIndex(String name) {
+        String[] names = info.componentNames();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        throw new IllegalArgumentException(info.type() + " has no component named " + name);
+    }
+
+    /**
+     * Chains a series of component readers into the canonical constructor, so
+     * that the resulting handle reads each component in declaration order,
+     * and then constructs the record.
+     * @param constructor The canonical constructor handle.
+     * @param componentReaders The component readers, each of type
+     *                         <code>(RecordInput)C</code>.
+     * @return A handle of type <code>(RecordInput)Object</code>.
+     */
+    private static MethodHandle buildReader(MethodHandle constructor, MethodHandle[] componentReaders) {
+        int n = componentReaders.length;
+        MethodHandle handle = MethodHandles.dropArguments(constructor, n, RecordInput.class);
+        // Fold from the last component to the first, so that the outermost
+        // fold (which is invoked first) reads the first component.
+        for (int i = n - 1; i >= 0; i--) {
+            handle = MethodHandles.foldArguments(handle, i, componentReaders[i]);
+        }
+        return handle.asType(MethodType.methodType(Object.class, RecordInput.class));
+    }
+
+    /**
+     * Chains a series of component writers so they're invoked in order.
+     * @param componentWriters The component writers, each of type
+     *                         <code>(Object, RecordOutput)void</code>.
+     * @return A handle of type <code>(Object, RecordOutput)void</code>.
+     */
+    private static MethodHandle buildWriter(MethodHandle[] componentWriters) {
+        MethodType type = MethodType.methodType(void.class, Object.class, RecordOutput.class);
+        if (componentWriters.length == 0) return MethodHandles.empty(type);
+        MethodHandle handle = componentWriters[componentWriters.length - 1];
+        for (int i = componentWriters.length - 2; i >= 0; i--) {
+            handle = MethodHandles.foldArguments(handle, componentWriters[i]);
+        }
+        return handle;
+    }
+
+    /**
+     * Gets a handle that reads a single component value of the given type.
+     * @param type The component type.
+     * @param codec The codec for the component, used for non-primitive types.
+     * @param format The wire format to use.
+     * @return A handle of type <code>(RecordInput)type</code>.
+     * @throws ReflectiveOperationException If a handle can't be found.
+     */
+    private static MethodHandle componentReader(Class<?> type, ValueCodec codec, WireFormat format) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        if (type.isPrimitive()) {
+            String name = "read" + primitiveMethodSuffix(type, format);
+            return lookup.findVirtual(RecordInput.class, name, MethodType.methodType(type));
+        }
+        MethodHandle handle = lookup.findVirtual(
+                ValueCodec.class,
+                "read",
+                MethodType.methodType(Object.class, RecordInput.class)
+        );
+        return handle.bindTo(codec).asType(MethodType.methodType(type, RecordInput.class));
+    }
+
+    /**
+     * Gets a handle that writes a single component value of the given type.
+     * @param type The component type.
+     * @param codec The codec for the component, used for non-primitive types.
+     * @param format The wire format to use.
+     * @return A handle of type <code>(type, RecordOutput)void</code>.
+     * @throws ReflectiveOperationException If a handle can't be found.
+     */
+    private static MethodHandle componentWriter(Class<?> type, ValueCodec codec, WireFormat format) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle handle;
+        if (type.isPrimitive()) {
+            String name = "write" + primitiveMethodSuffix(type, format);
+            // DataOutput widens byte, short and char to int.
+            Class<?> paramType = (type == byte.class || type == short.class || type == char.class) ? int.class : type;
+            handle = lookup.findVirtual(RecordOutput.class, name, MethodType.methodType(void.class, paramType));
+            handle = MethodHandles.permuteArguments(
+                    handle,
+                    MethodType.methodType(void.class, paramType, RecordOutput.class),
+                    1, 0
+            );
+            return handle.asType(MethodType.methodType(void.class, type, RecordOutput.class));
+        }
+        handle = lookup.findVirtual(
+                ValueCodec.class,
+                "write",
+                MethodType.methodType(void.class, Object.class, RecordOutput.class)
+        );
+        return handle.bindTo(codec).asType(MethodType.methodType(void.class, type, RecordOutput.class));
+    }
+
+    /**
+     * Gets the suffix of the {@link RecordInput} and {@link RecordOutput}
+     * methods that read and write a primitive type, like <code>Int</code>
+     * for <code>readInt</code>. In the compact format, ints and longs use the
+     * zigzag varint methods instead.
+     * @param type The primitive type.
+     * @param format The wire format to use.
+     * @return The method name suffix.
+     */
+    private static String primitiveMethodSuffix(Class<?> type, WireFormat format) {
+        String suffix = Character.toUpperCase(type.getName().charAt(0)) + type.getName().substring(1);
+        if (format == WireFormat.COMPACT && (type == int.class || type == long.class)) return "ZigZag" + suffix;
+        return suffix;
+    }
+
+    /**
+     * Gets a lookup with full access to the given record type, if its package
+     * is open to this module, or falls back to this module's own access.
+     * @param type The record type.
+     * @return The lookup to use.
+     */
+    static MethodHandles.Lookup lookupFor(Class<?> type) {
+        try {
+            RecordCodec.class.getModule().addReads(type.getModule());
+            return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        } catch (IllegalAccessException e) {
+            return MethodHandles.lookup();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.andrewlalis.record_net;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link RecordHandler} that passes each message on to a handler that was
+ * registered for its type.
+ * <pre>{@code
+ * RecordDispatcher dispatcher = new RecordDispatcher()
+ *     .on(Ping.class, (ping, channel) -> new Pong(ping.time()))
+ *     .on(Chat.class, (chat, channel) -> { broadcast(chat); return null; });
+ * }</pre>
+ */
+public final class RecordDispatcher implements RecordHandler {
+    /**
+     * Handles messages of a single type.
+     * @param <T> The message type.
+     */
+    @FunctionalInterface
+    public interface TypedHandler<T> {
+        /**
+         * Handles a message.
+         * @see RecordHandler#handle(Object, RecordChannel)
+         * @param msg The message that was received.
+         * @param channel The channel that it was received on.
+         * @return The response to send, or null.
+         * @throws Exception If the message can't be handled.
+         */
+        Object handle(T msg, RecordChannel channel) throws Exception;
+    }
+
+    private final Map<Class<?>, TypedHandler<Object>> handlers = new ConcurrentHashMap<>();
+    private volatile RecordHandler fallback;
+    private volatile BiConsumer<Object, Throwable> errorHandler;
+
+    /**
+     * Creates a dispatcher without any handlers, which are then registered
+     * with {@link #on(Class, TypedHandler)} and {@link #otherwise(RecordHandler)}.
+     */
+    public RecordDispatcher() {}
+
+    /**
+     * Registers the handler for a message type, replacing any handler that
+     * was registered for it before.
+     * @param type The message type.
+     * @param handler The handler.
+     * @return This dispatcher.
+     * @param <T> The message type.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> RecordDispatcher on(Class<T> type, TypedHandler<? super T> handler) {
+        handlers.put(type, (TypedHandler<Object>) handler);
+        return this;
+    }
+
+    /**
+     * Sets the handler for messages of any type without a handler of its
+     * own. If there's none, those messages cause an
+     * {@link UnsupportedMessageTypeException}.
+     * @param handler The handler, or null.
+     * @return This dispatcher.
+     */
+    public RecordDispatcher otherwise(RecordHandler handler) {
+        this.fallback = handler;
+        return this;
+    }
+
+    /**
+     * Sets what's done when a handler fails for a message that was sent
+     * without expecting a response. By default, nothing is done.
+     * @see RecordHandler#handleError(Object, Throwable, RecordChannel)
+     * @param errorHandler The error handler, which is given the message and
+     *                     what the handler threw, or null.
+     * @return This dispatcher.
+     */
+    public RecordDispatcher onError(BiConsumer<Object, Throwable> errorHandler) {
+        this.errorHandler = errorHandler;
+        return this;
+    }
+
+    @Override
+    public Object handle(Object msg, RecordChannel channel) throws Exception {
+        TypedHandler<Object> handler = handlers.get(msg.getClass());
+        if (handler != null) return handler.handle(msg, channel);
+        RecordHandler fallback = this.fallback;
+        if (fallback != null) return fallback.handle(msg, channel);
+        throw new UnsupportedMessageTypeException(msg.getClass());
+    }
+
+    @Override
+    public void handleError(Object msg, Throwable error, RecordChannel channel) {
+        BiConsumer<Object, Throwable> errorHandler = this.errorHandler;
+        if (errorHandler != null) errorHandler.accept(msg, error);
+    }
+}
@@ -0,0 +1,42 @@
+package com.andrewlalis.record_net;
+
+/**
+ * Handles the messages that a {@link RecordChannel} receives. A handler is
+ * usually a switch that pattern-matches on the registered record types:
+ * <pre>{@code
+ * RecordHandler handler = (msg, channel) -> switch (msg) {
+ *     case Ping ping -> new Pong(ping.time());
+ *     case Chat chat -> { broadcast(chat); yield null; }
+ *     default -> throw new UnsupportedMessageTypeException(msg.getClass());
+ * };
+ * }</pre>
+ * Or, a {@link RecordDispatcher} can be used to register a handler for each
+ * type.
+ */
+@FunctionalInterface
+public interface RecordHandler {
+    /**
+     * Handles a message.
+     * @param msg The message that was received.
+     * @param channel The channel that it was received on.
+     * @return The response to send, if the message was a request, or null to
+     * send an empty response. The result is ignored for messages that were
+     * sent without expecting a response.
+     * @throws Exception If the message can't be handled. For requests, the
+     * exception's {@link Object#toString()}, which is its class name and
+     * message, is sent back to the requester, cut short after
+     * {@value RecordChannel#MAX_ERROR_MESSAGE_LENGTH} characters. Throw
+     * exceptions whose messages are safe for the other end to see.
+     */
+    Object handle(Object msg, RecordChannel channel) throws Exception;
+
+    /**
+     * Called when {@link #handle(Object, RecordChannel)} fails for a message
+     * that was sent without expecting a response, since there's no one to
+     * send the error to. This does nothing by default.
+     * @param msg The message that couldn't be handled.
+     * @param error The exception or error that the handler threw.
+     * @param channel The channel that the message was received on.
+     */
+    default void handleError(Object msg, Throwable error, RecordChannel channel) {}
+}
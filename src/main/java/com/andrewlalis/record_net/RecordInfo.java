@@ -1,34 +1,77 @@
 package com.andrewlalis.record_net;
 
-import java.lang.reflect.Constructor;
 import java.lang.reflect.RecordComponent;
+import java.util.function.Function;
 
 /**
  * A collection of the information that's needed about a record in order to
  * serialize and deserialize it at runtime.
- * @param components The record's ordered array of components.
- * @param constructor The canonical constructor for the record.
+ * @param type The record class.
+ * @param componentNames The name of each of the record's components, in
+ *                       order.
+ * @param componentTypes The type of each of the record's components, in
+ *                       order.
+ * @param componentCodecs The codec for each component, in the same order as
+ *                        the components.
+ * @param format The wire format that the component codecs use.
+ * @param nulls The way that null components are written.
+ * @param references The way that values which repeat within a message are
+ *                   written.
  * @param <T> The type of the record.
  */
-record RecordInfo<T>(RecordComponent[] components, Constructor<T> constructor) {
+record RecordInfo<T>(Class<T> type, String[] componentNames, Class<?>[] componentTypes, ValueCodec[] componentCodecs, WireFormat format, NullEncoding nulls, ReferenceEncoding references) {
     /**
-     * Prepares an instance of RecordInfo for a given record class.
+     * Prepares an instance of RecordInfo for a given record class, resolving
+     * the codec for each of its components.
      * @param type The record class.
+     * @param recordCodecs A function that gets the codec for a registered
+     *                     record type, used for nested records.
+     * @param format The wire format to use.
+     * @param strings The string encoding to use.
+     * @param nulls The null encoding to use.
+     * @param references The reference encoding to use.
      * @return The RecordInfo object.
      * @param <T> The type of the record.
      */
-    public static <T> RecordInfo<T> forType(Class<T> type) {
+    public static <T> RecordInfo<T> forType(Class<T> type, Function<Class<?>, RecordCodec<?>> recordCodecs, WireFormat format, StringEncoding strings, NullEncoding nulls, ReferenceEncoding references) {
         if (!type.isRecord()) throw new IllegalArgumentException(type + " is not a record.");
         RecordComponent[] c = type.getRecordComponents();
-        Class<?>[] paramTypes = new Class<?>[c.length];
+        String[] names = new String[c.length];
+        Class<?>[] types = new Class<?>[c.length];
         for (int i = 0; i < c.length; i++) {
-            paramTypes[i] = c[i].getType();
+            names[i] = c[i].getName();
+            types[i] = c[i].getType();
         }
-        try {
-            Constructor<T> ctor = type.getDeclaredConstructor(paramTypes);
-            return new RecordInfo<>(c, ctor);
-        } catch (ReflectiveOperationException e) {
-            throw new RuntimeException(e);
+        return new RecordInfo<>(type, names, types, codecsFor(types, recordCodecs, format, strings, nulls, references), format, nulls, references);
+    }
+
+    /**
+     * Prepares an instance of RecordInfo for a record class from its
+     * generated codec, without using reflection.
+     * @param codec The generated codec.
+     * @param recordCodecs A function that gets the codec for a registered
+     *                     record type, used for nested records.
+     * @param format The wire format to use.
+     * @param strings The string encoding to use.
+     * @param nulls The null encoding to use.
+     * @param references The reference encoding to use.
+     * @return The RecordInfo object.
+     * @param <T> The type of the record.
+     */
+    public static <T> RecordInfo<T> forGenerated(GeneratedCodec<T> codec, Function<Class<?>, RecordCodec<?>> recordCodecs, WireFormat format, StringEncoding strings, NullEncoding nulls, ReferenceEncoding references) {
+        String[] names = codec.componentNames().clone();
+        Class<?>[] types = codec.componentTypes().clone();
+        if (names.length != types.length) {
+            throw new IllegalArgumentException("Generated codec for " + codec.type() + " has mismatched component names and types.");
+        }
+        return new RecordInfo<>(codec.type(), names, types, codecsFor(types, recordCodecs, format, strings, nulls, references), format, nulls, references);
+    }
+
+    private static ValueCodec[] codecsFor(Class<?>[] types, Function<Class<?>, RecordCodec<?>> recordCodecs, WireFormat format, StringEncoding strings, NullEncoding nulls, ReferenceEncoding references) {
+        ValueCodec[] codecs = new ValueCodec[types.length];
+        for (int i = 0; i < types.length; i++) {
+            codecs[i] = ValueCodecs.forType(types[i], recordCodecs, format, strings, nulls, references);
         }
+        return codecs;
     }
 }
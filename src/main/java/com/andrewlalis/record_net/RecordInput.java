@@ -0,0 +1,570 @@
+package com.andrewlalis.record_net;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The {@link DataInput} that all deserialization is done through. Values are
+ * always read directly from a {@link ByteBuffer}, and only when that buffer
+ * doesn't hold enough bytes is a {@link Source} asked for more.
+ * <p>
+ *     Sources never read more bytes than the value being read needs, so a
+ *     stream or channel is left positioned exactly after the last message.
+ * </p>
+ */
+final class RecordInput implements DataInput {
+    /**
+     * A source for the bytes that are read from a {@link RecordInput}.
+     */
+    interface Source {
+        /**
+         * Makes more bytes available in the input's buffer.
+         * @param buffer The input's buffer, whose remaining bytes have not yet
+         *               been read.
+         * @param n The number of bytes that must be available.
+         * @return The buffer to continue reading from, which must have at
+         * least <code>n</code> bytes remaining.
+         * @throws IOException If an error occurs, or {@link EOFException} if
+         * there are no more bytes.
+         */
+        ByteBuffer fill(ByteBuffer buffer, int n) throws IOException;
+
+        /**
+         * Reads bytes directly into an array, once the input's buffer is empty.
+         * @param b The array to read into.
+         * @param off The offset to start at.
+         * @param len The exact number of bytes to read.
+         * @throws IOException If an error occurs, or {@link EOFException} if
+         * there are not enough bytes.
+         */
+        void readFully(byte[] b, int off, int len) throws IOException;
+    }
+
+    static final int SCRATCH_BUFFER_SIZE = 16;
+
+    /**
+     * The source for inputs that read directly from a buffer, which has no
+     * more bytes to give.
+     */
+    static final Source BUFFER_SOURCE = new Source() {
+        @Override
+        public ByteBuffer fill(ByteBuffer buffer, int n) throws IOException {
+            throw new EOFException();
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            throw new EOFException();
+        }
+    };
+
+    /**
+     * A source that reads from a stream, which may be changed between messages.
+     */
+    static final class StreamSource implements Source {
+        InputStream in;
+
+        StreamSource(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public ByteBuffer fill(ByteBuffer buffer, int n) throws IOException {
+            buffer.compact();
+            int needed = n - buffer.position();
+            readFully(buffer.array(), buffer.arrayOffset() + buffer.position(), needed);
+            buffer.position(buffer.position() + needed);
+            return buffer.flip();
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            if (in.readNBytes(b, off, len) < len) throw new EOFException();
+        }
+    }
+
+    /**
+     * A source that reads from a blocking channel, which may be changed
+     * between messages.
+     */
+    static final class ChannelSource implements Source {
+        ReadableByteChannel channel;
+
+        ChannelSource(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public ByteBuffer fill(ByteBuffer buffer, int n) throws IOException {
+            buffer.compact();
+            buffer.limit(n);
+            readFully(buffer);
+            return buffer.flip();
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            readFully(ByteBuffer.wrap(b, off, len));
+        }
+
+        private void readFully(ByteBuffer dst) throws IOException {
+            while (dst.hasRemaining()) {
+                if (channel.read(dst) < 0) throw new EOFException();
+            }
+        }
+    }
+
+    private ByteBuffer buffer;
+    private Source source;
+    /**
+     * The number of bytes that were read before the buffer was last filled,
+     * and the buffer position that bytes have been counted from since then.
+     */
+    private long filledBytes;
+    private int countedFrom;
+    /**
+     * The reader that generated codecs use, which is only created once one
+     * is needed.
+     */
+    private RecordReader recordReader;
+    /**
+     * The presence bitmap of the record that's being read, when the
+     * serializer uses {@link NullEncoding#PRESENCE_BITMAP}. Each record codec
+     * sets this before reading its components, and restores the outer
+     * record's bitmap after.
+     */
+    long presence;
+    /**
+     * The values that have been read so far in the current message by a
+     * {@link ValueCodecs.ReferenceCodec}, in the order that they were first
+     * written, or null if none have been read yet.
+     */
+    List<Object> references;
+    /**
+     * The cache that strings and UUIDs are looked up in before they're
+     * decoded, or null if there is none. Unlike everything else, this is kept
+     * when the input is reset, so that values can be shared across messages.
+     */
+    ValueCache cache;
+
+    RecordInput(ByteBuffer buffer, Source source) {
+        reset(buffer, source);
+    }
+
+    /**
+     * Gets the reader that generated codecs read records from this input
+     * with, creating it the first time.
+     * @return The reader.
+     */
+    RecordReader recordReader() {
+        RecordReader r = recordReader;
+        if (r == null) recordReader = r = new RecordReader(this);
+        return r;
+    }
+
+    /**
+     * Gets the reference table of the message that's being read, creating it
+     * the first time.
+     * @return The reference table.
+     */
+    List<Object> references() {
+        List<Object> r = references;
+        if (r == null) references = r = new ArrayList<>();
+        return r;
+    }
+
+    /**
+     * Clears the reference table, at the start of a new message.
+     */
+    void clearReferences() {
+        if (references != null) references.clear();
+    }
+
+    /**
+     * Gets an input that reads directly from the given buffer, starting at its
+     * position. If the buffer doesn't have enough bytes remaining, an
+     * {@link EOFException} is thrown.
+     * @param buffer The buffer to read from. Its byte order should be set by
+     *               the caller.
+     * @return The input.
+     */
+    static RecordInput of(ByteBuffer buffer) {
+        return new RecordInput(buffer, BUFFER_SOURCE);
+    }
+
+    /**
+     * Gets an input that reads from the given stream.
+     * @param in The stream to read from.
+     * @return The input.
+     */
+    static RecordInput of(InputStream in) {
+        return new RecordInput(ByteBuffer.allocate(SCRATCH_BUFFER_SIZE).limit(0), new StreamSource(in));
+    }
+
+    /**
+     * Gets an input that reads from the given channel, which must be in
+     * blocking mode.
+     * @param channel The channel to read from.
+     * @return The input.
+     */
+    static RecordInput of(ReadableByteChannel channel) {
+        checkBlocking(channel);
+        return new RecordInput(ByteBuffer.allocate(SCRATCH_BUFFER_SIZE).limit(0), new ChannelSource(channel));
+    }
+
+    /**
+     * Checks that a channel is in blocking mode, since inputs can't wait for
+     * more bytes from a non-blocking one.
+     * @param channel The channel to check.
+     * @throws IllegalBlockingModeException If the channel is non-blocking.
+     */
+    static void checkBlocking(ReadableByteChannel channel) {
+        if (channel instanceof SelectableChannel sc && !sc.isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+    }
+
+    /**
+     * Points this input at a new buffer and source, so that it can be reused
+     * for another message without allocating a new input.
+     * @param buffer The buffer to read from.
+     * @param source The source to use when the buffer runs out.
+     * @return This input.
+     */
+    RecordInput reset(ByteBuffer buffer, Source source) {
+        this.buffer = buffer;
+        this.source = source;
+        this.filledBytes = 0;
+        this.countedFrom = buffer == null ? 0 : buffer.position();
+        return this;
+    }
+
+    /**
+     * Gets the number of bytes that have been read from this input since it
+     * was created or last reset.
+     * @return The number of bytes.
+     */
+    long bytesRead() {
+        return filledBytes + buffer.position() - countedFrom;
+    }
+
+    /**
+     * Sets the byte order that multibyte values are read in.
+     * @param order The byte order to use.
+     */
+    void order(ByteOrder order) {
+        buffer.order(order);
+    }
+
+    /**
+     * Gets the byte order that multibyte values are read in.
+     * @return The byte order.
+     */
+    ByteOrder order() {
+        return buffer.order();
+    }
+
+    /**
+     * Checks that this input could still hold a value with the given number
+     * of elements, before anything is allocated for it. Only an input that
+     * reads directly from a buffer, such as a whole frame, knows how many
+     * bytes it has left, so inputs with any other source always pass.
+     * @param count The number of elements, which is read from the input and
+     *              so can't be trusted.
+     * @param minSize The fewest bytes that each element takes.
+     * @throws EOFException If the buffer can't hold that many elements.
+     */
+    void checkRemaining(int count, int minSize) throws EOFException {
+        if (source == BUFFER_SOURCE && (long) count * minSize > buffer.remaining()) {
+            throw new EOFException(count + " elements can't fit in the " + buffer.remaining() + " bytes remaining.");
+        }
+    }
+
+    private void require(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            ByteOrder order = buffer.order();
+            filledBytes += buffer.position() - countedFrom;
+            buffer = source.fill(buffer, n);
+            countedFrom = buffer.position();
+            buffer.order(order);
+        }
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        if (n < len) {
+            source.readFully(b, off + n, len - n);
+            filledBytes += len - n;
+        }
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        if (n <= 0) return 0;
+        int skipped = Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + skipped);
+        while (skipped < n) {
+            int chunk = Math.min(n - skipped, SCRATCH_BUFFER_SIZE);
+            require(chunk);
+            buffer.position(buffer.position() + chunk);
+            skipped += chunk;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        require(1);
+        return buffer.get() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        require(1);
+        return buffer.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        require(1);
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        require(2);
+        return buffer.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        require(2);
+        return buffer.getShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        require(2);
+        return buffer.getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        require(4);
+        return buffer.getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        require(8);
+        return buffer.getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        require(4);
+        return buffer.getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        require(8);
+        return buffer.getDouble();
+    }
+
+    /*
+    Variable-length integers, as used by the compact wire format. When the
+    buffer holds enough bytes for the longest possible varint, it's decoded
+    straight from the buffer, and otherwise one byte at a time.
+     */
+
+    int readVarInt() throws IOException {
+        int value = 0;
+        if (buffer.remaining() >= 5) {
+            for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        } else {
+            for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint.");
+    }
+
+    long readVarLong() throws IOException {
+        long value = 0;
+        if (buffer.remaining() >= 10) {
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        } else {
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint.");
+    }
+
+    int readZigZagInt() throws IOException {
+        return IOUtil.zigZagDecode(readVarInt());
+    }
+
+    long readZigZagLong() throws IOException {
+        return IOUtil.zigZagDecode(readVarLong());
+    }
+
+    /*
+    Bulk reads for primitive arrays. Each copies as many whole elements as the
+    buffer already holds into the start of the array, and returns how many it
+    copied. The caller must read any remaining elements some other way.
+     */
+
+    int readShorts(short[] a) {
+        int n = Math.min(a.length, buffer.remaining() / Short.BYTES);
+        buffer.asShortBuffer().get(a, 0, n);
+        buffer.position(buffer.position() + n * Short.BYTES);
+        return n;
+    }
+
+    int readChars(char[] a) {
+        int n = Math.min(a.length, buffer.remaining() / Character.BYTES);
+        buffer.asCharBuffer().get(a, 0, n);
+        buffer.position(buffer.position() + n * Character.BYTES);
+        return n;
+    }
+
+    int readInts(int[] a) {
+        int n = Math.min(a.length, buffer.remaining() / Integer.BYTES);
+        buffer.asIntBuffer().get(a, 0, n);
+        buffer.position(buffer.position() + n * Integer.BYTES);
+        return n;
+    }
+
+    int readLongs(long[] a) {
+        int n = Math.min(a.length, buffer.remaining() / Long.BYTES);
+        buffer.asLongBuffer().get(a, 0, n);
+        buffer.position(buffer.position() + n * Long.BYTES);
+        return n;
+    }
+
+    int readFloats(float[] a) {
+        int n = Math.min(a.length, buffer.remaining() / Float.BYTES);
+        buffer.asFloatBuffer().get(a, 0, n);
+        buffer.position(buffer.position() + n * Float.BYTES);
+        return n;
+    }
+
+    int readDoubles(double[] a) {
+        int n = Math.min(a.length, buffer.remaining() / Double.BYTES);
+        buffer.asDoubleBuffer().get(a, 0, n);
+        buffer.position(buffer.position() + n * Double.BYTES);
+        return n;
+    }
+
+    /**
+     * Reads a string of standard UTF-8 bytes. If the buffer holds the whole
+     * string in an array, it's decoded straight from there.
+     * @param length The number of bytes.
+     * @return The string that was read.
+     * @throws IOException If an error occurs.
+     */
+    String readUtf8(int length) throws IOException {
+        if (length < 0) throw new StreamCorruptedException("Invalid string length " + length);
+        checkRemaining(length, 1);
+        if (cache != null && length <= ValueCache.MAX_STRING_LENGTH) return readCachedString(length);
+        if (buffer.hasArray() && buffer.remaining() >= length) {
+            String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return s;
+        }
+        byte[] bytes = new byte[length];
+        readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Not supported, since lines are not part of the record-net format.
+     * Strings are written with a length, and read with {@link #readUTF()}.
+     * @return Nothing.
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public String readLine() {
+        throw new UnsupportedOperationException("Lines are not part of the record-net format; strings are read with readUTF().");
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        if (cache != null) {
+            // Peek at the length, so that long strings can still be read the usual way.
+            require(2);
+            int length = buffer.getShort(buffer.position()) & 0xFFFF;
+            if (length <= ValueCache.MAX_STRING_LENGTH) {
+                buffer.position(buffer.position() + 2);
+                return readCachedString(length);
+            }
+        }
+        return DataInputStream.readUTF(this);
+    }
+
+    /**
+     * Reads the encoded bytes of a string, and gets the string for them from
+     * the cache. If the buffer doesn't hold all of them, they're first
+     * copied into the cache's scratch buffer.
+     * @param length The number of bytes, which must be at most
+     *               {@link ValueCache#MAX_STRING_LENGTH}.
+     * @return The string that was read.
+     * @throws IOException If an error occurs.
+     */
+    private String readCachedString(int length) throws IOException {
+        if (buffer.remaining() >= length) {
+            String s = cache.string(buffer, buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            return s;
+        }
+        ByteBuffer scratch = cache.scratchBuffer();
+        readFully(scratch.array(), 0, length);
+        return cache.string(scratch, 0, length);
+    }
+
+    /**
+     * Reads a UUID as its most and then least significant bits, taking it
+     * from the cache if there is one.
+     * @return The UUID that was read.
+     * @throws IOException If an error occurs.
+     */
+    UUID readUUID() throws IOException {
+        long msb = readLong();
+        long lsb = readLong();
+        return cache != null ? cache.uuid(msb, lsb) : new UUID(msb, lsb);
+    }
+}
@@ -0,0 +1,795 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only log of messages in a directory, for journals that need to
+ * be replayed quickly, or read from a given message or time onwards.
+ * <p>
+ *     Messages are appended to the end of the newest segment file, and each
+ *     is numbered with a sequence number, counting from zero. Once a segment
+ *     reaches the segment size, it's synced to disk and sealed, and a new
+ *     segment is started. Segments are named after the sequence number of
+ *     their first message.
+ * </p>
+ * <p>
+ *     Each entry has a 16-byte header with the message's length, a CRC32C
+ *     checksum, and the timestamp that it was appended with, followed by the
+ *     message, as written by {@link RecordMappedSerializer#writeMessage(Object, ByteBuffer)}.
+ *     Timestamps never decrease from one message to the next. Every
+ *     <code>indexInterval</code>th message of a segment is added to a sparse
+ *     index, which is written next to the segment when it's sealed, so that a
+ *     {@link Cursor} can be opened at any message number or timestamp by
+ *     reading only a few entry headers.
+ * </p>
+ * <p>
+ *     When a log is opened, the newest segment's entries are checked against
+ *     their checksums, and the segment is truncated after the last valid one,
+ *     so that an entry that was only partly written before a crash is
+ *     dropped. Segments are sealed only once they're synced, so older ones
+ *     don't need to be checked.
+ * </p>
+ * <p>
+ *     While a segment is the newest, its file is extended to the segment
+ *     size, so that each cursor can map it just once, and see new entries as
+ *     they're flushed. It's truncated to the length of its entries when it's
+ *     sealed, or when the log is closed.
+ * </p>
+ * <p>
+ *     Cursors read directly from memory-mapped segments, so messages are
+ *     decoded without being copied first. Appended messages become visible to
+ *     cursors once they're flushed, which happens whenever the write buffer
+ *     fills up, and on {@link #flush()}, {@link #sync()} and {@link #close()}.
+ *     A log may be appended to and read from by many threads at once.
+ * </p>
+ * @see #builder(RecordMappedSerializer, Path)
+ */
+public final class RecordLog implements AutoCloseable {
+    private static final int ENTRY_HEADER_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final RecordMappedSerializer serializer;
+    private final Path directory;
+    private final int segmentSize;
+    private final int indexInterval;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by the lock.
+    private final List<Segment> segments = new ArrayList<>();
+    private FileChannel activeChannel;
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final CRC32C crc = new CRC32C();
+    private long nextSequence;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private boolean closed;
+
+    private RecordLog(Builder builder) throws IOException {
+        this.serializer = builder.serializer;
+        this.directory = builder.directory;
+        this.segmentSize = builder.segmentSize;
+        this.indexInterval = builder.indexInterval;
+        Files.createDirectories(directory);
+        List<Long> bases;
+        try (Stream<Path> files = Files.list(directory)) {
+            bases = files.map(f -> f.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .toList();
+        }
+        for (int i = 0; i < bases.size(); i++) {
+            boolean last = i == bases.size() - 1;
+            Segment segment = last ? recover(bases.get(i)) : loadSealed(bases.get(i), bases.get(i + 1));
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) segments.add(new Segment(0));
+        Segment active = segments.get(segments.size() - 1);
+        if (active.count == 0 && segments.size() > 1) lastTimestamp = lastTimestamp(segments.get(segments.size() - 2));
+        activeChannel = FileChannel.open(segmentFile(active.base), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        activeChannel.position(active.length);
+        preallocate();
+        nextSequence = active.base + active.count;
+    }
+
+    /**
+     * Gets a builder for a log in the given directory, which is created if it
+     * doesn't exist yet.
+     * @param serializer The serializer to write and read messages with. It
+     *                   must always use the same format, and have the same
+     *                   types registered, for the same log.
+     * @param directory The log's directory.
+     * @return The builder.
+     */
+    public static Builder builder(RecordMappedSerializer serializer, Path directory) {
+        return new Builder(serializer, directory);
+    }
+
+    /**
+     * Opens a log with the default settings.
+     * @param serializer The serializer to write and read messages with.
+     * @param directory The log's directory.
+     * @return The log.
+     * @throws IOException If the log can't be opened.
+     */
+    public static RecordLog open(RecordMappedSerializer serializer, Path directory) throws IOException {
+        return builder(serializer, directory).open();
+    }
+
+    /**
+     * Appends a message, with the current time as its timestamp, or the last
+     * message's timestamp if the clock has gone backwards since then.
+     * @param msg The message to append.
+     * @return The message's sequence number.
+     * @throws IOException If an error occurs.
+     */
+    public long append(Object msg) throws IOException {
+        lock.lock();
+        try {
+            return append(msg, Math.max(System.currentTimeMillis(), lastTimestamp));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a message with the given timestamp.
+     * @param msg The message to append.
+     * @param timestamp The message's timestamp, which may be in any unit, but
+     *                  must not be less than the last message's timestamp.
+     * @return The message's sequence number.
+     * @throws IOException If an error occurs.
+     * @throws IllegalArgumentException If the timestamp is less than the last
+     * message's timestamp.
+     */
+    public long append(Object msg, long timestamp) throws IOException {
+        // Only used to make room for the entry, which is checked again below.
+        int entrySize = Math.addExact(ENTRY_HEADER_SIZE, serializer.sizeOf(msg));
+        lock.lock();
+        try {
+            if (closed) throw new IOException("The log is closed.");
+            if (timestamp < lastTimestamp) {
+                throw new IllegalArgumentException("Timestamp " + timestamp + " is before the last timestamp " + lastTimestamp);
+            }
+            Segment active = segments.get(segments.size() - 1);
+            if (active.count > 0 && active.length + entrySize > segmentSize) active = roll();
+            if (writeBuffer.remaining() < entrySize) {
+                flushBuffer();
+                if (writeBuffer.capacity() < entrySize) {
+                    writeBuffer = ByteBuffer.allocateDirect(Integer.highestOneBit(entrySize - 1) << 1);
+                }
+            }
+            int start = writeBuffer.position();
+            writeBuffer.position(start + ENTRY_HEADER_SIZE);
+            try {
+                serializer.writeMessage(msg, writeBuffer);
+            } catch (IOException | RuntimeException e) {
+                writeBuffer.position(start);
+                throw e;
+            }
+            int end = writeBuffer.position();
+            // Record what was actually written, rather than trusting sizeOf.
+            int length = end - start - ENTRY_HEADER_SIZE;
+            writeBuffer.putInt(start, length);
+            writeBuffer.putLong(start + 8, timestamp);
+            crc.reset();
+            crc.update(writeBuffer.position(start + 8).limit(end));
+            writeBuffer.limit(writeBuffer.capacity());
+            writeBuffer.putInt(start + 4, (int) crc.getValue());
+
+            if (active.count % indexInterval == 0) active.addIndexEntry(active.count, (int) active.length, timestamp);
+            active.length += ENTRY_HEADER_SIZE + length;
+            active.count++;
+            lastTimestamp = timestamp;
+            return nextSequence++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes any buffered messages to the newest segment, so that they're
+     * visible to cursors.
+     * @throws IOException If an error occurs.
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            if (!closed) flushBuffer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes any buffered messages to the newest segment, and waits until
+     * they've been written to disk.
+     * @throws IOException If an error occurs.
+     */
+    public void sync() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            flushBuffer();
+            activeChannel.force(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of messages in the log, which is also the sequence
+     * number of the next message to be appended.
+     * @return The number of messages.
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return nextSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of segment files in the log.
+     * @return The number of segments.
+     */
+    public int segmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens a cursor at a message. Any buffered messages are flushed first,
+     * so the cursor sees every message that was appended before it.
+     * @param sequence The sequence number of the first message to read, which
+     *                 may be the log's size, to only read messages that are
+     *                 appended later.
+     * @return The cursor.
+     * @throws IOException If an error occurs.
+     * @throws IndexOutOfBoundsException If there's no such message.
+     */
+    public Cursor cursor(long sequence) throws IOException {
+        Cursor cursor;
+        lock.lock();
+        try {
+            if (sequence < 0 || sequence > nextSequence) {
+                throw new IndexOutOfBoundsException("Sequence " + sequence + " is not in [0, " + nextSequence + "]");
+            }
+            if (!closed) flushBuffer();
+            int s = segments.size() - 1;
+            while (segments.get(s).base > sequence) s--;
+            Segment segment = segments.get(s);
+            int entry = segment.indexEntryAtOrBefore((int) (sequence - segment.base));
+            cursor = new Cursor(s, segment, entry);
+        } finally {
+            lock.unlock();
+        }
+        while (cursor.sequence < sequence) cursor.skip();
+        return cursor;
+    }
+
+    /**
+     * Opens a cursor at the first message whose timestamp is at least the
+     * given timestamp. Any buffered messages are flushed first, so the cursor
+     * sees every message that was appended before it.
+     * @param timestamp The timestamp to look for.
+     * @return The cursor, which is at the end of the log if every message is
+     * older than the timestamp.
+     * @throws IOException If an error occurs.
+     */
+    public Cursor cursorAt(long timestamp) throws IOException {
+        Cursor cursor;
+        lock.lock();
+        try {
+            if (!closed) flushBuffer();
+            int s = segments.size() - 1;
+            while (s > 0 && (segments.get(s).count == 0 || segments.get(s).indexTimestamps[0] >= timestamp)) s--;
+            Segment segment = segments.get(s);
+            cursor = new Cursor(s, segment, segment.indexEntryBefore(timestamp));
+        } finally {
+            lock.unlock();
+        }
+        while (cursor.hasNext() && cursor.timestamp() < timestamp) cursor.skip();
+        return cursor;
+    }
+
+    /**
+     * Flushes any buffered messages, syncs the newest segment to disk, and
+     * closes it. Cursors that were already opened can still read every
+     * message that was appended before this.
+     * @throws IOException If an error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            try {
+                flushBuffer();
+                activeChannel.truncate(segments.get(segments.size() - 1).length);
+                activeChannel.force(false);
+            } finally {
+                closed = true;
+                activeChannel.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the write buffer to the newest segment. Must be called with the
+     * lock held.
+     * @throws IOException If an error occurs.
+     */
+    private void flushBuffer() throws IOException {
+        if (writeBuffer.position() == 0) return;
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) activeChannel.write(writeBuffer);
+        writeBuffer.clear();
+        Segment active = segments.get(segments.size() - 1);
+        active.flushedLength = active.length;
+    }
+
+    /**
+     * Seals the newest segment, by syncing it and writing its index, and
+     * starts a new one. Must be called with the lock held.
+     * @return The new segment.
+     * @throws IOException If an error occurs.
+     */
+    private Segment roll() throws IOException {
+        flushBuffer();
+        Segment sealed = segments.get(segments.size() - 1);
+        activeChannel.truncate(sealed.length);
+        activeChannel.force(false);
+        activeChannel.close();
+        writeIndex(sealed);
+        Segment next = new Segment(nextSequence);
+        activeChannel = FileChannel.open(segmentFile(next.base), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segments.add(next);
+        preallocate();
+        return next;
+    }
+
+    /**
+     * Extends the newest segment's file to the segment size, without moving
+     * the write position. The zeros after the last entry are dropped again if
+     * the segment is recovered after a crash. Must be called with the lock
+     * held.
+     * @throws IOException If an error occurs.
+     */
+    private void preallocate() throws IOException {
+        if (activeChannel.size() < segmentSize) activeChannel.write(ByteBuffer.allocate(1), segmentSize - 1);
+    }
+
+    /**
+     * Writes a sealed segment's index, to a temporary file that's then moved
+     * into place, so that an index file is never seen half-written.
+     * @param segment The segment.
+     * @throws IOException If an error occurs.
+     */
+    private void writeIndex(Segment segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(segment.indexCount * INDEX_ENTRY_SIZE);
+        for (int i = 0; i < segment.indexCount; i++) {
+            buffer.putInt(segment.indexCounts[i]).putInt(segment.indexPositions[i]).putLong(segment.indexTimestamps[i]);
+        }
+        Path file = indexFile(segment.base);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(false);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Loads a sealed segment from its index, or by scanning its entry headers
+     * if it has no index.
+     * @param base The segment's base sequence number.
+     * @param nextBase The base sequence number of the segment after it.
+     * @return The segment.
+     * @throws IOException If an error occurs.
+     */
+    private Segment loadSealed(long base, long nextBase) throws IOException {
+        Path file = indexFile(base);
+        if (!Files.exists(file)) {
+            Segment segment = scan(base, false);
+            if (segment.base + segment.count != nextBase) {
+                throw new IOException("Segment " + base + " has " + segment.count + " messages, but the next segment starts at " + nextBase);
+            }
+            writeIndex(segment);
+            return segment;
+        }
+        Segment segment = new Segment(base);
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (index.remaining() >= INDEX_ENTRY_SIZE) {
+            segment.addIndexEntry(index.getInt(), index.getInt(), index.getLong());
+        }
+        segment.count = Math.toIntExact(nextBase - base);
+        segment.length = Files.size(segmentFile(base));
+        segment.flushedLength = segment.length;
+        return segment;
+    }
+
+    /**
+     * Recovers the newest segment, by checking every entry's checksum, and
+     * truncating the segment after the last valid entry.
+     * @param base The segment's base sequence number.
+     * @return The segment.
+     * @throws IOException If an error occurs.
+     */
+    private Segment recover(long base) throws IOException {
+        Segment segment = scan(base, true);
+        try (FileChannel channel = FileChannel.open(segmentFile(base), StandardOpenOption.WRITE)) {
+            if (channel.size() > segment.length) {
+                channel.truncate(segment.length);
+                channel.force(false);
+            }
+        }
+        Files.deleteIfExists(indexFile(base));
+        if (segment.count > 0) lastTimestamp = segment.lastTimestamp;
+        return segment;
+    }
+
+    /**
+     * Reads every entry header in a segment to rebuild its index.
+     * @param base The segment's base sequence number.
+     * @param verify Whether to check each entry's checksum, and stop at the
+     *               first invalid or incomplete entry.
+     * @return The segment, whose length is the end of the last valid entry.
+     * @throws IOException If an error occurs, or if an entry isn't valid and
+     * entries aren't being verified.
+     */
+    private Segment scan(long base, boolean verify) throws IOException {
+        Segment segment = new Segment(base);
+        try (FileChannel channel = FileChannel.open(segmentFile(base), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Segment " + base + " is too large.");
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int position = 0;
+            CRC32C checksum = new CRC32C();
+            while (data.limit() - position >= ENTRY_HEADER_SIZE) {
+                int length = data.getInt(position);
+                long timestamp = data.getLong(position + 8);
+                boolean valid = length > 0 && data.limit() - position - ENTRY_HEADER_SIZE >= length;
+                if (valid && verify) {
+                    checksum.reset();
+                    checksum.update(data.slice(position + 8, Long.BYTES + length));
+                    valid = (int) checksum.getValue() == data.getInt(position + 4)
+                            && (segment.count == 0 || timestamp >= segment.lastTimestamp);
+                }
+                if (!valid) {
+                    if (verify) break;
+                    throw new IOException("Invalid entry at " + position + " in segment " + base);
+                }
+                if (segment.count % indexInterval == 0) segment.addIndexEntry(segment.count, position, timestamp);
+                segment.count++;
+                segment.lastTimestamp = timestamp;
+                position += ENTRY_HEADER_SIZE + length;
+            }
+            if (!verify && position != size) throw new IOException("Segment " + base + " ends with an incomplete entry.");
+            segment.length = position;
+            segment.flushedLength = position;
+        }
+        return segment;
+    }
+
+    /**
+     * Finds the timestamp of a sealed segment's last message, by reading the
+     * entry headers after its last index entry.
+     * @param segment The segment, which must have at least one message.
+     * @return The last message's timestamp.
+     * @throws IOException If an error occurs.
+     */
+    private long lastTimestamp(Segment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile(segment.base), StandardOpenOption.READ)) {
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.length);
+            int position = segment.indexPositions[segment.indexCount - 1];
+            long timestamp = data.getLong(position + 8);
+            while (position < data.limit()) {
+                timestamp = data.getLong(position + 8);
+                position += ENTRY_HEADER_SIZE + data.getInt(position);
+            }
+            return timestamp;
+        }
+    }
+
+    /**
+     * Gets the segment after the given one, if there is one.
+     * @param index The index of the segment.
+     * @return The next segment, or null.
+     */
+    private Segment segmentAfter(int index) {
+        lock.lock();
+        try {
+            return index + 1 < segments.size() ? segments.get(index + 1) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Path segmentFile(long base) {
+        return directory.resolve(String.format("%020d", base) + SEGMENT_SUFFIX);
+    }
+
+    private Path indexFile(long base) {
+        return directory.resolve(String.format("%020d", base) + INDEX_SUFFIX);
+    }
+
+    /**
+     * A segment file, and its sparse index.
+     */
+    private static final class Segment {
+        final long base;
+        int count;
+        long length;
+        /**
+         * The length of the segment that's been written to its file, and can
+         * be read by cursors.
+         */
+        volatile long flushedLength;
+        long lastTimestamp;
+
+        // For each index entry, the number of messages before it in the
+        // segment, its position, and its timestamp.
+        int[] indexCounts = new int[16];
+        int[] indexPositions = new int[16];
+        long[] indexTimestamps = new long[16];
+        int indexCount;
+
+        Segment(long base) {
+            this.base = base;
+        }
+
+        void addIndexEntry(int count, int position, long timestamp) {
+            if (indexCount == indexCounts.length) {
+                indexCounts = Arrays.copyOf(indexCounts, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+                indexTimestamps = Arrays.copyOf(indexTimestamps, indexCount * 2);
+            }
+            indexCounts[indexCount] = count;
+            indexPositions[indexCount] = position;
+            indexTimestamps[indexCount] = timestamp;
+            indexCount++;
+        }
+
+        /**
+         * Finds the last index entry at or before a message.
+         * @param count The number of messages before the message in the
+         *              segment.
+         * @return The index entry, or -1 if the segment has none.
+         */
+        int indexEntryAtOrBefore(int count) {
+            int i = Arrays.binarySearch(indexCounts, 0, indexCount, count);
+            return i >= 0 ? i : -i - 2;
+        }
+
+        /**
+         * Finds the last index entry whose timestamp is before the given one.
+         * @param timestamp The timestamp.
+         * @return The index entry, or -1 if there's none.
+         */
+        int indexEntryBefore(long timestamp) {
+            int low = 0;
+            int high = indexCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (indexTimestamps[mid] < timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low - 1;
+        }
+    }
+
+    /**
+     * Reads messages from a log in order, starting at a given message, and
+     * moving on to newer segments as it reaches the end of each one. A cursor
+     * that reaches the end of the log can keep reading any messages that are
+     * appended after it was opened, once they're flushed. A cursor must only
+     * be used by one thread at a time.
+     */
+    public final class Cursor {
+        private int segmentIndex;
+        private Segment segment;
+        private ByteBuffer data;
+        private int position;
+        private long sequence;
+
+        private Cursor(int segmentIndex, Segment segment, int indexEntry) throws IOException {
+            this.segmentIndex = segmentIndex;
+            this.segment = segment;
+            this.data = map(segment);
+            if (indexEntry >= 0) {
+                this.position = segment.indexPositions[indexEntry];
+                this.sequence = segment.base + segment.indexCounts[indexEntry];
+            } else {
+                this.position = 0;
+                this.sequence = segment.base;
+            }
+        }
+
+        /**
+         * Gets the sequence number of the next message that this cursor will
+         * read.
+         * @return The sequence number.
+         */
+        public long sequence() {
+            return sequence;
+        }
+
+        /**
+         * Checks if there's another message to read.
+         * @return True if there is, or false if the cursor is at the end of
+         * the log's flushed messages.
+         * @throws IOException If an error occurs.
+         */
+        public boolean hasNext() throws IOException {
+            while (data.limit() - position < ENTRY_HEADER_SIZE) {
+                if (segment.flushedLength > data.limit()) {
+                    extend();
+                    continue;
+                }
+                Segment next = segmentAfter(segmentIndex);
+                if (next == null) return false;
+                // Only move on once the writer is done with this segment. It
+                // may have flushed more of it before rolling, in which case
+                // that's read first.
+                if (segment.flushedLength > data.limit()) continue;
+                segmentIndex++;
+                segment = next;
+                data = map(segment);
+                position = 0;
+            }
+            return true;
+        }
+
+        /**
+         * Gets the timestamp of the next message, without reading it.
+         * @return The timestamp.
+         * @throws IOException If an error occurs.
+         * @throws NoSuchElementException If there's no next message.
+         */
+        public long timestamp() throws IOException {
+            if (!hasNext()) throw new NoSuchElementException();
+            return data.getLong(position + 8);
+        }
+
+        /**
+         * Reads the next message, directly from the mapped segment.
+         * @return The message.
+         * @throws IOException If an error occurs.
+         * @throws NoSuchElementException If there's no next message.
+         */
+        public Object next() throws IOException {
+            if (!hasNext()) throw new NoSuchElementException();
+            int length = data.getInt(position);
+            Object msg = serializer.readFrame(data.slice(position + ENTRY_HEADER_SIZE, length));
+            position += ENTRY_HEADER_SIZE + length;
+            sequence++;
+            return msg;
+        }
+
+        /**
+         * Skips over the next message, without reading it.
+         * @throws IOException If an error occurs.
+         * @throws NoSuchElementException If there's no next message.
+         */
+        public void skip() throws IOException {
+            if (!hasNext()) throw new NoSuchElementException();
+            position += ENTRY_HEADER_SIZE + data.getInt(position);
+            sequence++;
+        }
+
+        /**
+         * Makes the entries that have been flushed since the segment was
+         * mapped readable, by raising the limit of the mapping, or by mapping
+         * the segment again if it's outgrown its file's preallocated size.
+         * @throws IOException If an error occurs.
+         */
+        private void extend() throws IOException {
+            long length = segment.flushedLength;
+            if (length <= data.capacity()) {
+                data.limit((int) length);
+            } else {
+                data = map(segment);
+            }
+        }
+
+        /**
+         * Maps the whole of a segment's file, which for the newest segment
+         * includes the space that's been preallocated for entries that
+         * haven't been written yet. Only the flushed entries are within the
+         * returned buffer's limit.
+         * @param segment The segment.
+         * @return The mapped segment.
+         * @throws IOException If an error occurs.
+         */
+        private ByteBuffer map(Segment segment) throws IOException {
+            // The file is never shorter than what's been flushed to it.
+            long length = segment.flushedLength;
+            try (FileChannel channel = FileChannel.open(segmentFile(segment.base), StandardOpenOption.READ)) {
+                long size = Math.min(channel.size(), Integer.MAX_VALUE);
+                if (size == 0) return ByteBuffer.allocate(0);
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size).limit((int) length);
+            }
+        }
+    }
+
+    /**
+     * A builder for a {@link RecordLog}.
+     */
+    public static final class Builder {
+        private final RecordMappedSerializer serializer;
+        private final Path directory;
+        private int segmentSize = 256 * 1024 * 1024;
+        private int indexInterval = 1024;
+
+        private Builder(RecordMappedSerializer serializer, Path directory) {
+            this.serializer = Objects.requireNonNull(serializer);
+            this.directory = Objects.requireNonNull(directory);
+        }
+
+        /**
+         * Sets the size in bytes at which a segment is sealed, and a new one
+         * is started. A message that's larger than this gets a segment of its
+         * own. The default is 256 MiB.
+         * @param segmentSize The segment size, in bytes.
+         * @return This builder.
+         */
+        public Builder segmentSize(int segmentSize) {
+            if (segmentSize < ENTRY_HEADER_SIZE) throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of messages between each entry in a segment's
+         * sparse index. Smaller intervals make seeking faster, but take more
+         * memory. The default is 1024.
+         * @param indexInterval The index interval.
+         * @return This builder.
+         */
+        public Builder indexInterval(int indexInterval) {
+            if (indexInterval < 1) throw new IllegalArgumentException("Invalid index interval " + indexInterval);
+            this.indexInterval = indexInterval;
+            return this;
+        }
+
+        /**
+         * Opens the log, recovering its newest segment if it wasn't closed
+         * cleanly.
+         * @return The log.
+         * @throws IOException If the log can't be opened.
+         */
+        public RecordLog open() throws IOException {
+            return new RecordLog(this);
+        }
+    }
+}
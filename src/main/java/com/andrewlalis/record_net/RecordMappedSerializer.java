@@ -1,141 +1,1111 @@
 package com.andrewlalis.record_net;
 
 import java.io.*;
-import java.lang.reflect.Array;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The default {@link RecordSerializer} implementation that performs
  * serialization and deserialization using a set of pre-registered, known
  * record types.
+ * <p>
+ *     A serializer may be shared by any number of threads. Registering a type
+ *     publishes a new, immutable snapshot of all registered types, so reads
+ *     and writes never lock, and always see either all or none of a type's
+ *     registration. Use {@link #builder()} to create a serializer whose types
+ *     are fixed once it's built.
+ * </p>
  */
 public class RecordMappedSerializer implements RecordSerializer {
-    private final Map<Integer, Class<?>> messageTypes = new HashMap<>();
-    private final Map<Class<?>, Integer> messageTypeIds = new HashMap<>();
-    private final Map<Class<?>, RecordInfo<?>> messageRecordInfo = new HashMap<>();
+    /**
+     * The bit of a frame's header that's set when the frame is compressed.
+     */
+    private static final int COMPRESSED_FRAME_FLAG = 0x80000000;
+
+    private volatile TypeRegistry registry = TypeRegistry.EMPTY;
+    /**
+     * The registered types, as seen by the codecs of nested records, which
+     * may be registered after the records that contain them.
+     */
+    private final TypeRegistry.Source types = () -> registry;
+    private final Map<RecordCodec<?>, Map<Class<?>, RecordProjection>> projections = new ConcurrentHashMap<>();
+    private final WireFormat format;
+    private final StringEncoding strings;
+    private final NullEncoding nulls;
+    private final boolean frozen;
+    private final FrameCompression compression;
+    private final ByteOrder byteOrder;
+    private final ReferenceEncoding references;
+    private final int maxFrameLength;
+    private volatile SerializerMetrics metrics;
 
     /**
-     * Registers a new record class to this serializer.
+     * Creates a serializer that uses the {@link WireFormat#STANDARD} format.
+     */
+    public RecordMappedSerializer() {
+        this(WireFormat.STANDARD);
+    }
+
+    /**
+     * Creates a serializer that uses the given wire format. Messages can only
+     * be read by a serializer that uses the same format as the one that wrote
+     * them.
+     * @param format The wire format to use.
+     */
+    public RecordMappedSerializer(WireFormat format) {
+        this(format, StringEncoding.MODIFIED_UTF8);
+    }
+
+    /**
+     * Creates a serializer that uses the given wire format and string
+     * encoding. Messages can only be read by a serializer that uses the same
+     * format and encoding as the one that wrote them.
+     * @param format The wire format to use.
+     * @param strings The string encoding to use.
+     */
+    public RecordMappedSerializer(WireFormat format, StringEncoding strings) {
+        this(format, strings, NullEncoding.NONE);
+    }
+
+    /**
+     * Creates a serializer that uses the given wire format, string encoding
+     * and null encoding. Messages can only be read by a serializer that uses
+     * the same format and encodings as the one that wrote them.
+     * @param format The wire format to use.
+     * @param strings The string encoding to use.
+     * @param nulls The null encoding to use.
+     */
+    public RecordMappedSerializer(WireFormat format, StringEncoding strings, NullEncoding nulls) {
+        this(format, strings, nulls, false, null, ByteOrder.BIG_ENDIAN, ReferenceEncoding.NONE, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    private RecordMappedSerializer(WireFormat format, StringEncoding strings, NullEncoding nulls, boolean frozen, FrameCompression compression, ByteOrder byteOrder, ReferenceEncoding references, int maxFrameLength) {
+        this.format = Objects.requireNonNull(format);
+        this.strings = Objects.requireNonNull(strings);
+        this.nulls = Objects.requireNonNull(nulls);
+        this.frozen = frozen;
+        this.compression = compression;
+        this.byteOrder = Objects.requireNonNull(byteOrder);
+        this.references = Objects.requireNonNull(references);
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Gets a builder for a serializer whose registered types can't be changed
+     * once it's built.
+     * @return The builder.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates an encoder that writes messages with this serializer, reusing
+     * the same internal buffers for every message.
+     * @return The encoder.
+     */
+    public MessageEncoder newEncoder() {
+        return new MessageEncoder(this);
+    }
+
+    /**
+     * Creates a decoder that reads messages with this serializer, reusing the
+     * same internal buffers for every message.
+     * @return The decoder.
+     */
+    public MessageDecoder newDecoder() {
+        return new MessageDecoder(this, null);
+    }
+
+    /**
+     * Creates a decoder like {@link #newDecoder()}, which also keeps a
+     * bounded cache of the strings and UUIDs that it has read, and returns
+     * the cached instance whenever an equal one is read again, in any later
+     * message. This saves decoding and allocating the same values over and
+     * over, on long-lived connections where they often repeat, such as names
+     * and identifiers. Only strings of up to 64 encoded bytes are cached.
+     * @param cacheCapacity The number of strings, and separately of UUIDs,
+     *                      to keep, which is rounded up to a power of two.
+     *                      A newly read value replaces any older one that
+     *                      happens to share its slot.
+     * @return The decoder.
+     * @throws IllegalArgumentException If the capacity isn't positive.
+     */
+    public MessageDecoder newDecoder(int cacheCapacity) {
+        return new MessageDecoder(this, new ValueCache(cacheCapacity, strings == StringEncoding.MODIFIED_UTF8));
+    }
+
+    /**
+     * Creates a session that writes and reads messages as deltas from the
+     * previous message of the same type, with a keyframe every
+     * {@link DeltaSession#DEFAULT_KEYFRAME_INTERVAL} messages.
+     * @return The session.
+     */
+    public DeltaSession newDeltaSession() {
+        return new DeltaSession(this, DeltaSession.DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    /**
+     * Creates a session that writes and reads messages as deltas from the
+     * previous message of the same type.
+     * @param keyframeInterval The number of messages of a type between each
+     *                         keyframe, which is written in full.
+     * @return The session.
+     */
+    public DeltaSession newDeltaSession(int keyframeInterval) {
+        return new DeltaSession(this, keyframeInterval);
+    }
+
+    /**
+     * Gets the wire format that this serializer uses.
+     * @return The wire format.
+     */
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Gets the string encoding that this serializer uses.
+     * @return The string encoding.
+     */
+    public StringEncoding getStringEncoding() {
+        return strings;
+    }
+
+    /**
+     * Gets the encoding that this serializer uses for null components.
+     * @return The null encoding.
+     */
+    public NullEncoding getNullEncoding() {
+        return nulls;
+    }
+
+    /**
+     * Gets the compression that this serializer uses for framed messages.
+     * @return The compression settings, or null if frames aren't compressed.
+     */
+    public FrameCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Gets the byte order that this serializer writes and reads multibyte
+     * values in.
+     * @return The byte order.
+     */
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    /**
+     * Gets the encoding that this serializer uses for values that repeat
+     * within a message.
+     * @return The reference encoding.
+     */
+    public ReferenceEncoding getReferenceEncoding() {
+        return references;
+    }
+
+    /**
+     * Gets the longest frame that this serializer reads from a stream or
+     * channel, and that a {@link FrameDecoder} for it accepts by default.
+     * @return The maximum frame length, in bytes.
+     */
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * Sets the metrics that this serializer records for every message that it
+     * writes and reads. Metrics may be shared by many serializers.
+     * @param metrics The metrics to record, or null to stop recording them.
+     */
+    public void setMetrics(SerializerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the metrics that this serializer records.
+     * @return The metrics, or null if none are being recorded.
+     */
+    public SerializerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers a new record class to this serializer. If the id or the class
+     * was already registered, this registration replaces the old one.
      * @param id The id to assign to this type.
      * @param type The record class.
+     * @throws IllegalStateException If this serializer was made by a
+     * {@link Builder}, and can't register any more types.
      */
     public void registerType(int id, Class<?> type) {
-        if (!type.isRecord()) throw new IllegalArgumentException("Only records are permitted.");
-        this.messageTypes.put(id, type);
-        this.messageTypeIds.put(type, id);
-        this.messageRecordInfo.put(type, RecordInfo.forType(type));
+        if (frozen) throw new IllegalStateException("This serializer's types can't be changed.");
+        register(id, type);
     }
 
     /**
      * Registers a new record class to this serializer, using the class' hash
      * code as its id.
      * @param type The record class.
+     * @throws IllegalStateException If this serializer was made by a
+     * {@link Builder}, and can't register any more types.
      */
     public void registerType(Class<?> type) {
         this.registerType(type.hashCode(), type);
     }
 
+    /**
+     * Registers a record class to this serializer with a codec that was
+     * generated for it at build time, so that it's read and written without
+     * any reflection. Messages are encoded the same as if the class was
+     * registered with {@link #registerType(int, Class)}. If the id or the
+     * class was already registered, this registration replaces the old one.
+     * @param id The id to assign to this type.
+     * @param codec The generated codec.
+     * @throws IllegalStateException If this serializer was made by a
+     * {@link Builder}, and can't register any more types.
+     * @see SerializableRecord
+     */
+    public void registerCodec(int id, GeneratedCodec<?> codec) {
+        if (frozen) throw new IllegalStateException("This serializer's types can't be changed.");
+        register(id, codec);
+    }
+
+    private synchronized void register(int id, Class<?> type) {
+        if (!type.isRecord()) throw new IllegalArgumentException("Only records are permitted.");
+        install(id, new RecordCodec<>(RecordInfo.forType(type, types, format, strings, nulls, references)));
+    }
+
+    private synchronized <T> void register(int id, GeneratedCodec<T> generated) {
+        if (!generated.type().isRecord()) throw new IllegalArgumentException("Only records are permitted.");
+        install(id, new RecordCodec<>(RecordInfo.forGenerated(generated, types, format, strings, nulls, references), generated));
+    }
+
+    private void install(int id, RecordCodec<?> codec) {
+        registry = registry.with(id, codec);
+        projections.clear();
+    }
+
     /**
      * Checks if a certain class has been registered for use with this serializer.
      * @param type The type to check.
      * @return True if the type is registered and may be used, or false otherwise.
      */
     public boolean isTypeSupported(Class<?> type) {
-        return messageTypeIds.containsKey(type);
+        return registry.registrationFor(type) != null;
+    }
+
+    /**
+     * Computes the exact number of bytes that a message is written as,
+     * including its id, without writing it. This is done by walking the
+     * message's registered structure, so it's much cheaper than writing it.
+     * @param msg The message to measure.
+     * @return The message's encoded size, in bytes.
+     * @throws UnsupportedMessageTypeException If the message's type, or the
+     * type of anything in it, is not supported.
+     */
+    public int sizeOf(Object msg) {
+        TypeRegistry.Registration registration = registrationFor(msg);
+        return Math.addExact(sizeOfId(registration.id()), registration.codec().sizeOf(msg));
+    }
+
+    /**
+     * Writes a message to a new byte array that's exactly as large as the
+     * message, in a single pass.
+     * @param msg The message to write.
+     * @return The array containing the written message.
+     * @throws IOException If an error occurs.
+     */
+    public byte[] toByteArray(Object msg) throws IOException {
+        byte[] data = new byte[sizeOf(msg)];
+        writeMessage(msg, ByteBuffer.wrap(data));
+        return data;
+    }
+
+    /**
+     * Writes a message into a byte array, starting at the given offset.
+     * Combined with {@link #sizeOf(Object)}, this can be used to fill an
+     * array that's been allocated ahead of time, without any reallocation.
+     * @param msg The message to write.
+     * @param dest The array to write to.
+     * @param offset The offset in the array to start writing at.
+     * @return The number of bytes that were written.
+     * @throws IOException If an error occurs.
+     * @throws java.nio.BufferOverflowException If there's not enough space in
+     * the array.
+     */
+    public int writeMessage(Object msg, byte[] dest, int offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dest, offset, dest.length - offset);
+        writeMessage(msg, buffer);
+        return buffer.position() - offset;
     }
 
     @Override
     public Object readMessage(InputStream in) throws IOException {
-        var dIn = new DataInputStream(in);
-        int id = dIn.readInt();
-        Class<?> msgType = messageTypes.get(id);
-        if (msgType == null) throw new UnknownMessageIdException(id);
-        return readRawObject(dIn, msgType);
-    }
-
-    private Object readRawObject(DataInputStream dIn, Class<?> type) throws IOException {
-        if (messageRecordInfo.containsKey(type)) {
-            RecordInfo<?> recordInfo = messageRecordInfo.get(type);
-            Object[] values = new Object[recordInfo.components().length];
-            for (int i = 0; i < recordInfo.components().length; i++) {
-                values[i] = readRawObject(dIn, recordInfo.components()[i].getType());
-            }
-            try {
-                return recordInfo.constructor().newInstance(values);
-            } catch (ReflectiveOperationException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        if (type.isArray()) {
-            if (type.getComponentType().isPrimitive()) {
-                return IOUtil.readPrimitiveArray(type, dIn);
-            } else {
-                int length = dIn.readInt();
-                Object[] array = new Object[length];
-                for (int i = 0; i < length; i++) {
-                    array[i] = readRawObject(dIn, type.getComponentType());
-                }
-                return array;
-            }
+        return read(RecordInput.of(in));
+    }
+
+    /**
+     * Reads a message directly from a heap or direct buffer, starting at its
+     * position. The buffer's position is advanced past the message only if
+     * the whole message could be read.
+     * @param buffer The buffer to read from.
+     * @return The message that was read.
+     * @throws IOException If an error occurs, or {@link java.io.EOFException}
+     * if the buffer doesn't contain a whole message.
+     */
+    @Override
+    public Object readMessage(ByteBuffer buffer) throws IOException {
+        ByteBuffer data = buffer.duplicate().order(byteOrder);
+        Object msg = read(RecordInput.of(data));
+        buffer.position(data.position());
+        return msg;
+    }
+
+    @Override
+    public Object readMessage(ReadableByteChannel channel) throws IOException {
+        return read(RecordInput.of(channel));
+    }
+
+    /**
+     * Reads a message from a buffer as a {@link RecordView}, which decodes
+     * its components only when they're accessed. The view refers to the
+     * buffer's contents instead of copying them, so they must not be modified
+     * while the view is in use. The buffer's position is advanced past the
+     * message only if the whole message is in the buffer.
+     * @param buffer The buffer to read from.
+     * @return A view of the message that was read.
+     * @throws IOException If an error occurs, or {@link java.io.EOFException}
+     * if the buffer doesn't contain a whole message.
+     */
+    public RecordView readView(ByteBuffer buffer) throws IOException {
+        ByteBuffer data = buffer.duplicate().order(byteOrder);
+        RecordView view = new RecordView(readCodec(RecordInput.of(data)), data, null);
+        buffer.position(data.position());
+        return view;
+    }
+
+    /**
+     * Reads a message, and decodes only the components of it that are also
+     * components of the given projection type, which is a record declaring
+     * some of the message's components, with the same names and types. All
+     * other components are skipped over without being decoded. The
+     * projection type doesn't need to be registered.
+     * @param in The stream to read from.
+     * @param projection The record type to read the message into.
+     * @return The projected message.
+     * @param <P> The projection type.
+     * @throws IOException If an error occurs.
+     * @throws IllegalArgumentException If the message's type can't be
+     * projected onto the given type.
+     */
+    public <P> P readMessageAs(InputStream in, Class<P> projection) throws IOException {
+        return readAs(RecordInput.of(in), projection);
+    }
+
+    /**
+     * Reads a message from a buffer, and decodes only the components of it
+     * that are also components of the given projection type. The buffer's
+     * position is advanced past the message only if the whole message could
+     * be read.
+     * @see #readMessageAs(InputStream, Class)
+     * @param buffer The buffer to read from.
+     * @param projection The record type to read the message into.
+     * @return The projected message.
+     * @param <P> The projection type.
+     * @throws IOException If an error occurs.
+     * @throws IllegalArgumentException If the message's type can't be
+     * projected onto the given type.
+     */
+    public <P> P readMessageAs(ByteBuffer buffer, Class<P> projection) throws IOException {
+        ByteBuffer data = buffer.duplicate().order(byteOrder);
+        P msg = readAs(RecordInput.of(data), projection);
+        buffer.position(data.position());
+        return msg;
+    }
+
+    private <P> P readAs(RecordInput in, Class<P> projection) throws IOException {
+        RecordCodec<?> codec = readCodec(in);
+        Class<?> msgType = codec.info().type();
+        if (msgType == projection) return projection.cast(codec.read(in));
+        RecordProjection p = projections.computeIfAbsent(codec, c -> new ConcurrentHashMap<>())
+                .computeIfAbsent(projection, t -> new RecordProjection(codec, t));
+        return projection.cast(p.read(in));
+    }
+
+    /**
+     * Writes a list of records of a single registered type as a columnar
+     * {@link RecordBatch}, which can only be read with one of the
+     * <code>readBatch</code> methods. To write an array of records, wrap it
+     * with {@link java.util.Arrays#asList(Object[])}.
+     * @param type The type of the records.
+     * @param records The records to write.
+     * @param out The stream to write to.
+     * @param <T> The type of the records.
+     * @throws IOException If an error occurs.
+     * @throws UnsupportedMessageTypeException If the type isn't registered.
+     * @throws IllegalArgumentException If any record is null.
+     */
+    public <T> void writeBatch(Class<T> type, List<? extends T> records, OutputStream out) throws IOException {
+        RecordOutput output = RecordOutput.of(out);
+        writeBatch(type, records, output);
+        output.finish();
+    }
+
+    /**
+     * Writes a list of records of a single registered type as a columnar
+     * batch into a buffer, starting at its position. The buffer's position is
+     * advanced past the batch only if the whole batch could be written.
+     * @see #writeBatch(Class, List, OutputStream)
+     * @param type The type of the records.
+     * @param records The records to write.
+     * @param buffer The buffer to write to.
+     * @param <T> The type of the records.
+     * @throws IOException If an error occurs.
+     * @throws UnsupportedMessageTypeException If the type isn't registered.
+     * @throws IllegalArgumentException If any record is null.
+     * @throws java.nio.BufferOverflowException If the buffer doesn't have
+     * enough space for the batch.
+     */
+    public <T> void writeBatch(Class<T> type, List<? extends T> records, ByteBuffer buffer) throws IOException {
+        final ByteOrder order = buffer.order();
+        final int start = buffer.position();
+        boolean success = false;
+        try {
+            RecordOutput out = RecordOutput.of(buffer);
+            writeBatch(type, records, out);
+            out.finish();
+            success = true;
+        } finally {
+            buffer.order(order);
+            if (!success) buffer.position(start);
         }
-        if (type.isEnum()) {
-            return IOUtil.readEnum(type, dIn);
+    }
+
+    private void writeBatch(Class<?> type, List<?> records, RecordOutput out) throws IOException {
+        TypeRegistry.Registration registration = registry.registrationFor(type);
+        if (registration == null) throw MessageEvents.unsupportedMessageType(type);
+        startMessage(out);
+        writeId(registration.id(), out);
+        RecordBatch.write(registration.codec(), records, out);
+    }
+
+    /**
+     * Reads a columnar batch of records, as written by
+     * {@link #writeBatch(Class, List, OutputStream)}. Each column is read
+     * into memory, but isn't decoded until it's accessed.
+     * @param in The stream to read from.
+     * @return The batch that was read.
+     * @throws IOException If an error occurs.
+     */
+    public RecordBatch readBatch(InputStream in) throws IOException {
+        RecordInput input = RecordInput.of(in);
+        return RecordBatch.read(readCodec(input), input, null);
+    }
+
+    /**
+     * Reads a columnar batch of records from a buffer. The batch refers to
+     * the buffer's contents instead of copying them, so they must not be
+     * modified while the batch is in use. The buffer's position is advanced
+     * past the batch only if the whole batch is in the buffer.
+     * @param buffer The buffer to read from.
+     * @return The batch that was read.
+     * @throws IOException If an error occurs, or {@link java.io.EOFException}
+     * if the buffer doesn't contain a whole batch.
+     */
+    public RecordBatch readBatch(ByteBuffer buffer) throws IOException {
+        ByteBuffer data = buffer.duplicate().order(byteOrder);
+        RecordInput in = RecordInput.of(data);
+        RecordBatch batch = RecordBatch.read(readCodec(in), in, data);
+        buffer.position(data.position());
+        return batch;
+    }
+
+    /**
+     * Reads a length-prefixed message, as written by
+     * {@link #writeFramedMessage(Object, OutputStream)}. The whole frame is
+     * always consumed, even if its message id is unknown, so that the stream
+     * can still be read from after an {@link UnknownMessageIdException}.
+     * @param in The stream to read from.
+     * @return The message that was read.
+     * @throws IOException If an error occurs, or a
+     * {@link StreamCorruptedException} if the frame is longer than the
+     * {@link #getMaxFrameLength() maximum frame length}.
+     */
+    public Object readFramedMessage(InputStream in) throws IOException {
+        return readFramedMessage(RecordInput.of(in), maxFrameLength);
+    }
+
+    /**
+     * Reads a length-prefixed message, as written by
+     * {@link #writeFramedMessage(Object, ByteBuffer)}, from a buffer. If the
+     * buffer doesn't hold the whole frame, an {@link java.io.EOFException} is
+     * thrown and the buffer's position is left unchanged, so the read can be
+     * tried again once more bytes have arrived. Otherwise, the position is
+     * advanced past the frame, even if its message id is unknown.
+     * @param buffer The buffer to read from.
+     * @return The message that was read.
+     * @throws IOException If an error occurs.
+     * @see FrameDecoder
+     */
+    public Object readFramedMessage(ByteBuffer buffer) throws IOException {
+        final int start = buffer.position();
+        if (buffer.remaining() < Integer.BYTES) throw new EOFException();
+        int header = frameHeader(buffer, start);
+        int length = frameLength(header);
+        if (buffer.remaining() - Integer.BYTES < length) throw new EOFException();
+        ByteBuffer frame = buffer.slice(start + Integer.BYTES, length);
+        buffer.position(start + Integer.BYTES + length);
+        return readFrame(frame, header);
+    }
+
+    /**
+     * Reads a length-prefixed message, as written by
+     * {@link #writeFramedMessage(Object, WritableByteChannel)}, from a channel
+     * which must be in blocking mode. The whole frame is always consumed.
+     * @param channel The channel to read from.
+     * @return The message that was read.
+     * @throws IOException If an error occurs, or a
+     * {@link StreamCorruptedException} if the frame is longer than the
+     * {@link #getMaxFrameLength() maximum frame length}.
+     * @see FrameDecoder
+     */
+    public Object readFramedMessage(ReadableByteChannel channel) throws IOException {
+        return readFramedMessage(RecordInput.of(channel), maxFrameLength);
+    }
+
+    /**
+     * Reads a length-prefixed message from a stream, like
+     * {@link #readFramedMessage(InputStream)}, but with a different maximum
+     * frame length.
+     * @param in The stream to read from.
+     * @param maxFrameLength The maximum frame length, in bytes.
+     * @return The message that was read.
+     * @throws IOException If an error occurs, or if the frame is too long.
+     */
+    Object readFramedMessage(InputStream in, int maxFrameLength) throws IOException {
+        return readFramedMessage(RecordInput.of(in), maxFrameLength);
+    }
+
+    private Object readFramedMessage(RecordInput in, int maxFrameLength) throws IOException {
+        in.order(byteOrder);
+        int header = in.readInt();
+        int length = frameLength(header);
+        // Check the length before allocating it, since it can't be trusted.
+        if (length > maxFrameLength) {
+            throw new StreamCorruptedException("Frame length " + length + " exceeds the maximum of " + maxFrameLength);
         }
-        if (type.equals(UUID.class)) {
-            return IOUtil.readUUID(dIn);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return readFrame(ByteBuffer.wrap(frame), header);
+    }
+
+    /**
+     * Reads the message contained in a single frame, decompressing it first
+     * if its header says it's compressed.
+     * @param frame A buffer whose remaining bytes are exactly one frame's
+     *              contents, after its header.
+     * @param header The frame's header.
+     * @return The message that was read.
+     * @throws IOException If an error occurs.
+     */
+    Object readFrame(ByteBuffer frame, int header) throws IOException {
+        if (compression == null || (header & COMPRESSED_FRAME_FLAG) == 0) return readFrame(frame);
+        RecordInput in = RecordInput.of(frame);
+        in.order(byteOrder);
+        int length = format == WireFormat.COMPACT ? in.readVarInt() : in.readInt();
+        if (length < 0 || length > compression.maxFrameLength()) {
+            throw new StreamCorruptedException("Invalid decompressed frame length " + length);
         }
-        if (type.equals(String.class)) {
-            return IOUtil.readString(dIn);
+        FrameCompressor compressor = compression.acquire();
+        try {
+            return readFrame(compressor.inflate(frame, frameLength(length)));
+        } finally {
+            compression.release(compressor);
         }
-        if (IOUtil.isPrimitiveOrWrapper(type)) {
-            return IOUtil.readPrimitive(type, dIn);
+    }
+
+    /**
+     * Reads the message contained in a single frame.
+     * @param frame A buffer whose remaining bytes are exactly one frame's
+     *              message id and message.
+     * @return The message that was read.
+     * @throws IOException If an error occurs, or if the message doesn't take
+     * up the whole frame.
+     */
+    Object readFrame(ByteBuffer frame) throws IOException {
+        Object msg = read(RecordInput.of(frame));
+        if (frame.hasRemaining()) {
+            throw new StreamCorruptedException("Frame has " + frame.remaining() + " unread bytes.");
         }
-        throw new UnsupportedMessageTypeException(type);
+        return msg;
+    }
+
+    /**
+     * Gets and checks the length from a frame's header.
+     * @param header The frame's header.
+     * @return The frame length.
+     * @throws StreamCorruptedException If the length is too small to contain
+     * a message id.
+     */
+    int frameLength(int header) throws StreamCorruptedException {
+        int length = compression == null ? header : header & ~COMPRESSED_FRAME_FLAG;
+        int minLength = format == WireFormat.COMPACT ? 1 : Integer.BYTES;
+        if (length < minLength) throw new StreamCorruptedException("Invalid frame length " + length);
+        return length;
+    }
+
+    /**
+     * Reads and checks the length from a frame's header in a buffer.
+     * @param buffer The buffer to read from, in any byte order.
+     * @param index The index of the frame's header.
+     * @return The frame length.
+     * @throws StreamCorruptedException If the length is too small to contain
+     * a message id.
+     */
+    int frameLength(ByteBuffer buffer, int index) throws StreamCorruptedException {
+        return frameLength(frameHeader(buffer, index));
+    }
+
+    /**
+     * Reads a frame's header from a buffer.
+     * @param buffer The buffer to read from, in any byte order.
+     * @param index The index of the frame's header.
+     * @return The frame's header.
+     */
+    int frameHeader(ByteBuffer buffer, int index) {
+        int header = buffer.getInt(index);
+        return buffer.order() == byteOrder ? header : Integer.reverseBytes(header);
+    }
+
+    Object read(RecordInput in) throws IOException {
+        SerializerMetrics metrics = this.metrics;
+        if (metrics == null) return readCodec(in).read(in);
+        long startBytes = in.bytesRead();
+        long startTime = System.nanoTime();
+        RecordCodec<?> codec = readCodec(in);
+        Object msg = codec.read(in);
+        long time = System.nanoTime() - startTime;
+        metrics.recordRead(msg.getClass(), in.bytesRead() - startBytes, time);
+        return msg;
+    }
+
+    /**
+     * Reads the id at the start of a message, and sets the input's byte order
+     * to this serializer's, for the rest of the message. The input's
+     * reference table is also cleared, since each message has its own.
+     * @param in The input to read from.
+     * @return The codec for the message's type.
+     * @throws IOException If an error occurs.
+     * @throws UnknownMessageIdException If the id isn't registered.
+     */
+    RecordCodec<?> readCodec(RecordInput in) throws IOException {
+        in.order(byteOrder);
+        in.clearReferences();
+        int id = format == WireFormat.COMPACT ? in.readVarInt() : in.readInt();
+        RecordCodec<?> codec = registry.codecFor(id);
+        if (codec == null) throw MessageEvents.unknownMessageId(id);
+        return codec;
     }
 
     @Override
     public void writeMessage(Object msg, OutputStream out) throws IOException {
-        if (msg == null) throw new IllegalArgumentException("Cannot write a null message.");
-        if (!isTypeSupported(msg.getClass())) throw new UnsupportedMessageTypeException(msg.getClass());
-        var dOut = new DataOutputStream(out);
-        int id = messageTypeIds.get(msg.getClass());
-        dOut.writeInt(id);
-        writeRawObject(msg, dOut);
-    }
-
-    private void writeRawObject(Object obj, DataOutputStream dOut) throws IOException {
-        final Class<?> type = obj.getClass();
-        if (messageRecordInfo.containsKey(type)) {
-            RecordInfo<?> recordInfo = messageRecordInfo.get(type);
-            for (var component : recordInfo.components()) {
-                try {
-                    writeRawObject(component.getAccessor().invoke(obj), dOut);
-                } catch (ReflectiveOperationException e) {
-                    throw new RuntimeException(e);
-                }
+        write(msg, RecordOutput.of(out), false);
+    }
+
+    /**
+     * Writes a message directly into a heap or direct buffer, starting at its
+     * position. The buffer's position is advanced past the message only if
+     * the whole message could be written.
+     * @param msg The message to write.
+     * @param buffer The buffer to write to.
+     * @throws IOException If an error occurs.
+     * @throws java.nio.BufferOverflowException If the buffer doesn't have
+     * enough space for the message.
+     */
+    @Override
+    public void writeMessage(Object msg, ByteBuffer buffer) throws IOException {
+        write(msg, buffer, false);
+    }
+
+    @Override
+    public void writeMessage(Object msg, WritableByteChannel channel) throws IOException {
+        write(msg, RecordOutput.of(channel), false);
+    }
+
+    /**
+     * Writes a message to a stream, prefixed with a 4-byte frame length, which
+     * is the number of bytes that follow it. This lets a reader know whether
+     * it has a whole message, and skip messages it doesn't know, without
+     * having to decode them. Framed messages must be read with one of the
+     * <code>readFramedMessage</code> methods, or with a {@link FrameDecoder}.
+     * If this serializer uses {@link FrameCompression}, then large messages
+     * are compressed.
+     * @param msg The message to write.
+     * @param out The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    public void writeFramedMessage(Object msg, OutputStream out) throws IOException {
+        write(msg, RecordOutput.of(out), true);
+    }
+
+    /**
+     * Writes a length-prefixed message into a buffer, starting at its
+     * position. The buffer's position is advanced past the frame only if the
+     * whole frame could be written.
+     * @see #writeFramedMessage(Object, OutputStream)
+     * @param msg The message to write.
+     * @param buffer The buffer to write to.
+     * @throws IOException If an error occurs.
+     * @throws java.nio.BufferOverflowException If the buffer doesn't have
+     * enough space for the frame.
+     */
+    public void writeFramedMessage(Object msg, ByteBuffer buffer) throws IOException {
+        write(msg, buffer, true);
+    }
+
+    /**
+     * Writes a length-prefixed message to a channel.
+     * @see #writeFramedMessage(Object, OutputStream)
+     * @param msg The message to write.
+     * @param channel The channel to write to.
+     * @throws IOException If an error occurs.
+     */
+    public void writeFramedMessage(Object msg, WritableByteChannel channel) throws IOException {
+        write(msg, RecordOutput.of(channel), true);
+    }
+
+    private void write(Object msg, ByteBuffer buffer, boolean framed) throws IOException {
+        write(msg, buffer, RecordOutput.of(buffer), framed);
+    }
+
+    /**
+     * Writes a message into a buffer, leaving the buffer's position unchanged
+     * if the whole message couldn't be written.
+     * @param msg The message to write.
+     * @param buffer The buffer to write to.
+     * @param out An output that writes directly into the buffer.
+     * @param framed Whether to write the message with a frame length.
+     * @throws IOException If an error occurs.
+     */
+    void write(Object msg, ByteBuffer buffer, RecordOutput out, boolean framed) throws IOException {
+        final ByteOrder order = buffer.order();
+        final int start = buffer.position();
+        boolean success = false;
+        try {
+            write(msg, out, framed);
+            success = true;
+        } finally {
+            buffer.order(order);
+            if (!success) buffer.position(start);
+        }
+    }
+
+    void write(Object msg, RecordOutput out, boolean framed) throws IOException {
+        append(msg, out, framed);
+        out.finish();
+    }
+
+    /**
+     * Writes a message to an output without finishing it, so that many
+     * messages can be collected in the output's buffer, and drained at once.
+     * @param msg The message to write.
+     * @param out The output to write to.
+     * @param framed Whether to write the message with a frame length.
+     * @throws IOException If an error occurs.
+     */
+    void append(Object msg, RecordOutput out, boolean framed) throws IOException {
+        startMessage(out);
+        SerializerMetrics metrics = this.metrics;
+        if (metrics == null) {
+            encode(msg, out, framed);
+            return;
+        }
+        long startBytes = out.bytesWritten();
+        long startTime = System.nanoTime();
+        encode(msg, out, framed);
+        long time = System.nanoTime() - startTime;
+        metrics.recordWrite(msg.getClass(), out.bytesWritten() - startBytes, time);
+    }
+
+    private void encode(Object msg, RecordOutput out, boolean framed) throws IOException {
+        TypeRegistry.Registration registration = registrationFor(msg);
+        RecordCodec<?> codec = registration.codec();
+        int id = registration.id();
+        if (framed) {
+            int length = Math.addExact(sizeOfId(id), sizeOfBody(msg, codec, out));
+            if (compression != null && length >= compression.threshold()) {
+                writeCompressedFrame(msg, codec, id, length, out);
+                return;
             }
-        } else if (type.isArray()) {
-            if (type.getComponentType().isPrimitive()) {
-                IOUtil.writePrimitiveArray(obj, dOut);
-            } else {
-                int length = Array.getLength(obj);
-                dOut.writeInt(length);
-                for (int i = 0; i < length; i++) {
-                    writeRawObject(Array.get(obj, i), dOut);
+            out.writeInt(length);
+        }
+        writeId(id, out);
+        codec.write(msg, out);
+    }
+
+    /**
+     * Prepares an output for the start of a new message, by setting its byte
+     * order to this serializer's, and clearing its reference table.
+     * @param out The output that the message will be written to.
+     */
+    void startMessage(RecordOutput out) {
+        out.order(byteOrder);
+        out.clearReferences();
+    }
+
+    /**
+     * Computes the size of a message without its id, using the output's
+     * reference table to measure it, if there is one, and clearing it again
+     * afterwards, so that it doesn't need to allocate a new one.
+     * @param msg The message to measure.
+     * @param codec The message's codec.
+     * @param out The output that the message will be written to.
+     * @return The message's encoded size, in bytes.
+     */
+    private int sizeOfBody(Object msg, RecordCodec<?> codec, RecordOutput out) {
+        if (references == ReferenceEncoding.NONE) return codec.sizeOf(msg);
+        int size = codec.sizeOf(msg, out.references());
+        out.clearReferences();
+        return size;
+    }
+
+    /**
+     * Writes a message as a compressed frame, or as an uncompressed one if
+     * compressing it doesn't make it any smaller. A compressed frame's
+     * header has the {@link #COMPRESSED_FRAME_FLAG} set, and it's followed by
+     * the uncompressed length, and then the compressed message id and
+     * message.
+     * @param msg The message to write.
+     * @param codec The message's codec.
+     * @param id The message's id.
+     * @param length The uncompressed frame length.
+     * @param out The output to write to.
+     * @throws IOException If an error occurs.
+     */
+    private void writeCompressedFrame(Object msg, RecordCodec<?> codec, int id, int length, RecordOutput out) throws IOException {
+        FrameCompressor compressor = compression.acquire();
+        try {
+            RecordOutput raw = compressor.rawOutput(length);
+            startMessage(raw);
+            writeId(id, raw);
+            codec.write(msg, raw);
+            int compressedLength = compressor.deflate(compressor.rawBytes(), length);
+            int lengthSize = format == WireFormat.COMPACT ? IOUtil.sizeOfVarInt(length) : Integer.BYTES;
+            if (lengthSize + compressedLength < length) {
+                out.writeInt((lengthSize + compressedLength) | COMPRESSED_FRAME_FLAG);
+                if (format == WireFormat.COMPACT) {
+                    out.writeVarInt(length);
+                } else {
+                    out.writeInt(length);
                 }
+                out.write(compressor.compressedBytes(), 0, compressedLength);
+            } else {
+                out.writeInt(length);
+                out.write(compressor.rawBytes(), 0, length);
             }
-        } else if (type.isEnum()) {
-            IOUtil.writeEnum((Enum<?>) obj, dOut);
-        } else if (type.equals(UUID.class)) {
-            IOUtil.writeUUID((UUID) obj, dOut);
-        } else if (type.equals(String.class)) {
-            IOUtil.writeString((String) obj, dOut);
-        } else if (IOUtil.isPrimitiveOrWrapper(type)) {
-            IOUtil.writePrimitive(obj, dOut);
+        } finally {
+            compression.release(compressor);
+        }
+    }
+
+    void writeId(int id, RecordOutput out) throws IOException {
+        if (format == WireFormat.COMPACT) {
+            out.writeVarInt(id);
         } else {
-            throw new UnsupportedMessageTypeException(type);
+            out.writeInt(id);
+        }
+    }
+
+    private int sizeOfId(int id) {
+        return format == WireFormat.COMPACT ? IOUtil.sizeOfVarInt(id) : Integer.BYTES;
+    }
+
+    TypeRegistry.Registration registrationFor(Object msg) {
+        if (msg == null) throw new IllegalArgumentException("Cannot write a null message.");
+        TypeRegistry.Registration registration = registry.registrationFor(msg.getClass());
+        if (registration == null) throw MessageEvents.unsupportedMessageType(msg.getClass());
+        return registration;
+    }
+
+    /**
+     * A builder for a {@link RecordMappedSerializer} whose registered types
+     * are fixed once it's built, so that it can't be changed by accident
+     * while it's shared between threads.
+     */
+    public static final class Builder {
+        /**
+         * The types to register, as either a record class or the codec that
+         * was generated for it.
+         */
+        private final Map<Integer, Object> types = new LinkedHashMap<>();
+        private WireFormat format = WireFormat.STANDARD;
+        private StringEncoding strings = StringEncoding.MODIFIED_UTF8;
+        private NullEncoding nulls = NullEncoding.NONE;
+        private SerializerMetrics metrics;
+        private FrameCompression compression;
+        private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+        private ReferenceEncoding references = ReferenceEncoding.NONE;
+        private int maxFrameLength = FrameDecoder.DEFAULT_MAX_FRAME_LENGTH;
+
+        private Builder() {}
+
+        /**
+         * Sets the wire format that the serializer uses.
+         * @param format The wire format.
+         * @return This builder.
+         */
+        public Builder format(WireFormat format) {
+            this.format = Objects.requireNonNull(format);
+            return this;
+        }
+
+        /**
+         * Sets the string encoding that the serializer uses.
+         * @param strings The string encoding.
+         * @return This builder.
+         */
+        public Builder stringEncoding(StringEncoding strings) {
+            this.strings = Objects.requireNonNull(strings);
+            return this;
+        }
+
+        /**
+         * Sets the null encoding that the serializer uses.
+         * @param nulls The null encoding.
+         * @return This builder.
+         */
+        public Builder nullEncoding(NullEncoding nulls) {
+            this.nulls = Objects.requireNonNull(nulls);
+            return this;
+        }
+
+        /**
+         * Sets the compression that the serializer uses for framed messages.
+         * Frames can only be read by a serializer that uses the same format
+         * and dictionary, but a serializer that uses compression can also
+         * read frames from one that doesn't.
+         * @param compression The compression settings, or null to not
+         *                    compress frames.
+         * @return This builder.
+         */
+        public Builder compression(FrameCompression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Sets the byte order that the serializer writes and reads multibyte
+         * values in, including frame headers and the elements of primitive
+         * arrays. The default is {@link ByteOrder#BIG_ENDIAN}, which is the
+         * same as {@link DataOutput}. With {@link ByteOrder#nativeOrder()},
+         * values are copied to and from direct buffers without swapping any
+         * bytes, and can be read in place by native code.
+         * @param byteOrder The byte order.
+         * @return This builder.
+         */
+        public Builder byteOrder(ByteOrder byteOrder) {
+            this.byteOrder = Objects.requireNonNull(byteOrder);
+            return this;
+        }
+
+        /**
+         * Sets the encoding that the serializer uses for values that repeat
+         * within a message.
+         * @param references The reference encoding.
+         * @return This builder.
+         */
+        public Builder referenceEncoding(ReferenceEncoding references) {
+            this.references = Objects.requireNonNull(references);
+            return this;
+        }
+
+        /**
+         * Sets the longest frame that the serializer reads from a stream or
+         * channel. Each frame is read into an array of its length, so longer
+         * ones cause a {@link StreamCorruptedException} instead, before
+         * anything is allocated. The default is
+         * {@link FrameDecoder#DEFAULT_MAX_FRAME_LENGTH}.
+         * @param maxFrameLength The maximum frame length, in bytes.
+         * @return This builder.
+         */
+        public Builder maxFrameLength(int maxFrameLength) {
+            if (maxFrameLength < 0) throw new IllegalArgumentException("Invalid maximum frame length " + maxFrameLength);
+            this.maxFrameLength = maxFrameLength;
+            return this;
+        }
+
+        /**
+         * Sets the metrics that the serializer records.
+         * @see RecordMappedSerializer#setMetrics(SerializerMetrics)
+         * @param metrics The metrics to record, or null to not record any.
+         * @return This builder.
+         */
+        public Builder metrics(SerializerMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Registers a record class.
+         * @see RecordMappedSerializer#registerType(int, Class)
+         * @param id The id to assign to this type.
+         * @param type The record class.
+         * @return This builder.
+         */
+        public Builder registerType(int id, Class<?> type) {
+            if (!type.isRecord()) throw new IllegalArgumentException("Only records are permitted.");
+            types.put(id, type);
+            return this;
+        }
+
+        /**
+         * Registers a record class, using the class' hash code as its id.
+         * @param type The record class.
+         * @return This builder.
+         */
+        public Builder registerType(Class<?> type) {
+            return registerType(type.hashCode(), type);
+        }
+
+        /**
+         * Registers a record class with a codec that was generated for it.
+         * @see RecordMappedSerializer#registerCodec(int, GeneratedCodec)
+         * @param id The id to assign to this type.
+         * @param codec The generated codec.
+         * @return This builder.
+         */
+        public Builder registerCodec(int id, GeneratedCodec<?> codec) {
+            if (!codec.type().isRecord()) throw new IllegalArgumentException("Only records are permitted.");
+            types.put(id, codec);
+            return this;
+        }
+
+        /**
+         * Builds the serializer.
+         * @return The serializer, which throws an {@link IllegalStateException}
+         * if any more types are registered to it.
+         */
+        public RecordMappedSerializer build() {
+            RecordMappedSerializer serializer = new RecordMappedSerializer(format, strings, nulls, true, compression, byteOrder, references, maxFrameLength);
+            serializer.metrics = metrics;
+            types.forEach((id, type) -> {
+                if (type instanceof GeneratedCodec<?> codec) {
+                    serializer.register(id, codec);
+                } else {
+                    serializer.register(id, (Class<?>) type);
+                }
+            });
+            return serializer;
         }
     }
 }
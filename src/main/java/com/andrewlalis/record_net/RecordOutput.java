@@ -0,0 +1,522 @@
+package com.andrewlalis.record_net;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@link DataOutput} that all serialization is done through. Values are
+ * always put directly into a {@link ByteBuffer}, and only when that buffer is
+ * full is a {@link Sink} asked to make room, so that writing to a buffer, a
+ * stream, or a channel all use the same fast path.
+ */
+final class RecordOutput implements DataOutput {
+    /**
+     * A destination for the bytes that are written to a {@link RecordOutput}.
+     */
+    interface Sink {
+        /**
+         * Makes room in the output's buffer, usually by writing its contents
+         * somewhere else.
+         * @param buffer The output's buffer, whose position is the number of
+         *               bytes that have been written to it.
+         * @param n The number of bytes that must fit in the buffer.
+         * @return The buffer to continue writing to, which must have at least
+         * <code>n</code> bytes remaining.
+         * @throws IOException If an error occurs.
+         */
+        ByteBuffer drain(ByteBuffer buffer, int n) throws IOException;
+    }
+
+    static final int STREAM_BUFFER_SIZE = 1024;
+    static final int CHANNEL_BUFFER_SIZE = 8192;
+
+    /**
+     * The sink for outputs that write directly into a buffer, which can't
+     * make any more room.
+     */
+    static final Sink BUFFER_SINK = (buffer, n) -> {
+        if (buffer.remaining() < n) throw new BufferOverflowException();
+        return buffer;
+    };
+
+    /**
+     * The sink for outputs that collect a whole message in a heap buffer,
+     * which is replaced by a larger copy whenever it's full. The output's
+     * current buffer can be read with {@link #buffer()}.
+     */
+    static final Sink GROWING_SINK = (buffer, n) -> {
+        if (buffer.remaining() >= n) return buffer;
+        int required = Math.addExact(buffer.position(), n);
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * buffer.capacity(), required));
+        if (capacity < required) throw new OutOfMemoryError("Message too large to buffer.");
+        return ByteBuffer.allocate(capacity).order(buffer.order()).put(buffer.flip());
+    };
+
+    /**
+     * A sink that writes to a stream, which may be changed between messages.
+     */
+    static final class StreamSink implements Sink {
+        OutputStream out;
+
+        StreamSink(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public ByteBuffer drain(ByteBuffer buffer, int n) throws IOException {
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+            buffer.clear();
+            return buffer;
+        }
+    }
+
+    /**
+     * A sink that writes to a channel, which may be changed between messages.
+     */
+    static final class ChannelSink implements Sink {
+        WritableByteChannel channel;
+
+        ChannelSink(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public ByteBuffer drain(ByteBuffer buffer, int n) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+            return buffer;
+        }
+    }
+
+    private ByteBuffer buffer;
+    private Sink sink;
+    /**
+     * The number of bytes that were passed on to the sink, and the buffer
+     * position that bytes have been counted from since then.
+     */
+    private long drainedBytes;
+    private int countedFrom;
+    /**
+     * The writer that generated codecs use, which is only created once one
+     * is needed.
+     */
+    private RecordWriter recordWriter;
+    /**
+     * The values that have been written so far in the current message by a
+     * {@link ValueCodecs.ReferenceCodec}, mapped to their index in the
+     * message's reference table, or null if none have been written yet.
+     */
+    private Map<Object, Integer> references;
+
+    RecordOutput(ByteBuffer buffer, Sink sink) {
+        reset(buffer, sink);
+    }
+
+    /**
+     * Gets the writer that generated codecs write records to this output
+     * with, creating it the first time.
+     * @return The writer.
+     */
+    RecordWriter recordWriter() {
+        RecordWriter w = recordWriter;
+        if (w == null) recordWriter = w = new RecordWriter(this);
+        return w;
+    }
+
+    /**
+     * Gets the reference table of the message that's being written, creating
+     * it the first time.
+     * @return The reference table.
+     */
+    Map<Object, Integer> references() {
+        Map<Object, Integer> r = references;
+        if (r == null) references = r = new HashMap<>();
+        return r;
+    }
+
+    /**
+     * Clears the reference table, at the start of a new message.
+     */
+    void clearReferences() {
+        if (references != null) references.clear();
+    }
+
+    /**
+     * Gets an output that writes directly into the given buffer, starting at
+     * its position. If the buffer doesn't have enough space, a
+     * {@link BufferOverflowException} is thrown.
+     * @param target The buffer to write to. Its byte order should be set by
+     *               the caller.
+     * @return The output.
+     */
+    static RecordOutput of(ByteBuffer target) {
+        return new RecordOutput(target, BUFFER_SINK);
+    }
+
+    /**
+     * Gets an output that collects bytes in a small buffer, and writes them to
+     * the given stream whenever it's full, and on {@link #finish()}.
+     * @param out The stream to write to.
+     * @return The output.
+     */
+    static RecordOutput of(OutputStream out) {
+        return new RecordOutput(ByteBuffer.allocate(STREAM_BUFFER_SIZE), new StreamSink(out));
+    }
+
+    /**
+     * Gets an output that collects bytes in a direct buffer, and writes them
+     * to the given channel whenever it's full, and on {@link #finish()}.
+     * @param channel The channel to write to.
+     * @return The output.
+     */
+    static RecordOutput of(WritableByteChannel channel) {
+        return new RecordOutput(ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE), new ChannelSink(channel));
+    }
+
+    /**
+     * Points this output at a new buffer and sink, so that it can be reused
+     * for another message without allocating a new output.
+     * @param buffer The buffer to write to.
+     * @param sink The sink to use when the buffer is full.
+     * @return This output.
+     */
+    RecordOutput reset(ByteBuffer buffer, Sink sink) {
+        this.buffer = buffer;
+        this.sink = sink;
+        this.drainedBytes = 0;
+        this.countedFrom = buffer == null ? 0 : buffer.position();
+        return this;
+    }
+
+    /**
+     * Gets the buffer that this output is currently writing to, which is
+     * only different from the one it was given if its sink replaced it.
+     * @return The buffer.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Gets the number of bytes that have been written to this output since
+     * it was created or last reset.
+     * @return The number of bytes.
+     */
+    long bytesWritten() {
+        return drainedBytes + buffer.position() - countedFrom;
+    }
+
+    /**
+     * Sets the byte order that multibyte values are written in.
+     * @param order The byte order to use.
+     */
+    void order(ByteOrder order) {
+        buffer.order(order);
+    }
+
+    /**
+     * Passes any bytes that are still held in this output's buffer on to its
+     * sink. This must be called once writing is done.
+     * @throws IOException If an error occurs.
+     */
+    void finish() throws IOException {
+        if (buffer.position() > 0) drain(0);
+    }
+
+    private void require(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            ByteOrder order = buffer.order();
+            drain(n);
+            buffer.order(order);
+        }
+    }
+
+    private void drain(int n) throws IOException {
+        drainedBytes += buffer.position() - countedFrom;
+        buffer = sink.drain(buffer, n);
+        countedFrom = buffer.position();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        require(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) require(1);
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        require(1);
+        buffer.put(v ? (byte) 1 : (byte) 0);
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        require(1);
+        buffer.put((byte) v);
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        require(2);
+        buffer.putShort((short) v);
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        require(2);
+        buffer.putChar((char) v);
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        require(4);
+        buffer.putInt(v);
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        require(8);
+        buffer.putLong(v);
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        require(4);
+        buffer.putInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        require(8);
+        buffer.putLong(Double.doubleToLongBits(v));
+    }
+
+    /*
+    Variable-length integers, as used by the compact wire format. The exact
+    size is reserved up front, so each byte can be put without any checks.
+     */
+
+    void writeVarInt(int v) throws IOException {
+        require(IOUtil.sizeOfVarInt(v));
+        while ((v & ~0x7F) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    void writeVarLong(long v) throws IOException {
+        require(IOUtil.sizeOfVarLong(v));
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    void writeZigZagInt(int v) throws IOException {
+        writeVarInt(IOUtil.zigZagEncode(v));
+    }
+
+    void writeZigZagLong(long v) throws IOException {
+        writeVarLong(IOUtil.zigZagEncode(v));
+    }
+
+    /*
+    Bulk writes for primitive arrays. Each copies as many elements as fit in
+    the buffer at once, and then drains it, until all elements are written.
+     */
+
+    void writeShorts(short[] a) throws IOException {
+        for (int off = 0; off < a.length;) {
+            require(Short.BYTES);
+            int n = Math.min(a.length - off, buffer.remaining() / Short.BYTES);
+            buffer.asShortBuffer().put(a, off, n);
+            buffer.position(buffer.position() + n * Short.BYTES);
+            off += n;
+        }
+    }
+
+    void writeChars(char[] a) throws IOException {
+        for (int off = 0; off < a.length;) {
+            require(Character.BYTES);
+            int n = Math.min(a.length - off, buffer.remaining() / Character.BYTES);
+            buffer.asCharBuffer().put(a, off, n);
+            buffer.position(buffer.position() + n * Character.BYTES);
+            off += n;
+        }
+    }
+
+    void writeInts(int[] a) throws IOException {
+        for (int off = 0; off < a.length;) {
+            require(Integer.BYTES);
+            int n = Math.min(a.length - off, buffer.remaining() / Integer.BYTES);
+            buffer.asIntBuffer().put(a, off, n);
+            buffer.position(buffer.position() + n * Integer.BYTES);
+            off += n;
+        }
+    }
+
+    void writeLongs(long[] a) throws IOException {
+        for (int off = 0; off < a.length;) {
+            require(Long.BYTES);
+            int n = Math.min(a.length - off, buffer.remaining() / Long.BYTES);
+            buffer.asLongBuffer().put(a, off, n);
+            buffer.position(buffer.position() + n * Long.BYTES);
+            off += n;
+        }
+    }
+
+    void writeFloats(float[] a) throws IOException {
+        for (int off = 0; off < a.length;) {
+            require(Float.BYTES);
+            int pos = buffer.position();
+            int n = Math.min(a.length - off, buffer.remaining() / Float.BYTES);
+            buffer.asFloatBuffer().put(a, off, n);
+            // Bulk copies keep NaN payloads, but DataOutput collapses them.
+            for (int j = 0; j < n; j++) {
+                if (Float.isNaN(a[off + j])) buffer.putInt(pos + j * Float.BYTES, Float.floatToIntBits(Float.NaN));
+            }
+            buffer.position(pos + n * Float.BYTES);
+            off += n;
+        }
+    }
+
+    void writeDoubles(double[] a) throws IOException {
+        for (int off = 0; off < a.length;) {
+            require(Double.BYTES);
+            int pos = buffer.position();
+            int n = Math.min(a.length - off, buffer.remaining() / Double.BYTES);
+            buffer.asDoubleBuffer().put(a, off, n);
+            // Bulk copies keep NaN payloads, but DataOutput collapses them.
+            for (int j = 0; j < n; j++) {
+                if (Double.isNaN(a[off + j])) buffer.putLong(pos + j * Double.BYTES, Double.doubleToLongBits(Double.NaN));
+            }
+            buffer.position(pos + n * Double.BYTES);
+            off += n;
+        }
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) writeByte(s.charAt(i));
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) writeChar(s.charAt(i));
+    }
+
+    /**
+     * Writes the standard UTF-8 bytes of a string, without any length. When
+     * the string is ASCII, its bytes are copied in bulk.
+     * @param s The string to write.
+     * @param utf8Length The string's encoded length, from
+     *                   {@link IOUtil#utf8Length(String)}.
+     * @throws IOException If an error occurs.
+     */
+    @SuppressWarnings("deprecation")
+    void writeUtf8(String s, int utf8Length) throws IOException {
+        final int strlen = s.length();
+        if (utf8Length == strlen) {
+            for (int off = 0; off < strlen;) {
+                if (!buffer.hasRemaining()) require(1);
+                int n = Math.min(strlen - off, buffer.remaining());
+                if (buffer.hasArray()) {
+                    // Every char is ASCII, so its low byte is its UTF-8 encoding.
+                    s.getBytes(off, off + n, buffer.array(), buffer.arrayOffset() + buffer.position());
+                    buffer.position(buffer.position() + n);
+                } else {
+                    for (int i = off; i < off + n; i++) buffer.put((byte) s.charAt(i));
+                }
+                off += n;
+            }
+            return;
+        }
+        for (int i = 0; i < strlen; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                require(1);
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                require(2);
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < strlen && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                require(4);
+                buffer.put((byte) (0xF0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                require(1);
+                buffer.put((byte) '?');
+            } else {
+                require(3);
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Writes a string in the same modified UTF-8 format as
+     * {@link java.io.DataOutputStream#writeUTF(String)}, but encodes it
+     * directly into this output's buffer.
+     * @param s The string to write.
+     * @throws IOException If an error occurs, or if the string's encoded
+     * length is more than 65535 bytes.
+     */
+    @Override
+    public void writeUTF(String s) throws IOException {
+        final int strlen = s.length();
+        final int utflen = IOUtil.utfLength(s);
+        if (utflen > 65535) {
+            throw new UTFDataFormatException("Encoded string is too long: " + utflen + " bytes");
+        }
+        writeShort(utflen);
+        for (int i = 0; i < strlen; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80 && c != 0) {
+                require(1);
+                buffer.put((byte) c);
+            } else if (c >= 0x800) {
+                require(3);
+                buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                require(2);
+                buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.RecordComponent;
+import java.util.Arrays;
+
+/**
+ * Reads a record of one type into a record of another type, whose components
+ * are a subset of the first's. Components are matched by name, and must have
+ * the same type. Components that aren't part of the projection are skipped
+ * without being decoded.
+ */
+final class RecordProjection {
+    private final RecordCodec<?> source;
+    /**
+     * For each of the source's components, the index of the projection's
+     * component that it's read into, or -1 if it's skipped.
+     */
+    private final int[] targetIndexes;
+    private final int targetComponentCount;
+    /**
+     * A handle of type <code>(Object[])Object</code> that invokes the
+     * projection's canonical constructor.
+     */
+    private final MethodHandle constructor;
+
+    /**
+     * Builds a projection from a registered record type to another record type.
+     * @param source The codec of the record type that's read.
+     * @param target The record type to read it into.
+     * @throws IllegalArgumentException If the target isn't a record, or if
+     * any of its components isn't also a component of the source type.
+     */
+    RecordProjection(RecordCodec<?> source, Class<?> target) {
+        if (!target.isRecord()) throw new IllegalArgumentException(target + " is not a record.");
+        Class<?> sourceType = source.info().type();
+        Class<?>[] sourceTypes = source.info().componentTypes();
+        RecordComponent[] targetComponents = target.getRecordComponents();
+        int[] indexes = new int[sourceTypes.length];
+        Arrays.fill(indexes, -1);
+        Class<?>[] paramTypes = new Class<?>[targetComponents.length];
+        for (int i = 0; i < targetComponents.length; i++) {
+            int sourceIndex = source.componentIndex(targetComponents[i].getName());
+            if (!sourceTypes[sourceIndex].equals(targetComponents[i].getType())) {
+                throw new IllegalArgumentException("Component " + targetComponents[i].getName() + " of " + target +
+                        " does not have the same type as in " + sourceType);
+            }
+            indexes[sourceIndex] = i;
+            paramTypes[i] = targetComponents[i].getType();
+        }
+        this.source = source;
+        this.targetIndexes = indexes;
+        this.targetComponentCount = targetComponents.length;
+        try {
+            MethodHandle ctor = RecordCodec.lookupFor(target).findConstructor(target, MethodType.methodType(void.class, paramTypes));
+            this.constructor = ctor.asSpreader(Object[].class, paramTypes.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Could not access the canonical constructor of " + target, e);
+        }
+    }
+
+    /**
+     * Reads a record of the source type, and returns its projection.
+     * @param in The input to read from.
+     * @return The projected record.
+     * @throws IOException If an error occurs.
+     */
+    Object read(RecordInput in) throws IOException {
+        ValueCodec[] codecs = source.componentCodecs();
+        Object[] args = new Object[targetComponentCount];
+        long outer = in.presence;
+        try {
+            source.readPresence(in);
+            for (int i = 0; i < codecs.length; i++) {
+                int targetIndex = targetIndexes[i];
+                if (targetIndex == -1) {
+                    codecs[i].skip(in);
+                } else {
+                    args[targetIndex] = codecs[i].read(in);
+                }
+            }
+        } finally {
+            in.presence = outer;
+        }
+        try {
+            return (Object) constructor.invokeExact(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+
+/**
+ * Reads the components of a record, for a {@link GeneratedCodec}. Each
+ * component must be read in order, with the method for its type. A reader is
+ * reused for every record that's read from the same input, so it must not be
+ * kept after {@link GeneratedCodec#read(RecordReader)} returns.
+ */
+public final class RecordReader {
+    private final RecordInput in;
+    /**
+     * The codec of the record that's being read.
+     */
+    RecordCodec<?> codec;
+
+    RecordReader(RecordInput in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads a boolean component.
+     * @return The value.
+     * @throws IOException If an error occurs.
+     */
+    public boolean readBoolean() throws IOException {
+        return in.readBoolean();
+    }
+
+    /**
+     * Reads a byte component.
+     * @return The value.
+     * @throws IOException If an error occurs.
+     */
+    public byte readByte() throws IOException {
+        return in.readByte();
+    }
+
+    /**
+     * Reads a short component.
+     * @return The value.
+     * @throws IOException If an error occurs.
+     */
+    public short readShort() throws IOException {
+        return in.readShort();
+    }
+
+    /**
+     * Reads a char component.
+     * @return The value.
+     * @throws IOException If an error occurs.
+     */
+    public char readChar() throws IOException {
+        return in.readChar();
+    }
+
+    /**
+     * Reads an int component.
+     * @return The value.
+     * @throws IOException If an error occurs.
+     */
+    public int readInt() throws IOException {
+        return codec.info().format() == WireFormat.COMPACT ? in.readZigZagInt() : in.readInt();
+    }
+
+    /**
+     * Reads a long component.
+     * @return The value.
+     * @throws IOException If an error occurs.
+     */
+    public long readLong() throws IOException {
+        return codec.info().format() == WireFormat.COMPACT ? in.readZigZagLong() : in.readLong();
+    }
+
+    /**
+     * Reads a float component.
+     * @return The value.
+     * @throws IOException If an error occurs.
+     */
+    public float readFloat() throws IOException {
+        return in.readFloat();
+    }
+
+    /**
+     * Reads a double component.
+     * @return The value.
+     * @throws IOException If an error occurs.
+     */
+    public double readDouble() throws IOException {
+        return in.readDouble();
+    }
+
+    /**
+     * Reads a component of any other type, with the codec that the
+     * serializer resolved for it.
+     * @param component The component's index.
+     * @return The value.
+     * @throws IOException If an error occurs.
+     */
+    public Object readObject(int component) throws IOException {
+        return codec.componentCodecs()[component].read(in);
+    }
+}
@@ -1,12 +1,23 @@
 package com.andrewlalis.record_net;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Defines the basic interface for serialization and deserialization of
- * messages to and from streams.
+ * messages to and from streams, buffers, and channels.
+ * <p>
+ *     The buffer and channel methods have default implementations that adapt
+ *     them to the stream methods, by copying. Implementations should override
+ *     them if they can work with buffers and channels directly.
+ * </p>
  * @see RecordMappedSerializer
  */
 public interface RecordSerializer {
@@ -25,4 +36,55 @@ public interface RecordSerializer {
      * @throws IOException If an error occurs.
      */
     void writeMessage(Object msg, OutputStream out) throws IOException;
+
+    /**
+     * Reads a message from a buffer, starting at its position, and advances
+     * the buffer's position past the message.
+     * @param buffer The buffer to read from.
+     * @return The object that was read.
+     * @throws IOException If an error occurs.
+     */
+    default Object readMessage(ByteBuffer buffer) throws IOException {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(buffer.position(), data);
+        var in = new ByteArrayInputStream(data);
+        Object msg = readMessage(in);
+        buffer.position(buffer.position() + data.length - in.available());
+        return msg;
+    }
+
+    /**
+     * Writes a message to a buffer, starting at its position, and advances
+     * the buffer's position past the message.
+     * @param msg The message to write.
+     * @param buffer The buffer to write to.
+     * @throws IOException If an error occurs.
+     * @throws java.nio.BufferOverflowException If the buffer doesn't have
+     * enough space for the message.
+     */
+    default void writeMessage(Object msg, ByteBuffer buffer) throws IOException {
+        var out = new ByteArrayOutputStream();
+        writeMessage(msg, out);
+        buffer.put(out.toByteArray());
+    }
+
+    /**
+     * Reads a message from a channel, which must be in blocking mode.
+     * @param channel The channel to read from.
+     * @return The object that was read.
+     * @throws IOException If an error occurs.
+     */
+    default Object readMessage(ReadableByteChannel channel) throws IOException {
+        return readMessage(Channels.newInputStream(channel));
+    }
+
+    /**
+     * Writes a message to a channel.
+     * @param msg The message to write.
+     * @param channel The channel to write to.
+     * @throws IOException If an error occurs.
+     */
+    default void writeMessage(Object msg, WritableByteChannel channel) throws IOException {
+        writeMessage(msg, Channels.newOutputStream(channel));
+    }
 }
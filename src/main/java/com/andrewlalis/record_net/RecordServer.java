@@ -0,0 +1,170 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Accepts connections on a server socket, and opens a {@link RecordChannel}
+ * for each of them, which reads on its own virtual thread, so a server can
+ * hold many thousands of connections.
+ * <pre>{@code
+ * RecordServer server = RecordServer.start(new InetSocketAddress(8080), serializer,
+ *         (msg, channel) -> switch (msg) {
+ *             case Ping ping -> new Pong(ping.time());
+ *             default -> null;
+ *         });
+ * }</pre>
+ */
+public final class RecordServer implements AutoCloseable {
+    private static final int BACKLOG = 1024;
+    /**
+     * The shortest and longest time to wait after accepting a connection
+     * fails, such as when the process has run out of file descriptors. The
+     * wait doubles after each failure in a row.
+     */
+    private static final long MIN_ACCEPT_BACKOFF_MILLIS = 5;
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    private final ServerSocket serverSocket;
+    private final RecordMappedSerializer serializer;
+    private final RecordHandler handler;
+    private final int maxFrameLength;
+    private final Set<RecordChannel> channels = ConcurrentHashMap.newKeySet();
+
+    private RecordServer(ServerSocket serverSocket, RecordMappedSerializer serializer, RecordHandler handler, int maxFrameLength) {
+        this.serverSocket = serverSocket;
+        this.serializer = serializer;
+        this.handler = handler;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Starts a server, which accepts connections on a virtual thread until
+     * it's closed. Frames up to the serializer's
+     * {@link RecordMappedSerializer#getMaxFrameLength() maximum frame length}
+     * are accepted.
+     * @param address The address to listen on. Use port 0 to pick any free
+     *                port, which can be found with {@link #getLocalPort()}.
+     * @param serializer The serializer to use for all connections.
+     * @param handler The handler for all messages that are received.
+     * @return The server.
+     * @throws IOException If the server socket can't be bound.
+     */
+    public static RecordServer start(SocketAddress address, RecordMappedSerializer serializer, RecordHandler handler) throws IOException {
+        return start(address, serializer, handler, serializer.getMaxFrameLength());
+    }
+
+    /**
+     * Starts a server, which accepts connections on a virtual thread until
+     * it's closed.
+     * @param address The address to listen on. Use port 0 to pick any free
+     *                port, which can be found with {@link #getLocalPort()}.
+     * @param serializer The serializer to use for all connections.
+     * @param handler The handler for all messages that are received.
+     * @param maxFrameLength The longest frame that a client may send. Longer
+     *                       ones close the client's channel before anything
+     *                       is allocated for them.
+     * @return The server.
+     * @throws IOException If the server socket can't be bound.
+     */
+    public static RecordServer start(SocketAddress address, RecordMappedSerializer serializer, RecordHandler handler, int maxFrameLength) throws IOException {
+        if (maxFrameLength < 0) throw new IllegalArgumentException("Invalid maximum frame length " + maxFrameLength);
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            serverSocket.bind(address, BACKLOG);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        RecordServer server = new RecordServer(serverSocket, serializer, handler, maxFrameLength);
+        Thread.ofVirtual().name("record-net-server-" + serverSocket.getLocalPort()).start(server::acceptLoop);
+        return server;
+    }
+
+    /**
+     * Starts a server that listens on a port of all local addresses.
+     * @see #start(SocketAddress, RecordMappedSerializer, RecordHandler)
+     * @param port The port to listen on.
+     * @param serializer The serializer to use for all connections.
+     * @param handler The handler for all messages that are received.
+     * @return The server.
+     * @throws IOException If the server socket can't be bound.
+     */
+    public static RecordServer start(int port, RecordMappedSerializer serializer, RecordHandler handler) throws IOException {
+        return start(new InetSocketAddress(port), serializer, handler);
+    }
+
+    /**
+     * Gets the port that this server is listening on.
+     * @return The port.
+     */
+    public int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Gets the channels of all open connections.
+     * @return An unmodifiable view of the channels.
+     */
+    public Collection<RecordChannel> channels() {
+        return Collections.unmodifiableSet(channels);
+    }
+
+    /**
+     * Stops accepting connections, and closes all open channels.
+     * @throws IOException If the server socket can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (RecordChannel channel : channels) channel.close();
+    }
+
+    private void acceptLoop() {
+        long backoffMillis = 0;
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+                backoffMillis = 0;
+            } catch (IOException e) {
+                // Either the server was closed, or accepting failed, which
+                // may keep happening until connections are closed, so wait
+                // instead of spinning.
+                if (serverSocket.isClosed()) break;
+                backoffMillis = Math.clamp(backoffMillis * 2, MIN_ACCEPT_BACKOFF_MILLIS, MAX_ACCEPT_BACKOFF_MILLIS);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    // Only closing the server stops it.
+                }
+                continue;
+            }
+            try {
+                RecordChannel channel = new RecordChannel(socket, serializer, handler, maxFrameLength);
+                channels.add(channel);
+                channel.onClose().whenComplete((v, e) -> channels.remove(channel));
+                // If the server was closed after this connection was
+                // accepted, then closing it may have missed the channel.
+                if (serverSocket.isClosed()) {
+                    channel.close();
+                    break;
+                }
+                channel.start();
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // The connection is dropped either way.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read-only view of a record that's still in its encoded form, in the
+ * buffer it was read from. Components are only decoded when they're accessed,
+ * so a message can be inspected, or routed based on a single component,
+ * without decoding the rest of it.
+ * <p>
+ *     A view doesn't copy the message's bytes, so the buffer that it was read
+ *     from must not be modified for as long as the view is used.
+ * </p>
+ * @see RecordMappedSerializer#readView(ByteBuffer)
+ */
+public final class RecordView {
+    private final RecordCodec<?> codec;
+    private final ByteBuffer data;
+    /**
+     * The offset of each component in {@link #data}.
+     */
+    private final int[] offsets;
+    /**
+     * The record's presence bitmap, if it has one.
+     */
+    private final long presence;
+    /**
+     * The message's reference table as of the end of the record, or null if
+     * it's empty, and the size that it had at the start of the record, and
+     * at the start of each component. Since a component may refer back to
+     * values from before it, it's decoded with the table as it was then.
+     */
+    private final List<Object> references;
+    private final int startReferenceCount;
+    private final int[] referenceCounts;
+
+    /**
+     * Creates a view of the record that starts at a buffer's position, and
+     * advances the buffer's position past it. This skips over each of the
+     * record's components once, to find where they start.
+     * @param codec The codec for the record's type.
+     * @param buffer The buffer to read from, in the serializer's byte order.
+     * @param references The message's reference table as of the start of the
+     *                   record, or null if it's empty. It isn't modified.
+     * @throws IOException If an error occurs, or {@link java.io.EOFException}
+     * if the buffer doesn't contain the whole record.
+     */
+    RecordView(RecordCodec<?> codec, ByteBuffer buffer, List<Object> references) throws IOException {
+        ValueCodec[] codecs = codec.componentCodecs();
+        int start = buffer.position();
+        int[] componentOffsets = new int[codecs.length];
+        int[] counts = new int[codecs.length];
+        RecordInput in = RecordInput.of(buffer);
+        if (references != null) in.references = new ArrayList<>(references);
+        codec.readPresence(in);
+        for (int i = 0; i < codecs.length; i++) {
+            componentOffsets[i] = buffer.position() - start;
+            counts[i] = in.references == null ? 0 : in.references.size();
+            codecs[i].skip(in);
+        }
+        this.codec = codec;
+        this.data = buffer.slice(start, buffer.position() - start).order(buffer.order());
+        this.offsets = componentOffsets;
+        this.presence = in.presence;
+        this.references = in.references;
+        this.startReferenceCount = references == null ? 0 : references.size();
+        this.referenceCounts = counts;
+    }
+
+    /**
+     * Gets the type of the record that this view is of.
+     * @return The record type.
+     */
+    public Class<?> type() {
+        return codec.info().type();
+    }
+
+    /**
+     * Gets the number of bytes that the record takes up.
+     * @return The record's encoded size, in bytes.
+     */
+    public int encodedSize() {
+        return data.remaining();
+    }
+
+    /**
+     * Decodes a single component of the record. Primitive components are
+     * returned as their wrapper type.
+     * @param index The index of the component, in declaration order.
+     * @return The component's value.
+     * @throws IOException If an error occurs.
+     * @throws IndexOutOfBoundsException If there's no component at the index.
+     */
+    public Object get(int index) throws IOException {
+        RecordInput in = inputAt(offsets[index], referenceCounts[index]);
+        in.presence = presence;
+        return codec.componentCodecs()[index].read(in);
+    }
+
+    /**
+     * Decodes a single component of the record.
+     * @param name The name of the component.
+     * @return The component's value.
+     * @throws IOException If an error occurs.
+     * @throws IllegalArgumentException If the record has no such component.
+     */
+    public Object get(String name) throws IOException {
+        return get(codec.componentIndex(name));
+    }
+
+    /**
+     * Gets a view of a component that's itself a record, without decoding it.
+     * For a component whose type is a sealed interface, the view is of the
+     * record type that its value actually has.
+     * @param name The name of the component.
+     * @return A view of the component's value, or null if it's null.
+     * @throws IOException If an error occurs.
+     * @throws IllegalArgumentException If the record has no such component,
+     * or if it isn't a record.
+     */
+    public RecordView getView(String name) throws IOException {
+        int index = codec.componentIndex(name);
+        ValueCodec component = codec.info().componentCodecs()[index];
+        if (!(component instanceof ValueCodecs.RecordRefCodec) && !(component instanceof ValueCodecs.SealedCodec)) {
+            throw new IllegalArgumentException("Component " + name + " of " + type() + " is not a record.");
+        }
+        if (codec.componentCodecs()[index] instanceof ValueCodecs.NullableCodec n && (presence & n.bit()) == 0) return null;
+        ByteBuffer buffer = data.duplicate().position(offsets[index]).order(data.order());
+        RecordCodec<?> target = component instanceof ValueCodecs.SealedCodec sealed
+                ? sealed.readCodec(RecordInput.of(buffer))
+                : ((ValueCodecs.RecordRefCodec) component).codec();
+        return new RecordView(target, buffer, referencesBefore(referenceCounts[index]));
+    }
+
+    /**
+     * Decodes the whole record.
+     * @return The record.
+     * @throws IOException If an error occurs.
+     */
+    public Object toRecord() throws IOException {
+        return codec.read(inputAt(0, startReferenceCount));
+    }
+
+    private RecordInput inputAt(int offset, int referenceCount) {
+        RecordInput in = RecordInput.of(data.duplicate().position(offset).order(data.order()));
+        in.references = referencesBefore(referenceCount);
+        return in;
+    }
+
+    /**
+     * Copies the start of the reference table, so that a component can be
+     * decoded with the table as it was before it, which decoding then adds to.
+     * @param count The number of values to copy.
+     * @return The copy, or null if it's empty.
+     */
+    private List<Object> referencesBefore(int count) {
+        return count == 0 ? null : new ArrayList<>(references.subList(0, count));
+    }
+}
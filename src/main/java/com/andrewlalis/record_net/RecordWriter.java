@@ -0,0 +1,113 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+
+/**
+ * Writes the components of a record, for a {@link GeneratedCodec}. Each
+ * component must be written in order, with the method for its type, and
+ * primitives are encoded in the serializer's {@link WireFormat}. A writer is
+ * reused for every record that's written to the same output, so it must not
+ * be kept after {@link GeneratedCodec#write(Object, RecordWriter)} returns.
+ */
+public final class RecordWriter {
+    private final RecordOutput out;
+    /**
+     * The codec of the record that's being written.
+     */
+    RecordCodec<?> codec;
+
+    RecordWriter(RecordOutput out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes a boolean component.
+     * @param v The value.
+     * @throws IOException If an error occurs.
+     */
+    public void writeBoolean(boolean v) throws IOException {
+        out.writeBoolean(v);
+    }
+
+    /**
+     * Writes a byte component.
+     * @param v The value.
+     * @throws IOException If an error occurs.
+     */
+    public void writeByte(byte v) throws IOException {
+        out.writeByte(v);
+    }
+
+    /**
+     * Writes a short component.
+     * @param v The value.
+     * @throws IOException If an error occurs.
+     */
+    public void writeShort(short v) throws IOException {
+        out.writeShort(v);
+    }
+
+    /**
+     * Writes a char component.
+     * @param v The value.
+     * @throws IOException If an error occurs.
+     */
+    public void writeChar(char v) throws IOException {
+        out.writeChar(v);
+    }
+
+    /**
+     * Writes an int component.
+     * @param v The value.
+     * @throws IOException If an error occurs.
+     */
+    public void writeInt(int v) throws IOException {
+        if (codec.info().format() == WireFormat.COMPACT) {
+            out.writeZigZagInt(v);
+        } else {
+            out.writeInt(v);
+        }
+    }
+
+    /**
+     * Writes a long component.
+     * @param v The value.
+     * @throws IOException If an error occurs.
+     */
+    public void writeLong(long v) throws IOException {
+        if (codec.info().format() == WireFormat.COMPACT) {
+            out.writeZigZagLong(v);
+        } else {
+            out.writeLong(v);
+        }
+    }
+
+    /**
+     * Writes a float component.
+     * @param v The value.
+     * @throws IOException If an error occurs.
+     */
+    public void writeFloat(float v) throws IOException {
+        out.writeFloat(v);
+    }
+
+    /**
+     * Writes a double component.
+     * @param v The value.
+     * @throws IOException If an error occurs.
+     */
+    public void writeDouble(double v) throws IOException {
+        out.writeDouble(v);
+    }
+
+    /**
+     * Writes a component of any other type, with the codec that the
+     * serializer resolved for it.
+     * @param component The component's index.
+     * @param value The value.
+     * @throws IOException If an error occurs.
+     */
+    public void writeObject(int component, Object value) throws IOException {
+        codec.componentCodecs()[component].write(value, out);
+    }
+}
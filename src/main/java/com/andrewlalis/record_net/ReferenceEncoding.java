@@ -0,0 +1,32 @@
+package com.andrewlalis.record_net;
+
+/**
+ * The ways that a {@link RecordMappedSerializer} can write values that repeat
+ * within a single message. Both sides of a connection must use the same
+ * encoding.
+ */
+public enum ReferenceEncoding {
+    /**
+     * The default encoding, in which every value is written in full, each
+     * time that it appears.
+     */
+    NONE,
+
+    /**
+     * Each message keeps a table of the strings and UUIDs that have been
+     * written in it so far, including those in nested records and arrays.
+     * Each one starts with a varint: zero if the value is written in full
+     * after it, and added to the end of the table, or otherwise one more
+     * than the index of an equal value that's already in the table. Readers
+     * return the same instance for every reference to a value, so a message
+     * that repeats a string a thousand times only decodes it once.
+     * <p>
+     *     This costs one extra byte for each value that isn't repeated, so
+     *     it's best suited to messages with many repeated values, such as
+     *     arrays of records that share names or identifiers. The table starts
+     *     empty at every message, so it never holds on to values for longer
+     *     than one message does.
+     * </p>
+     */
+    REFERENCE_TABLE
+}
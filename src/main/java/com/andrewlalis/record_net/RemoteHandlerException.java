@@ -0,0 +1,19 @@
+package com.andrewlalis.record_net;
+
+/**
+ * An exception that a {@link RecordChannel} request completes with when the
+ * remote end's {@link RecordHandler} couldn't handle the request. Its message
+ * is the <code>toString()</code> of the exception that the handler threw, so
+ * it includes that exception's class name, and it's cut short after
+ * {@value RecordChannel#MAX_ERROR_MESSAGE_LENGTH} characters.
+ */
+public class RemoteHandlerException extends RuntimeException {
+    /**
+     * Constructs the exception.
+     * @param message A description of the exception that the remote
+     *                handler threw.
+     */
+    public RemoteHandlerException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,29 @@
+package com.andrewlalis.record_net;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a record for the record-net annotation processor, which generates a
+ * {@link GeneratedCodec} for it at build time, named after the record with a
+ * <code>_RecordNetCodec</code> suffix, in the same package. The processor also
+ * generates a <code>RecordNetCodecs</code> class in each package with
+ * annotated records, which registers all of their codecs:
+ * <pre>{@code
+ * RecordMappedSerializer serializer = new RecordMappedSerializer();
+ * RecordNetCodecs.registerAll(serializer);
+ * }</pre>
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface SerializableRecord {
+    /**
+     * The id that the record is registered with.
+     * @return The message id.
+     */
+    int id();
+}
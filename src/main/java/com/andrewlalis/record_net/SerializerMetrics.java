@@ -0,0 +1,90 @@
+package com.andrewlalis.record_net;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects {@link TypeMetrics} for each type of message that one or more
+ * serializers write and read. Metrics are disabled by default; enable them by
+ * giving an instance of this class to
+ * {@link RecordMappedSerializer#setMetrics(SerializerMetrics)} or
+ * {@link RecordMappedSerializer.Builder#metrics(SerializerMetrics)}.
+ * <p>
+ *     When metrics are enabled, messages that take longer than the slow
+ *     message threshold to write or read, and messages that are larger than
+ *     the oversized message threshold, are also reported to JDK Flight
+ *     Recorder, as <code>com.andrewlalis.record_net.SlowMessage</code> and
+ *     <code>com.andrewlalis.record_net.OversizedMessage</code> events.
+ * </p>
+ */
+public final class SerializerMetrics {
+    private static final Duration DEFAULT_SLOW_MESSAGE_THRESHOLD = Duration.ofMillis(1);
+    private static final long DEFAULT_OVERSIZED_MESSAGE_THRESHOLD = 1024 * 1024;
+
+    private final ConcurrentMap<Class<?>, TypeMetrics> metrics = new ConcurrentHashMap<>();
+    private final ClassValue<TypeMetrics> metricsByType = new ClassValue<>() {
+        @Override
+        protected TypeMetrics computeValue(Class<?> type) {
+            return metrics.computeIfAbsent(type, TypeMetrics::new);
+        }
+    };
+    private final long slowMessageNanos;
+    private final long oversizedMessageBytes;
+
+    /**
+     * Creates metrics with a slow message threshold of 1 millisecond, and an
+     * oversized message threshold of 1 MiB.
+     */
+    public SerializerMetrics() {
+        this(DEFAULT_SLOW_MESSAGE_THRESHOLD, DEFAULT_OVERSIZED_MESSAGE_THRESHOLD);
+    }
+
+    /**
+     * Creates metrics with the given thresholds for reporting messages to
+     * JDK Flight Recorder.
+     * @param slowMessageThreshold The time that writing or reading a message
+     *                             must take for it to be reported as slow.
+     * @param oversizedMessageThreshold The number of bytes that a message must
+     *                                  take for it to be reported as oversized.
+     */
+    public SerializerMetrics(Duration slowMessageThreshold, long oversizedMessageThreshold) {
+        this.slowMessageNanos = slowMessageThreshold.toNanos();
+        this.oversizedMessageBytes = oversizedMessageThreshold;
+    }
+
+    /**
+     * Gets the metrics for a message type.
+     * @param type The message type.
+     * @return The type's metrics, which are all zero if no messages of that
+     * type have been written or read.
+     */
+    public TypeMetrics forType(Class<?> type) {
+        return metricsByType.get(type);
+    }
+
+    /**
+     * Gets the metrics for all message types that have been written or read.
+     * @return An unmodifiable view of the metrics.
+     */
+    public Collection<TypeMetrics> all() {
+        return Collections.unmodifiableCollection(metrics.values());
+    }
+
+    void recordWrite(Class<?> type, long bytes, long nanos) {
+        forType(type).recordWrite(bytes, nanos);
+        report(type, "write", bytes, nanos);
+    }
+
+    void recordRead(Class<?> type, long bytes, long nanos) {
+        forType(type).recordRead(bytes, nanos);
+        report(type, "read", bytes, nanos);
+    }
+
+    private void report(Class<?> type, String operation, long bytes, long nanos) {
+        if (nanos >= slowMessageNanos) MessageEvents.slowMessage(type, operation, bytes, nanos);
+        if (bytes >= oversizedMessageBytes) MessageEvents.oversizedMessage(type, operation, bytes);
+    }
+}
@@ -0,0 +1,24 @@
+package com.andrewlalis.record_net;
+
+/**
+ * The encodings that a {@link RecordMappedSerializer} can write strings in.
+ * Both sides of a connection must use the same encoding.
+ */
+public enum StringEncoding {
+    /**
+     * The default encoding, which is the modified UTF-8 used by
+     * {@link java.io.DataOutput#writeUTF(String)}, with a 2-byte length. Strings
+     * can't be longer than 65535 bytes in this encoding.
+     */
+    MODIFIED_UTF8,
+
+    /**
+     * Standard UTF-8, with an int length, or a varint length in the
+     * {@link WireFormat#COMPACT} format, so strings of any length can be
+     * written. ASCII strings are copied in bulk, and strings are decoded by
+     * the JDK's own UTF-8 decoder. Unpaired surrogate characters are written
+     * as <code>'?'</code>, just like {@link String#getBytes(java.nio.charset.Charset)}
+     * does.
+     */
+    UTF8
+}
@@ -0,0 +1,93 @@
+package com.andrewlalis.record_net;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the messages of a single type that a serializer has written
+ * and read. All counters are lock-free, and may be read at any time while
+ * they're being updated.
+ * @see SerializerMetrics
+ */
+public final class TypeMetrics {
+    private final Class<?> type;
+    private final LongAdder messagesWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder messagesRead = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LatencyHistogram encodeLatency = new LatencyHistogram();
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+
+    TypeMetrics(Class<?> type) {
+        this.type = type;
+    }
+
+    void recordWrite(long bytes, long nanos) {
+        messagesWritten.increment();
+        bytesWritten.add(bytes);
+        encodeLatency.record(nanos);
+    }
+
+    void recordRead(long bytes, long nanos) {
+        messagesRead.increment();
+        bytesRead.add(bytes);
+        decodeLatency.record(nanos);
+    }
+
+    /**
+     * Gets the message type that these metrics are for.
+     * @return The message type.
+     */
+    public Class<?> type() {
+        return type;
+    }
+
+    /**
+     * Gets the number of messages of this type that have been written.
+     * @return The count.
+     */
+    public long messagesWritten() {
+        return messagesWritten.sum();
+    }
+
+    /**
+     * Gets the number of bytes that messages of this type have been written
+     * as, including their ids and frame lengths.
+     * @return The number of bytes.
+     */
+    public long bytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Gets the number of messages of this type that have been read.
+     * @return The count.
+     */
+    public long messagesRead() {
+        return messagesRead.sum();
+    }
+
+    /**
+     * Gets the number of bytes that messages of this type have been read
+     * from, including their ids.
+     * @return The number of bytes.
+     */
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * Gets the histogram of how long it took to write each message.
+     * @return The histogram.
+     */
+    public LatencyHistogram encodeLatency() {
+        return encodeLatency;
+    }
+
+    /**
+     * Gets the histogram of how long it took to read each message.
+     * @return The histogram.
+     */
+    public LatencyHistogram decodeLatency() {
+        return decodeLatency;
+    }
+}
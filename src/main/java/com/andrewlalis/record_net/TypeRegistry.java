@@ -0,0 +1,105 @@
+package com.andrewlalis.record_net;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * An immutable snapshot of the types that are registered to a
+ * {@link RecordMappedSerializer}. Registering a type creates a new snapshot,
+ * so a registry can be read from any number of threads without locking.
+ */
+final class TypeRegistry {
+    /**
+     * The id and codec of a registered type.
+     * @param id The type's message id.
+     * @param codec The type's codec.
+     */
+    record Registration(int id, RecordCodec<?> codec) {}
+
+    /**
+     * Gets codecs of registered types from whichever snapshot is current, such
+     * as a serializer's. Codecs that look up other types through a source can
+     * keep what they find for as long as the snapshot stays the same.
+     */
+    @FunctionalInterface
+    interface Source extends Function<Class<?>, RecordCodec<?>> {
+        /**
+         * Gets the current snapshot.
+         * @return The registry.
+         */
+        TypeRegistry current();
+
+        @Override
+        default RecordCodec<?> apply(Class<?> type) {
+            return current().codecFor(type);
+        }
+    }
+
+    static final TypeRegistry EMPTY = new TypeRegistry(Map.of(), new IdentityHashMap<>());
+
+    private final Map<Integer, RecordCodec<?>> codecsById;
+    /**
+     * Each type's registration, by the type's identity. This is kept on the
+     * snapshot rather than on the classes themselves, such as with a
+     * {@link ClassValue}, since codecs of nested records reach back to their
+     * serializer, and so to the snapshot. A value that's attached to a
+     * long-lived class and reaches its own snapshot would never be cleared,
+     * and would keep every discarded serializer alive.
+     */
+    private final IdentityHashMap<Class<?>, Registration> registrationsByType;
+    private final IdTable idTable;
+
+    private TypeRegistry(Map<Integer, RecordCodec<?>> codecsById, IdentityHashMap<Class<?>, Registration> registrationsByType) {
+        this.codecsById = codecsById;
+        this.registrationsByType = registrationsByType;
+        this.idTable = new IdTable(codecsById);
+    }
+
+    /**
+     * Creates a new registry with an additional type. If the id or the type
+     * was already registered, the new registration replaces the old one.
+     * @param id The id of the type.
+     * @param codec The codec for the type.
+     * @return The new registry.
+     */
+    TypeRegistry with(int id, RecordCodec<?> codec) {
+        Class<?> type = codec.info().type();
+        Map<Integer, RecordCodec<?>> newCodecsById = new HashMap<>(codecsById);
+        IdentityHashMap<Class<?>, Registration> newRegistrationsByType = new IdentityHashMap<>(registrationsByType);
+        RecordCodec<?> replacedCodec = newCodecsById.put(id, codec);
+        if (replacedCodec != null) newRegistrationsByType.remove(replacedCodec.info().type());
+        Registration replaced = newRegistrationsByType.put(type, new Registration(id, codec));
+        if (replaced != null && replaced.id() != id) newCodecsById.remove(replaced.id());
+        return new TypeRegistry(newCodecsById, newRegistrationsByType);
+    }
+
+    /**
+     * Gets the codec for a message id.
+     * @param id The message id.
+     * @return The codec, or null if no type is registered with that id.
+     */
+    RecordCodec<?> codecFor(int id) {
+        return idTable.get(id);
+    }
+
+    /**
+     * Gets the registration of a type.
+     * @param type The type.
+     * @return The registration, or null if the type isn't registered.
+     */
+    Registration registrationFor(Class<?> type) {
+        return registrationsByType.get(type);
+    }
+
+    /**
+     * Gets the codec for a type.
+     * @param type The type.
+     * @return The codec, or null if the type isn't registered.
+     */
+    RecordCodec<?> codecFor(Class<?> type) {
+        Registration registration = registrationsByType.get(type);
+        return registration == null ? null : registration.codec();
+    }
+}
@@ -0,0 +1,118 @@
+package com.andrewlalis.record_net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A bounded cache of recently read strings and UUIDs, which a
+ * {@link MessageDecoder} keeps across messages, so that values which appear in
+ * message after message are only decoded and allocated once. Each value maps
+ * to a single slot by its hash, replacing whatever was there before, so
+ * lookups never need to allocate and the cache never grows.
+ * <p>
+ *     Strings are looked up by their encoded bytes, and only those of up to
+ *     {@link #MAX_STRING_LENGTH} bytes are cached, since longer strings are
+ *     less likely to repeat, and comparing them costs more.
+ * </p>
+ */
+final class ValueCache {
+    static final int MAX_STRING_LENGTH = 64;
+
+    private final boolean modifiedUtf8;
+    private final int mask;
+    private final byte[][] stringKeys;
+    private final String[] strings;
+    private final UUID[] uuids;
+    private final ByteBuffer scratchBuffer = ByteBuffer.allocate(MAX_STRING_LENGTH);
+
+    /**
+     * Creates an empty cache.
+     * @param capacity The number of strings, and separately of UUIDs, to
+     *                 keep, which is rounded up to a power of two.
+     * @param modifiedUtf8 Whether strings are in modified UTF-8, rather than
+     *                     standard UTF-8.
+     */
+    ValueCache(int capacity, boolean modifiedUtf8) {
+        if (capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("Invalid cache capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.modifiedUtf8 = modifiedUtf8;
+        this.mask = size - 1;
+        this.stringKeys = new byte[size][];
+        this.strings = new String[size];
+        this.uuids = new UUID[size];
+    }
+
+    /**
+     * Gets a buffer that strings which aren't whole in an input's buffer can
+     * be copied into, before looking them up.
+     * @return The scratch buffer, which holds {@link #MAX_STRING_LENGTH} bytes.
+     */
+    ByteBuffer scratchBuffer() {
+        return scratchBuffer;
+    }
+
+    /**
+     * Gets the string for some encoded bytes, decoding and caching it if it
+     * isn't cached yet. The buffer's position is left unchanged.
+     * @param buffer The buffer that holds the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes, without any length prefix.
+     * @return The string.
+     * @throws IOException If the bytes aren't valid modified UTF-8.
+     */
+    String string(ByteBuffer buffer, int offset, int length) throws IOException {
+        int hash = length;
+        for (int i = 0; i < length; i++) hash = 31 * hash + buffer.get(offset + i);
+        int slot = spread(hash) & mask;
+        byte[] key = stringKeys[slot];
+        if (key != null && key.length == length && matches(key, buffer, offset)) return strings[slot];
+        key = new byte[length];
+        buffer.get(offset, key);
+        String s = decode(key);
+        stringKeys[slot] = key;
+        strings[slot] = s;
+        return s;
+    }
+
+    /**
+     * Gets the UUID with the given bits, creating and caching it if it isn't
+     * cached yet.
+     * @param msb The most significant bits.
+     * @param lsb The least significant bits.
+     * @return The UUID.
+     */
+    UUID uuid(long msb, long lsb) {
+        int slot = spread(Long.hashCode(msb ^ lsb)) & mask;
+        UUID uuid = uuids[slot];
+        if (uuid != null && uuid.getMostSignificantBits() == msb && uuid.getLeastSignificantBits() == lsb) return uuid;
+        uuid = new UUID(msb, lsb);
+        uuids[slot] = uuid;
+        return uuid;
+    }
+
+    private String decode(byte[] bytes) throws IOException {
+        if (!modifiedUtf8) return new String(bytes, StandardCharsets.UTF_8);
+        ByteBuffer prefixed = ByteBuffer.allocate(2 + bytes.length).putShort((short) bytes.length).put(bytes).flip();
+        return DataInputStream.readUTF(RecordInput.of(prefixed));
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer buffer, int offset) {
+        if (buffer.hasArray()) {
+            int from = buffer.arrayOffset() + offset;
+            return Arrays.equals(key, 0, key.length, buffer.array(), from, from + key.length);
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != buffer.get(offset + i)) return false;
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,89 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads and writes values of a single type that's known ahead of time, such
+ * as the declared type of a record component. Codecs are resolved once, when
+ * a record type is registered, so that reading and writing values doesn't
+ * need to inspect any types.
+ * @see ValueCodecs
+ */
+interface ValueCodec {
+    /**
+     * Reads a value from an input.
+     * @param in The input to read from.
+     * @return The value that was read.
+     * @throws IOException If an error occurs.
+     */
+    Object read(RecordInput in) throws IOException;
+
+    /**
+     * Writes a value to an output.
+     * @param value The value to write.
+     * @param out The output to write to.
+     * @throws IOException If an error occurs.
+     */
+    void write(Object value, RecordOutput out) throws IOException;
+
+    /**
+     * Skips over a value in an input, without decoding it. Values with a
+     * fixed size are skipped over directly, and any others are read and
+     * discarded, unless the codec knows a cheaper way to skip them.
+     * @param in The input to skip the value in.
+     * @throws IOException If an error occurs.
+     */
+    default void skip(RecordInput in) throws IOException {
+        int size = fixedSize();
+        if (size != -1) {
+            in.skipBytes(size);
+        } else {
+            read(in);
+        }
+    }
+
+    /**
+     * Computes the exact number of bytes that {@link #write(Object, RecordOutput)}
+     * would write for a value, without writing it.
+     * @param value The value to measure.
+     * @return The value's encoded size, in bytes.
+     */
+    int sizeOf(Object value);
+
+    /**
+     * Computes the exact number of bytes that a value would be written as, at
+     * a point in a message where the given values have already been written
+     * to its reference table. Codecs that may contain a
+     * {@link ValueCodecs.ReferenceCodec} must pass the table on to it, and it
+     * adds any values that it hasn't seen yet.
+     * @param value The value to measure.
+     * @param references The message's reference table so far, mapping each
+     *                   value to its index.
+     * @return The value's encoded size, in bytes.
+     * @see ReferenceEncoding
+     */
+    default int sizeOf(Object value, Map<Object, Integer> references) {
+        return sizeOf(value);
+    }
+
+    /**
+     * Gets the encoded size of every value of this codec's type, if it's
+     * always the same.
+     * @return The fixed size, in bytes, or -1 if the size depends on the value.
+     */
+    default int fixedSize() {
+        return -1;
+    }
+
+    /**
+     * Gets the fewest bytes that a value of this codec's type can take, which
+     * is used to check an array's length before allocating it. Values without
+     * a fixed size take at least one byte, unless they may be left out.
+     * @return The minimum size, in bytes.
+     */
+    default int minSize() {
+        int size = fixedSize();
+        return size == -1 ? 1 : size;
+    }
+}
@@ -0,0 +1,707 @@
+package com.andrewlalis.record_net;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Factory for the {@link ValueCodec} that handles each supported type. The
+ * type of a value is resolved exactly once, here, so that the returned codec
+ * can read and write without any further type checks.
+ */
+final class ValueCodecs {
+    private ValueCodecs() {}
+
+    private static final Map<Class<?>, ValueCodec> SIMPLE_CODECS = Map.ofEntries(
+            Map.entry(Integer.class, codec(RecordInput::readInt, (v, d) -> d.writeInt((Integer) v), Integer.BYTES)),
+            Map.entry(Short.class, codec(RecordInput::readShort, (v, d) -> d.writeShort((Short) v), Short.BYTES)),
+            Map.entry(Byte.class, codec(RecordInput::readByte, (v, d) -> d.writeByte((Byte) v), Byte.BYTES)),
+            Map.entry(Character.class, codec(RecordInput::readChar, (v, d) -> d.writeChar((Character) v), Character.BYTES)),
+            Map.entry(Long.class, codec(RecordInput::readLong, (v, d) -> d.writeLong((Long) v), Long.BYTES)),
+            Map.entry(Float.class, codec(RecordInput::readFloat, (v, d) -> d.writeFloat((Float) v), Float.BYTES)),
+            Map.entry(Double.class, codec(RecordInput::readDouble, (v, d) -> d.writeDouble((Double) v), Double.BYTES)),
+            Map.entry(Boolean.class, codec(RecordInput::readBoolean, (v, d) -> d.writeBoolean((Boolean) v), 1)),
+            Map.entry(String.class, codec(IOUtil::readString, (v, d) -> IOUtil.writeString((String) v, d), v -> IOUtil.sizeOfString((String) v), in -> in.skipBytes(in.readUnsignedShort()))),
+            Map.entry(UUID.class, codec(RecordInput::readUUID, (v, d) -> IOUtil.writeUUID((UUID) v, d), 2 * Long.BYTES)),
+            Map.entry(byte[].class, new PrimitiveArrayCodec(byte.class, Byte.BYTES, false)),
+            Map.entry(short[].class, new PrimitiveArrayCodec(short.class, Short.BYTES, false)),
+            Map.entry(int[].class, new PrimitiveArrayCodec(int.class, Integer.BYTES, false)),
+            Map.entry(long[].class, new PrimitiveArrayCodec(long.class, Long.BYTES, false)),
+            Map.entry(float[].class, new PrimitiveArrayCodec(float.class, Float.BYTES, false)),
+            Map.entry(double[].class, new PrimitiveArrayCodec(double.class, Double.BYTES, false)),
+            Map.entry(boolean[].class, new PrimitiveArrayCodec(boolean.class, 1, false)),
+            Map.entry(char[].class, new PrimitiveArrayCodec(char.class, Character.BYTES, false))
+    );
+
+    /**
+     * The codecs that differ from {@link #SIMPLE_CODECS} in the
+     * {@link WireFormat#COMPACT} format.
+     */
+    private static final Map<Class<?>, ValueCodec> COMPACT_CODECS = Map.ofEntries(
+            Map.entry(Integer.class, codec(RecordInput::readZigZagInt, (v, d) -> d.writeZigZagInt((Integer) v), v -> IOUtil.sizeOfVarInt(IOUtil.zigZagEncode((Integer) v)), RecordInput::readVarInt)),
+            Map.entry(Long.class, codec(RecordInput::readZigZagLong, (v, d) -> d.writeZigZagLong((Long) v), v -> IOUtil.sizeOfVarLong(IOUtil.zigZagEncode((Long) v)), RecordInput::readVarLong)),
+            Map.entry(byte[].class, new PrimitiveArrayCodec(byte.class, Byte.BYTES, true)),
+            Map.entry(short[].class, new PrimitiveArrayCodec(short.class, Short.BYTES, true)),
+            Map.entry(int[].class, new PrimitiveArrayCodec(int.class, Integer.BYTES, true)),
+            Map.entry(long[].class, new PrimitiveArrayCodec(long.class, Long.BYTES, true)),
+            Map.entry(float[].class, new PrimitiveArrayCodec(float.class, Float.BYTES, true)),
+            Map.entry(double[].class, new PrimitiveArrayCodec(double.class, Double.BYTES, true)),
+            Map.entry(boolean[].class, new PrimitiveArrayCodec(boolean.class, 1, true)),
+            Map.entry(char[].class, new PrimitiveArrayCodec(char.class, Character.BYTES, true))
+    );
+
+    /**
+     * Resolves the codec to use for values of the given type.
+     * @param type The type of value.
+     * @param recordCodecs A function that gets the codec for a registered
+     *                     record type, or null if it's not registered (yet).
+     * @param format The wire format to use.
+     * @param strings The string encoding to use.
+     * @param nulls The null encoding to use. With a presence bitmap, the
+     *              returned codec never sees null values, so enums don't
+     *              need a null ordinal.
+     * @param references The reference encoding to use. With a reference
+     *                   table, strings and UUIDs are wrapped in a
+     *                   {@link ReferenceCodec}.
+     * @return The codec to use.
+     */
+    static ValueCodec forType(Class<?> type, Function<Class<?>, RecordCodec<?>> recordCodecs, WireFormat format, StringEncoding strings, NullEncoding nulls, ReferenceEncoding references) {
+        boolean compact = format == WireFormat.COMPACT;
+        if (references == ReferenceEncoding.REFERENCE_TABLE && (type == String.class || type == UUID.class)) {
+            return new ReferenceCodec(forType(type, recordCodecs, format, strings, nulls, ReferenceEncoding.NONE));
+        }
+        if (type == String.class && strings == StringEncoding.UTF8) return new Utf8StringCodec(compact);
+        Class<?> boxedType = type.isPrimitive() ? MethodType.methodType(type).wrap().returnType() : type;
+        ValueCodec simple = compact ? COMPACT_CODECS.get(boxedType) : null;
+        if (simple == null) simple = SIMPLE_CODECS.get(boxedType);
+        if (simple != null) return simple;
+        if (type.isEnum()) return new EnumCodec((Enum<?>[]) type.getEnumConstants(), compact, nulls == NullEncoding.NONE);
+        if (type.isArray()) {
+            // Array elements aren't covered by a presence bitmap.
+            ValueCodec elementCodec = forType(type.getComponentType(), recordCodecs, format, strings, NullEncoding.NONE, references);
+            return new ObjectArrayCodec(type.getComponentType(), elementCodec, compact);
+        }
+        if (type.isRecord()) return new RecordRefCodec(type, recordCodecs);
+        if (type.isInterface() && type.isSealed()) {
+            List<Class<?>> subtypes = new ArrayList<>();
+            if (addPermittedRecords(type, subtypes)) return new SealedCodec(type, subtypes.toArray(Class<?>[]::new), recordCodecs, compact);
+        }
+        return new UnsupportedCodec(type);
+    }
+
+    /**
+     * Adds the records that are permitted to implement a sealed interface, in
+     * the order that they're declared, and in place of any sealed interfaces
+     * that are permitted to extend it, their own permitted records.
+     * @param type The sealed interface.
+     * @param subtypes The list to add the records to.
+     * @return True if every permitted subclass is a record or a sealed
+     * interface, or false if any other kind of class can implement it.
+     */
+    private static boolean addPermittedRecords(Class<?> type, List<Class<?>> subtypes) {
+        for (Class<?> subtype : type.getPermittedSubclasses()) {
+            if (subtype.isRecord()) {
+                if (!subtypes.contains(subtype)) subtypes.add(subtype);
+            } else if (!subtype.isInterface() || !subtype.isSealed() || !addPermittedRecords(subtype, subtypes)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private interface Reader {
+        Object read(RecordInput in) throws IOException;
+    }
+
+    private interface Writer {
+        void write(Object value, RecordOutput out) throws IOException;
+    }
+
+    private interface Sizer {
+        int sizeOf(Object value);
+    }
+
+    private interface Skipper {
+        void skip(RecordInput in) throws IOException;
+    }
+
+    private static ValueCodec codec(Reader reader, Writer writer, int fixedSize) {
+        return new ValueCodec() {
+            @Override
+            public Object read(RecordInput in) throws IOException {
+                return reader.read(in);
+            }
+
+            @Override
+            public void write(Object value, RecordOutput out) throws IOException {
+                writer.write(value, out);
+            }
+
+            @Override
+            public int sizeOf(Object value) {
+                return fixedSize;
+            }
+
+            @Override
+            public int fixedSize() {
+                return fixedSize;
+            }
+        };
+    }
+
+    private static ValueCodec codec(Reader reader, Writer writer, Sizer sizer, Skipper skipper) {
+        return new ValueCodec() {
+            @Override
+            public Object read(RecordInput in) throws IOException {
+                return reader.read(in);
+            }
+
+            @Override
+            public void write(Object value, RecordOutput out) throws IOException {
+                writer.write(value, out);
+            }
+
+            @Override
+            public int sizeOf(Object value) {
+                return sizer.sizeOf(value);
+            }
+
+            @Override
+            public void skip(RecordInput in) throws IOException {
+                skipper.skip(in);
+            }
+        };
+    }
+
+    /**
+     * Codec for enum values, which keeps its own table of the enum's constants.
+     * In the compact format, an enum is written as a varint of its ordinal,
+     * plus one if it may be null, so that null can be written as zero.
+     * @param constants The enum's constants.
+     * @param compact Whether to use the compact format.
+     * @param nullable Whether null values must be written by this codec.
+     */
+    private record EnumCodec(Enum<?>[] constants, boolean compact, boolean nullable) implements ValueCodec {
+        @Override
+        public Object read(RecordInput in) throws IOException {
+            if (!compact) return IOUtil.readEnum(constants, in);
+            int n = in.readVarInt();
+            if (nullable && n-- == 0) return null;
+            if (n < 0 || n >= constants.length) throw new StreamCorruptedException("Invalid enum ordinal " + n);
+            return constants[n];
+        }
+
+        @Override
+        public void write(Object value, RecordOutput out) throws IOException {
+            if (!compact) {
+                IOUtil.writeEnum((Enum<?>) value, out);
+            } else {
+                out.writeVarInt(varIntValue(value));
+            }
+        }
+
+        @Override
+        public int sizeOf(Object value) {
+            if (!compact) return Integer.BYTES;
+            return IOUtil.sizeOfVarInt(varIntValue(value));
+        }
+
+        @Override
+        public int fixedSize() {
+            return compact ? -1 : Integer.BYTES;
+        }
+
+        private int varIntValue(Object value) {
+            if (!nullable) return ((Enum<?>) value).ordinal();
+            return value == null ? 0 : ((Enum<?>) value).ordinal() + 1;
+        }
+    }
+
+    /**
+     * Codec for a component that may be null, in records that start with a
+     * presence bitmap. Null values aren't written at all, and when reading,
+     * the bit for the component is checked in {@link RecordInput#presence},
+     * which holds the bitmap of the record that's being read.
+     * @param codec The codec for present values.
+     * @param bit The component's bit in the bitmap.
+     */
+    record NullableCodec(ValueCodec codec, long bit) implements ValueCodec {
+        @Override
+        public Object read(RecordInput in) throws IOException {
+            return (in.presence & bit) != 0 ? codec.read(in) : null;
+        }
+
+        @Override
+        public void write(Object value, RecordOutput out) throws IOException {
+            if (value != null) codec.write(value, out);
+        }
+
+        @Override
+        public int sizeOf(Object value) {
+            return value == null ? 0 : codec.sizeOf(value);
+        }
+
+        @Override
+        public int sizeOf(Object value, Map<Object, Integer> references) {
+            return value == null ? 0 : codec.sizeOf(value, references);
+        }
+
+        @Override
+        public void skip(RecordInput in) throws IOException {
+            if ((in.presence & bit) != 0) codec.skip(in);
+        }
+
+        @Override
+        public int minSize() {
+            return 0;
+        }
+    }
+
+    /**
+     * Codec for strings in standard UTF-8, which are written as a length,
+     * followed by the encoded bytes. The length is an int, or a varint in the
+     * compact format.
+     * @param compact Whether to use the compact format.
+     */
+    private record Utf8StringCodec(boolean compact) implements ValueCodec {
+        @Override
+        public Object read(RecordInput in) throws IOException {
+            return in.readUtf8(compact ? in.readVarInt() : in.readInt());
+        }
+
+        @Override
+        public void write(Object value, RecordOutput out) throws IOException {
+            String s = (String) value;
+            int length = IOUtil.utf8Length(s);
+            if (compact) {
+                out.writeVarInt(length);
+            } else {
+                out.writeInt(length);
+            }
+            out.writeUtf8(s, length);
+        }
+
+        @Override
+        public int sizeOf(Object value) {
+            int length = IOUtil.utf8Length((String) value);
+            return Math.addExact(compact ? IOUtil.sizeOfVarInt(length) : Integer.BYTES, length);
+        }
+
+        @Override
+        public void skip(RecordInput in) throws IOException {
+            in.skipBytes(compact ? in.readVarInt() : in.readInt());
+        }
+    }
+
+    /**
+     * Codec for primitive arrays, which are written as a length, followed by
+     * the elements. The length is an int, or a varint in the compact format,
+     * but the elements always keep their usual fixed size, so that they can
+     * be copied in bulk.
+     * @param elementType The array's primitive component type.
+     * @param elementSize The size of each element, in bytes.
+     * @param compact Whether to use the compact format.
+     */
+    private record PrimitiveArrayCodec(Class<?> elementType, int elementSize, boolean compact) implements ValueCodec {
+        @Override
+        public Object read(RecordInput in) throws IOException {
+            int length = compact ? in.readVarInt() : in.readInt();
+            return IOUtil.readPrimitiveArrayElements(elementType, length, in);
+        }
+
+        @Override
+        public void write(Object value, RecordOutput out) throws IOException {
+            int length = Array.getLength(value);
+            if (compact) {
+                out.writeVarInt(length);
+            } else {
+                out.writeInt(length);
+            }
+            IOUtil.writePrimitiveArrayElements(value, out);
+        }
+
+        @Override
+        public int sizeOf(Object value) {
+            int length = Array.getLength(value);
+            int lengthSize = compact ? IOUtil.sizeOfVarInt(length) : Integer.BYTES;
+            return Math.addExact(lengthSize, Math.multiplyExact(elementSize, length));
+        }
+
+        @Override
+        public void skip(RecordInput in) throws IOException {
+            int length = compact ? in.readVarInt() : in.readInt();
+            in.skipBytes(Math.multiplyExact(elementSize, length));
+        }
+    }
+
+    /**
+     * Codec for arrays of non-primitive values, which are written as a
+     * length, followed by each element. The length is an int, or a varint in
+     * the compact format.
+     * @param elementType The array's component type.
+     * @param elementCodec The codec for each element.
+     * @param compact Whether to use the compact format.
+     */
+    private record ObjectArrayCodec(Class<?> elementType, ValueCodec elementCodec, boolean compact) implements ValueCodec {
+        @Override
+        public Object read(RecordInput in) throws IOException {
+            int length = compact ? in.readVarInt() : in.readInt();
+            in.checkRemaining(length, elementCodec.minSize());
+            Object[] array = (Object[]) Array.newInstance(elementType, length);
+            for (int i = 0; i < length; i++) {
+                array[i] = elementCodec.read(in);
+            }
+            return array;
+        }
+
+        @Override
+        public void write(Object value, RecordOutput out) throws IOException {
+            Object[] array = (Object[]) value;
+            if (compact) {
+                out.writeVarInt(array.length);
+            } else {
+                out.writeInt(array.length);
+            }
+            for (var element : array) elementCodec.write(element, out);
+        }
+
+        @Override
+        public int sizeOf(Object value) {
+            Object[] array = (Object[]) value;
+            int lengthSize = compact ? IOUtil.sizeOfVarInt(array.length) : Integer.BYTES;
+            int elementSize = elementCodec.fixedSize();
+            if (elementSize != -1) return Math.addExact(lengthSize, Math.multiplyExact(elementSize, array.length));
+            int size = lengthSize;
+            for (var element : array) size = Math.addExact(size, elementCodec.sizeOf(element));
+            return size;
+        }
+
+        @Override
+        public int sizeOf(Object value, Map<Object, Integer> references) {
+            if (elementCodec.fixedSize() != -1) return sizeOf(value);
+            Object[] array = (Object[]) value;
+            int size = compact ? IOUtil.sizeOfVarInt(array.length) : Integer.BYTES;
+            for (var element : array) size = Math.addExact(size, elementCodec.sizeOf(element, references));
+            return size;
+        }
+
+        @Override
+        public void skip(RecordInput in) throws IOException {
+            int length = compact ? in.readVarInt() : in.readInt();
+            int elementSize = elementCodec.fixedSize();
+            if (elementSize != -1) {
+                in.skipBytes(Math.multiplyExact(elementSize, length));
+            } else {
+                for (int i = 0; i < length; i++) elementCodec.skip(in);
+            }
+        }
+    }
+
+    /**
+     * Something that's been looked up through the function that gets codecs
+     * of registered record types, and the snapshot of the registered types
+     * that it was found in.
+     * @param snapshot The snapshot, as given by {@link #snapshotOf(Function)}.
+     * @param value The value that was looked up.
+     * @param <T> The type of the value.
+     */
+    private record Resolved<T>(Object snapshot, T value) {}
+
+    /**
+     * Gets the current snapshot of the types that a function gets codecs
+     * from. Anything that's been looked up from an earlier snapshot may be
+     * out of date, since types can be registered again.
+     * @param recordCodecs The function that gets codecs of registered record
+     *                     types.
+     * @return The current {@link TypeRegistry}, if the function is a
+     * {@link TypeRegistry.Source}, or otherwise the function itself, which is
+     * assumed to always give the same codec for a type.
+     */
+    private static Object snapshotOf(Function<Class<?>, RecordCodec<?>> recordCodecs) {
+        return recordCodecs instanceof TypeRegistry.Source source ? source.current() : recordCodecs;
+    }
+
+    /**
+     * Gets the codec of a record type from a snapshot.
+     * @param snapshot The snapshot, as given by {@link #snapshotOf(Function)}.
+     * @param type The record type.
+     * @param recordCodecs The function that the snapshot was taken from.
+     * @return The codec, or null if the type isn't registered.
+     */
+    private static RecordCodec<?> lookup(Object snapshot, Class<?> type, Function<Class<?>, RecordCodec<?>> recordCodecs) {
+        return snapshot instanceof TypeRegistry registry ? registry.codecFor(type) : recordCodecs.apply(type);
+    }
+
+    /**
+     * Codec for a nested record, which defers to the record type's own codec.
+     * Because record types may be registered in any order, the codec is looked
+     * up the first time it's needed, and then kept until the registered types
+     * change, since the type may have been registered again.
+     */
+    static final class RecordRefCodec implements ValueCodec {
+        private final Class<?> type;
+        private final Function<Class<?>, RecordCodec<?>> recordCodecs;
+        private volatile Resolved<RecordCodec<?>> resolved;
+
+        RecordRefCodec(Class<?> type, Function<Class<?>, RecordCodec<?>> recordCodecs) {
+            this.type = type;
+            this.recordCodecs = recordCodecs;
+        }
+
+        /**
+         * Gets the codec of the referenced record type.
+         * @return The record codec.
+         * @throws UnsupportedMessageTypeException If the type isn't registered.
+         */
+        RecordCodec<?> codec() {
+            RecordCodec<?> c = resolve();
+            if (c == null) throw MessageEvents.unsupportedMessageType(type);
+            return c;
+        }
+
+        /**
+         * Gets the codec of the referenced record type from the current
+         * snapshot of the registered types, and keeps it if it's found.
+         * @return The record codec, or null if the type isn't registered.
+         */
+        private RecordCodec<?> resolve() {
+            Object snapshot = snapshotOf(recordCodecs);
+            Resolved<RecordCodec<?>> r = resolved;
+            if (r != null && r.snapshot() == snapshot) return r.value();
+            RecordCodec<?> c = lookup(snapshot, type, recordCodecs);
+            if (c != null) resolved = new Resolved<>(snapshot, c);
+            return c;
+        }
+
+        @Override
+        public Object read(RecordInput in) throws IOException {
+            return codec().read(in);
+        }
+
+        @Override
+        public void write(Object value, RecordOutput out) throws IOException {
+            codec().write(value, out);
+        }
+
+        @Override
+        public int sizeOf(Object value) {
+            return codec().sizeOf(value);
+        }
+
+        @Override
+        public int sizeOf(Object value, Map<Object, Integer> references) {
+            return codec().sizeOf(value, references);
+        }
+
+        @Override
+        public void skip(RecordInput in) throws IOException {
+            codec().skip(in);
+        }
+
+        @Override
+        public int fixedSize() {
+            RecordCodec<?> c = resolve();
+            return c == null ? -1 : c.fixedSize();
+        }
+    }
+
+    /**
+     * Codec for a sealed interface whose permitted subclasses are all records,
+     * such as the elements of an <code>Event[]</code>. Each value is written as
+     * a tag for its record type, followed by the record itself. The tag is the
+     * type's index among the interface's permitted records, so reordering
+     * them changes the format. It's an unsigned byte, or a short if there are
+     * more than 256 records, or a varint in the compact format.
+     * <p>
+     *     Tags are looked up in a table that's built once, and each record
+     *     type's codec is looked up the first time it's needed, like in a
+     *     {@link RecordRefCodec}, since they may be registered in any order.
+     * </p>
+     */
+    static final class SealedCodec implements ValueCodec {
+        private final Class<?> type;
+        private final Class<?>[] subtypes;
+        private final Map<Class<?>, Integer> tags;
+        private final Function<Class<?>, RecordCodec<?>> recordCodecs;
+        private final boolean compact;
+        /**
+         * The codecs of the permitted subclasses that have been looked up so
+         * far, by tag, from the snapshot of registered types they came from.
+         */
+        private volatile Resolved<RecordCodec<?>[]> resolved;
+
+        SealedCodec(Class<?> type, Class<?>[] subtypes, Function<Class<?>, RecordCodec<?>> recordCodecs, boolean compact) {
+            this.type = type;
+            this.subtypes = subtypes;
+            this.recordCodecs = recordCodecs;
+            this.compact = compact;
+            Map<Class<?>, Integer> t = new HashMap<>();
+            for (int i = 0; i < subtypes.length; i++) t.put(subtypes[i], i);
+            this.tags = Map.copyOf(t);
+        }
+
+        /**
+         * Gets the codec of the record type with the given tag.
+         * @param tag The tag, which must be valid.
+         * @return The record codec.
+         * @throws UnsupportedMessageTypeException If the type isn't registered.
+         */
+        private RecordCodec<?> codec(int tag) {
+            Object snapshot = snapshotOf(recordCodecs);
+            Resolved<RecordCodec<?>[]> r = resolved;
+            if (r == null || r.snapshot() != snapshot) {
+                r = new Resolved<>(snapshot, new RecordCodec<?>[subtypes.length]);
+                resolved = r;
+            }
+            RecordCodec<?> c = r.value()[tag];
+            if (c == null) {
+                c = lookup(snapshot, subtypes[tag], recordCodecs);
+                if (c == null) throw MessageEvents.unsupportedMessageType(subtypes[tag]);
+                r.value()[tag] = c;
+            }
+            return c;
+        }
+
+        /**
+         * Reads a value's tag, and gets the codec for the rest of it.
+         * @param in The input to read from.
+         * @return The codec of the value's record type.
+         * @throws IOException If an error occurs, or if the tag is invalid.
+         */
+        RecordCodec<?> readCodec(RecordInput in) throws IOException {
+            int tag;
+            if (compact) {
+                tag = in.readVarInt();
+            } else {
+                tag = subtypes.length <= 1 << Byte.SIZE ? in.readUnsignedByte() : in.readUnsignedShort();
+            }
+            if (tag < 0 || tag >= subtypes.length) {
+                throw new StreamCorruptedException("Invalid tag " + tag + " for " + type.getSimpleName());
+            }
+            return codec(tag);
+        }
+
+        private RecordCodec<?> writeCodec(Object value, RecordOutput out) throws IOException {
+            int tag = tags.get(value.getClass());
+            if (compact) {
+                out.writeVarInt(tag);
+            } else if (subtypes.length <= 1 << Byte.SIZE) {
+                out.writeByte(tag);
+            } else {
+                out.writeShort(tag);
+            }
+            return codec(tag);
+        }
+
+        private int sizeOfTag(int tag) {
+            if (compact) return IOUtil.sizeOfVarInt(tag);
+            return subtypes.length <= 1 << Byte.SIZE ? Byte.BYTES : Short.BYTES;
+        }
+
+        @Override
+        public Object read(RecordInput in) throws IOException {
+            return readCodec(in).read(in);
+        }
+
+        @Override
+        public void write(Object value, RecordOutput out) throws IOException {
+            writeCodec(value, out).write(value, out);
+        }
+
+        @Override
+        public int sizeOf(Object value) {
+            int tag = tags.get(value.getClass());
+            return Math.addExact(sizeOfTag(tag), codec(tag).sizeOf(value));
+        }
+
+        @Override
+        public int sizeOf(Object value, Map<Object, Integer> references) {
+            int tag = tags.get(value.getClass());
+            return Math.addExact(sizeOfTag(tag), codec(tag).sizeOf(value, references));
+        }
+
+        @Override
+        public void skip(RecordInput in) throws IOException {
+            readCodec(in).skip(in);
+        }
+    }
+
+    /**
+     * Codec for values that are shared through the message's reference table,
+     * as described in {@link ReferenceEncoding#REFERENCE_TABLE}. The table is
+     * kept by the {@link RecordOutput} or {@link RecordInput}, which the
+     * serializer clears at the start of each message.
+     * @param codec The codec for values that are written in full.
+     */
+    record ReferenceCodec(ValueCodec codec) implements ValueCodec {
+        @Override
+        public Object read(RecordInput in) throws IOException {
+            List<Object> references = in.references();
+            int n = in.readVarInt();
+            if (n == 0) {
+                Object value = codec.read(in);
+                references.add(value);
+                return value;
+            }
+            if (n < 0 || n > references.size()) throw new StreamCorruptedException("Invalid reference " + n);
+            return references.get(n - 1);
+        }
+
+        @Override
+        public void write(Object value, RecordOutput out) throws IOException {
+            Map<Object, Integer> references = out.references();
+            Integer index = references.putIfAbsent(value, references.size());
+            if (index != null) {
+                out.writeVarInt(index + 1);
+            } else {
+                out.writeByte(0);
+                codec.write(value, out);
+            }
+        }
+
+        /**
+         * Computes the size of a value as if it were the first occurrence,
+         * since without a table, no earlier ones can be known.
+         * @param value The value to measure.
+         * @return The value's encoded size, in bytes.
+         */
+        @Override
+        public int sizeOf(Object value) {
+            return Math.addExact(1, codec.sizeOf(value));
+        }
+
+        @Override
+        public int sizeOf(Object value, Map<Object, Integer> references) {
+            Integer index = references.putIfAbsent(value, references.size());
+            return index != null ? IOUtil.sizeOfVarInt(index + 1) : sizeOf(value);
+        }
+    }
+
+    /**
+     * Codec for any type that can't be serialized.
+     * @param type The unsupported type.
+     */
+    private record UnsupportedCodec(Class<?> type) implements ValueCodec {
+        @Override
+        public Object read(RecordInput in) {
+            throw MessageEvents.unsupportedMessageType(type);
+        }
+
+        @Override
+        public void write(Object value, RecordOutput out) {
+            throw MessageEvents.unsupportedMessageType(type);
+        }
+
+        @Override
+        public int sizeOf(Object value) {
+            throw MessageEvents.unsupportedMessageType(type);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.andrewlalis.record_net;
+
+/**
+ * The formats that a {@link RecordMappedSerializer} can encode messages in.
+ * Both sides of a connection must use the same format.
+ */
+public enum WireFormat {
+    /**
+     * The default format, in which every int is written as 4 bytes and every
+     * long as 8 bytes, exactly like {@link java.io.DataOutput} would. This
+     * includes message ids, array lengths, and enum ordinals.
+     */
+    STANDARD,
+
+    /**
+     * A format that trades a little CPU time for less bandwidth, by using
+     * variable-length integers. Message ids, array lengths and enum ordinals
+     * are written as unsigned LEB128 varints, and int and long values (both
+     * primitive and boxed) are written as zigzag varints, so small values of
+     * either sign take only one or two bytes. Elements of <code>int[]</code>
+     * and <code>long[]</code> arrays keep their fixed size, so that they can
+     * still be copied in bulk.
+     */
+    COMPACT
+}
@@ -2,5 +2,6 @@
  * The record_net module definition.
  */
 module com.andrewlalis.record_net {
+    requires jdk.jfr;
     exports com.andrewlalis.record_net;
 }
\ No newline at end of file
@@ -0,0 +1,148 @@
+package com.andrewlalis.record_net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncMessageWriterTest {
+    record Tick (int producer, int n) {}
+    record Note (String text) {}
+
+    private final RecordMappedSerializer serializer = new RecordMappedSerializer();
+
+    public AsyncMessageWriterTest() {
+        serializer.registerType(1, Tick.class);
+        serializer.registerType(2, Note.class);
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncMessageWriter writer = AsyncMessageWriter.builder(serializer, out)
+                .queueCapacity(64)
+                .flushThreshold(4096)
+                .maxLatency(Duration.ofMillis(5))
+                .start();
+        int producers = 8;
+        int perProducer = 5000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    for (int n = 0; n < perProducer; n++) writer.send(new Tick(producer, n));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.join();
+        writer.close();
+        assertEquals(producers * perProducer, writer.messagesWritten());
+        assertEquals(out.size(), writer.bytesWritten());
+        assertTrue(writer.flushCount() < producers * perProducer / 10, "Flushes weren't batched.");
+        assertEquals(0, writer.queueDepth());
+        assertEquals(64, writer.queueCapacity());
+
+        // Every producer's messages arrive whole, and in order.
+        int[] next = new int[producers];
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (int i = 0; i < producers * perProducer; i++) {
+            Tick tick = (Tick) serializer.readFramedMessage(in);
+            assertEquals(next[tick.producer()]++, tick.n());
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testRejectedMessages() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncMessageWriter writer = AsyncMessageWriter.builder(serializer, out).start();
+        assertThrows(UnsupportedMessageTypeException.class, () -> writer.send("not a record"));
+        writer.send(new Tick(0, 1));
+        writer.close();
+        assertThrows(IOException.class, () -> writer.send(new Tick(0, 0)));
+        assertEquals(1, writer.messagesWritten());
+        assertEquals(new Tick(0, 1), serializer.readFramedMessage(new ByteArrayInputStream(out.toByteArray())));
+        // Closing it again does nothing.
+        writer.close();
+    }
+
+    @Test
+    public void testUnencodableMessage() throws Exception {
+        // Unframed messages fail after their id is written, which is discarded.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Throwable> errors = new ArrayList<>();
+        AsyncMessageWriter writer = AsyncMessageWriter.builder(serializer, out)
+                .framed(false)
+                .flushThreshold(16)
+                .onError(errors::add)
+                .start();
+        String longText = "x".repeat(10_000);
+        writer.send(new Note("first"));
+        writer.send(new Note(null));
+        writer.send(new Note(longText));
+        writer.send(new Note("last"));
+        writer.close();
+        assertEquals(3, writer.messagesWritten());
+        assertEquals(1, writer.failedCount());
+        assertEquals(1, errors.size());
+        assertInstanceOf(NullPointerException.class, errors.get(0));
+        assertEquals(out.size(), writer.bytesWritten());
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertEquals(new Note("first"), serializer.readMessage(in));
+        assertEquals(new Note(longText), serializer.readMessage(in));
+        assertEquals(new Note("last"), serializer.readMessage(in));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testMaxLatency() throws Exception {
+        // A lone message is flushed once the maximum latency has passed.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncMessageWriter lone = AsyncMessageWriter.builder(serializer, out).framed(false).maxLatency(Duration.ofMillis(20)).start();
+        lone.send(new Tick(1, 2));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (lone.flushCount() == 0 && System.nanoTime() < deadline) Thread.sleep(1);
+        assertEquals(1, lone.flushCount());
+        assertEquals(new Tick(1, 2), serializer.readMessage(new ByteArrayInputStream(out.toByteArray())));
+        lone.close();
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        // A slow stream pushes back on senders.
+        OutputStream slowStream = new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        AsyncMessageWriter slow = AsyncMessageWriter.builder(serializer, slowStream).queueCapacity(4).flushThreshold(8).start();
+        int sent = 0;
+        for (int i = 0; i < 100; i++) {
+            if (slow.trySend(new Tick(0, i))) sent++;
+        }
+        assertTrue(slow.rejectedCount() > 0);
+        assertEquals(100 - sent, slow.rejectedCount());
+        slow.close();
+        assertEquals(sent, slow.messagesWritten());
+    }
+}
@@ -0,0 +1,118 @@
+package com.andrewlalis.record_net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FrameIndexTest {
+    record Event (long seq, String source, double[] values) {}
+
+    private static final int COUNT = 20_000;
+
+    @Test
+    public void testScanBuffer() throws Exception {
+        for (WireFormat format : WireFormat.values()) {
+            RecordMappedSerializer serializer = serializer(format);
+            byte[] bytes = frames(serializer);
+            ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 3).put(bytes).put(new byte[]{0, 0, 0}).flip();
+            FrameIndex index = FrameIndex.scan(serializer, buffer);
+            assertEquals(COUNT, index.size());
+            assertEquals(3, index.trailingBytes());
+            assertEquals(0, buffer.position());
+            List<Object> messages = index.toList();
+            for (int i = 0; i < COUNT; i++) {
+                Event event = (Event) messages.get(i);
+                assertEquals(i, event.seq());
+                assertEquals(i % 20, event.values().length);
+            }
+        }
+    }
+
+    @Test
+    public void testRandomAccess() throws Exception {
+        for (WireFormat format : WireFormat.values()) {
+            RecordMappedSerializer serializer = serializer(format);
+            FrameIndex index = FrameIndex.scan(serializer, ByteBuffer.wrap(frames(serializer)));
+            assertEquals(12345L, ((Event) index.get(12345)).seq());
+            assertEquals(List.of(0L, 1L, 2L), index.stream().limit(3).map(e -> ((Event) e).seq()).toList());
+            LongAdder sum = new LongAdder();
+            index.forEachUnordered(e -> sum.add(((Event) e).seq()));
+            assertEquals((long) COUNT * (COUNT - 1) / 2, sum.sum());
+        }
+    }
+
+    @Test
+    public void testScanFile() throws Exception {
+        for (WireFormat format : WireFormat.values()) {
+            RecordMappedSerializer serializer = serializer(format);
+            Path file = Files.createTempFile("record-net", ".bin");
+            try {
+                Files.write(file, frames(serializer));
+                FrameIndex fileIndex = FrameIndex.scan(serializer, file);
+                assertEquals(COUNT, fileIndex.size());
+                assertEquals(0, fileIndex.trailingBytes());
+                assertEquals(COUNT, fileIndex.toList().size());
+                assertEquals(COUNT - 1L, ((Event) fileIndex.get(COUNT - 1)).seq());
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    public void testFrameLargerThanRegion() throws Exception {
+        RecordMappedSerializer serializer = serializer(WireFormat.STANDARD);
+        Path file = Files.createTempFile("record-net", ".bin");
+        try {
+            // A sparse file, whose only frame claims to be 1.5 GiB long, and
+            // which goes on past the first 1 GiB region.
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+                channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, 0x6000_0000));
+                channel.write(ByteBuffer.allocate(1), (1L << 30) + 16);
+            }
+            assertThrows(StreamCorruptedException.class, () -> FrameIndex.scan(serializer, file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testUnknownMessageId() throws Exception {
+        for (WireFormat format : WireFormat.values()) {
+            // A frame with an unknown id fails the whole decode.
+            RecordMappedSerializer other = new RecordMappedSerializer(format);
+            other.registerType(2, Event.class);
+            ByteBuffer unknown = ByteBuffer.allocate(1024);
+            other.writeFramedMessage(new Event(1, "x", new double[0]), unknown);
+            unknown.flip();
+            assertThrows(UnknownMessageIdException.class, () -> FrameIndex.scan(serializer(format), unknown).toList());
+        }
+    }
+
+    private static RecordMappedSerializer serializer(WireFormat format) {
+        return RecordMappedSerializer.builder()
+                .format(format)
+                .compression(new FrameCompression(64, 1, null))
+                .registerType(1, Event.class)
+                .build();
+    }
+
+    private static byte[] frames(RecordMappedSerializer serializer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < COUNT; i++) {
+            serializer.writeFramedMessage(new Event(i, "sensor-" + (i % 10), new double[i % 20]), out);
+        }
+        return out.toByteArray();
+    }
+}
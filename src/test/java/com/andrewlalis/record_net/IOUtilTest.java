@@ -6,7 +6,12 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class IOUtilTest {
@@ -36,4 +41,103 @@ public class IOUtilTest {
         assertEquals(true, IOUtil.readPrimitive(Boolean.class, dIn));
         assertEquals(false, IOUtil.readPrimitive(Boolean.class, dIn));
     }
+
+    /**
+     * Checks that the bulk array encoding is byte-for-byte identical to
+     * writing each element individually, through all the available paths, and
+     * that arrays round-trip through each of them.
+     */
+    @Test
+    public void testBulkPrimitiveArrays() throws Exception {
+        Random rand = new Random(42);
+        final int n = 10_000; // Big enough to span several chunks and buffers.
+        byte[] bytes = new byte[n];
+        rand.nextBytes(bytes);
+        short[] shorts = new short[n];
+        int[] ints = new int[n];
+        long[] longs = new long[n];
+        float[] floats = new float[n];
+        double[] doubles = new double[n];
+        boolean[] booleans = new boolean[n];
+        char[] chars = new char[n];
+        for (int i = 0; i < n; i++) {
+            shorts[i] = (short) rand.nextInt();
+            ints[i] = rand.nextInt();
+            longs[i] = rand.nextLong();
+            floats[i] = rand.nextFloat();
+            doubles[i] = rand.nextDouble();
+            booleans[i] = rand.nextBoolean();
+            chars[i] = (char) rand.nextInt();
+        }
+        floats[7] = Float.intBitsToFloat(0x7fc00123); // A NaN with a payload.
+        doubles[7] = Double.longBitsToDouble(0x7ff8000000000123L);
+
+        for (Object array : List.of(bytes, shorts, ints, longs, floats, doubles, booleans, chars)) {
+            // The reference encoding, written one element at a time.
+            ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+            DataOutputStream dOut = new DataOutputStream(expectedOut);
+            int length = Array.getLength(array);
+            dOut.writeInt(length);
+            for (int i = 0; i < length; i++) {
+                switch (array) {
+                    case byte[] a -> dOut.writeByte(a[i]);
+                    case short[] a -> dOut.writeShort(a[i]);
+                    case int[] a -> dOut.writeInt(a[i]);
+                    case long[] a -> dOut.writeLong(a[i]);
+                    case float[] a -> dOut.writeFloat(a[i]);
+                    case double[] a -> dOut.writeDouble(a[i]);
+                    case boolean[] a -> dOut.writeBoolean(a[i]);
+                    case char[] a -> dOut.writeChar(a[i]);
+                    default -> throw new IllegalStateException();
+                }
+            }
+            byte[] expected = expectedOut.toByteArray();
+
+            ByteArrayOutputStream chunkedOut = new ByteArrayOutputStream();
+            IOUtil.writePrimitiveArray(array, new DataOutputStream(chunkedOut));
+            assertArrayEquals(expected, chunkedOut.toByteArray());
+
+            ByteArrayOutputStream streamOut = new ByteArrayOutputStream();
+            RecordOutput recordOut = RecordOutput.of(streamOut);
+            IOUtil.writePrimitiveArray(array, recordOut);
+            recordOut.finish();
+            assertArrayEquals(expected, streamOut.toByteArray());
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length);
+            IOUtil.writePrimitiveArray(array, RecordOutput.of(buffer));
+            byte[] buffered = new byte[expected.length];
+            buffer.get(0, buffered);
+            assertArrayEquals(expected, buffered);
+
+            // The reference decoding, read one element at a time.
+            Object expectedArray = Array.newInstance(array.getClass().getComponentType(), length);
+            DataInputStream dIn = new DataInputStream(new ByteArrayInputStream(expected));
+            dIn.readInt();
+            for (int i = 0; i < length; i++) {
+                switch (expectedArray) {
+                    case byte[] a -> a[i] = dIn.readByte();
+                    case short[] a -> a[i] = dIn.readShort();
+                    case int[] a -> a[i] = dIn.readInt();
+                    case long[] a -> a[i] = dIn.readLong();
+                    case float[] a -> a[i] = dIn.readFloat();
+                    case double[] a -> a[i] = dIn.readDouble();
+                    case boolean[] a -> a[i] = dIn.readBoolean();
+                    case char[] a -> a[i] = dIn.readChar();
+                    default -> throw new IllegalStateException();
+                }
+            }
+
+            Class<?> type = array.getClass();
+            assertArrayEquals(expected, encode(IOUtil.readPrimitiveArray(type, new DataInputStream(new ByteArrayInputStream(expected)))));
+            assertArrayEquals(expected, encode(IOUtil.readPrimitiveArray(type, RecordInput.of(new ByteArrayInputStream(expected)))));
+            assertArrayEquals(expected, encode(IOUtil.readPrimitiveArray(type, RecordInput.of(ByteBuffer.wrap(expected)))));
+            assertArrayEquals(expected, encode(expectedArray));
+        }
+    }
+
+    private static byte[] encode(Object array) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtil.writePrimitiveArray(array, new DataOutputStream(out));
+        return out.toByteArray();
+    }
 }
@@ -0,0 +1,172 @@
+package com.andrewlalis.record_net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordBatchTest {
+    enum Side {BUY, SELL}
+    record Point (int x, int y) {}
+    record Trade (long id, double price, boolean open, char grade, String symbol, Side side, Integer lot, Point at, UUID account) {}
+    record Other (int x) {}
+
+    @Test
+    public void testReadAndWrite() throws Exception {
+        for (WireFormat format : WireFormat.values()) {
+            for (NullEncoding nulls : NullEncoding.values()) {
+                RecordMappedSerializer serializer = serializer(format, nulls);
+                List<Trade> trades = trades(nulls);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                serializer.writeBatch(Trade.class, trades, out);
+                if (nulls == NullEncoding.PRESENCE_BITMAP) {
+                    int rowSize = 0;
+                    for (Trade t : trades) rowSize += serializer.sizeOf(t);
+                    assertTrue(out.size() < rowSize);
+                }
+
+                RecordBatch batch = serializer.readBatch(new ByteArrayInputStream(out.toByteArray()));
+                assertEquals(Trade.class, batch.type());
+                assertEquals(trades.size(), batch.size());
+                assertEquals(trades, batch.toList());
+            }
+        }
+    }
+
+    @Test
+    public void testColumns() throws Exception {
+        for (WireFormat format : WireFormat.values()) {
+            for (NullEncoding nulls : NullEncoding.values()) {
+                RecordMappedSerializer serializer = serializer(format, nulls);
+                List<Trade> trades = trades(nulls);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                serializer.writeBatch(Trade.class, trades, out);
+                RecordBatch batch = serializer.readBatch(new ByteArrayInputStream(out.toByteArray()));
+                long[] ids = batch.column("id", long[].class);
+                char[] grades = batch.column("grade", char[].class);
+                String[] symbols = batch.column("symbol", String[].class);
+                Side[] sides = batch.column("side", Side[].class);
+                Integer[] lots = batch.column("lot", Integer[].class);
+                for (int i = 0; i < trades.size(); i++) {
+                    Trade t = trades.get(i);
+                    assertEquals(t.id(), ids[i]);
+                    assertEquals(t.grade(), grades[i]);
+                    assertEquals(t.symbol(), symbols[i]);
+                    assertEquals(t.side(), sides[i]);
+                    assertEquals(t.lot(), lots[i]);
+                }
+                // Dictionary values are shared.
+                assertSame(symbols[1], symbols[11]);
+            }
+        }
+    }
+
+    @Test
+    public void testBuffers() throws Exception {
+        for (WireFormat format : WireFormat.values()) {
+            for (NullEncoding nulls : NullEncoding.values()) {
+                RecordMappedSerializer serializer = serializer(format, nulls);
+                List<Trade> trades = trades(nulls);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                serializer.writeBatch(Trade.class, trades, out);
+
+                // Batches can be written to and read from buffers, leaving
+                // the position unchanged if they don't fit.
+                ByteBuffer buffer = ByteBuffer.allocate(out.size() + 8);
+                buffer.putInt(42);
+                serializer.writeBatch(Trade.class, trades, buffer);
+                assertEquals(4 + out.size(), buffer.position());
+                ByteBuffer small = ByteBuffer.allocate(out.size() - 1);
+                assertThrows(BufferOverflowException.class, () -> serializer.writeBatch(Trade.class, trades, small));
+                assertEquals(0, small.position());
+                buffer.flip().getInt();
+                RecordBatch view = serializer.readBatch(buffer);
+                assertFalse(buffer.hasRemaining());
+                assertArrayEquals(
+                        serializer.readBatch(new ByteArrayInputStream(out.toByteArray())).column("id", long[].class),
+                        view.column("id", long[].class)
+                );
+                assertThrows(EOFException.class, () -> serializer.readBatch(ByteBuffer.wrap(out.toByteArray(), 0, out.size() - 1)));
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyBatch() throws Exception {
+        for (WireFormat format : WireFormat.values()) {
+            for (NullEncoding nulls : NullEncoding.values()) {
+                RecordMappedSerializer serializer = serializer(format, nulls);
+                ByteBuffer empty = ByteBuffer.allocate(64);
+                serializer.writeBatch(Trade.class, List.of(), empty);
+                RecordBatch emptyBatch = serializer.readBatch(empty.flip());
+                assertEquals(0, emptyBatch.size());
+                assertEquals(0, ((String[]) emptyBatch.column("symbol")).length);
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidBatches() {
+        RecordMappedSerializer serializer = new RecordMappedSerializer();
+        serializer.registerType(1, Point.class);
+        assertThrows(UnsupportedMessageTypeException.class, () -> serializer.writeBatch(Other.class, List.of(new Other(1)), new ByteArrayOutputStream()));
+        assertThrows(IllegalArgumentException.class, () -> serializer.writeBatch(Point.class, Arrays.asList(new Point(1, 2), null), new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testLayout() throws Exception {
+        RecordMappedSerializer serializer = new RecordMappedSerializer();
+        serializer.registerType(1, Point.class);
+        // Arrays are written by wrapping them in a list.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Point[] points = {new Point(1, 2), new Point(3, 4)};
+        serializer.writeBatch(Point.class, Arrays.asList(points), out);
+        byte[] bytes = out.toByteArray();
+        // The id, the size, then each column's length and two ints.
+        assertEquals(4 + 4 + 2 * (4 + 8), bytes.length);
+        assertArrayEquals(new int[] {2, 4}, serializer.readBatch(new ByteArrayInputStream(bytes)).column("y", int[].class));
+        // A column with bytes left over is corrupt.
+        bytes[4 + 3] = 1;
+        assertThrows(StreamCorruptedException.class, () -> serializer.readBatch(ByteBuffer.wrap(bytes)).column(0));
+    }
+
+    private static RecordMappedSerializer serializer(WireFormat format, NullEncoding nulls) {
+        return RecordMappedSerializer.builder()
+                .format(format)
+                .nullEncoding(nulls)
+                .registerType(1, Point.class)
+                .registerType(2, Trade.class)
+                .build();
+    }
+
+    /**
+     * Creates some trades, some of whose components are null.
+     * @param nulls The null encoding that they'll be written with. Without a
+     *              bitmap, only strings and enums may be null.
+     * @return The trades.
+     */
+    private static List<Trade> trades(NullEncoding nulls) {
+        List<Trade> trades = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            trades.add(new Trade(
+                    i, i * 0.5, i % 3 == 0, (char) ('A' + i % 4),
+                    i % 7 == 0 ? null : "SYM" + i % 10,
+                    i % 5 == 0 ? null : Side.values()[i % 2],
+                    nulls == NullEncoding.NONE ? Integer.valueOf(1) : i % 2 == 0 ? Integer.valueOf(i) : null,
+                    new Point(i, -i),
+                    new UUID(i, i)
+            ));
+        }
+        return trades;
+    }
+}
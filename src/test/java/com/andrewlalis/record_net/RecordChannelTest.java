@@ -0,0 +1,249 @@
+package com.andrewlalis.record_net;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordChannelTest {
+    record Ping (long n) {}
+    record Pong (long n) {}
+    record Note (String text) {}
+    record Slow (int latch) {}
+    record Fail () {}
+    record LongFail (int length) {}
+    record Data (int[] values) {}
+    record BadResponse () {}
+    record Crash () {}
+
+    /**
+     * A frame that claims to be huge, one with a negative array length, and
+     * a small one with a huge array length, for {@link #dataSerializer()}.
+     */
+    private static final byte[] HUGE_FRAME = {0, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0};
+    private static final byte[] NEGATIVE_FRAME = ByteBuffer.allocate(13).put((byte) 0).putInt(8).putInt(1).putInt(-1).array();
+    private static final byte[] HUGE_ARRAY_FRAME = ByteBuffer.allocate(13).put((byte) 0).putInt(8).putInt(1).putInt(0x10000000).array();
+
+    private final List<String> notes = Collections.synchronizedList(new ArrayList<>());
+    private final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * Slow requests wait until the test releases them.
+     */
+    private final List<CountDownLatch> latches = List.of(new CountDownLatch(1), new CountDownLatch(1));
+    private RecordMappedSerializer serializer;
+    private RecordServer server;
+    private RecordChannel channel;
+
+    @BeforeEach
+    public void connect() throws IOException {
+        serializer = new RecordMappedSerializer(WireFormat.COMPACT);
+        serializer.registerType(1, Ping.class);
+        serializer.registerType(2, Pong.class);
+        serializer.registerType(3, Note.class);
+        serializer.registerType(4, Slow.class);
+        serializer.registerType(5, Fail.class);
+        serializer.registerType(6, LongFail.class);
+        serializer.registerType(7, BadResponse.class);
+        serializer.registerType(8, Crash.class);
+        RecordDispatcher dispatcher = new RecordDispatcher()
+                .on(Ping.class, (ping, channel) -> new Pong(ping.n() + 1))
+                .on(Note.class, (note, channel) -> {
+                    notes.add(note.text());
+                    return null;
+                })
+                .on(Slow.class, (slow, channel) -> {
+                    latches.get(slow.latch()).await();
+                    return new Pong(slow.latch());
+                })
+                .on(Fail.class, (fail, channel) -> {
+                    throw new IllegalStateException("Failed on purpose");
+                })
+                .on(LongFail.class, (fail, channel) -> {
+                    throw new IllegalStateException("\u00e9".repeat(fail.length()));
+                })
+                .on(BadResponse.class, (bad, channel) -> new Note(null))
+                .on(Crash.class, (crash, channel) -> {
+                    throw new AssertionError("Crashed on purpose");
+                })
+                .onError((msg, error) -> errors.add(error));
+        server = RecordServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), serializer, dispatcher);
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        channel = RecordChannel.connect(address, serializer, (msg, ch) -> null);
+    }
+
+    @AfterEach
+    public void close() throws IOException {
+        latches.forEach(CountDownLatch::countDown);
+        channel.close();
+        server.close();
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        // A slow request doesn't hold up the others.
+        CompletableFuture<Pong> slow = channel.request(new Slow(0), Pong.class);
+        List<CompletableFuture<Pong>> pongs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) pongs.add(channel.request(new Ping(i), Pong.class));
+        for (int i = 0; i < 100; i++) assertEquals(new Pong(i + 1), pongs.get(i).get(5, TimeUnit.SECONDS));
+        assertFalse(slow.isDone());
+        latches.get(0).countDown();
+        assertEquals(new Pong(0), slow.get(5, TimeUnit.SECONDS));
+        assertEquals(0, channel.pendingRequests());
+    }
+
+    @Test
+    public void testSend() throws Exception {
+        for (int i = 0; i < 10; i++) channel.send(new Note("note " + i));
+        assertNull(channel.request(new Note("last")).get(5, TimeUnit.SECONDS));
+        assertEquals(11, notes.size());
+        assertEquals("note 0", notes.get(0));
+        assertEquals("last", notes.get(10));
+    }
+
+    @Test
+    public void testHandlerFailure() throws Exception {
+        var failure = assertThrows(ExecutionException.class, () -> channel.request(new Fail()).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RemoteHandlerException.class, failure.getCause());
+        assertTrue(failure.getCause().getMessage().contains("Failed on purpose"));
+        assertTrue(channel.isOpen());
+        assertEquals(0, channel.pendingRequests());
+    }
+
+    @Test
+    public void testHandlerError() throws Exception {
+        // Errors are sent back to the requester, just like exceptions.
+        var failure = assertThrows(ExecutionException.class, () -> channel.request(new Crash()).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RemoteHandlerException.class, failure.getCause());
+        assertTrue(failure.getCause().getMessage().startsWith(AssertionError.class.getName()));
+        // For plain messages, they're passed to the handler's error handler.
+        channel.send(new Crash());
+        assertEquals(new Pong(2), channel.request(new Ping(1), Pong.class).get(5, TimeUnit.SECONDS));
+        assertEquals(1, errors.size());
+        assertEquals("Crashed on purpose", errors.get(0).getMessage());
+        assertTrue(channel.isOpen());
+        assertEquals(1, server.channels().size());
+    }
+
+    @Test
+    public void testLongHandlerFailure() throws Exception {
+        // Messages too long to write are cut short, rather than closing the channel.
+        var failure = assertThrows(ExecutionException.class, () -> channel.request(new LongFail(100_000)).get(5, TimeUnit.SECONDS));
+        assertEquals(RecordChannel.MAX_ERROR_MESSAGE_LENGTH, failure.getCause().getMessage().length());
+        assertTrue(failure.getCause().getMessage().startsWith(IllegalStateException.class.getName()));
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void testUnsupportedMessageType() throws Exception {
+        assertThrows(UnsupportedMessageTypeException.class, () -> channel.send("not a record"));
+        assertTrue(channel.isOpen());
+        assertEquals(0, channel.pendingRequests());
+        // The request made after it still succeeds, on the same connection.
+        assertEquals(new Pong(2), channel.request(new Ping(1), Pong.class).get(5, TimeUnit.SECONDS));
+        assertEquals(1, server.channels().size());
+    }
+
+    @Test
+    public void testUnencodableMessage() throws Exception {
+        // A null string can't be encoded, but nothing of it is sent.
+        assertThrows(NullPointerException.class, () -> channel.send(new Note(null)));
+        assertThrows(NullPointerException.class, () -> channel.request(new Note(null)));
+        assertTrue(channel.isOpen());
+        assertEquals(0, channel.pendingRequests());
+        channel.send(new Note("ok"));
+        assertNull(channel.request(new Note("last")).get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("ok", "last"), notes);
+    }
+
+    @Test
+    public void testUnencodableResponse() throws Exception {
+        var failure = assertThrows(ExecutionException.class, () -> channel.request(new BadResponse()).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RemoteHandlerException.class, failure.getCause());
+        assertTrue(failure.getCause().getMessage().startsWith(NullPointerException.class.getName()));
+        assertTrue(channel.isOpen());
+        assertEquals(0, channel.pendingRequests());
+        assertEquals(new Pong(2), channel.request(new Ping(1), Pong.class).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testServerCloseFailsPendingRequests() throws Exception {
+        CompletableFuture<Pong> pending = channel.request(new Slow(1), Pong.class);
+        server.close();
+        channel.onClose().get(5, TimeUnit.SECONDS);
+        assertFalse(channel.isOpen());
+        var closed = assertThrows(ExecutionException.class, () -> pending.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, closed.getCause());
+    }
+
+    @Test
+    public void testRejectsOversizedFrame() throws Exception {
+        assertEquals(StreamCorruptedException.class, closeCauseFor(HUGE_FRAME).getClass());
+    }
+
+    @Test
+    public void testRejectsUndecodableFrame() throws Exception {
+        assertEquals(NegativeArraySizeException.class, closeCauseFor(NEGATIVE_FRAME).getClass());
+    }
+
+    @Test
+    public void testRejectsHugeArrayInSmallFrame() throws Exception {
+        // The array's length is checked against the frame before it's allocated.
+        Throwable cause = closeCauseFor(HUGE_ARRAY_FRAME);
+        assertEquals(EOFException.class, cause.getClass());
+        assertNotNull(cause.getMessage());
+    }
+
+    @Test
+    public void testServerRejectsOversizedFrame() throws Exception {
+        // A server closes a client's channel, rather than allocating its frame.
+        try (RecordServer limited = RecordServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), dataSerializer(), (msg, ch) -> null, 1024);
+             var socket = new Socket(InetAddress.getLoopbackAddress(), limited.getLocalPort())) {
+            socket.getOutputStream().write(HUGE_FRAME);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    /**
+     * Connects a channel to a fake server that answers its request with a bad
+     * frame, and gets the exception that the channel was closed because of.
+     * @param frame The frame to answer with.
+     * @return The cause of the request's failure.
+     * @throws Exception If an error occurs.
+     */
+    private Throwable closeCauseFor(byte[] frame) throws Exception {
+        try (var fakeServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), fakeServer.getLocalPort());
+            try (RecordChannel client = RecordChannel.connect(address, dataSerializer(), (msg, ch) -> null, 1024);
+                 var socket = fakeServer.accept()) {
+                CompletableFuture<Object> response = client.request(new Data(new int[] {1}));
+                socket.getOutputStream().write(frame);
+                client.onClose().get(5, TimeUnit.SECONDS);
+                var failure = assertThrows(ExecutionException.class, () -> response.get(5, TimeUnit.SECONDS));
+                return failure.getCause().getCause();
+            }
+        }
+    }
+
+    private static RecordMappedSerializer dataSerializer() {
+        RecordMappedSerializer serializer = new RecordMappedSerializer();
+        serializer.registerType(1, Data.class);
+        return serializer;
+    }
+}
@@ -0,0 +1,139 @@
+package com.andrewlalis.record_net;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordLogTest {
+    record Event (long seq, String source, int[] values) {}
+
+    private static final int COUNT = 5000;
+
+    private final RecordMappedSerializer serializer = new RecordMappedSerializer(WireFormat.COMPACT);
+
+    @TempDir
+    Path dir;
+
+    public RecordLogTest() {
+        serializer.registerType(1, Event.class);
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        try (RecordLog log = open()) {
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals(i, log.append(new Event(i, "sensor-" + (i % 7), new int[i % 5]), i * 10L));
+            }
+            assertEquals(COUNT, log.size());
+            assertTrue(log.segmentCount() > 5);
+            assertThrows(IllegalArgumentException.class, () -> log.append(new Event(-1, "", new int[0]), 0));
+        }
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        try (RecordLog log = openFilled()) {
+            RecordLog.Cursor all = log.cursor(0);
+            for (int i = 0; i < COUNT; i++) {
+                assertTrue(all.hasNext());
+                assertEquals(i, all.sequence());
+                assertEquals(i * 10L, all.timestamp());
+                assertEquals(i, ((Event) all.next()).seq());
+            }
+            assertFalse(all.hasNext());
+
+            assertEquals(1234L, ((Event) log.cursor(1234).next()).seq());
+            assertEquals(COUNT, log.cursor(COUNT).sequence());
+            assertThrows(IndexOutOfBoundsException.class, () -> log.cursor(COUNT + 1));
+        }
+    }
+
+    @Test
+    public void testCursorAtTimestamp() throws Exception {
+        try (RecordLog log = openFilled()) {
+            RecordLog.Cursor atTime = log.cursorAt(12_345);
+            assertEquals(1235, atTime.sequence());
+            assertEquals(1235L, ((Event) atTime.next()).seq());
+            assertEquals(0, log.cursorAt(Long.MIN_VALUE).sequence());
+            assertFalse(log.cursorAt(Long.MAX_VALUE).hasNext());
+        }
+    }
+
+    @Test
+    public void testCursorSeesFlushedMessages() throws Exception {
+        try (RecordLog log = openFilled()) {
+            // A cursor at the end sees messages once they're flushed.
+            RecordLog.Cursor end = log.cursor(COUNT);
+            assertFalse(end.hasNext());
+            log.append(new Event(COUNT, "tail", new int[0]), COUNT * 10L);
+            log.flush();
+            assertTrue(end.hasNext());
+            assertEquals("tail", ((Event) end.next()).source());
+        }
+    }
+
+    @Test
+    public void testRecoverTornEntry() throws Exception {
+        openFilled().close();
+        // Simulate a crash in the middle of writing an entry.
+        Path newest;
+        try (var files = Files.list(dir)) {
+            newest = files.filter(f -> f.toString().endsWith(".log")).max(Path::compareTo).orElseThrow();
+        }
+        long validSize = Files.size(newest);
+        Files.write(newest, new byte[] {0, 0, 0, 50, 1, 2, 3, 4, 0, 0, 0, 0, 0, 0, 0, 9, 1, 2}, StandardOpenOption.APPEND);
+        // The newest segment is preallocated while the log is open, and
+        // truncated to its entries when it's closed.
+        open().close();
+        assertEquals(validSize, Files.size(newest));
+        try (RecordLog log = open()) {
+            assertEquals(COUNT, log.size());
+            assertEquals(COUNT, log.append(new Event(COUNT, "after", new int[0])));
+            RecordLog.Cursor cursor = log.cursor(10);
+            for (long i = 10; i <= COUNT; i++) {
+                assertEquals(i, ((Event) cursor.next()).seq());
+            }
+        }
+    }
+
+    @Test
+    public void testRecoverLostIndex() throws Exception {
+        openFilled().close();
+        // A sealed segment's index is rebuilt if it's lost.
+        try (var files = Files.list(dir)) {
+            Files.delete(files.filter(f -> f.toString().endsWith(".idx")).min(Path::compareTo).orElseThrow());
+        }
+        try (RecordLog log = open()) {
+            assertEquals(COUNT, log.size());
+            RecordLog.Cursor cursor = log.cursor(10);
+            for (long i = 10; i < COUNT; i++) {
+                assertEquals(i, ((Event) cursor.next()).seq());
+            }
+            assertEquals(5L, ((Event) log.cursorAt(50).next()).seq());
+        }
+    }
+
+    private RecordLog open() throws IOException {
+        return RecordLog.builder(serializer, dir).segmentSize(16 * 1024).indexInterval(32).open();
+    }
+
+    /**
+     * Opens the log, and appends {@link #COUNT} events to it, with timestamps
+     * of ten times their sequence number.
+     * @return The log.
+     * @throws IOException If an error occurs.
+     */
+    private RecordLog openFilled() throws IOException {
+        RecordLog log = open();
+        for (int i = 0; i < COUNT; i++) {
+            log.append(new Event(i, "sensor-" + (i % 7), new int[i % 5]), i * 10L);
+        }
+        return log;
+    }
+}
@@ -1,9 +1,35 @@
 package com.andrewlalis.record_net;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -59,4 +85,1180 @@ public class RecordMappedSerializerTest {
         RecordB b = (RecordB) obj;
         assertEquals(testObj, b);
     }
+
+    @Test
+    public void testWireFormat() throws Exception {
+        record RecordC (byte a, short b, char c, int d, long e, float f, double g, boolean h, String s) {}
+        RecordMappedSerializer serializer = new RecordMappedSerializer();
+        serializer.registerType(3, RecordC.class);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        serializer.writeMessage(new RecordC((byte) 1, (short) 2, 'c', 4, 5L, 6.5f, 7.25, true, "hi"), baos);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DataOutputStream dOut = new DataOutputStream(expected);
+        dOut.writeInt(3);
+        dOut.writeByte(1);
+        dOut.writeShort(2);
+        dOut.writeChar('c');
+        dOut.writeInt(4);
+        dOut.writeLong(5L);
+        dOut.writeFloat(6.5f);
+        dOut.writeDouble(7.25);
+        dOut.writeBoolean(true);
+        dOut.writeUTF("hi");
+        assertArrayEquals(expected.toByteArray(), baos.toByteArray());
+        assertEquals(
+                new RecordC((byte) 1, (short) 2, 'c', 4, 5L, 6.5f, 7.25, true, "hi"),
+                serializer.readMessage(new ByteArrayInputStream(baos.toByteArray()))
+        );
+    }
+
+    @Test
+    public void testArraysAndEnums() throws Exception {
+        enum Color {RED, GREEN, BLUE}
+        record Point (int x, int y, Color color) {}
+        record Shape (String name, Point[] points, Color[] colors, UUID id) {}
+        RecordMappedSerializer serializer = new RecordMappedSerializer();
+        // Nested types may be registered after the types that use them.
+        serializer.registerType(1, Shape.class);
+        serializer.registerType(2, Point.class);
+        Shape shape = new Shape(
+                "triangle",
+                new Point[]{new Point(0, 0, Color.RED), new Point(1, 0, null), new Point(0, 1, Color.BLUE)},
+                new Color[]{Color.GREEN, null},
+                UUID.randomUUID()
+        );
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        serializer.writeMessage(shape, baos);
+        Shape result = (Shape) serializer.readMessage(new ByteArrayInputStream(baos.toByteArray()));
+        assertEquals(shape.name(), result.name());
+        assertArrayEquals(shape.points(), result.points());
+        assertArrayEquals(shape.colors(), result.colors());
+        assertEquals(shape.id(), result.id());
+    }
+
+    @Test
+    public void testBuffersAndChannels() throws Exception {
+        record RecordD (long a, String s, int[] values) {}
+        RecordMappedSerializer serializer = new RecordMappedSerializer();
+        serializer.registerType(4, RecordD.class);
+        RecordD testObj = new RecordD(123L, "buffered", new int[]{1, 2, 3});
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        serializer.writeMessage(testObj, baos);
+        byte[] expected = baos.toByteArray();
+
+        for (ByteBuffer buffer : List.of(ByteBuffer.allocate(64), ByteBuffer.allocateDirect(64))) {
+            serializer.writeMessage(testObj, buffer);
+            assertEquals(expected.length, buffer.position());
+            buffer.flip();
+            byte[] written = new byte[buffer.remaining()];
+            buffer.get(0, written);
+            assertArrayEquals(expected, written);
+            RecordD result = (RecordD) serializer.readMessage(buffer);
+            assertEquals(testObj.s(), result.s());
+            assertArrayEquals(testObj.values(), result.values());
+            assertFalse(buffer.hasRemaining());
+        }
+
+        ByteBuffer small = ByteBuffer.allocate(expected.length - 1);
+        assertThrows(BufferOverflowException.class, () -> serializer.writeMessage(testObj, small));
+        assertEquals(0, small.position());
+        ByteBuffer partial = ByteBuffer.wrap(expected, 0, expected.length - 1);
+        assertThrows(EOFException.class, () -> serializer.readMessage(partial));
+        assertEquals(0, partial.position());
+
+        baos.reset();
+        serializer.writeMessage(testObj, Channels.newChannel(baos));
+        assertArrayEquals(expected, baos.toByteArray());
+        RecordD result = (RecordD) serializer.readMessage(Channels.newChannel(new ByteArrayInputStream(expected)));
+        assertEquals(testObj.a(), result.a());
+    }
+
+    @Test
+    public void testSizeOf() throws Exception {
+        enum Kind {A, B}
+        record Inner (String label, double[] values) {}
+        record Outer (int id, String name, Inner[] inners, Kind kind, UUID uuid, Inner single) {}
+        RecordMappedSerializer serializer = new RecordMappedSerializer();
+        serializer.registerType(1, Inner.class);
+        serializer.registerType(2, Outer.class);
+        Outer msg = new Outer(
+                5,
+                "h\u00e9llo w\u00f6rld \u2603 \u0000",
+                new Inner[]{new Inner("x", new double[]{1, 2}), new Inner("", new double[0])},
+                Kind.B,
+                UUID.randomUUID(),
+                new Inner("single", new double[]{3})
+        );
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        serializer.writeMessage(msg, baos);
+        assertEquals(baos.size(), serializer.sizeOf(msg));
+        assertEquals(4 + (2 + 1) + 4, serializer.sizeOf(new Inner("a", new double[0])));
+
+        byte[] data = serializer.toByteArray(msg);
+        assertArrayEquals(baos.toByteArray(), data);
+        byte[] dest = new byte[data.length + 10];
+        assertEquals(data.length, serializer.writeMessage(msg, dest, 10));
+        assertArrayEquals(data, Arrays.copyOfRange(dest, 10, dest.length));
+    }
+
+    @Test
+    public void testFramedMessages() throws Exception {
+        record Ping (long time) {}
+        record Chat (String from, String text) {}
+        RecordMappedSerializer serializer = new RecordMappedSerializer();
+        serializer.registerType(1, Ping.class);
+        serializer.registerType(2, Chat.class);
+        RecordMappedSerializer otherSerializer = new RecordMappedSerializer();
+        otherSerializer.registerType(3, Ping.class);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        serializer.writeFramedMessage(new Ping(1), baos);
+        otherSerializer.writeFramedMessage(new Ping(2), baos); // Unknown to our serializer.
+        serializer.writeFramedMessage(new Chat("andrew", "hello"), baos);
+        byte[] data = baos.toByteArray();
+        assertEquals(3 * 4 + 2 * serializer.sizeOf(new Ping(1)) + serializer.sizeOf(new Chat("andrew", "hello")), data.length);
+
+        // Unknown messages are skipped, and the stream stays readable.
+        var in = new ByteArrayInputStream(data);
+        assertEquals(new Ping(1), serializer.readFramedMessage(in));
+        assertThrows(UnknownMessageIdException.class, () -> serializer.readFramedMessage(in));
+        assertEquals(new Chat("andrew", "hello"), serializer.readFramedMessage(in));
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        assertEquals(new Ping(1), serializer.readFramedMessage(buffer));
+        assertThrows(UnknownMessageIdException.class, () -> serializer.readFramedMessage(buffer));
+        ByteBuffer partial = buffer.duplicate().limit(data.length - 1);
+        assertThrows(EOFException.class, () -> serializer.readFramedMessage(partial));
+        assertEquals(buffer.position(), partial.position());
+        assertEquals(new Chat("andrew", "hello"), serializer.readFramedMessage(buffer));
+
+        // Feed the decoder in chunks of every size, including one byte at a time.
+        for (int chunkSize = 1; chunkSize <= data.length; chunkSize++) {
+            FrameDecoder decoder = new FrameDecoder(serializer);
+            List<Object> messages = new ArrayList<>();
+            int unknown = 0;
+            for (int offset = 0; offset < data.length; offset += chunkSize) {
+                ByteBuffer chunk = ByteBuffer.wrap(data, offset, Math.min(chunkSize, data.length - offset));
+                while (chunk.hasRemaining()) {
+                    try {
+                        decoder.feed(chunk, messages::add);
+                    } catch (UnknownMessageIdException e) {
+                        unknown++;
+                    }
+                }
+            }
+            assertEquals(List.of(new Ping(1), new Chat("andrew", "hello")), messages);
+            assertEquals(1, unknown);
+            assertEquals(0, decoder.bufferedBytes());
+        }
+
+        // Frame lengths are checked before anything is allocated for them.
+        assertEquals(FrameDecoder.DEFAULT_MAX_FRAME_LENGTH, serializer.getMaxFrameLength());
+        byte[] huge = {0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0};
+        assertThrows(StreamCorruptedException.class, () -> serializer.readFramedMessage(new ByteArrayInputStream(huge)));
+        assertThrows(StreamCorruptedException.class, () -> serializer.readFramedMessage(Channels.newChannel(new ByteArrayInputStream(huge))));
+        RecordMappedSerializer limited = RecordMappedSerializer.builder()
+                .maxFrameLength(16)
+                .registerType(1, Ping.class)
+                .registerType(2, Chat.class)
+                .build();
+        assertEquals(new Ping(1), limited.readFramedMessage(new ByteArrayInputStream(data)));
+        ByteArrayOutputStream longChat = new ByteArrayOutputStream();
+        limited.writeFramedMessage(new Chat("andrew", "a message that's too long"), longChat);
+        assertThrows(StreamCorruptedException.class, () -> limited.readFramedMessage(new ByteArrayInputStream(longChat.toByteArray())));
+        assertThrows(StreamCorruptedException.class, () -> new FrameDecoder(limited).feed(ByteBuffer.wrap(longChat.toByteArray()), msg -> {}));
+        assertThrows(IllegalArgumentException.class, () -> RecordMappedSerializer.builder().maxFrameLength(-1));
+    }
+
+    @Test
+    public void testCompactFormat() throws Exception {
+        enum Kind {A, B}
+        record Sample (int a, long b, Integer c, Long d, Kind kind, int[] values, String[] tags) {}
+        RecordMappedSerializer standard = new RecordMappedSerializer();
+        RecordMappedSerializer compact = new RecordMappedSerializer(WireFormat.COMPACT);
+        standard.registerType(1, Sample.class);
+        compact.registerType(1, Sample.class);
+        List<Sample> samples = List.of(
+                new Sample(0, 0, 0, 0L, Kind.A, new int[0], new String[0]),
+                new Sample(-1, 1, 63, -64L, null, new int[]{1, 2}, new String[]{"x"}),
+                new Sample(Integer.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, Kind.B, new int[300], new String[]{"a", "b"})
+        );
+        for (Sample sample : samples) {
+            byte[] data = compact.toByteArray(sample);
+            assertEquals(data.length, compact.sizeOf(sample));
+            Sample result = (Sample) compact.readMessage(ByteBuffer.wrap(data));
+            assertEquals(sample.a(), result.a());
+            assertEquals(sample.b(), result.b());
+            assertEquals(sample.c(), result.c());
+            assertEquals(sample.d(), result.d());
+            assertEquals(sample.kind(), result.kind());
+            assertArrayEquals(sample.values(), result.values());
+            assertArrayEquals(sample.tags(), result.tags());
+        }
+        // id, a, b, c, d, kind and both lengths each take a single byte.
+        assertEquals(8, compact.sizeOf(samples.getFirst()));
+        assertTrue(compact.sizeOf(samples.get(1)) < standard.sizeOf(samples.get(1)));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (Sample sample : samples) compact.writeFramedMessage(sample, baos);
+        var in = new ByteArrayInputStream(baos.toByteArray());
+        for (Sample sample : samples) {
+            assertEquals(sample.a(), ((Sample) compact.readFramedMessage(in)).a());
+        }
+
+        assertThrows(StreamCorruptedException.class, () -> IOUtil.readVarInt(
+                new DataInputStream(new ByteArrayInputStream(new byte[]{-1, -1, -1, -1, -1, 1}))
+        ));
+    }
+
+    @Test
+    public void testViewsAndProjections() throws Exception {
+        record Header (UUID destination, int hops) {}
+        record Envelope (Header header, String body, long[] data, String[] tags, long sent) {}
+        record Route (long sent, Header header) {}
+        record BadRoute (int sent) {}
+        for (WireFormat format : WireFormat.values()) {
+            RecordMappedSerializer serializer = new RecordMappedSerializer(format);
+            serializer.registerType(1, Header.class);
+            serializer.registerType(2, Envelope.class);
+            Envelope msg = new Envelope(
+                    new Header(UUID.randomUUID(), 3),
+                    "a fairly long message body",
+                    new long[]{1, 2, 3},
+                    new String[]{"x", "y"},
+                    42L
+            );
+            byte[] data = serializer.toByteArray(msg);
+            ByteBuffer buffer = ByteBuffer.allocate(data.length + 1).put(data).put((byte) 7).flip();
+
+            RecordView view = serializer.readView(buffer);
+            assertEquals(data.length, buffer.position());
+            assertEquals(Envelope.class, view.type());
+            assertEquals(42L, view.get("sent"));
+            assertEquals(msg.body(), view.get(1));
+            assertEquals(msg.header().destination(), view.getView("header").get("destination"));
+            assertEquals(msg.header(), view.get("header"));
+            Envelope full = (Envelope) view.toRecord();
+            assertArrayEquals(msg.tags(), full.tags());
+            assertThrows(IllegalArgumentException.class, () -> view.get("missing"));
+            assertThrows(IllegalArgumentException.class, () -> view.getView("body"));
+
+            assertEquals(new Route(42L, msg.header()), serializer.readMessageAs(ByteBuffer.wrap(data), Route.class));
+            var in = new ByteArrayInputStream(data);
+            assertEquals(new Route(42L, msg.header()), serializer.readMessageAs(in, Route.class));
+            assertEquals(0, in.available());
+            assertThrows(IllegalArgumentException.class, () -> serializer.readMessageAs(ByteBuffer.wrap(data), BadRoute.class));
+            ByteBuffer partial = ByteBuffer.wrap(data, 0, data.length - 1);
+            assertThrows(EOFException.class, () -> serializer.readView(partial));
+            assertEquals(0, partial.position());
+        }
+    }
+
+    @Test
+    public void testBuilder() throws Exception {
+        record Small (int a) {}
+        record Hashed (String s) {}
+        record Negative (long b) {}
+        RecordMappedSerializer serializer = RecordMappedSerializer.builder()
+                .format(WireFormat.COMPACT)
+                .registerType(1, Small.class)
+                .registerType(Hashed.class)
+                .registerType(-5, Negative.class)
+                .build();
+        assertEquals(WireFormat.COMPACT, serializer.getFormat());
+        assertThrows(IllegalStateException.class, () -> serializer.registerType(2, Small.class));
+        assertThrows(IllegalArgumentException.class, () -> RecordMappedSerializer.builder().registerType(1, String.class));
+        for (Object msg : List.of(new Small(3), new Hashed("hi"), new Negative(-7))) {
+            assertEquals(msg, serializer.readMessage(ByteBuffer.wrap(serializer.toByteArray(msg))));
+        }
+        assertThrows(UnknownMessageIdException.class, () -> serializer.readMessage(ByteBuffer.wrap(new byte[]{2})));
+
+        // Many sparse ids, which don't fit in a dense table.
+        Map<Integer, RecordCodec<?>> entries = new HashMap<>();
+        for (int i = 0; i < 1000; i++) entries.put(i * 7919 - 500_000, new RecordCodec<>(RecordInfo.forType(Small.class, t -> null, WireFormat.STANDARD, StringEncoding.MODIFIED_UTF8, NullEncoding.NONE, ReferenceEncoding.NONE)));
+        IdTable table = new IdTable(entries);
+        for (var entry : entries.entrySet()) assertSame(entry.getValue(), table.get(entry.getKey()));
+        assertNull(table.get(1));
+    }
+
+    @Test
+    public void testConcurrentRegistration() throws Exception {
+        record Msg (int value) {}
+        RecordMappedSerializer serializer = new RecordMappedSerializer();
+        serializer.registerType(1, Msg.class);
+        byte[] data = serializer.toByteArray(new Msg(5));
+        Thread registering = Thread.ofPlatform().start(() -> {
+            for (int i = 0; i < 200; i++) {
+                record Other (int x) {}
+                serializer.registerType(100 + i, Other.class);
+            }
+        });
+        while (registering.isAlive()) {
+            assertEquals(new Msg(5), serializer.readMessage(ByteBuffer.wrap(data)));
+            assertArrayEquals(data, serializer.toByteArray(new Msg(5)));
+        }
+        registering.join();
+    }
+
+    record LeakInner (int a) {}
+    record LeakOuter (LeakInner inner, String s) {}
+
+    @Test
+    public void testDiscardedSerializerIsCollected() throws Exception {
+        // Nested record codecs refer back to their serializer, which must not
+        // keep it reachable from the (long-lived) record classes.
+        java.lang.ref.WeakReference<RecordMappedSerializer> ref = discardedSerializer();
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(ref.get());
+    }
+
+    private static java.lang.ref.WeakReference<RecordMappedSerializer> discardedSerializer() throws IOException {
+        RecordMappedSerializer serializer = new RecordMappedSerializer();
+        serializer.registerType(1, LeakInner.class);
+        serializer.registerType(2, LeakOuter.class);
+        LeakOuter msg = new LeakOuter(new LeakInner(1), "a");
+        assertEquals(msg, serializer.readMessage(ByteBuffer.wrap(serializer.toByteArray(msg))));
+        assertTrue(serializer.isTypeSupported(LeakOuter.class));
+        return new java.lang.ref.WeakReference<>(serializer);
+    }
+
+    @Test
+    public void testEncoderDoesNotAllocate() throws Exception {
+        enum Side {BUY, SELL}
+        record Price (long units, int nanos) {}
+        record Order (long id, Price price, int quantity, Side side, boolean open, double weight, String symbol, UUID account) {}
+        RecordMappedSerializer serializer = RecordMappedSerializer.builder()
+                .registerType(1, Price.class)
+                .registerType(2, Order.class)
+                .build();
+        Order order = new Order(1, new Price(10, 500), 3, Side.SELL, true, 0.5, "ABC", UUID.randomUUID());
+        MessageEncoder encoder = serializer.newEncoder();
+        ByteBuffer heap = ByteBuffer.allocate(256);
+        ByteBuffer direct = ByteBuffer.allocateDirect(256);
+        OutputStream sink = OutputStream.nullOutputStream();
+        Runnable writeAll = () -> {
+            try {
+                for (int i = 0; i < 10_000; i++) {
+                    encoder.writeMessage(order, heap.clear());
+                    encoder.writeFramedMessage(order, direct.clear());
+                    encoder.writeMessage(order, sink);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        for (int i = 0; i < 20; i++) writeAll.run(); // Warm up.
+
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        writeAll.run();
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        // Allow for a little noise from measuring, but not one byte per message.
+        assertTrue(allocated < 10_000, "Allocated " + allocated + " bytes.");
+
+        MessageDecoder decoder = serializer.newDecoder();
+        assertEquals(order, decoder.readMessage(heap.flip()));
+        var baos = new ByteArrayOutputStream();
+        encoder.writeMessage(order, baos);
+        encoder.writeMessage(order, Channels.newChannel(baos));
+        var in = new ByteArrayInputStream(baos.toByteArray());
+        assertEquals(order, decoder.readMessage(in));
+        assertEquals(order, decoder.readMessage(Channels.newChannel(in)));
+    }
+
+    @Test
+    public void testUtf8Strings() throws Exception {
+        record Text (String a, String[] b) {}
+        String large = "x".repeat(100_000);
+        List<String> strings = List.of(
+                "",
+                "plain ascii",
+                "h\u00e9llo w\u00f6rld \u2603 \u0000",
+                "emoji \uD83D\uDE00 and an unpaired \uD83D surrogate",
+                large,
+                "\u00e9".repeat(40_000)
+        );
+        for (WireFormat format : WireFormat.values()) {
+            RecordMappedSerializer serializer = new RecordMappedSerializer(format, StringEncoding.UTF8);
+            serializer.registerType(1, Text.class);
+            for (String s : strings) {
+                Text msg = new Text(s, new String[]{s, "tail"});
+                byte[] data = serializer.toByteArray(msg);
+                assertEquals(data.length, serializer.sizeOf(msg));
+                String expected = new String(s.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+                ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+                serializer.writeMessage(msg, direct);
+                for (Object result : List.of(
+                        serializer.readMessage(ByteBuffer.wrap(data)),
+                        serializer.readMessage(direct.flip()),
+                        serializer.readMessage(new ByteArrayInputStream(data))
+                )) {
+                    assertEquals(expected, ((Text) result).a());
+                    assertEquals(expected, ((Text) result).b()[0]);
+                }
+            }
+        }
+
+        // Modified UTF-8 is still the default, and still limited to 65535 bytes.
+        RecordMappedSerializer legacy = new RecordMappedSerializer();
+        legacy.registerType(1, Text.class);
+        assertThrows(UTFDataFormatException.class, () -> legacy.writeMessage(new Text(large, new String[0]), new ByteArrayOutputStream()));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IOUtil.writeUtf8String(large, new DataOutputStream(baos));
+        assertEquals(IOUtil.sizeOfUtf8String(large), baos.size());
+        assertEquals(large, IOUtil.readUtf8String(new DataInputStream(new ByteArrayInputStream(baos.toByteArray()))));
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        record Reading (long time, double value, String sensor) {}
+        record Bulk (byte[] data) {}
+        for (WireFormat format : WireFormat.values()) {
+            SerializerMetrics metrics = new SerializerMetrics(Duration.ofDays(1), 1000);
+            RecordMappedSerializer serializer = RecordMappedSerializer.builder()
+                    .format(format)
+                    .metrics(metrics)
+                    .registerType(1, Reading.class)
+                    .registerType(2, Bulk.class)
+                    .build();
+            Reading reading = new Reading(42, 1.5, "thermometer");
+            Bulk bulk = new Bulk(new byte[2000]);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serializer.writeMessage(reading, out);
+            serializer.writeMessage(reading, out);
+            serializer.writeFramedMessage(bulk, out);
+            TypeMetrics readingMetrics = metrics.forType(Reading.class);
+            TypeMetrics bulkMetrics = metrics.forType(Bulk.class);
+            assertEquals(2, readingMetrics.messagesWritten());
+            assertEquals(2L * serializer.sizeOf(reading), readingMetrics.bytesWritten());
+            assertEquals(1, bulkMetrics.messagesWritten());
+            assertEquals(out.size() - 2L * serializer.sizeOf(reading), bulkMetrics.bytesWritten());
+            assertEquals(2, readingMetrics.encodeLatency().count());
+            assertEquals(0, readingMetrics.messagesRead());
+
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            MessageDecoder decoder = serializer.newDecoder();
+            assertEquals(reading, decoder.readMessage(in));
+            assertEquals(reading, serializer.readMessage(in));
+            assertEquals(2, readingMetrics.messagesRead());
+            assertEquals(2L * serializer.sizeOf(reading), readingMetrics.bytesRead());
+            assertEquals(2, readingMetrics.decodeLatency().count());
+            assertTrue(readingMetrics.decodeLatency().percentileNanos(50) > 0);
+            assertEquals(2, metrics.all().size());
+
+            serializer.setMetrics(null);
+            serializer.writeMessage(reading, new ByteArrayOutputStream());
+            assertEquals(2, readingMetrics.messagesWritten());
+        }
+
+        SerializerMetrics metrics = new SerializerMetrics(Duration.ofDays(1), 1000);
+        RecordMappedSerializer serializer = new RecordMappedSerializer();
+        serializer.setMetrics(metrics);
+        serializer.registerType(2, Bulk.class);
+        Path file = Files.createTempFile("record-net", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("com.andrewlalis.record_net.OversizedMessage");
+            recording.enable("com.andrewlalis.record_net.UnknownMessageId");
+            recording.start();
+            serializer.toByteArray(new Bulk(new byte[10]));
+            serializer.toByteArray(new Bulk(new byte[2000]));
+            assertThrows(UnknownMessageIdException.class, () -> serializer.readMessage(ByteBuffer.wrap(new byte[]{0, 0, 0, 7})));
+            // Exceptions that aren't thrown by the serializer aren't recorded.
+            assertEquals(8, new UnknownMessageIdException(8).messageId);
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertEquals(2, events.size());
+            RecordedEvent oversized = events.stream()
+                    .filter(e -> e.getEventType().getName().endsWith("OversizedMessage"))
+                    .findFirst().orElseThrow();
+            assertEquals(Bulk.class.getName(), oversized.getClass("messageType").getName());
+            assertEquals(serializer.sizeOf(new Bulk(new byte[2000])), oversized.getLong("bytes"));
+            assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().endsWith("UnknownMessageId") && e.getInt("messageId") == 7));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testFrameCompression() throws Exception {
+        enum Status {ACTIVE, SUSPENDED, CLOSED}
+        record Account (UUID id, String owner, String region, Status status, long balance) {}
+        record Batch (Account[] accounts) {}
+        record Ping (int n) {}
+        List<Account> samples = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            samples.add(new Account(UUID.randomUUID(), "customer-" + i, "eu-west-1", Status.values()[i % 3], i * 100L));
+        }
+        Batch batch = new Batch(samples.toArray(new Account[0]));
+        for (WireFormat format : WireFormat.values()) {
+            RecordMappedSerializer plain = RecordMappedSerializer.builder()
+                    .format(format)
+                    .registerType(1, Account.class)
+                    .registerType(2, Batch.class)
+                    .registerType(3, Ping.class)
+                    .build();
+            byte[] dictionary = FrameCompression.trainDictionary(plain, samples, 1024);
+            assertEquals(1024, dictionary.length);
+            RecordMappedSerializer compressed = RecordMappedSerializer.builder()
+                    .format(format)
+                    .compression(new FrameCompression(32, 6, dictionary))
+                    .registerType(1, Account.class)
+                    .registerType(2, Batch.class)
+                    .registerType(3, Ping.class)
+                    .build();
+            RecordMappedSerializer noDictionary = RecordMappedSerializer.builder()
+                    .format(format)
+                    .compression(new FrameCompression(32, 6, null))
+                    .registerType(1, Account.class)
+                    .registerType(2, Batch.class)
+                    .registerType(3, Ping.class)
+                    .build();
+
+            // Small records shrink with a dictionary, and large ones without.
+            Account account = new Account(UUID.randomUUID(), "customer-77", "eu-west-1", Status.ACTIVE, 7700);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            compressed.writeFramedMessage(account, out);
+            assertTrue(out.size() < Integer.BYTES + plain.sizeOf(account), "Account wasn't compressed.");
+            out.reset();
+            noDictionary.writeFramedMessage(batch, out);
+            assertTrue(out.size() < plain.sizeOf(batch) * 3 / 4, "Batch wasn't compressed.");
+
+            // Mixed traffic, including frames from an uncompressed writer.
+            out.reset();
+            compressed.writeFramedMessage(account, out);
+            compressed.writeFramedMessage(new Ping(1), out);
+            plain.writeFramedMessage(account, out);
+            compressed.writeFramedMessage(batch, out);
+            compressed.writeFramedMessage(batch, Channels.newChannel(out));
+            byte[] bytes = out.toByteArray();
+            ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+            assertEquals(account, compressed.readFramedMessage(in));
+            assertEquals(new Ping(1), compressed.readFramedMessage(in));
+            assertEquals(account, compressed.readFramedMessage(in));
+            assertArrayEquals(batch.accounts(), ((Batch) compressed.readFramedMessage(in)).accounts());
+            assertArrayEquals(batch.accounts(), ((Batch) compressed.readFramedMessage(Channels.newChannel(in))).accounts());
+
+            List<Object> messages = new ArrayList<>();
+            FrameDecoder decoder = new FrameDecoder(compressed);
+            for (int i = 0; i < bytes.length; i += 7) {
+                decoder.feed(ByteBuffer.wrap(bytes, i, Math.min(7, bytes.length - i)), messages::add);
+            }
+            assertEquals(5, messages.size());
+            assertEquals(account, messages.get(2));
+            assertArrayEquals(batch.accounts(), ((Batch) messages.get(4)).accounts());
+
+            ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+            compressed.writeFramedMessage(batch, buffer);
+            compressed.writeFramedMessage(account, buffer);
+            buffer.flip();
+            assertArrayEquals(batch.accounts(), ((Batch) compressed.readFramedMessage(buffer)).accounts());
+            assertEquals(account, compressed.readFramedMessage(buffer));
+            assertFalse(buffer.hasRemaining());
+
+            // A reader without compression rejects compressed frames.
+            assertThrows(StreamCorruptedException.class, () -> plain.readFramedMessage(new ByteArrayInputStream(bytes)));
+            // A reader with a different dictionary can't decompress them.
+            assertThrows(StreamCorruptedException.class, () -> noDictionary.readFramedMessage(new ByteArrayInputStream(bytes)));
+        }
+        assertThrows(IllegalArgumentException.class, () -> new FrameCompression(-1, 6, null));
+        assertThrows(IllegalArgumentException.class, () -> new FrameCompression(0, 10, null));
+    }
+
+    @Test
+    public void testDeltaSession() throws Exception {
+        enum Mode {IDLE, RUNNING}
+        record Vec (float x, float y, float z) {}
+        record Entity (int id, Vec position, Vec velocity, String name, Mode mode, long[] inventory, int a, int b, int c) {}
+        for (WireFormat format : WireFormat.values()) {
+            RecordMappedSerializer serializer = new RecordMappedSerializer(format);
+            serializer.registerType(1, Vec.class);
+            serializer.registerType(2, Entity.class);
+            DeltaSession writer = serializer.newDeltaSession(4);
+            DeltaSession reader = serializer.newDeltaSession(4);
+            List<Entity> entities = new ArrayList<>();
+            Entity e = new Entity(7, new Vec(0, 0, 0), new Vec(1, 0, 0), "player", Mode.IDLE, new long[]{1, 2, 3}, 1, 2, 3);
+            for (int i = 0; i < 10; i++) {
+                e = new Entity(7, new Vec(i, 0, 0), e.velocity(), e.name(), i < 5 ? Mode.IDLE : Mode.RUNNING, e.inventory(), 1, 2, 3);
+                entities.add(e);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            List<Integer> sizes = new ArrayList<>();
+            for (Entity entity : entities) {
+                int before = out.size();
+                writer.writeMessage(entity, out);
+                writer.writeMessage(entity.velocity(), out);
+                sizes.add(out.size() - before);
+            }
+            int fullSize = serializer.sizeOf(entities.get(0));
+            assertTrue(sizes.get(1) < fullSize / 2, "Delta wasn't smaller than a full message.");
+            assertEquals(sizes.get(0), sizes.get(4), "Every 4th message should be a keyframe.");
+            assertEquals(sizes.get(1), sizes.get(2));
+
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            for (Entity entity : entities) {
+                Entity read = (Entity) reader.readMessage(in);
+                assertEquals(entity.position(), read.position());
+                assertEquals(entity.mode(), read.mode());
+                assertEquals(entity.name(), read.name());
+                assertArrayEquals(entity.inventory(), read.inventory());
+                assertEquals(entity.velocity(), reader.readMessage(in));
+            }
+            assertEquals(-1, in.read());
+
+            // Buffers, and resynchronizing after a reader loses its state.
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            writer.writeMessage(entities.get(0), buffer);
+            buffer.flip();
+            DeltaSession fresh = serializer.newDeltaSession(4);
+            assertThrows(StreamCorruptedException.class, () -> fresh.readMessage(buffer));
+            writer.requestKeyframes();
+            buffer.clear();
+            writer.writeMessage(entities.get(1), buffer);
+            writer.writeMessage(entities.get(2), buffer);
+            assertThrows(BufferOverflowException.class, () -> writer.writeMessage(entities.get(3), ByteBuffer.allocate(3)));
+            buffer.flip();
+            assertEquals(entities.get(1).position(), ((Entity) fresh.readMessage(buffer)).position());
+            assertEquals(entities.get(2).position(), ((Entity) fresh.readMessage(buffer)).position());
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    public void testGeneratedCodec() throws Exception {
+        enum Kind {A, B}
+        record Vec (float x, float y) {}
+        record Unit (int id, long hp, short s, byte b, char c, boolean alive, double d, String name, Vec pos, Kind kind, int[] tags) {}
+        // Written the same way that the annotation processor generates codecs.
+        GeneratedCodec<Vec> vecCodec = new GeneratedCodec<>() {
+            public Class<Vec> type() { return Vec.class; }
+            public String[] componentNames() { return new String[] {"x", "y"}; }
+            public Class<?>[] componentTypes() { return new Class<?>[] {float.class, float.class}; }
+            public Object component(Vec r, int i) {
+                return switch (i) {
+                    case 0 -> r.x();
+                    case 1 -> r.y();
+                    default -> throw new IndexOutOfBoundsException(i);
+                };
+            }
+            public Vec construct(Object[] v) { return new Vec((float) v[0], (float) v[1]); }
+            public void write(Vec r, RecordWriter out) throws IOException {
+                out.writeFloat(r.x());
+                out.writeFloat(r.y());
+            }
+            public Vec read(RecordReader in) throws IOException {
+                float x = in.readFloat();
+                float y = in.readFloat();
+                return new Vec(x, y);
+            }
+        };
+        GeneratedCodec<Unit> unitCodec = new GeneratedCodec<>() {
+            public Class<Unit> type() { return Unit.class; }
+            public String[] componentNames() {
+                return new String[] {"id", "hp", "s", "b", "c", "alive", "d", "name", "pos", "kind", "tags"};
+            }
+            public Class<?>[] componentTypes() {
+                return new Class<?>[] {int.class, long.class, short.class, byte.class, char.class, boolean.class,
+                        double.class, String.class, Vec.class, Kind.class, int[].class};
+            }
+            public Object component(Unit r, int i) {
+                return switch (i) {
+                    case 0 -> r.id();
+                    case 1 -> r.hp();
+                    case 2 -> r.s();
+                    case 3 -> r.b();
+                    case 4 -> r.c();
+                    case 5 -> r.alive();
+                    case 6 -> r.d();
+                    case 7 -> r.name();
+                    case 8 -> r.pos();
+                    case 9 -> r.kind();
+                    case 10 -> r.tags();
+                    default -> throw new IndexOutOfBoundsException(i);
+                };
+            }
+            public Unit construct(Object[] v) {
+                return new Unit((int) v[0], (long) v[1], (short) v[2], (byte) v[3], (char) v[4], (boolean) v[5],
+                        (double) v[6], (String) v[7], (Vec) v[8], (Kind) v[9], (int[]) v[10]);
+            }
+            public void write(Unit r, RecordWriter out) throws IOException {
+                out.writeInt(r.id());
+                out.writeLong(r.hp());
+                out.writeShort(r.s());
+                out.writeByte(r.b());
+                out.writeChar(r.c());
+                out.writeBoolean(r.alive());
+                out.writeDouble(r.d());
+                out.writeObject(7, r.name());
+                out.writeObject(8, r.pos());
+                out.writeObject(9, r.kind());
+                out.writeObject(10, r.tags());
+            }
+            public Unit read(RecordReader in) throws IOException {
+                int id = in.readInt();
+                long hp = in.readLong();
+                short s = in.readShort();
+                byte b = in.readByte();
+                char c = in.readChar();
+                boolean alive = in.readBoolean();
+                double d = in.readDouble();
+                String name = (String) in.readObject(7);
+                Vec pos = (Vec) in.readObject(8);
+                Kind kind = (Kind) in.readObject(9);
+                int[] tags = (int[]) in.readObject(10);
+                return new Unit(id, hp, s, b, c, alive, d, name, pos, kind, tags);
+            }
+        };
+        Unit unit = new Unit(-7, 1L << 40, (short) -3, (byte) 9, 'z', true, 2.5, "knight", new Vec(1, -2), Kind.B, new int[] {1, -1, 300});
+        for (WireFormat format : WireFormat.values()) {
+            RecordMappedSerializer reflective = new RecordMappedSerializer(format);
+            reflective.registerType(1, Vec.class);
+            reflective.registerType(2, Unit.class);
+            RecordMappedSerializer generated = RecordMappedSerializer.builder()
+                    .format(format)
+                    .registerCodec(2, unitCodec)
+                    .registerCodec(1, vecCodec)
+                    .build();
+            assertTrue(generated.isTypeSupported(Unit.class));
+            assertThrows(IllegalStateException.class, () -> generated.registerCodec(3, vecCodec));
+
+            byte[] expected = reflective.toByteArray(unit);
+            assertArrayEquals(expected, generated.toByteArray(unit));
+            assertEquals(expected.length, generated.sizeOf(unit));
+            Unit read = (Unit) generated.readMessage(new ByteArrayInputStream(expected));
+            assertEquals(unit.name(), read.name());
+            assertEquals(unit.pos(), read.pos());
+            assertArrayEquals(unit.tags(), read.tags());
+            assertEquals(unit.pos(), ((Unit) reflective.readMessage(new ByteArrayInputStream(generated.toByteArray(unit)))).pos());
+
+            // Delta sessions use the generated accessors and constructor too.
+            DeltaSession sender = generated.newDeltaSession();
+            DeltaSession receiver = generated.newDeltaSession();
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            Unit moved = new Unit(unit.id(), unit.hp() - 1, unit.s(), unit.b(), unit.c(), unit.alive(), unit.d(), unit.name(), new Vec(2, -2), unit.kind(), unit.tags());
+            sender.writeMessage(unit, buffer);
+            sender.writeMessage(moved, buffer);
+            buffer.flip();
+            assertEquals(unit.pos(), ((Unit) receiver.readMessage(buffer)).pos());
+            assertEquals(moved.pos(), ((Unit) receiver.readMessage(buffer)).pos());
+        }
+    }
+
+    @Test
+    public void testReregisterNestedType() throws Exception {
+        record Vec (int x, int y) {}
+        record Route (Vec from, Vec[] via) {}
+        // Writes each vector's components the other way around.
+        GeneratedCodec<Vec> swapped = new GeneratedCodec<>() {
+            public Class<Vec> type() { return Vec.class; }
+            public String[] componentNames() { return new String[] {"x", "y"}; }
+            public Class<?>[] componentTypes() { return new Class<?>[] {int.class, int.class}; }
+            public Object component(Vec r, int i) { return i == 0 ? r.x() : r.y(); }
+            public Vec construct(Object[] v) { return new Vec((int) v[0], (int) v[1]); }
+            public void write(Vec r, RecordWriter out) throws IOException {
+                out.writeInt(r.y());
+                out.writeInt(r.x());
+            }
+            public Vec read(RecordReader in) throws IOException {
+                int y = in.readInt();
+                int x = in.readInt();
+                return new Vec(x, y);
+            }
+        };
+        RecordMappedSerializer serializer = new RecordMappedSerializer();
+        serializer.registerType(1, Vec.class);
+        serializer.registerType(2, Route.class);
+        Route route = new Route(new Vec(1, 2), new Vec[] {new Vec(3, 4)});
+        byte[] before = serializer.toByteArray(route);
+        assertEquals(route.from(), ((Route) serializer.readMessage(new ByteArrayInputStream(before))).from());
+
+        // Records that contain a type use its new registration.
+        serializer.registerCodec(1, swapped);
+        byte[] after = serializer.toByteArray(route);
+        assertFalse(Arrays.equals(before, after));
+        assertEquals(after.length, serializer.sizeOf(route));
+        Route read = (Route) serializer.readMessage(new ByteArrayInputStream(after));
+        assertEquals(route.from(), read.from());
+        assertEquals(route.via()[0], read.via()[0]);
+    }
+
+    @Test
+    public void testNullEncoding() throws Exception {
+        enum Kind {A, B}
+        record Inner (String label, UUID id) {}
+        record Sparse (int id, String a, UUID b, Integer c, Kind kind, Inner inner, long[] values, String[] tags, double d) {}
+        record Small (Kind kind) {}
+        record View (int id, Inner inner) {}
+        Sparse empty = new Sparse(7, null, null, null, null, null, null, null, 1.5);
+        Sparse partial = new Sparse(8, "a", null, 3, Kind.B, new Inner(null, UUID.randomUUID()), null, new String[] {"x"}, -1);
+        for (WireFormat format : WireFormat.values()) {
+            for (StringEncoding strings : StringEncoding.values()) {
+                RecordMappedSerializer serializer = RecordMappedSerializer.builder()
+                        .format(format)
+                        .stringEncoding(strings)
+                        .nullEncoding(NullEncoding.PRESENCE_BITMAP)
+                        .registerType(1, Inner.class)
+                        .registerType(2, Sparse.class)
+                        .registerType(3, Small.class)
+                        .build();
+                assertEquals(NullEncoding.PRESENCE_BITMAP, serializer.getNullEncoding());
+                // The message id and int component, one bitmap byte for the seven
+                // non-primitive components, and nothing for the nulls.
+                int intSize = format == WireFormat.COMPACT ? 1 : Integer.BYTES;
+                assertEquals(intSize + intSize + 1 + Double.BYTES, serializer.sizeOf(empty));
+                for (Sparse msg : List.of(empty, partial)) {
+                    byte[] bytes = serializer.toByteArray(msg);
+                    assertEquals(bytes.length, serializer.sizeOf(msg));
+                    Sparse read = (Sparse) serializer.readMessage(new ByteArrayInputStream(bytes));
+                    assertEquals(msg.a(), read.a());
+                    assertEquals(msg.b(), read.b());
+                    assertEquals(msg.c(), read.c());
+                    assertEquals(msg.kind(), read.kind());
+                    assertEquals(msg.inner(), read.inner());
+                    assertArrayEquals(msg.values(), read.values());
+                    assertArrayEquals(msg.tags(), read.tags());
+                    assertEquals(msg.d(), read.d());
+
+                    ByteBuffer buffer = ByteBuffer.allocate(256);
+                    serializer.writeMessage(msg, buffer);
+                    RecordView view = serializer.readView(buffer.flip());
+                    assertEquals(msg.a(), view.get("a"));
+                    assertEquals(msg.d(), view.get("d"));
+                    assertEquals(msg.inner() == null, view.getView("inner") == null);
+                    View projected = serializer.readMessageAs(ByteBuffer.wrap(bytes), View.class);
+                    assertEquals(msg.inner(), projected.inner());
+                }
+                // Enums have no null ordinal, so the compact format writes the ordinal itself.
+                assertEquals(intSize + 1 + intSize, serializer.sizeOf(new Small(Kind.A)));
+                assertNull(((Small) serializer.readMessage(new ByteArrayInputStream(serializer.toByteArray(new Small(null))))).kind());
+
+                DeltaSession sender = serializer.newDeltaSession();
+                DeltaSession receiver = serializer.newDeltaSession();
+                ByteBuffer deltas = ByteBuffer.allocate(1024);
+                sender.writeMessage(partial, deltas);
+                sender.writeMessage(empty, deltas);
+                sender.writeMessage(partial, deltas);
+                deltas.flip();
+                assertEquals(partial.inner(), ((Sparse) receiver.readMessage(deltas)).inner());
+                assertNull(((Sparse) receiver.readMessage(deltas)).inner());
+                assertEquals(partial.inner(), ((Sparse) receiver.readMessage(deltas)).inner());
+
+                // Bits for components that don't exist are rejected.
+                byte[] corrupt = serializer.toByteArray(new Small(Kind.B));
+                corrupt[intSize] = (byte) 0xFF;
+                assertThrows(StreamCorruptedException.class, () -> serializer.readMessage(new ByteArrayInputStream(corrupt)));
+            }
+        }
+
+        // Without a bitmap, only enums may be null, and nothing else changes.
+        RecordMappedSerializer plain = new RecordMappedSerializer();
+        plain.registerType(3, Small.class);
+        assertEquals(Integer.BYTES + Integer.BYTES, plain.sizeOf(new Small(null)));
+    }
+
+    @Test
+    public void testByteOrder() throws Exception {
+        record Point (int x, int y) {}
+        record Sample (short a, char b, int c, long d, float e, double f, String s, UUID id, Point p, int[] ints, long[] longs, double[] doubles, char[] chars) {}
+        int[] ints = new int[1000];
+        long[] longs = new long[1000];
+        double[] doubles = new double[1000];
+        char[] chars = new char[1000];
+        for (int i = 0; i < 1000; i++) {
+            ints[i] = i * 31;
+            longs[i] = -i * 1_000_000_007L;
+            doubles[i] = i / 3.0;
+            chars[i] = (char) ('a' + i % 26);
+        }
+        Sample sample = new Sample((short) -2, 'z', 123456, -9876543210L, 1.5f, -2.25, "hello", UUID.randomUUID(), new Point(3, -4), ints, longs, doubles, chars);
+        for (WireFormat format : WireFormat.values()) {
+            RecordMappedSerializer big = RecordMappedSerializer.builder()
+                    .format(format)
+                    .registerType(1, Point.class)
+                    .build();
+            RecordMappedSerializer little = RecordMappedSerializer.builder()
+                    .format(format)
+                    .byteOrder(ByteOrder.LITTLE_ENDIAN)
+                    .registerType(1, Point.class)
+                    .registerType(2, Sample.class)
+                    .build();
+            assertEquals(ByteOrder.BIG_ENDIAN, big.getByteOrder());
+            assertEquals(ByteOrder.LITTLE_ENDIAN, little.getByteOrder());
+
+            // Every multibyte value is written with its bytes reversed.
+            Point point = new Point(0x01020304, -2);
+            if (format == WireFormat.STANDARD) {
+                byte[] bigBytes = big.toByteArray(point);
+                byte[] littleBytes = little.toByteArray(point);
+                assertEquals(bigBytes.length, littleBytes.length);
+                for (int i = 0; i < bigBytes.length; i += 4) {
+                    for (int j = 0; j < 4; j++) assertEquals(bigBytes[i + j], littleBytes[i + 3 - j]);
+                }
+                ByteBuffer direct = ByteBuffer.allocateDirect(64).order(ByteOrder.LITTLE_ENDIAN);
+                little.writeMessage(point, direct);
+                assertEquals(1, direct.getInt(0));
+                assertEquals(0x01020304, direct.getInt(4));
+            }
+
+            // Reading works from buffers in any order, and from streams, even
+            // when arrays are read in chunks that span stream reads.
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            little.writeMessage(sample, buffer);
+            little.writeFramedMessage(sample, buffer);
+            assertEquals(ByteOrder.BIG_ENDIAN, buffer.order());
+            buffer.flip();
+            assertRecordEquals(sample, (Sample) little.readMessage(buffer));
+            assertRecordEquals(sample, (Sample) little.readFramedMessage(buffer));
+            assertRecordEquals(sample, (Sample) little.readMessage(new ByteArrayInputStream(little.toByteArray(sample))));
+            ByteArrayOutputStream framed = new ByteArrayOutputStream();
+            little.writeFramedMessage(sample, framed);
+            little.writeFramedMessage(point, framed);
+            assertRecordEquals(sample, (Sample) little.readFramedMessage(new ByteArrayInputStream(framed.toByteArray())));
+            List<Object> decoded = new ArrayList<>();
+            FrameDecoder frames = new FrameDecoder(little);
+            for (byte b : framed.toByteArray()) frames.feed(ByteBuffer.wrap(new byte[] {b}), decoded::add);
+            assertEquals(2, decoded.size());
+            assertRecordEquals(sample, (Sample) decoded.get(0));
+            assertEquals(point, decoded.get(1));
+
+            MessageDecoder decoder = little.newDecoder();
+            ByteBuffer encoded = ByteBuffer.allocate(32 * 1024);
+            little.newEncoder().writeMessage(sample, encoded);
+            assertRecordEquals(sample, (Sample) decoder.readMessage(encoded.flip()));
+            RecordView view = little.readView(ByteBuffer.wrap(little.toByteArray(sample)));
+            assertEquals(sample.d(), view.get("d"));
+            assertEquals(sample.p(), view.getView("p").toRecord());
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            little.writeBatch(Point.class, List.of(point, new Point(5, 6)), batch);
+            assertArrayEquals(new int[] {0x01020304, 5}, little.readBatch(new ByteArrayInputStream(batch.toByteArray())).column("x", int[].class));
+            DeltaSession sender = little.newDeltaSession();
+            DeltaSession receiver = little.newDeltaSession();
+            ByteArrayOutputStream deltas = new ByteArrayOutputStream();
+            sender.writeMessage(sample, deltas);
+            sender.writeMessage(new Point(1, 2), deltas);
+            ByteArrayInputStream deltaIn = new ByteArrayInputStream(deltas.toByteArray());
+            assertRecordEquals(sample, (Sample) receiver.readMessage(deltaIn));
+            assertEquals(new Point(1, 2), receiver.readMessage(deltaIn));
+        }
+    }
+
+    @Test
+    public void testReferenceEncoding() throws Exception {
+        record Tag (String key, UUID owner) {}
+        record Item (String name, UUID owner, Tag tag, String[] labels, Tag[] tags, long n) {}
+        UUID alice = UUID.randomUUID();
+        UUID bob = UUID.randomUUID();
+        Tag[] tags = new Tag[100];
+        for (int i = 0; i < tags.length; i++) tags[i] = new Tag(i % 2 == 0 ? "even" : "odd", i % 3 == 0 ? alice : bob);
+        Item item = new Item("widget", alice, new Tag("widget", bob), new String[] {"a", "widget", "a"}, tags, 7);
+        for (WireFormat format : WireFormat.values()) {
+            for (NullEncoding nulls : NullEncoding.values()) {
+                RecordMappedSerializer plain = RecordMappedSerializer.builder()
+                        .format(format)
+                        .nullEncoding(nulls)
+                        .registerType(1, Tag.class)
+                        .registerType(2, Item.class)
+                        .build();
+                RecordMappedSerializer shared = RecordMappedSerializer.builder()
+                        .format(format)
+                        .nullEncoding(nulls)
+                        .referenceEncoding(ReferenceEncoding.REFERENCE_TABLE)
+                        .registerType(1, Tag.class)
+                        .registerType(2, Item.class)
+                        .build();
+                assertEquals(ReferenceEncoding.NONE, plain.getReferenceEncoding());
+                assertEquals(ReferenceEncoding.REFERENCE_TABLE, shared.getReferenceEncoding());
+
+                // Repeated values are written once, and read as one instance.
+                byte[] bytes = shared.toByteArray(item);
+                assertEquals(shared.sizeOf(item), bytes.length);
+                assertTrue(bytes.length < plain.toByteArray(item).length / 4);
+                Item read = (Item) shared.readMessage(new ByteArrayInputStream(bytes));
+                assertRecordEquals(item, read);
+                assertSame(read.name(), read.tag().key());
+                assertSame(read.name(), read.labels()[1]);
+                assertSame(read.labels()[0], read.labels()[2]);
+                assertSame(read.owner(), read.tags()[0].owner());
+                assertSame(read.tags()[0].key(), read.tags()[98].key());
+                if (nulls == NullEncoding.PRESENCE_BITMAP) {
+                    Item sparse = new Item(null, bob, null, new String[0], tags, 8);
+                    assertRecordEquals(sparse, (Item) shared.readMessage(new ByteArrayInputStream(shared.toByteArray(sparse))));
+                } else {
+                    // A reference to a value that hasn't been written yet.
+                    byte[] corrupt = bytes.clone();
+                    corrupt[format == WireFormat.COMPACT ? 1 : 4] = 5;
+                    assertThrows(StreamCorruptedException.class, () -> shared.readMessage(new ByteArrayInputStream(corrupt)));
+                }
+
+                // Every message starts with an empty table.
+                ByteArrayOutputStream framed = new ByteArrayOutputStream();
+                shared.writeFramedMessage(item, framed);
+                shared.writeFramedMessage(item, framed);
+                ByteArrayInputStream framedIn = new ByteArrayInputStream(framed.toByteArray());
+                assertEquals(2 * (Integer.BYTES + bytes.length), framed.size());
+                assertRecordEquals(item, (Item) shared.readFramedMessage(framedIn));
+                assertRecordEquals(item, (Item) shared.readFramedMessage(framedIn));
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                MessageEncoder encoder = shared.newEncoder();
+                encoder.writeMessage(item, buffer);
+                encoder.writeMessage(item.tag(), buffer);
+                buffer.flip();
+                MessageDecoder decoder = shared.newDecoder();
+                assertRecordEquals(item, (Item) decoder.readMessage(buffer));
+                assertEquals(item.tag(), decoder.readMessage(buffer));
+
+                // Views decode each component with the table as it was before it.
+                RecordView view = shared.readView(ByteBuffer.wrap(bytes));
+                assertEquals(item.tag(), view.get("tag"));
+                assertEquals("widget", view.getView("tag").get("key"));
+                assertEquals(item.tag(), view.getView("tag").toRecord());
+                assertArrayEquals(tags, (Tag[]) view.get("tags"));
+                assertRecordEquals(item, (Item) view.toRecord());
+
+                ByteArrayOutputStream batch = new ByteArrayOutputStream();
+                shared.writeBatch(Tag.class, Arrays.asList(tags), batch);
+                RecordBatch readBatch = shared.readBatch(new ByteArrayInputStream(batch.toByteArray()));
+                assertEquals(Arrays.asList(tags), readBatch.toList());
+
+                DeltaSession sender = shared.newDeltaSession();
+                DeltaSession receiver = shared.newDeltaSession();
+                ByteArrayOutputStream deltas = new ByteArrayOutputStream();
+                Item changed = new Item("gadget", alice, new Tag("gadget", alice), item.labels(), tags, 9);
+                sender.writeMessage(item, deltas);
+                sender.writeMessage(changed, deltas);
+                ByteArrayInputStream deltaIn = new ByteArrayInputStream(deltas.toByteArray());
+                assertRecordEquals(item, (Item) receiver.readMessage(deltaIn));
+                Item readChanged = (Item) receiver.readMessage(deltaIn);
+                assertRecordEquals(changed, readChanged);
+                assertSame(readChanged.name(), readChanged.tag().key());
+            }
+        }
+    }
+
+    @Test
+    public void testDecoderValueCache() throws Exception {
+        record Event (String source, UUID id, String[] tags) {}
+        String longText = "x".repeat(100);
+        Event event = new Event("sensor-1", UUID.randomUUID(), new String[] {"héllo\0", longText, "sensor-1"});
+        for (StringEncoding strings : StringEncoding.values()) {
+            RecordMappedSerializer serializer = RecordMappedSerializer.builder()
+                    .stringEncoding(strings)
+                    .registerType(1, Event.class)
+                    .build();
+            assertThrows(IllegalArgumentException.class, () -> serializer.newDecoder(0));
+            byte[] bytes = serializer.toByteArray(event);
+            MessageDecoder decoder = serializer.newDecoder(8);
+            // From a buffer, and from a stream, which only holds part of each string at once.
+            Event first = (Event) decoder.readMessage(ByteBuffer.wrap(bytes));
+            Event second = (Event) decoder.readMessage(new ByteArrayInputStream(bytes));
+            assertRecordEquals(event, first);
+            assertRecordEquals(event, second);
+            assertSame(first.source(), second.source());
+            assertSame(first.source(), first.tags()[2]);
+            assertSame(first.id(), second.id());
+            assertSame(first.tags()[0], second.tags()[0]);
+            assertNotSame(first.tags()[1], second.tags()[1]);
+            Event uncached = (Event) serializer.newDecoder().readMessage(ByteBuffer.wrap(bytes));
+            assertNotSame(first.source(), uncached.source());
+        }
+    }
+
+    sealed interface Event permits Login, Move, Shape {}
+    record Login (String user, UUID session) implements Event {}
+    record Move (int x, int y) implements Event {}
+    sealed interface Shape extends Event permits Circle, Square {}
+    record Circle (double radius) implements Shape {}
+    record Square (double side) implements Shape {}
+    record Timeline (long start, Event first, Event[] events, Shape shape) {}
+    sealed interface Opaque permits OpaqueClass {}
+    static final class OpaqueClass implements Opaque {}
+    record OpaqueHolder (Opaque value) {}
+
+    @Test
+    public void testSealedComponents() throws Exception {
+        Event[] events = {new Login("alice", UUID.randomUUID()), new Move(1, -2), new Circle(1.5), new Square(2), new Move(3, 4)};
+        Timeline timeline = new Timeline(100, new Move(5, 6), events, new Square(7));
+        for (WireFormat format : WireFormat.values()) {
+            for (NullEncoding nulls : NullEncoding.values()) {
+                RecordMappedSerializer serializer = RecordMappedSerializer.builder()
+                        .format(format)
+                        .nullEncoding(nulls)
+                        .registerType(1, Login.class)
+                        .registerType(2, Move.class)
+                        .registerType(3, Circle.class)
+                        .registerType(4, Square.class)
+                        .registerType(5, Timeline.class)
+                        .registerType(6, OpaqueHolder.class)
+                        .build();
+                byte[] bytes = serializer.toByteArray(timeline);
+                assertEquals(serializer.sizeOf(timeline), bytes.length);
+                assertRecordEquals(timeline, (Timeline) serializer.readMessage(new ByteArrayInputStream(bytes)));
+                if (format == WireFormat.STANDARD && nulls == NullEncoding.NONE) {
+                    // Each value costs just a one byte tag more than the record itself.
+                    Timeline small = new Timeline(0, new Move(1, 2), new Event[0], new Circle(3));
+                    assertEquals(Integer.BYTES + Long.BYTES + (1 + 2 * Integer.BYTES) + Integer.BYTES + (1 + Double.BYTES), serializer.sizeOf(small));
+                    byte[] corrupt = bytes.clone();
+                    corrupt[Integer.BYTES + Long.BYTES] = 9;
+                    assertThrows(StreamCorruptedException.class, () -> serializer.readMessage(new ByteArrayInputStream(corrupt)));
+                }
+                if (nulls == NullEncoding.PRESENCE_BITMAP) {
+                    Timeline sparse = new Timeline(1, null, events, null);
+                    assertRecordEquals(sparse, (Timeline) serializer.readMessage(new ByteArrayInputStream(serializer.toByteArray(sparse))));
+                }
+                assertThrows(UnsupportedMessageTypeException.class, () -> serializer.toByteArray(new OpaqueHolder(new OpaqueClass())));
+
+                RecordView view = serializer.readView(ByteBuffer.wrap(bytes));
+                RecordView first = view.getView("first");
+                assertEquals(Move.class, first.type());
+                assertEquals(6, first.get("y"));
+                assertEquals(Square.class, view.getView("shape").type());
+                assertArrayEquals(events, (Event[]) view.get("events"));
+
+                ByteArrayOutputStream batch = new ByteArrayOutputStream();
+                List<Timeline> timelines = List.of(timeline, new Timeline(200, events[0], new Event[0], new Circle(0)));
+                serializer.writeBatch(Timeline.class, timelines, batch);
+                RecordBatch readBatch = serializer.readBatch(new ByteArrayInputStream(batch.toByteArray()));
+                assertArrayEquals(new Event[] {timeline.first(), events[0]}, readBatch.column("first", Event[].class));
+
+                DeltaSession sender = serializer.newDeltaSession();
+                DeltaSession receiver = serializer.newDeltaSession();
+                ByteArrayOutputStream deltas = new ByteArrayOutputStream();
+                Timeline changed = new Timeline(100, new Circle(8), events, new Square(7));
+                sender.writeMessage(timeline, deltas);
+                sender.writeMessage(changed, deltas);
+                ByteArrayInputStream deltaIn = new ByteArrayInputStream(deltas.toByteArray());
+                assertRecordEquals(timeline, (Timeline) receiver.readMessage(deltaIn));
+                assertRecordEquals(changed, (Timeline) receiver.readMessage(deltaIn));
+            }
+        }
+
+        // Every permitted record must be registered before it's written.
+        RecordMappedSerializer partial = RecordMappedSerializer.builder()
+                .nullEncoding(NullEncoding.PRESENCE_BITMAP)
+                .registerType(2, Move.class)
+                .registerType(5, Timeline.class)
+                .build();
+        assertRecordEquals(new Timeline(0, new Move(1, 1), new Event[] {new Move(2, 2)}, null), (Timeline) partial.readMessage(
+                new ByteArrayInputStream(partial.toByteArray(new Timeline(0, new Move(1, 1), new Event[] {new Move(2, 2)}, null)))));
+        assertThrows(UnsupportedMessageTypeException.class, () -> partial.toByteArray(timeline));
+    }
+
+    private static void assertRecordEquals(Record expected, Record actual) throws Exception {
+        assertEquals(expected.getClass(), actual.getClass());
+        for (var component : expected.getClass().getRecordComponents()) {
+            Object a = component.getAccessor().invoke(expected);
+            Object b = component.getAccessor().invoke(actual);
+            if (a != null && a.getClass().isArray()) {
+                assertTrue(java.util.Objects.deepEquals(a, b), component.getName());
+            } else {
+                assertEquals(a, b, component.getName());
+            }
+        }
+    }
 }